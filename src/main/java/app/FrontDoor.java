@@ -0,0 +1,37 @@
+package app;
+
+import tcp.TcpFrontDoor;
+import udp.UdpFrontDoor;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless front door in front of several servers:
+ *   java -cp out app.FrontDoor tcp|udp <port> <host:port,host:port,...> [redirect]
+ * redirect (TCP only): send clients to their server instead of relaying their connection.
+ */
+public final class FrontDoor {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: FrontDoor tcp|udp <port> <host:port,...> [redirect]");
+            System.exit(2);
+        }
+        int port = Integer.parseInt(args[1]);
+        List<InetSocketAddress> backends = new ArrayList<>();
+        for (String b : args[2].split(",")) {
+            int i = b.trim().lastIndexOf(':');
+            backends.add(new InetSocketAddress(b.trim().substring(0, i), Integer.parseInt(b.trim().substring(i + 1))));
+        }
+
+        if ("udp".equalsIgnoreCase(args[0])) {
+            new UdpFrontDoor(port, backends, null).start();
+        } else {
+            TcpFrontDoor door = new TcpFrontDoor(port, backends, null);
+            door.setRedirect(args.length > 3 && "redirect".equalsIgnoreCase(args[3]));
+            door.start();
+        }
+        Thread.currentThread().join(); // the front door threads are daemons
+    }
+}
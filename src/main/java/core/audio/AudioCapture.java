@@ -4,8 +4,9 @@ import javax.sound.sampled.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Captures microphone PCM data in a background thread and feeds chunks to a callback.
- * Designed for "push-to-talk" style streaming.
+ * Captures microphone PCM data in a background thread.
+ * - Callback mode: feeds chunks to a handler ("push-to-talk" style streaming).
+ * - Buffer mode: reads straight into a {@link PcmBuffer} (no per-chunk copy).
  */
 public final class AudioCapture implements AutoCloseable {
 
@@ -29,23 +30,51 @@ public final class AudioCapture implements AutoCloseable {
     public void start(int chunkSizeBytes, ChunkHandler handler, ErrorHandler errorHandler) throws LineUnavailableException {
         if (running.get()) return;
 
-        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
-        line = (TargetDataLine) AudioSystem.getLine(info);
-        line.open(format);
-        line.start();
-
+        TargetDataLine l = openLine();
         running.set(true);
-        thread = new Thread(() -> {
+        startThread(() -> {
             byte[] buf = new byte[Math.max(256, chunkSizeBytes)];
             try {
                 while (running.get()) {
-                    int n = line.read(buf, 0, buf.length);
+                    int n = l.read(buf, 0, buf.length);
                     if (n > 0) handler.onChunk(buf, n);
                 }
             } catch (Exception e) {
                 if (errorHandler != null) errorHandler.onError(e);
             }
-        }, "AudioCapture");
+        });
+    }
+
+    /** Capture into the given buffer until {@link #stop()}; the line writes directly into its segments. */
+    public void start(PcmBuffer target, int chunkSizeBytes, ErrorHandler errorHandler) throws LineUnavailableException {
+        if (running.get()) return;
+
+        TargetDataLine l = openLine();
+        // TargetDataLine.read wants whole frames
+        int frame = Math.max(1, format.getFrameSize());
+        int max = Math.max(frame, Math.max(256, chunkSizeBytes) / frame * frame);
+        running.set(true);
+        startThread(() -> {
+            try {
+                while (running.get()) {
+                    target.fill(l::read, max);
+                }
+            } catch (Exception e) {
+                if (errorHandler != null) errorHandler.onError(e);
+            }
+        });
+    }
+
+    private TargetDataLine openLine() throws LineUnavailableException {
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+        line = (TargetDataLine) AudioSystem.getLine(info);
+        line.open(format);
+        line.start();
+        return line;
+    }
+
+    private void startThread(Runnable loop) {
+        thread = new Thread(loop, "AudioCapture");
         thread.setDaemon(true);
         thread.start();
     }
@@ -57,6 +86,13 @@ public final class AudioCapture implements AutoCloseable {
             try { line.close(); } catch (Exception ignored) {}
         }
         line = null;
+
+        // make sure the capture thread is done writing before callers read what it captured
+        Thread t = thread;
+        if (t != null && t != Thread.currentThread()) {
+            try { t.join(500); } catch (InterruptedException ignored) {}
+        }
+        thread = null;
     }
 
     @Override public void close() { stop(); }
@@ -0,0 +1,149 @@
+package core.audio;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Append-only PCM buffer made of fixed-size segments.
+ *
+ * - Writers append into the tail segment; existing bytes are never moved, so growth is linear.
+ * - Readers walk the segments in place ({@link #forEachSlice}) instead of copying into one array.
+ * - Segments come from a small shared pool and go back to it on {@link #release()}.
+ *
+ * One writer thread and any number of readers may use a buffer concurrently:
+ * readers only see bytes published before they took their size snapshot.
+ */
+public final class PcmBuffer {
+    public static final int SEGMENT_SIZE = 16 * 1024;
+
+    private static final int POOL_MAX_SEGMENTS = 64;
+    private static final ArrayDeque<byte[]> POOL = new ArrayDeque<>();
+
+    /** Fills part of a segment, e.g. {@code TargetDataLine::read}. */
+    public interface Source {
+        int read(byte[] b, int off, int len) throws IOException;
+    }
+
+    /** Receives a view into a segment; the bytes must not be kept after the call returns. */
+    public interface SliceConsumer {
+        void accept(byte[] b, int off, int len) throws IOException;
+    }
+
+    private volatile byte[][] segments;
+    private volatile long size;
+    private int segmentCount;
+    private final boolean readOnly;
+
+    public PcmBuffer() {
+        this.segments = new byte[8][];
+        this.readOnly = false;
+    }
+
+    private PcmBuffer(byte[] bytes) {
+        this.segments = new byte[][]{bytes};
+        this.segmentCount = 1;
+        this.size = bytes.length;
+        this.readOnly = true;
+    }
+
+    /** Read-only view over an existing array (no copy). */
+    public static PcmBuffer wrap(byte[] bytes) {
+        return new PcmBuffer(bytes == null ? new byte[0] : bytes);
+    }
+
+    public long size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    /** Append a copy of the given bytes. */
+    public void write(byte[] src, int off, int len) {
+        while (len > 0) {
+            byte[] seg = tail();
+            int pos = (int) (size % SEGMENT_SIZE);
+            int n = Math.min(len, SEGMENT_SIZE - pos);
+            System.arraycopy(src, off, seg, pos, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(byte[] src) {
+        write(src, 0, src.length);
+    }
+
+    /**
+     * Let the source write straight into the tail segment (at most maxLen bytes).
+     * Returns what the source returned; negative means end of stream.
+     */
+    public int fill(Source src, int maxLen) throws IOException {
+        byte[] seg = tail();
+        int pos = (int) (size % SEGMENT_SIZE);
+        int n = src.read(seg, pos, Math.min(maxLen, SEGMENT_SIZE - pos));
+        if (n > 0) size += n;
+        return n;
+    }
+
+    /** Visit the current content in slices of at most maxLen bytes, without copying. */
+    public void forEachSlice(int maxLen, SliceConsumer consumer) throws IOException {
+        long remaining = size;
+        byte[][] segs = segments;
+        for (int i = 0; remaining > 0; i++) {
+            byte[] seg = segs[i];
+            int segLen = (int) Math.min(seg.length, remaining);
+            for (int off = 0; off < segLen; off += maxLen) {
+                consumer.accept(seg, off, Math.min(maxLen, segLen - off));
+            }
+            remaining -= segLen;
+        }
+    }
+
+    /** Copies everything into one array; only for callers that really need a byte[]. */
+    public byte[] toByteArray() {
+        long n = size;
+        if (n > Integer.MAX_VALUE) throw new IllegalStateException("PCM too large: " + n);
+        byte[] out = new byte[(int) n];
+        int[] pos = {0};
+        try {
+            forEachSlice(SEGMENT_SIZE, (b, off, len) -> {
+                System.arraycopy(b, off, out, pos[0], len);
+                pos[0] += len;
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out;
+    }
+
+    /** Return segments to the shared pool. The buffer is empty afterwards. */
+    public void release() {
+        if (readOnly) return;
+        byte[][] segs = segments;
+        int count = segmentCount;
+        segments = new byte[8][];
+        segmentCount = 0;
+        size = 0;
+        synchronized (POOL) {
+            for (int i = 0; i < count && POOL.size() < POOL_MAX_SEGMENTS; i++) POOL.push(segs[i]);
+        }
+    }
+
+    private byte[] tail() {
+        if (readOnly) throw new IllegalStateException("Buffer is read-only");
+        int index = (int) (size / SEGMENT_SIZE);
+        if (index < segmentCount) return segments[index];
+
+        byte[][] segs = segments;
+        if (segmentCount == segs.length) {
+            byte[][] grown = new byte[segs.length * 2][];
+            System.arraycopy(segs, 0, grown, 0, segmentCount);
+            segs = grown;
+        }
+        byte[] seg;
+        synchronized (POOL) { seg = POOL.poll(); }
+        if (seg == null) seg = new byte[SEGMENT_SIZE];
+        segs[segmentCount++] = seg;
+        segments = segs; // publish before size moves past the new segment
+        return seg;
+    }
+}
@@ -1,17 +1,27 @@
 package core.audio;
 
 import javax.sound.sampled.*;
+import java.io.IOException;
 
 /** Plays PCM bytes (blocking). */
 public final class PcmPlayer {
     private PcmPlayer() {}
 
     public static void play(AudioFormat format, byte[] pcm) throws LineUnavailableException {
+        play(format, PcmBuffer.wrap(pcm));
+    }
+
+    /** Plays straight from the buffer segments (no joined copy). */
+    public static void play(AudioFormat format, PcmBuffer pcm) throws LineUnavailableException {
         DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
         try (SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info)) {
             line.open(format);
             line.start();
-            line.write(pcm, 0, pcm.length);
+            try {
+                pcm.forEachSlice(PcmBuffer.SEGMENT_SIZE, line::write);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
             line.drain();
         }
     }
@@ -0,0 +1,18 @@
+package core.model;
+
+/** A text message from the server's history; ids grow with time and are unique per server. */
+public final class HistoryEntry {
+    public final long id;
+    public final long time;
+    public final String from;
+    public final String to;
+    public final String text;
+
+    public HistoryEntry(long id, long time, String from, String to, String text) {
+        this.id = id;
+        this.time = time;
+        this.from = from;
+        this.to = to;
+        this.text = text;
+    }
+}
@@ -0,0 +1,39 @@
+package core.model;
+
+/**
+ * A search over the server's history; empty strings and zero mean "any".
+ * - text: words that must all appear (case-insensitive)
+ * - with: "*" (broadcast), a user (private conversation), or "" (everything the searcher sees)
+ * - from: sender
+ * - since / until: time range in epoch millis (inclusive)
+ * - beforeId: only messages older than this id (paging)
+ */
+public final class SearchQuery {
+    public final String text;
+    public final String with;
+    public final String from;
+    public final long since;
+    public final long until;
+    public final long beforeId;
+    public final int limit;
+
+    public SearchQuery(String text, String with, String from, long since, long until, long beforeId, int limit) {
+        this.text = (text == null) ? "" : text;
+        this.with = (with == null) ? "" : with;
+        this.from = (from == null) ? "" : from;
+        this.since = since;
+        this.until = until;
+        this.beforeId = beforeId;
+        this.limit = limit;
+    }
+
+    /** Newest messages containing these words, anywhere. */
+    public static SearchQuery of(String text, int limit) {
+        return new SearchQuery(text, "", "", 0, 0, 0, limit);
+    }
+
+    /** The same query, for the page before this id. */
+    public SearchQuery before(long id) {
+        return new SearchQuery(text, with, from, since, until, id, limit);
+    }
+}
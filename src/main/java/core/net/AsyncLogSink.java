@@ -0,0 +1,197 @@
+package core.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, leveled {@link LogSink}: callers only enqueue, one background thread formats
+ * and writes.
+ *
+ * - A record is (time, level, thread, message). Levels below the threshold are rejected by
+ *   enabled() before any message is built.
+ * - Records go into a bounded lock-free ring; when it is full the record is dropped and counted
+ *   (reported as a WARN line once there is room). Callers never block.
+ * - The writer formats "2026-10-18T09:15:02.123Z INFO  [thread] message" lines and hands them
+ *   to an {@link Appender}: a stream such as stdout, or a {@link MappedLogFile}.
+ */
+public final class AsyncLogSink implements LogSink, AutoCloseable {
+    public static final int CAPACITY = 8192; // power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /** Destination of formatted lines; only ever called from the writer thread. */
+    public interface Appender extends AutoCloseable {
+        void write(byte[] line) throws IOException;
+
+        /** End of a batch. */
+        default void flush() throws IOException {}
+
+        @Override void close() throws IOException;
+    }
+
+    private static final class Record {
+        final long millis;
+        final Level level;
+        final String thread;
+        final String message;
+
+        Record(Level level, String message) {
+            this.millis = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+        }
+    }
+
+    private final Level threshold;
+    private final Appender out;
+    private final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim
+    private volatile long head;                       // next slot to write (writer thread only)
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean parked;
+    private volatile boolean closed;
+
+    public AsyncLogSink(Level threshold, Appender out) {
+        this.threshold = threshold;
+        this.out = out;
+        writer = new Thread(this::run, "LogWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Lines to an output stream (not closed with the sink). */
+    public static Appender stream(OutputStream os) {
+        return new Appender() {
+            @Override public void write(byte[] line) throws IOException {
+                os.write(line);
+            }
+
+            @Override public void flush() throws IOException {
+                os.flush();
+            }
+
+            @Override public void close() throws IOException {
+                os.flush();
+            }
+        };
+    }
+
+    /**
+     * Process-wide sink: a rolling mapped file in -Dchat.log.dir if set, stdout otherwise.
+     * The threshold comes from -Dchat.log.level (default INFO). Drained at shutdown.
+     */
+    public static AsyncLogSink shared() {
+        return Shared.SINK;
+    }
+
+    private static final class Shared {
+        static final AsyncLogSink SINK = create();
+
+        private static AsyncLogSink create() {
+            Level level = Level.configured();
+
+            Appender out = null;
+            String dir = System.getProperty("chat.log.dir");
+            if (dir != null && !dir.isBlank()) {
+                try {
+                    out = new MappedLogFile(Path.of(dir), "chatwithfriend", MappedLogFile.SEGMENT_BYTES, MappedLogFile.KEEP);
+                } catch (IOException e) {
+                    System.err.println("Log file unavailable (" + e.getMessage() + "), logging to stdout");
+                }
+            }
+            AsyncLogSink sink = new AsyncLogSink(level, out != null ? out : stream(System.out));
+            Runtime.getRuntime().addShutdownHook(new Thread(sink::close, "LogShutdown"));
+            return sink;
+        }
+    }
+
+    @Override public boolean enabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    @Override public void log(String line) {
+        log(Level.INFO, line);
+    }
+
+    @Override public void log(Level level, String line) {
+        if (!enabled(level) || closed) return;
+        Record r = new Record(level, line);
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.set((int) (t & MASK), r); // volatile: pairs with the writer's re-check before parking
+        if (parked) LockSupport.unpark(writer);
+    }
+
+    /** Records dropped because the ring was full and not yet reported. */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /** Stops accepting records, writes what is queued and closes the appender. */
+    @Override public void close() {
+        if (closed) return;
+        closed = true;
+        LockSupport.unpark(writer);
+        try { writer.join(2000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    private void run() {
+        StringBuilder sb = new StringBuilder(256);
+        try {
+            while (true) {
+                if (drain(sb) > 0) continue;
+                try { out.flush(); } catch (IOException ignored) {}
+                if (closed) break;
+                parked = true;
+                if (ring.get((int) (head & MASK)) == null && !closed) LockSupport.parkNanos(this, IDLE_NANOS);
+                parked = false;
+            }
+        } finally {
+            try { out.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private int drain(StringBuilder sb) {
+        int n = 0;
+        long h = head;
+        Record r;
+        while ((r = ring.get((int) (h & MASK))) != null) {
+            ring.lazySet((int) (h & MASK), null);
+            head = ++h;
+            write(sb, r.millis, r.level, r.thread, r.message);
+            n++;
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            write(sb, System.currentTimeMillis(), Level.WARN, "LogWriter", lost + " log records dropped (queue full)");
+            n++;
+        }
+        return n;
+    }
+
+    private void write(StringBuilder sb, long millis, Level level, String thread, String message) {
+        sb.setLength(0);
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(millis), sb);
+        sb.append(' ').append(level);
+        if (level.name().length() < 5) sb.append(' ');
+        sb.append(" [").append(thread).append("] ").append(message).append('\n');
+        try { out.write(sb.toString().getBytes(StandardCharsets.UTF_8)); }
+        catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,109 @@
+package core.net;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backends behind a front door, health checked, with the healthy ones on a {@link HashRing}
+ * keyed by user name.
+ *
+ * - Every backend starts healthy and is probed every INTERVAL_MS by one checker thread.
+ * - FAILURES missed probes in a row (or a failed connect reported with failed()) take a backend
+ *   off the ring; its first successful probe puts it back. Only the users of the backend that
+ *   went down or came back change backend.
+ */
+public final class BackendPool implements AutoCloseable {
+    static final long INTERVAL_MS = 2000;
+    static final int FAILURES = 2;
+
+    /** True if the backend answers; called from the checker thread only. */
+    public interface Probe {
+        boolean alive(InetSocketAddress backend);
+    }
+
+    private final String tag;
+    private final LogSink log;
+    private final Probe probe;
+    private final HashRing<InetSocketAddress> ring = new HashRing<>();
+    private final Map<InetSocketAddress, Integer> misses = new LinkedHashMap<>(); // guarded by this
+    private final List<InetSocketAddress> down = new ArrayList<>();               // guarded by this
+    private final Thread checker;
+    private volatile boolean closed;
+
+    /** tag prefixes log lines, e.g. "[TCP]". */
+    public BackendPool(List<InetSocketAddress> backends, Probe probe, LogSink log, String tag) {
+        if (backends.isEmpty()) throw new IllegalArgumentException("No backends");
+        this.tag = tag;
+        this.log = log;
+        this.probe = probe;
+        for (InetSocketAddress b : backends) {
+            misses.put(b, 0);
+            ring.add(b);
+        }
+        checker = new Thread(this::checkLoop, "BackendCheck");
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+    /** Backend for this user, or null if none is healthy. */
+    public InetSocketAddress pick(String user) {
+        return ring.get(user);
+    }
+
+    /** A connect to the backend failed: take it off the ring until a probe succeeds. */
+    public void failed(InetSocketAddress backend) {
+        miss(backend, FAILURES);
+    }
+
+    public synchronized List<InetSocketAddress> healthy() {
+        List<InetSocketAddress> out = new ArrayList<>(misses.keySet());
+        out.removeAll(down);
+        return out;
+    }
+
+    private void checkLoop() {
+        while (!closed) {
+            List<InetSocketAddress> all;
+            synchronized (this) {
+                all = new ArrayList<>(misses.keySet());
+            }
+            for (InetSocketAddress b : all) {
+                if (closed) return;
+                if (probe.alive(b)) ok(b);
+                else miss(b, 1);
+            }
+            try {
+                Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void ok(InetSocketAddress b) {
+        misses.put(b, 0);
+        if (down.remove(b)) {
+            ring.add(b);
+            log.log(tag + " Backend " + b + " is up");
+        }
+    }
+
+    private synchronized void miss(InetSocketAddress b, int n) {
+        Integer m = misses.get(b);
+        if (m == null) return;
+        misses.put(b, m + n);
+        if (m + n >= FAILURES && !down.contains(b)) {
+            down.add(b);
+            ring.remove(b);
+            log.warn(tag + " Backend " + b + " is down");
+        }
+    }
+
+    @Override public void close() {
+        closed = true;
+        checker.interrupt();
+    }
+}
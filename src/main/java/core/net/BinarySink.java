@@ -0,0 +1,68 @@
+package core.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * Streaming receiver for one incoming binary.
+ * Cores call chunk(...) zero or more times in offset order, then exactly one of end() or abort(...).
+ * The buffer passed to chunk(...) is reused by the core; copy what you need before returning.
+ */
+public interface BinarySink {
+    void chunk(long offset, ByteBuffer data) throws IOException;
+
+    void end() throws IOException;
+
+    void abort(String reason);
+
+    /**
+     * Optional: a file the core may fill directly (from position 0) instead of calling chunk(),
+     * e.g. with FileChannel.transferFrom. end()/abort() are still called.
+     */
+    default FileChannel target() { return null; }
+
+    /** Sink that ignores everything (e.g. consumer not interested). */
+    static BinarySink discard() {
+        return new BinarySink() {
+            @Override public void chunk(long offset, ByteBuffer data) {}
+            @Override public void end() {}
+            @Override public void abort(String reason) {}
+        };
+    }
+
+    /**
+     * Adapter for the byte[] convenience path: collects everything and hands it over on end().
+     * size may be -1 when the core does not know it up front.
+     */
+    static BinarySink collect(long size, Consumer<byte[]> done) {
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Payload too large for byte[]: " + size);
+        return new BinarySink() {
+            private final byte[] fixed = (size >= 0) ? new byte[(int) size] : null;
+            private final ByteArrayOutputStream grow = (size >= 0) ? null : new ByteArrayOutputStream();
+            private int written;
+
+            @Override public void chunk(long offset, ByteBuffer data) throws IOException {
+                int n = data.remaining();
+                if (fixed != null) {
+                    if (offset + n > fixed.length) throw new IOException("Chunk past declared size");
+                    data.get(fixed, (int) offset, n);
+                } else {
+                    byte[] tmp = new byte[n];
+                    data.get(tmp);
+                    grow.write(tmp);
+                }
+                written += n;
+            }
+
+            @Override public void end() throws IOException {
+                if (fixed != null && written != fixed.length) throw new IOException("Short binary: " + written + "/" + fixed.length);
+                done.accept(fixed != null ? fixed : grow.toByteArray());
+            }
+
+            @Override public void abort(String reason) {}
+        };
+    }
+}
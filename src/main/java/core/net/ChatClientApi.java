@@ -1,6 +1,8 @@
 package core.net;
 
+import core.audio.PcmBuffer;
 import core.model.BinaryKind;
+import core.model.SearchQuery;
 
 import javax.sound.sampled.AudioFormat;
 import java.io.File;
@@ -21,7 +23,39 @@ public interface ChatClientApi extends AutoCloseable {
      * Send a complete voice message (PCM bytes). This supports "record -> preview -> send".
      * The UI can still simulate "live" by calling this repeatedly, but default UX is buffered.
      */
-    void sendVoice(String to, AudioFormat format, byte[] pcmBytes) throws IOException;
+    default void sendVoice(String to, AudioFormat format, byte[] pcmBytes) throws IOException {
+        sendVoice(to, format, PcmBuffer.wrap(pcmBytes));
+    }
+
+    /** Same as above, but chunks are sliced straight out of the buffer segments. */
+    void sendVoice(String to, AudioFormat format, PcmBuffer pcm) throws IOException;
+
+    /**
+     * Join a room ("#name"); the members arrive at {@link ChatClientListener#onRoom}. Text, files
+     * and voice to the room then go to its members only.
+     */
+    default void joinRoom(String room) throws IOException {
+        throw new IOException("Rooms are not supported");
+    }
+
+    default void partRoom(String room) throws IOException {
+        throw new IOException("Rooms are not supported");
+    }
+
+    /**
+     * Ask the server for up to limit text messages older than beforeId; the page arrives at
+     * {@link ChatClientListener#onHistory}.
+     * - with: "*" (broadcast), a room, a user name (private conversation), or "" (everything this user sees)
+     * - beforeId <= 0: messages from before this connection
+     */
+    default void requestHistory(String with, long beforeId, int limit) throws IOException {
+        throw new IOException("History is not supported");
+    }
+
+    /** Search the server's history; matches arrive at {@link ChatClientListener#onSearchResults}. */
+    default void search(SearchQuery query) throws IOException {
+        throw new IOException("Search is not supported");
+    }
 
     @Override void close();
 }
@@ -1,6 +1,8 @@
 package core.net;
 
 import core.model.BinaryKind;
+import core.model.HistoryEntry;
+import core.model.SearchQuery;
 
 import javax.sound.sampled.AudioFormat;
 import java.util.List;
@@ -13,9 +15,45 @@ public interface ChatClientListener {
 
     void onBinary(BinaryKind kind, String from, String to, String fileName, byte[] bytes);
 
+    /**
+     * Streaming receive: called when a binary starts; the returned sink gets the chunks.
+     * size is -1 when the transport does not know it up front (UDP).
+     * Default collects into a byte[] and calls {@link #onBinary}.
+     */
+    default BinarySink onBinaryBegin(BinaryKind kind, String from, String to, String fileName, long size) {
+        return BinarySink.collect(size, bytes -> onBinary(kind, from, to, fileName, bytes));
+    }
+
+    /**
+     * Image announced with a thumbnail (JPEG) made by the server. The original is only sent after
+     * fetch.run(), and then arrives through {@link #onBinaryBegin} like any other image.
+     * Default fetches right away.
+     */
+    default void onThumbnail(String from, String to, String fileName, long size, byte[] jpeg, Runnable fetch) {
+        fetch.run();
+    }
+
+    /**
+     * Members of a room after someone joined or left it; a list without this user means they
+     * are no longer in the room.
+     */
+    default void onRoom(String room, List<String> members) {
+    }
+
     void onVoiceStart(String from, String to, AudioFormat format);
 
     void onVoiceChunk(String from, String to, byte[] pcmChunk);
 
     void onVoiceEnd(String from, String to);
+
+    /**
+     * Answer to {@link ChatClientApi#requestHistory}, oldest first. nextBefore is the beforeId
+     * that asks for the page before this one, or 0 if there are no older messages.
+     */
+    default void onHistory(String with, List<HistoryEntry> page, long nextBefore) {
+    }
+
+    /** Answer to {@link ChatClientApi#search}, newest first; query.before(nextBefore) continues (0: no more). */
+    default void onSearchResults(SearchQuery query, List<HistoryEntry> results, long nextBefore) {
+    }
 }
@@ -0,0 +1,211 @@
+package core.net;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Users connected to a server: name -> session (or address), each with a small int id.
+ *
+ * - A user gets an id when added; the ids of users who left are reused, so they stay dense and
+ *   index the id table directly. Code that kept an id (a session knows its own) looks the user up
+ *   with an array read instead of by name.
+ * - The id table is split into fixed-size shards, allocated as ids grow (existing shards are never
+ *   copied); lookups by name or id never lock.
+ * - Names are kept sorted as users come and go (a binary search and one array copy per change), so
+ *   names() and values() are ready snapshots: no copy and sort per presence change or dashboard call.
+ * - Adds and removes are serialized; they are rare next to lookups.
+ */
+public final class ClientRegistry<V> {
+    private static final int SHARD_BITS = 6;
+    private static final int SHARD_SIZE = 1 << SHARD_BITS;
+
+    private static final class Entry<V> {
+        final int id;
+        final String name;
+        final V value;
+
+        Entry(int id, String name, V value) {
+            this.id = id;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    /** Sorted names and their values at the same index (immutable). */
+    private static final class View<V> {
+        final String[] names;
+        final Object[] values;
+        final List<String> nameList;
+        final List<V> valueList;
+
+        @SuppressWarnings("unchecked")
+        View(String[] names, Object[] values) {
+            this.names = names;
+            this.values = values;
+            this.nameList = Collections.unmodifiableList(Arrays.asList(names));
+            this.valueList = (List<V>) Collections.unmodifiableList(Arrays.asList(values));
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry<V>> byName = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<Entry<V>>[] shards = newShards(0);
+    private volatile View<V> view = new View<>(new String[0], new Object[0]);
+
+    // id allocation (guarded by this)
+    private int[] free = new int[SHARD_SIZE];
+    private int freeCount;
+    private int nextId;
+
+    /** Add a user who is not registered yet; returns their id, or -1 if the name is taken. */
+    public synchronized int add(String name, V value) {
+        if (byName.containsKey(name)) return -1;
+        return insert(name, value);
+    }
+
+    /** Register the user, replacing (and keeping the id of) an earlier registration; returns the id. */
+    public synchronized int put(String name, V value) {
+        Entry<V> old = byName.get(name);
+        if (old == null) return insert(name, value);
+        Entry<V> e = new Entry<>(old.id, name, value);
+        byName.put(name, e);
+        slot(e.id).set(e.id & (SHARD_SIZE - 1), e);
+        View<V> v = view;
+        Object[] values = v.values.clone();
+        values[Arrays.binarySearch(v.names, name)] = value;
+        view = new View<>(v.names, values);
+        return e.id;
+    }
+
+    public V get(String name) {
+        Entry<V> e = byName.get(name);
+        return (e == null) ? null : e.value;
+    }
+
+    /** The user with this id (null if the id is free). */
+    public V get(int id) {
+        Entry<V> e = entry(id);
+        return (e == null) ? null : e.value;
+    }
+
+    public boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    /** -1 if the user is not registered. */
+    public int idOf(String name) {
+        Entry<V> e = byName.get(name);
+        return (e == null) ? -1 : e.id;
+    }
+
+    /** null if the id is free. */
+    public String nameOf(int id) {
+        Entry<V> e = entry(id);
+        return (e == null) ? null : e.name;
+    }
+
+    /** Unregister the user; returns what was registered (null if nothing). */
+    public synchronized V remove(String name) {
+        Entry<V> e = byName.get(name);
+        if (e == null) return null;
+        delete(e);
+        return e.value;
+    }
+
+    /** Unregister the user only if value is still what is registered under the name. */
+    public synchronized boolean remove(String name, V value) {
+        Entry<V> e = byName.get(name);
+        if (e == null || e.value != value) return false;
+        delete(e);
+        return true;
+    }
+
+    /** Registered names, sorted (an immutable snapshot). */
+    public List<String> names() {
+        return view.nameList;
+    }
+
+    /** Registered values in the order of names() (an immutable snapshot). */
+    public List<V> values() {
+        return view.valueList;
+    }
+
+    public int size() {
+        return view.names.length;
+    }
+
+    public synchronized void clear() {
+        byName.clear();
+        shards = newShards(0);
+        view = new View<>(new String[0], new Object[0]);
+        freeCount = 0;
+        nextId = 0;
+    }
+
+    private int insert(String name, V value) {
+        int id = (freeCount > 0) ? free[--freeCount] : nextId++;
+        Entry<V> e = new Entry<>(id, name, value);
+        slot(id).set(id & (SHARD_SIZE - 1), e);
+        byName.put(name, e);
+
+        View<V> v = view;
+        int at = -Arrays.binarySearch(v.names, name) - 1;
+        int n = v.names.length;
+        String[] names = new String[n + 1];
+        Object[] values = new Object[n + 1];
+        System.arraycopy(v.names, 0, names, 0, at);
+        System.arraycopy(v.values, 0, values, 0, at);
+        names[at] = name;
+        values[at] = value;
+        System.arraycopy(v.names, at, names, at + 1, n - at);
+        System.arraycopy(v.values, at, values, at + 1, n - at);
+        view = new View<>(names, values);
+        return id;
+    }
+
+    private void delete(Entry<V> e) {
+        byName.remove(e.name);
+        slot(e.id).set(e.id & (SHARD_SIZE - 1), null);
+        if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = e.id;
+
+        View<V> v = view;
+        int at = Arrays.binarySearch(v.names, e.name);
+        int n = v.names.length;
+        String[] names = new String[n - 1];
+        Object[] values = new Object[n - 1];
+        System.arraycopy(v.names, 0, names, 0, at);
+        System.arraycopy(v.values, 0, values, 0, at);
+        System.arraycopy(v.names, at + 1, names, at, n - at - 1);
+        System.arraycopy(v.values, at + 1, values, at, n - at - 1);
+        view = new View<>(names, values);
+    }
+
+    private Entry<V> entry(int id) {
+        if (id < 0) return null;
+        AtomicReferenceArray<Entry<V>>[] s = shards;
+        int shard = id >>> SHARD_BITS;
+        return (shard < s.length) ? s[shard].get(id & (SHARD_SIZE - 1)) : null;
+    }
+
+    /** The shard holding id, allocating shards up to it (callers hold the lock). */
+    private AtomicReferenceArray<Entry<V>> slot(int id) {
+        int shard = id >>> SHARD_BITS;
+        AtomicReferenceArray<Entry<V>>[] s = shards;
+        if (shard >= s.length) {
+            AtomicReferenceArray<Entry<V>>[] grown = newShards(shard + 1);
+            System.arraycopy(s, 0, grown, 0, s.length);
+            for (int i = s.length; i < grown.length; i++) grown[i] = new AtomicReferenceArray<>(SHARD_SIZE);
+            shards = grown;
+            s = grown;
+        }
+        return s[shard];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> AtomicReferenceArray<Entry<V>>[] newShards(int n) {
+        return new AtomicReferenceArray[n];
+    }
+}
@@ -0,0 +1,61 @@
+package core.net;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for transparent wire compression (one instance per core).
+ * - text: control/text frames (streaming deflate)
+ * - binary: payload slices and upload chunks (LZ blocks)
+ * - skipped: binary bytes sent as-is (already compressed formats, or not worth it)
+ * - CPU time is the time spent inside the compressor/decompressor.
+ */
+public final class CompressionStats {
+    private final LongAdder textRaw = new LongAdder();
+    private final LongAdder textWire = new LongAdder();
+    private final LongAdder binaryRaw = new LongAdder();
+    private final LongAdder binaryWire = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    public void text(long raw, long wire, long nanos) {
+        textRaw.add(raw);
+        textWire.add(wire);
+        compressNanos.add(nanos);
+    }
+
+    public void binary(long raw, long wire, long nanos) {
+        binaryRaw.add(raw);
+        binaryWire.add(wire);
+        compressNanos.add(nanos);
+    }
+
+    public void skipped(long bytes, long nanos) {
+        skipped.add(bytes);
+        compressNanos.add(nanos);
+    }
+
+    public void decompressed(long nanos) {
+        decompressNanos.add(nanos);
+    }
+
+    public long textRawBytes() { return textRaw.sum(); }
+    public long textWireBytes() { return textWire.sum(); }
+    public long binaryRawBytes() { return binaryRaw.sum(); }
+    public long binaryWireBytes() { return binaryWire.sum(); }
+    public long skippedBytes() { return skipped.sum(); }
+    public long compressMillis() { return compressNanos.sum() / 1_000_000; }
+    public long decompressMillis() { return decompressNanos.sum() / 1_000_000; }
+
+    /** raw / wire over everything that went through a compressor (1.0 when nothing did). */
+    public double ratio() {
+        long wire = textWire.sum() + binaryWire.sum();
+        return (wire == 0) ? 1.0 : (textRaw.sum() + binaryRaw.sum()) / (double) wire;
+    }
+
+    @Override public String toString() {
+        return String.format("text %d -> %d B, binary %d -> %d B, skipped %d B, ratio %.2fx, cpu %d ms (+%d ms decompress)",
+                textRawBytes(), textWireBytes(), binaryRawBytes(), binaryWireBytes(), skippedBytes(), ratio(),
+                compressMillis(), decompressMillis());
+    }
+}
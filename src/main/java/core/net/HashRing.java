@@ -0,0 +1,58 @@
+package core.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring: each node sits at VNODES points, and a key belongs to the node at the
+ * first point at or after the key's hash (wrapping around).
+ *
+ * - Adding a node only moves the keys that land on its points; removing one only moves its own
+ *   keys. Everything else stays where it was.
+ * - Changes copy the ring (they are rare); lookups read the current copy without locking.
+ */
+public final class HashRing<T> {
+    static final int VNODES = 160;
+
+    private volatile TreeMap<Long, T> ring = new TreeMap<>();
+
+    public synchronized void add(T node) {
+        TreeMap<Long, T> next = new TreeMap<>(ring);
+        for (int i = 0; i < VNODES; i++) next.put(hash(node + "#" + i), node);
+        ring = next;
+    }
+
+    public synchronized void remove(T node) {
+        TreeMap<Long, T> next = new TreeMap<>(ring);
+        next.values().removeIf(node::equals);
+        ring = next;
+    }
+
+    /** Node owning the key, or null if the ring is empty. */
+    public T get(String key) {
+        TreeMap<Long, T> r = ring;
+        if (r.isEmpty()) return null;
+        Map.Entry<Long, T> e = r.ceilingEntry(hash(key));
+        return (e != null ? e : r.firstEntry()).getValue();
+    }
+
+    public boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    /** 64-bit FNV-1a over the UTF-8 bytes, then a final mix so nearby strings spread out. */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
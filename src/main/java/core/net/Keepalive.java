@@ -0,0 +1,48 @@
+package core.net;
+
+/**
+ * Client-driven keepalive shared by the TCP and UDP cores.
+ *
+ * - A client PINGs every interval it chose (-Dchat.keepalive=<seconds>, default 10, 0 = off) and
+ *   tells the server that interval in the PING.
+ * - The server answers with PONG and drops a session that stays silent for MISSES intervals
+ *   (deadlines on a {@link TimingWheel} of TICK_MS ticks).
+ * - The client gives the server as long before it declares the server gone.
+ */
+public final class Keepalive {
+    public static final long MIN_INTERVAL_MS = 1000;
+    public static final long MAX_INTERVAL_MS = 120_000;
+    public static final int MISSES = 3;
+    public static final long TICK_MS = 250;
+    public static final int WHEEL_SLOTS = 512; // ~2 minutes a turn
+
+    private Keepalive() {}
+
+    /** The interval clients use, in ms (0: no keepalive). */
+    public static long intervalFromProperties() {
+        long secs = Long.parseLong(System.getProperty("chat.keepalive", "10").trim());
+        return (secs <= 0) ? 0 : clamp(secs * 1000);
+    }
+
+    public static long clamp(long intervalMs) {
+        return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, intervalMs));
+    }
+
+    /** How long a peer PINGing every intervalMs may stay silent. */
+    public static long timeout(long intervalMs) {
+        return clamp(intervalMs) * MISSES;
+    }
+
+    /** The interval in a PING payload, or -1 if it is not a number. */
+    public static long parseInterval(String s) {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static <K> TimingWheel<K> newWheel() {
+        return new TimingWheel<>(TICK_MS, WHEEL_SLOTS);
+    }
+}
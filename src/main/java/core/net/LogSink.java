@@ -1,9 +1,58 @@
 package core.net;
 
+import java.util.function.Supplier;
+
+/**
+ * Where cores send their log lines.
+ *
+ * - log(String) is an INFO line; log(Level, ...) carries a level.
+ * - Hot paths use the Supplier overload (or check enabled() first): a disabled level then
+ *   builds no string at all.
+ * - Plain sinks only implement log(String); non-INFO lines reach them with a level prefix,
+ *   and DEBUG is off.
+ */
 public interface LogSink {
+    enum Level {
+        DEBUG, INFO, WARN, ERROR;
+
+        /** -Dchat.log.level, INFO if unset or unknown. */
+        public static Level configured() {
+            try {
+                return valueOf(System.getProperty("chat.log.level", "INFO").trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return INFO;
+            }
+        }
+    }
+
     void log(String line);
 
+    default boolean enabled(Level level) {
+        return level.compareTo(Level.INFO) >= 0;
+    }
+
+    default void log(Level level, String line) {
+        if (!enabled(level)) return;
+        log(level == Level.INFO ? line : level + " " + line);
+    }
+
+    default void log(Level level, Supplier<String> message) {
+        if (enabled(level)) log(level, message.get());
+    }
+
+    default void debug(Supplier<String> message) {
+        log(Level.DEBUG, message);
+    }
+
+    default void warn(String line) {
+        log(Level.WARN, line);
+    }
+
+    /**
+     * Shared asynchronous sink for cores created without one: stdout, or a rolling
+     * memory-mapped file when -Dchat.log.dir is set (see {@link AsyncLogSink#shared()}).
+     */
     static LogSink stdout() {
-        return System.out::println;
+        return AsyncLogSink.shared();
     }
 }
@@ -0,0 +1,95 @@
+package core.net;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rolling log file written through a memory-mapped segment ({@link AsyncLogSink.Appender}).
+ *
+ * - Files are name-N.log with N increasing; each is mapped at segmentBytes, so a line is a
+ *   memory copy, and truncated to its content when it rolls or closes.
+ * - Only the newest `keep` files are kept.
+ * - Single writer (the AsyncLogSink thread). Lines go to the next file rather than being split.
+ */
+public final class MappedLogFile implements AsyncLogSink.Appender {
+    public static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+    public static final int KEEP = 5;
+
+    private final Path dir;
+    private final String name;
+    private final long segmentBytes;
+    private final int keep;
+    private long index;
+    private FileChannel ch;
+    private MappedByteBuffer map;
+
+    public MappedLogFile(Path dir, String name, long segmentBytes, int keep) throws IOException {
+        if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("segmentBytes");
+        this.dir = dir;
+        this.name = name;
+        this.segmentBytes = segmentBytes;
+        this.keep = Math.max(1, keep);
+        Pattern files = Pattern.compile(Pattern.quote(name) + "-(\\d+)\\.log");
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, name + "-*.log")) {
+            for (Path p : ds) {
+                Matcher m = files.matcher(p.getFileName().toString());
+                if (m.matches()) index = Math.max(index, Long.parseLong(m.group(1)));
+            }
+        }
+        roll();
+    }
+
+    /** The file currently written. */
+    public Path current() {
+        return file(index);
+    }
+
+    @Override public void write(byte[] line) throws IOException {
+        if (line.length > map.remaining() && map.position() > 0) roll();
+        int off = 0;
+        while (true) {
+            int n = Math.min(map.remaining(), line.length - off);
+            map.put(line, off, n);
+            off += n;
+            if (off == line.length) return;
+            roll(); // a single line longer than a segment
+        }
+    }
+
+    @Override public void close() throws IOException {
+        finish();
+    }
+
+    private void roll() throws IOException {
+        finish();
+        index++;
+        ch = FileChannel.open(file(index), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        for (long old = index - keep; old > 0; old--) {
+            if (!Files.deleteIfExists(file(old))) break;
+        }
+    }
+
+    private void finish() throws IOException {
+        if (ch == null) return;
+        int used = map.position();
+        map.force();
+        map = null;
+        try { ch.truncate(used); } catch (IOException ignored) {} // refused while mapped on some platforms
+        ch.close();
+        ch = null;
+    }
+
+    private Path file(long n) {
+        return dir.resolve(name + "-" + n + ".log");
+    }
+}
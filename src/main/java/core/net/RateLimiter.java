@@ -0,0 +1,294 @@
+package core.net;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token-bucket flood protection for a server core: every user and every source address has a
+ * bucket of messages, a bucket of bytes and a count of transfers in progress, and a frame has
+ * to fit the buckets of both.
+ *
+ * - Message tokens refill at msgsPerSec up to msgBurst; a message takes one.
+ * - Byte tokens refill at bytesPerSec up to byteBurst and may go into debt: a large frame goes
+ *   through whole and the sender's next frames wait until the debt is paid.
+ * - An address gets ADDRESS_FACTOR times the user limits, since several users may share it.
+ *   Exempt addresses (a front door or another proxy every client comes through) have no bucket;
+ *   their users are still limited one by one.
+ * - Buckets are small objects in STRIPES hash maps per kind, each behind its own lock, so the
+ *   reader threads of different users rarely meet. Idle full buckets are pruned as a stripe grows.
+ * - What a server does with a frame that does not fit is the Policy; counts are in stats().
+ */
+public final class RateLimiter {
+    /** A throttled frame waits at most this long; then it is dropped. */
+    public static final long MAX_THROTTLE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    static final int STRIPES = 16;
+    static final int ADDRESS_FACTOR = 4;
+    private static final int PRUNE_MIN = 64;
+
+    /** What a server does with a frame over the limits. */
+    public enum Policy {
+        /** Hold the sender's frames until they fit (TCP backpressure; UDP cannot wait and drops). */
+        THROTTLE,
+        /** Drop the frame and tell the sender. */
+        DROP,
+        /** Disconnect the user, as the dashboard's kick does. */
+        KICK
+    }
+
+    public static final class Limits {
+        public final double msgsPerSec;
+        public final int msgBurst;
+        public final long bytesPerSec;
+        public final long byteBurst;
+        public final int transfers;
+        public final Policy policy;
+        public final Set<String> exempt; // addresses without an address bucket
+
+        public Limits(double msgsPerSec, int msgBurst, long bytesPerSec, long byteBurst, int transfers, Policy policy) {
+            this(msgsPerSec, msgBurst, bytesPerSec, byteBurst, transfers, policy, Set.of());
+        }
+
+        public Limits(double msgsPerSec, int msgBurst, long bytesPerSec, long byteBurst, int transfers, Policy policy,
+                      Set<String> exempt) {
+            if (msgsPerSec <= 0 || msgBurst < 1 || bytesPerSec <= 0 || byteBurst < 1 || transfers < 1) {
+                throw new IllegalArgumentException("Limits must be positive");
+            }
+            this.msgsPerSec = msgsPerSec;
+            this.msgBurst = msgBurst;
+            this.bytesPerSec = bytesPerSec;
+            this.byteBurst = byteBurst;
+            this.transfers = transfers;
+            this.policy = policy;
+            this.exempt = Set.copyOf(exempt);
+        }
+
+        /**
+         * -Dchat.limit.msgs (per second, burst twice that), -Dchat.limit.bytes (per second, burst
+         * twice that), -Dchat.limit.transfers, -Dchat.limit.policy (throttle|drop|kick) and
+         * -Dchat.limit.exempt (comma-separated IP addresses); defaults 20 msgs/s, 16 MB/s,
+         * 4 transfers, throttle, none exempt.
+         */
+        public static Limits fromProperties() {
+            double msgs = Double.parseDouble(System.getProperty("chat.limit.msgs", "20"));
+            long bytes = Long.parseLong(System.getProperty("chat.limit.bytes", String.valueOf(16L * 1024 * 1024)));
+            int transfers = Integer.parseInt(System.getProperty("chat.limit.transfers", "4"));
+            Policy policy = Policy.valueOf(System.getProperty("chat.limit.policy", "throttle").trim().toUpperCase(Locale.ROOT));
+            Set<String> exempt = Arrays.stream(System.getProperty("chat.limit.exempt", "").split(","))
+                    .map(String::trim).filter(a -> !a.isEmpty()).collect(Collectors.toSet());
+            return new Limits(msgs, (int) Math.max(1, Math.ceil(msgs * 2)), bytes, bytes * 2, transfers, policy, exempt);
+        }
+
+        Limits times(int f) {
+            return new Limits(msgsPerSec * f, msgBurst * f, bytesPerSec * f, byteBurst * f, transfers * f, policy, exempt);
+        }
+
+        @Override public String toString() {
+            return String.format("%.0f msgs/s, %d B/s, %d transfers, %s%s", msgsPerSec, bytesPerSec, transfers,
+                    policy.name().toLowerCase(Locale.ROOT), exempt.isEmpty() ? "" : ", exempt " + String.join(",", exempt));
+        }
+    }
+
+    /** Frames over a limit, by limit, and what was done with them. */
+    public static final class Stats {
+        private final LongAdder overMessages = new LongAdder();
+        private final LongAdder overBytes = new LongAdder();
+        private final LongAdder overTransfers = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder throttleNanos = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder kicked = new LongAdder();
+
+        public void throttled(long nanos) {
+            throttled.increment();
+            throttleNanos.add(nanos);
+        }
+
+        public void dropped() { dropped.increment(); }
+        public void kicked() { kicked.increment(); }
+
+        public long overMessages() { return overMessages.sum(); }
+        public long overBytes() { return overBytes.sum(); }
+        public long overTransfers() { return overTransfers.sum(); }
+        public long throttledFrames() { return throttled.sum(); }
+        public long throttledMillis() { return throttleNanos.sum() / 1_000_000; }
+        public long droppedFrames() { return dropped.sum(); }
+        public long kickedUsers() { return kicked.sum(); }
+
+        @Override public String toString() {
+            return String.format("over limit: %d messages, %d bytes, %d transfers; throttled %d (%d ms), dropped %d, kicked %d",
+                    overMessages(), overBytes(), overTransfers(), throttledFrames(), throttledMillis(),
+                    droppedFrames(), kickedUsers());
+        }
+    }
+
+    private static final class Bucket {
+        double msgs;
+        double bytes;
+        long stamp;
+        int transfers;
+
+        Bucket(Limits l, long now) {
+            msgs = l.msgBurst;
+            bytes = l.byteBurst;
+            stamp = now;
+        }
+
+        void refill(Limits l, long now) {
+            double secs = (now - stamp) / 1e9;
+            stamp = now;
+            msgs = Math.min(l.msgBurst, msgs + secs * l.msgsPerSec);
+            bytes = Math.min(l.byteBurst, bytes + secs * l.bytesPerSec);
+        }
+
+        /** Nanoseconds until m messages fit and the byte debt is paid (0: now). */
+        long waitFor(Limits l, int m) {
+            double secs = 0;
+            if (msgs < m) secs = (m - msgs) / l.msgsPerSec;
+            if (bytes < 0) secs = Math.max(secs, -bytes / l.bytesPerSec);
+            return (secs == 0) ? 0 : Math.max(1, (long) Math.ceil(secs * 1e9));
+        }
+
+        boolean idle(Limits l) {
+            return transfers == 0 && msgs >= l.msgBurst && bytes >= l.byteBurst;
+        }
+    }
+
+    private static final class Stripe {
+        final Map<String, Bucket> buckets = new HashMap<>();
+        int pruneAt = PRUNE_MIN;
+
+        Bucket get(String key, Limits l, long now) {
+            Bucket b = buckets.get(key);
+            if (b == null) {
+                if (buckets.size() >= pruneAt) prune(l, now);
+                b = new Bucket(l, now);
+                buckets.put(key, b);
+            } else {
+                b.refill(l, now);
+            }
+            return b;
+        }
+
+        private void prune(Limits l, long now) {
+            buckets.values().removeIf(b -> {
+                b.refill(l, now);
+                return b.idle(l);
+            });
+            pruneAt = Math.max(PRUNE_MIN, buckets.size() * 2);
+        }
+    }
+
+    private final Limits user;
+    private final Limits address;
+    private final Stripe[] users = stripes();
+    private final Stripe[] addresses = stripes();
+    private final Stats stats = new Stats();
+
+    public RateLimiter(Limits limits) {
+        this.user = limits;
+        this.address = limits.times(ADDRESS_FACTOR);
+    }
+
+    public Limits limits() { return user; }
+
+    public Policy policy() { return user.policy; }
+
+    public Stats stats() { return stats; }
+
+    /**
+     * Take msgs message tokens and bytes byte tokens from the user's and the address's buckets
+     * (address may be null, or exempt). Returns 0 if they were taken, else the nanoseconds until they would
+     * fit; nothing is taken then.
+     */
+    public long take(String user, String address, int msgs, long bytes) {
+        address = limited(address);
+        long now = System.nanoTime();
+        Stripe us = stripe(users, user);
+        synchronized (us) {
+            Bucket u = us.get(user, this.user, now);
+            if (address == null) return take(u, this.user, null, null, msgs, bytes);
+            Stripe as = stripe(addresses, address);
+            synchronized (as) { // always user stripe, then address stripe
+                return take(u, this.user, as.get(address, this.address, now), this.address, msgs, bytes);
+            }
+        }
+    }
+
+    private long take(Bucket u, Limits ul, Bucket a, Limits al, int msgs, long bytes) {
+        long wait = u.waitFor(ul, msgs);
+        if (a != null) wait = Math.max(wait, a.waitFor(al, msgs));
+        if (wait > 0) {
+            boolean overMessages = u.msgs < msgs || (a != null && a.msgs < msgs);
+            (overMessages ? stats.overMessages : stats.overBytes).increment();
+            return wait;
+        }
+        u.msgs -= msgs;
+        u.bytes -= bytes;
+        if (a != null) {
+            a.msgs -= msgs;
+            a.bytes -= bytes;
+        }
+        return 0;
+    }
+
+    /** A transfer starts; false (and nothing counted) if the user or the address already has its limit running. */
+    public boolean beginTransfer(String user, String address) {
+        address = limited(address);
+        long now = System.nanoTime();
+        Stripe us = stripe(users, user);
+        synchronized (us) {
+            Bucket u = us.get(user, this.user, now);
+            if (address == null) return begin(u, this.user, null, null);
+            Stripe as = stripe(addresses, address);
+            synchronized (as) {
+                return begin(u, this.user, as.get(address, this.address, now), this.address);
+            }
+        }
+    }
+
+    private boolean begin(Bucket u, Limits ul, Bucket a, Limits al) {
+        if (u.transfers >= ul.transfers || (a != null && a.transfers >= al.transfers)) {
+            stats.overTransfers.increment();
+            return false;
+        }
+        u.transfers++;
+        if (a != null) a.transfers++;
+        return true;
+    }
+
+    public void endTransfer(String user, String address) {
+        Stripe us = stripe(users, user);
+        synchronized (us) {
+            Bucket u = us.buckets.get(user);
+            if (u != null && u.transfers > 0) u.transfers--;
+        }
+        address = limited(address);
+        if (address == null) return;
+        Stripe as = stripe(addresses, address);
+        synchronized (as) {
+            Bucket a = as.buckets.get(address);
+            if (a != null && a.transfers > 0) a.transfers--;
+        }
+    }
+
+    /** The address, or null if it has no bucket. */
+    private String limited(String address) {
+        return (address == null || user.exempt.contains(address)) ? null : address;
+    }
+
+    private static Stripe[] stripes() {
+        Stripe[] s = new Stripe[STRIPES];
+        for (int i = 0; i < s.length; i++) s[i] = new Stripe();
+        return s;
+    }
+
+    private static Stripe stripe(Stripe[] stripes, String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+}
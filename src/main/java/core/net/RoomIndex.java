@@ -0,0 +1,100 @@
+package core.net;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room subscriptions for a server: room -> members, so a message to a room only touches the
+ * members instead of every connected user.
+ *
+ * - Rooms are "#name" (letters, digits, '-' and '_', up to MAX_NAME after the '#').
+ * - Member sets are immutable snapshots, replaced on join/part (copy on write): fan-out iterates a
+ *   snapshot without locking, and joins and parts, rare next to messages, pay for the copy.
+ * - The rooms of each user are kept as well, so a disconnect leaves every room in one call.
+ * - A room exists while it has members.
+ */
+public final class RoomIndex {
+    public static final int MAX_NAME = 32;
+
+    private final Map<String, Set<String>> members = new ConcurrentHashMap<>(); // room -> snapshot
+    private final Map<String, Set<String>> joined = new ConcurrentHashMap<>();  // user -> snapshot
+
+    /** Addressed to a room (rather than "*" or a user). */
+    public static boolean isRoom(String to) {
+        return to != null && to.startsWith("#");
+    }
+
+    public static boolean isValidName(String room) {
+        if (!isRoom(room) || room.length() < 2 || room.length() > MAX_NAME + 1) return false;
+        for (int i = 1; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+
+    /** False if the user was already a member. */
+    public boolean join(String room, String user) {
+        if (!add(members, room, user)) return false;
+        add(joined, user, room);
+        return true;
+    }
+
+    /** False if the user was not a member. */
+    public boolean part(String room, String user) {
+        if (!remove(members, room, user)) return false;
+        remove(joined, user, room);
+        return true;
+    }
+
+    /** Leave every room; returns the rooms left. */
+    public Set<String> leaveAll(String user) {
+        Set<String> rooms = joined.getOrDefault(user, Set.of());
+        for (String room : rooms) part(room, user);
+        return rooms;
+    }
+
+    /** Current members (a snapshot; empty if the room does not exist). */
+    public Set<String> members(String room) {
+        return members.getOrDefault(room, Set.of());
+    }
+
+    public boolean isMember(String room, String user) {
+        return members(room).contains(user);
+    }
+
+    /** Rooms the user is in (a snapshot). */
+    public Set<String> roomsOf(String user) {
+        return joined.getOrDefault(user, Set.of());
+    }
+
+    public void clear() {
+        members.clear();
+        joined.clear();
+    }
+
+    private static boolean add(Map<String, Set<String>> map, String key, String value) {
+        boolean[] changed = {false};
+        map.compute(key, (k, old) -> {
+            if (old != null && old.contains(value)) return old;
+            Set<String> next = (old == null) ? new HashSet<>() : new HashSet<>(old);
+            next.add(value);
+            changed[0] = true;
+            return Collections.unmodifiableSet(next);
+        });
+        return changed[0];
+    }
+
+    private static boolean remove(Map<String, Set<String>> map, String key, String value) {
+        boolean[] changed = {false};
+        map.computeIfPresent(key, (k, old) -> {
+            if (!old.contains(value)) return old;
+            changed[0] = true;
+            if (old.size() == 1) return null;
+            Set<String> next = new HashSet<>(old);
+            next.remove(value);
+            return Collections.unmodifiableSet(next);
+        });
+        return changed[0];
+    }
+}
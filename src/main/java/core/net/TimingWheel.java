@@ -0,0 +1,121 @@
+package core.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel: deadlines for many keys (sessions), found without scanning all of them.
+ *
+ * - A key sits in the slot of the first tick at or after its deadline, a doubly linked list, so
+ *   schedule and cancel are O(1) and advance only visits the slots of the ticks that passed.
+ * - Deadlines further away than one turn of the wheel stay in their slot for later turns
+ *   (their deadline is checked on every visit).
+ * - Scheduling a key again moves it; a deadline already past goes into the next slot visited.
+ * - Synchronized; advance returns the expired keys so the caller acts on them outside the lock.
+ */
+public final class TimingWheel<K> {
+    private static final class Node<K> {
+        final K key;
+        long deadline;
+        Node<K> prev;
+        Node<K> next;
+
+        Node(K key) { this.key = key; }
+    }
+
+    private final long tickMs;
+    private final Node<K>[] slots; // sentinels of circular lists
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private long tick = -1; // last tick visited (-1: none yet)
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMs, int slots) {
+        if (tickMs < 1 || slots < 1) throw new IllegalArgumentException("tickMs and slots must be positive");
+        this.tickMs = tickMs;
+        this.slots = new Node[slots];
+        for (int i = 0; i < slots; i++) {
+            Node<K> head = new Node<>(null);
+            head.prev = head;
+            head.next = head;
+            this.slots[i] = head;
+        }
+    }
+
+    public long tickMs() { return tickMs; }
+
+    /** Expire key at deadline (ms, same clock as advance), replacing an earlier schedule. */
+    public synchronized void schedule(K key, long deadline) {
+        Node<K> n = nodes.get(key);
+        if (n == null) {
+            n = new Node<>(key);
+            nodes.put(key, n);
+        } else {
+            unlink(n);
+        }
+        n.deadline = deadline;
+        long t = Math.floorDiv(deadline + tickMs - 1, tickMs); // the first tick at or after the deadline
+        if (tick >= 0 && t <= tick) t = tick + 1;
+        link(slots[(int) Math.floorMod(t, (long) slots.length)], n);
+    }
+
+    /** False if the key was not scheduled. */
+    public synchronized boolean cancel(K key) {
+        Node<K> n = nodes.remove(key);
+        if (n == null) return false;
+        unlink(n);
+        return true;
+    }
+
+    public synchronized boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /** Visit the ticks up to now; returns (and forgets) the keys whose deadline passed. */
+    public synchronized List<K> advance(long now) {
+        long to = Math.floorDiv(now, tickMs);
+        if (tick < 0) tick = to - slots.length; // first call: look at every slot
+        if (to <= tick) return List.of();
+        List<K> expired = new ArrayList<>();
+        long from = Math.max(tick + 1, to - slots.length + 1); // each slot once is enough
+        for (long t = from; t <= to; t++) {
+            Node<K> head = slots[(int) Math.floorMod(t, (long) slots.length)];
+            for (Node<K> n = head.next, next; n != head; n = next) {
+                next = n.next;
+                if (n.deadline > now) continue;
+                unlink(n);
+                nodes.remove(n.key);
+                expired.add(n.key);
+            }
+        }
+        tick = to;
+        return expired;
+    }
+
+    public synchronized void clear() {
+        for (Node<K> head : slots) {
+            head.prev = head;
+            head.next = head;
+        }
+        nodes.clear();
+    }
+
+    private static <K> void link(Node<K> head, Node<K> n) {
+        n.prev = head.prev;
+        n.next = head;
+        head.prev.next = n;
+        head.prev = n;
+    }
+
+    private static <K> void unlink(Node<K> n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = null;
+        n.next = null;
+    }
+}
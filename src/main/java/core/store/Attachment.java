@@ -0,0 +1,50 @@
+package core.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Handle to a received payload owned by an {@link AttachmentStore}.
+ * The chat model keeps this instead of the bytes; the store decides whether they live
+ * in its memory cache or in a temp file.
+ */
+public final class Attachment {
+    private final AttachmentStore store;
+    final long id;
+    final String name;
+    final long size;
+    volatile Path file; // null while the bytes only live in memory
+
+    Attachment(AttachmentStore store, long id, String name, long size) {
+        this.store = store;
+        this.id = id;
+        this.name = name;
+        this.size = size;
+    }
+
+    public String name() { return name; }
+
+    public long size() { return size; }
+
+    /** True once the payload has been written to disk. */
+    public boolean isSpilled() { return file != null; }
+
+    /** Full payload as an array (from cache, or read back from disk). */
+    public byte[] bytes() throws IOException { return store.bytes(this); }
+
+    /** Read-only view; memory-mapped when the payload is on disk. */
+    public ByteBuffer map() throws IOException { return store.map(this); }
+
+    /** Backing file (spills first if needed), e.g. to hand to the desktop. */
+    public Path path() throws IOException { return store.path(this); }
+
+    public void saveTo(Path target) throws IOException { store.saveTo(this, target); }
+
+    /** Drop the cached bytes and the temp file; the handle is unusable afterwards. */
+    public void release() { store.release(this); }
+
+    @Override public String toString() {
+        return name + " (" + size + " bytes" + (isSpilled() ? ", on disk" : "") + ")";
+    }
+}
@@ -0,0 +1,324 @@
+package core.store;
+
+import core.audio.PcmBuffer;
+import core.util.IOUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Managed temp store for received attachments and voice notes.
+ *
+ * Policy:
+ * - payloads above spillThreshold are streamed straight to a temp file
+ * - smaller payloads stay in an LRU memory cache bounded by cacheBytes
+ * - entries evicted from the cache are spilled to disk, so handles stay valid
+ * - spilled payloads are memory-mapped when reopened
+ * - files on disk are bounded by diskBytes: a payload that does not fit fails with an IOException,
+ *   and a cache entry that cannot be spilled stays in memory until there is room
+ * - temp files are removed on release() or close(); a shutdown hook (one per store, while it has
+ *   a temp directory) closes the store at JVM exit
+ */
+public final class AttachmentStore implements AutoCloseable {
+    public static final int DEFAULT_SPILL_THRESHOLD = 256 * 1024;
+    public static final long DEFAULT_CACHE_BYTES = 16L * 1024 * 1024;
+    public static final long DEFAULT_DISK_BYTES = 1024L * 1024 * 1024;
+
+    private static volatile AttachmentStore shared;
+
+    private final int spillThreshold;
+    private final long cacheBytes;
+    private final long diskBytes;
+    private Path dir;
+    private Thread cleanup;
+
+    // access-ordered: eldest entry is the least recently used one
+    private final LinkedHashMap<Attachment, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long diskUsed; // spilled files, and what files being written have reached
+    private long nextId;
+    private final Set<Attachment> live = ConcurrentHashMap.newKeySet();
+    private final Set<Pending> writing = ConcurrentHashMap.newKeySet();
+
+    public AttachmentStore(int spillThreshold, long cacheBytes) {
+        this(spillThreshold, cacheBytes, DEFAULT_DISK_BYTES);
+    }
+
+    public AttachmentStore(int spillThreshold, long cacheBytes, long diskBytes) {
+        this.spillThreshold = spillThreshold;
+        this.cacheBytes = cacheBytes;
+        this.diskBytes = diskBytes;
+    }
+
+    /** Process-wide store used by the chat views. */
+    public static AttachmentStore shared() {
+        AttachmentStore s = shared;
+        if (s == null) {
+            synchronized (AttachmentStore.class) {
+                if (shared == null) shared = new AttachmentStore(DEFAULT_SPILL_THRESHOLD, DEFAULT_CACHE_BYTES);
+                s = shared;
+            }
+        }
+        return s;
+    }
+
+    public Attachment put(String name, byte[] bytes) throws IOException {
+        Attachment a = newHandle(name, bytes.length);
+        if (bytes.length > spillThreshold) {
+            writeFile(a, out -> out.write(bytes));
+        } else {
+            synchronized (this) { cachePut(a, bytes); }
+        }
+        return a;
+    }
+
+    /** Copy exactly size bytes from the stream; large payloads never exist as one array. */
+    public Attachment put(String name, InputStream in, long size) throws IOException {
+        if (size <= spillThreshold) {
+            byte[] bytes = new byte[(int) size];
+            IOUtil.readFully(in, bytes, 0, bytes.length);
+            return put(name, bytes);
+        }
+        Attachment a = newHandle(name, size);
+        writeFile(a, out -> IOUtil.copyExactly(in, out, size));
+        return a;
+    }
+
+    public Attachment put(String name, PcmBuffer pcm) throws IOException {
+        if (pcm.size() <= spillThreshold) return put(name, pcm.toByteArray());
+        Attachment a = newHandle(name, pcm.size());
+        writeFile(a, out -> pcm.forEachSlice(PcmBuffer.SEGMENT_SIZE, out::write));
+        return a;
+    }
+
+    /** Stream a payload of unknown or large size straight into a temp file. */
+    public Pending begin(String name) throws IOException {
+        return begin(name, 0);
+    }
+
+    /** Same, with room for size bytes taken up front (for writers that go through channel()). */
+    public Pending begin(String name, long size) throws IOException {
+        if (size < 0) throw new IOException("Bad size: " + size);
+        reserve(size);
+        long id;
+        synchronized (this) { id = ++nextId; }
+        try {
+            return new Pending(id, name, tempDir().resolve(id + "_" + safe(name)), size);
+        } catch (IOException e) {
+            unreserve(size);
+            throw e;
+        }
+    }
+
+    /** A payload being written to disk; becomes an {@link Attachment} on finish(). */
+    public final class Pending {
+        private final long id;
+        private final String name;
+        private final Path file;
+        private final FileChannel ch;
+        private long size;
+        private long reserved; // counted in diskUsed
+
+        private Pending(long id, String name, Path file, long reserved) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.file = file;
+            this.ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.reserved = reserved;
+            writing.add(this);
+        }
+
+        public void write(long offset, ByteBuffer data) throws IOException {
+            long end = offset + data.remaining();
+            if (end > reserved) {
+                reserve(end - reserved);
+                reserved = end;
+            }
+            long pos = offset;
+            while (data.hasRemaining()) pos += ch.write(data, pos);
+            size = Math.max(size, pos);
+        }
+
+        /** Open channel on the temp file, for cores that write with transferFrom. */
+        public FileChannel channel() { return ch; }
+
+        public Attachment finish() throws IOException {
+            try {
+                size = Math.max(size, ch.size());
+                if (size > reserved) reserve(size - reserved); // channel() wrote past what was taken
+                else unreserve(reserved - size);
+                reserved = size;
+                ch.close();
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            writing.remove(this);
+            Attachment a = new Attachment(AttachmentStore.this, id, name, size);
+            a.file = file;
+            live.add(a);
+            return a;
+        }
+
+        public void abort() {
+            if (!writing.remove(this)) return;
+            IOUtil.closeQuietly(ch);
+            try { Files.deleteIfExists(file); } catch (IOException ignored) {}
+            unreserve(reserved);
+        }
+    }
+
+    public int spillThreshold() { return spillThreshold; }
+
+    synchronized byte[] bytes(Attachment a) throws IOException {
+        byte[] b = cache.get(a);
+        if (b != null) return b;
+        if (a.file == null) throw new IOException("Attachment released: " + a.name);
+        if (a.size > Integer.MAX_VALUE) throw new IOException("Attachment too large for an array: " + a.size);
+
+        b = new byte[(int) a.size];
+        map(a).get(b);
+        if (b.length <= spillThreshold) cachePut(a, b);
+        return b;
+    }
+
+    ByteBuffer map(Attachment a) throws IOException {
+        byte[] b;
+        synchronized (this) { b = cache.get(a); }
+        if (b != null) return ByteBuffer.wrap(b).asReadOnlyBuffer();
+
+        Path f = a.file;
+        if (f == null) throw new IOException("Attachment released: " + a.name);
+        try (FileChannel ch = FileChannel.open(f, StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    synchronized Path path(Attachment a) throws IOException {
+        if (a.file == null) {
+            byte[] b = cache.get(a);
+            if (b == null) throw new IOException("Attachment released: " + a.name);
+            writeFile(a, out -> out.write(b));
+        }
+        return a.file;
+    }
+
+    void saveTo(Attachment a, Path target) throws IOException {
+        byte[] b;
+        synchronized (this) { b = cache.get(a); }
+        if (b != null) Files.write(target, b);
+        else Files.copy(path(a), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    synchronized void release(Attachment a) {
+        byte[] b = cache.remove(a);
+        if (b != null) cachedBytes -= b.length;
+        deleteFile(a);
+        live.remove(a);
+    }
+
+    /** Bytes currently held by the memory cache. */
+    public synchronized long cachedBytes() { return cachedBytes; }
+
+    /** Bytes of the files on disk. */
+    public synchronized long diskBytes() { return diskUsed; }
+
+    @Override public synchronized void close() {
+        cache.clear();
+        cachedBytes = 0;
+        for (Attachment a : live) deleteFile(a);
+        live.clear();
+        for (Pending p : writing) p.abort();
+        diskUsed = 0;
+        if (dir != null) {
+            try { Files.deleteIfExists(dir); } catch (IOException ignored) {}
+            dir = null;
+        }
+        if (cleanup != null && cleanup != Thread.currentThread()) {
+            try { Runtime.getRuntime().removeShutdownHook(cleanup); } catch (IllegalStateException ignored) {}
+        }
+        cleanup = null;
+    }
+
+    private synchronized Attachment newHandle(String name, long size) {
+        Attachment a = new Attachment(this, ++nextId, name, size);
+        live.add(a);
+        return a;
+    }
+
+    private void cachePut(Attachment a, byte[] bytes) throws IOException {
+        byte[] old = cache.put(a, bytes);
+        if (old != null) cachedBytes -= old.length;
+        cachedBytes += bytes.length;
+
+        Iterator<Map.Entry<Attachment, byte[]>> it = cache.entrySet().iterator();
+        while (cachedBytes > cacheBytes && it.hasNext()) {
+            Map.Entry<Attachment, byte[]> e = it.next();
+            if (e.getKey() == a) continue;
+            Attachment victim = e.getKey();
+            byte[] data = e.getValue();
+            if (victim.file == null) {
+                if (diskUsed + data.length > diskBytes) break; // no room to spill: keep it in memory
+                writeFile(victim, out -> out.write(data));
+            }
+            it.remove();
+            cachedBytes -= data.length;
+        }
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private void writeFile(Attachment a, Writer writer) throws IOException {
+        reserve(a.size);
+        Path f = tempDir().resolve(a.id + "_" + safe(a.name));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(f))) {
+            writer.write(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(f);
+            unreserve(a.size);
+            throw e;
+        }
+        a.file = f;
+    }
+
+    private void deleteFile(Attachment a) {
+        Path f = a.file;
+        a.file = null;
+        if (f != null) {
+            try { Files.deleteIfExists(f); } catch (IOException ignored) {}
+            unreserve(a.size);
+        }
+    }
+
+    /** Count n more bytes on disk, or IOException if they do not fit in diskBytes. */
+    private synchronized void reserve(long n) throws IOException {
+        if (diskUsed + n > diskBytes) throw new IOException("Attachment store full (" + diskBytes + " bytes on disk)");
+        diskUsed += n;
+    }
+
+    private synchronized void unreserve(long n) {
+        diskUsed = Math.max(0, diskUsed - n);
+    }
+
+    private synchronized Path tempDir() throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory("chatwithfriend-");
+            cleanup = new Thread(this::close, "AttachmentStoreCleanup");
+            Runtime.getRuntime().addShutdownHook(cleanup);
+        }
+        return dir;
+    }
+
+    private static String safe(String s) {
+        return s.replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+}
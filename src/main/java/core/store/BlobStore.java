@@ -0,0 +1,227 @@
+package core.store;
+
+import core.util.IOUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed blob store on disk; the key is the hex SHA-256 of the content.
+ *
+ * Policy:
+ * - put() adopts a finished file (moved, not copied); putting a hash that is already stored keeps the old copy
+ * - handles are reference counted: acquire() before using the file, release() when done
+ * - when the total size goes over capacity, least recently used blobs without references are deleted
+ * - files live in a temp directory removed on close(), or by a shutdown hook at JVM exit (one per
+ *   store, while it has the directory)
+ *
+ * The store trusts the hash it is given; callers verify content before put().
+ */
+public final class BlobStore implements AutoCloseable {
+
+    /** Handle to one stored blob; valid while referenced. */
+    public static final class Blob {
+        final String sha;
+        final long size;
+        final Path file;
+        int refs;
+
+        Blob(String sha, long size, Path file) {
+            this.sha = sha;
+            this.size = size;
+            this.file = file;
+        }
+
+        public String sha() { return sha; }
+
+        public long size() { return size; }
+
+        public Path path() { return file; }
+
+        @Override public String toString() {
+            return sha.substring(0, 12) + " (" + size + " bytes)";
+        }
+    }
+
+    private final String prefix;
+    private volatile long capacity;
+    private Path dir;
+
+    // access-ordered: eldest entry is the least recently used one
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long nextTemp;
+    private final Set<Writer> writing = ConcurrentHashMap.newKeySet();
+    private Thread cleanup;
+
+    public BlobStore(String prefix, long capacityBytes) {
+        this.prefix = prefix;
+        this.capacity = capacityBytes;
+    }
+
+    /** Lower-case hex SHA-256, or IOException (the hash becomes a file name). */
+    public static String checkSha(String sha) throws IOException {
+        String s = (sha == null) ? "" : sha.trim().toLowerCase();
+        if (!s.matches("[0-9a-f]{64}")) throw new IOException("Bad SHA-256: " + sha);
+        return s;
+    }
+
+    /** Referenced handle, or null if the blob is not stored. Counts as a use for LRU. */
+    public synchronized Blob acquire(String sha) {
+        Blob b = blobs.get(sha);
+        if (b != null) b.refs++;
+        return b;
+    }
+
+    /** True if stored with this size. Counts as a use for LRU. */
+    public synchronized boolean contains(String sha, long size) {
+        Blob b = blobs.get(sha);
+        return b != null && b.size == size;
+    }
+
+    /** Move file into the store under sha (its size is read from the file); returns a referenced handle. */
+    public Blob put(String sha, Path file) throws IOException {
+        String key = checkSha(sha);
+        Path target = dir().resolve(key);
+        long size = Files.size(file);
+        List<Blob> evicted;
+        Blob b;
+        synchronized (this) {
+            b = blobs.get(key);
+            if (b != null) {
+                b.refs++;
+                Files.deleteIfExists(file);
+                return b;
+            }
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            b = new Blob(key, size, target);
+            b.refs = 1;
+            blobs.put(key, b);
+            bytes += size;
+            evicted = evict();
+        }
+        delete(evicted);
+        return b;
+    }
+
+    public void release(Blob b) {
+        if (b == null) return;
+        List<Blob> evicted;
+        synchronized (this) {
+            if (b.refs > 0) b.refs--;
+            evicted = evict();
+        }
+        delete(evicted);
+    }
+
+    /** Stream content into a temp file in the store; finish() adopts it under sha. */
+    public Writer begin(String sha) throws IOException {
+        String key = checkSha(sha);
+        long n;
+        synchronized (this) { n = ++nextTemp; }
+        return new Writer(key, dir().resolve(key + "." + n + ".part"));
+    }
+
+    /** A blob being received; becomes a referenced {@link Blob} on finish(). */
+    public final class Writer {
+        private final String sha;
+        private final Path file;
+        private final FileChannel ch;
+
+        private Writer(String sha, Path file) throws IOException {
+            this.sha = sha;
+            this.file = file;
+            this.ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            writing.add(this);
+        }
+
+        public void write(long offset, ByteBuffer data) throws IOException {
+            long pos = offset;
+            while (data.hasRemaining()) pos += ch.write(data, pos);
+        }
+
+        /** Open channel on the temp file, for cores that write with transferFrom. */
+        public FileChannel channel() { return ch; }
+
+        public Blob finish() throws IOException {
+            writing.remove(this);
+            ch.close();
+            return put(sha, file);
+        }
+
+        public void abort() {
+            writing.remove(this);
+            IOUtil.closeQuietly(ch);
+            try { Files.deleteIfExists(file); } catch (IOException ignored) {}
+        }
+    }
+
+    public void setCapacity(long capacityBytes) {
+        this.capacity = capacityBytes;
+        List<Blob> evicted;
+        synchronized (this) { evicted = evict(); }
+        delete(evicted);
+    }
+
+    /** Bytes currently stored. */
+    public synchronized long bytes() { return bytes; }
+
+    public synchronized int count() { return blobs.size(); }
+
+    @Override public void close() {
+        List<Blob> all;
+        synchronized (this) {
+            all = new ArrayList<>(blobs.values());
+            blobs.clear();
+            bytes = 0;
+        }
+        delete(all);
+        for (Writer w : writing) w.abort();
+        synchronized (this) {
+            if (dir != null) {
+                try { Files.deleteIfExists(dir); } catch (IOException ignored) {}
+                dir = null;
+            }
+            if (cleanup != null && cleanup != Thread.currentThread()) {
+                try { Runtime.getRuntime().removeShutdownHook(cleanup); } catch (IllegalStateException ignored) {}
+            }
+            cleanup = null;
+        }
+    }
+
+    private List<Blob> evict() {
+        List<Blob> out = new ArrayList<>();
+        Iterator<Blob> it = blobs.values().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            Blob b = it.next();
+            if (b.refs > 0) continue;
+            it.remove();
+            bytes -= b.size;
+            out.add(b);
+        }
+        return out;
+    }
+
+    private static void delete(List<Blob> victims) {
+        for (Blob b : victims) {
+            try { Files.deleteIfExists(b.file); } catch (IOException ignored) {}
+        }
+    }
+
+    private synchronized Path dir() throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory(prefix);
+            cleanup = new Thread(this::close, "BlobStoreCleanup");
+            Runtime.getRuntime().addShutdownHook(cleanup);
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,451 @@
+package core.store;
+
+import core.model.HistoryEntry;
+import core.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Server-side history of text messages, read back a page at a time.
+ *
+ * Layout:
+ * - "messages.dat": records [len][id][time][from][to][text], appended in id order
+ * - idx-N.idx: one per conversation, fixed 16-byte entries [id][offset in messages.dat] in id order
+ * - "conversations": catalog of [N][key] for the index files
+ * - "ids.idx": offset in messages.dat of every message, 8 bytes at (id - 1) * 8 (ids are dense)
+ *
+ * Conversations are "*" (broadcast), a room ("#name"), a private pair (see {@link #pair}) and
+ * "@user" (every private message to or from that user), so a user's whole timeline is the
+ * broadcast, their "@user" file and their rooms merged.
+ * A page is a binary search per index file, one read of its entries and one read per message
+ * (two for long ones); only the catalog and up to OPEN_INDEXES open index files are kept in
+ * memory. Writes are not synced before close.
+ *
+ * Times never go backwards with ids, so a time range is an id range. Appends can be followed with
+ * {@link #onAppend} (e.g. by a {@link SearchIndex}), in id order.
+ */
+public final class HistoryStore implements AutoCloseable {
+    public static final int MAX_PAGE = 200;
+    static final int OPEN_INDEXES = 64;
+    private static final int ENTRY_BYTES = 16;
+    private static final int READ_AHEAD = 512;
+    private static final String DATA = "messages.dat";
+
+    /** Messages before some id, oldest first; more is true if there are older ones. */
+    public static final class Page {
+        public final List<HistoryEntry> messages;
+        public final boolean more;
+
+        Page(List<HistoryEntry> messages, boolean more) {
+            this.messages = messages;
+            this.more = more;
+        }
+    }
+
+    private final Path dir;
+    private final boolean temporary;
+    private final FileChannel data;
+    private final FileChannel catalog;
+    private final FileChannel ids;
+    private final Map<String, Integer> numbers = new HashMap<>();
+    // least recently used index files are closed (and reopened when needed)
+    private final Map<Integer, FileChannel> indexes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+            if (size() <= OPEN_INDEXES) return false;
+            IOUtil.closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+    private long dataEnd;
+    private long lastId;
+    private long lastTime;
+    private boolean closed;
+    private volatile Consumer<HistoryEntry> appendListener;
+
+    /** Sequential reader callback: false stops the scan. */
+    private interface Visitor {
+        boolean visit(long offset, HistoryEntry m) throws IOException;
+    }
+
+    public HistoryStore(Path dir) throws IOException {
+        this(dir, false);
+    }
+
+    private HistoryStore(Path dir, boolean temporary) throws IOException {
+        this.dir = dir;
+        this.temporary = temporary;
+        Files.createDirectories(dir);
+        data = FileChannel.open(dir.resolve(DATA),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        catalog = FileChannel.open(dir.resolve("conversations"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ids = FileChannel.open(dir.resolve("ids.idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            load();
+        } catch (IOException e) {
+            IOUtil.closeQuietly(data);
+            IOUtil.closeQuietly(catalog);
+            IOUtil.closeQuietly(ids);
+            throw e;
+        }
+    }
+
+    /** History in -Dchat.history.dir if set (kept across restarts), else a temp directory removed on close. */
+    public static HistoryStore open(String tempPrefix) throws IOException {
+        String d = System.getProperty("chat.history.dir");
+        if (d != null && !d.isBlank()) return new HistoryStore(Path.of(d));
+        return new HistoryStore(Files.createTempDirectory(tempPrefix), true);
+    }
+
+    /** Key of the private conversation between two users (either order). */
+    public static String pair(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + "\n" + b : b + "\n" + a;
+    }
+
+    /** Conversation key of "*", a room or a private conversation with another user, as seen by user. */
+    public static String conversation(String user, String with) {
+        return ("*".equals(with) || with.startsWith("#")) ? with : pair(user, with);
+    }
+
+    /** Store a message; returns its id. */
+    public synchronized long append(String from, String to, String text) throws IOException {
+        if (closed) throw new IOException("History closed");
+        byte[] f = from.getBytes(StandardCharsets.UTF_8);
+        byte[] t = to.getBytes(StandardCharsets.UTF_8);
+        byte[] x = text.getBytes(StandardCharsets.UTF_8);
+        long id = lastId + 1;
+        long time = Math.max(System.currentTimeMillis(), lastTime);
+        int len = 8 + 8 + 12 + f.length + t.length + x.length;
+        ByteBuffer b = ByteBuffer.allocate(4 + len);
+        b.putInt(len).putLong(id).putLong(time);
+        b.putInt(f.length).put(f).putInt(t.length).put(t).putInt(x.length).put(x);
+        b.flip();
+        long offset = dataEnd;
+        writeFully(data, b, offset);
+        dataEnd += 4 + len;
+        writeOffset(id, offset);
+        lastId = id;
+        lastTime = time;
+
+        if ("*".equals(to) || to.startsWith("#")) {
+            index(to, id, offset);
+        } else {
+            index(pair(from, to), id, offset);
+            index("@" + from, id, offset);
+            if (!from.equals(to)) index("@" + to, id, offset);
+        }
+        Consumer<HistoryEntry> l = appendListener;
+        if (l != null) l.accept(new HistoryEntry(id, time, from, to, text));
+        return id;
+    }
+
+    /** Called with every message appended from now on, in id order, under the store's lock (keep it short). */
+    public void onAppend(Consumer<HistoryEntry> listener) {
+        this.appendListener = listener;
+    }
+
+    /** The message with this id, or null if there is none. */
+    public synchronized HistoryEntry get(long id) throws IOException {
+        if (closed) throw new IOException("History closed");
+        if (id < 1 || id > lastId) return null;
+        return read(offsetOf(id));
+    }
+
+    /**
+     * Every message with afterId < id <= upToId, oldest first. Reads sequentially on its own channel,
+     * so appends and pages are not held up meanwhile.
+     */
+    public void scan(long afterId, long upToId, Consumer<HistoryEntry> each) throws IOException {
+        long start;
+        long end;
+        synchronized (this) {
+            if (closed) throw new IOException("History closed");
+            if (afterId >= Math.min(upToId, lastId)) return;
+            start = offsetOf(Math.max(1, afterId + 1));
+            end = dataEnd;
+        }
+        scan(start, end, (offset, m) -> {
+            if (m.id > upToId) return false;
+            if (m.id > afterId) each.accept(m);
+            return true;
+        });
+    }
+
+    /** Id of the newest message (0 if there is none). */
+    public synchronized long lastId() {
+        return lastId;
+    }
+
+    /** Up to limit messages of one conversation with ids below beforeId (beforeId <= 0: the newest). */
+    public synchronized Page page(String conversation, long beforeId, int limit) throws IOException {
+        return merged(beforeId, limit, conversation);
+    }
+
+    /** Up to limit messages a user can see (broadcasts and their private messages) with ids below beforeId. */
+    public synchronized Page timeline(String user, long beforeId, int limit) throws IOException {
+        return merged(beforeId, limit, "*", "@" + user);
+    }
+
+    /** Same, plus the messages of these rooms. */
+    public synchronized Page timeline(String user, Collection<String> rooms, long beforeId, int limit) throws IOException {
+        List<String> keys = new ArrayList<>(rooms.size() + 2);
+        keys.add("*");
+        keys.add("@" + user);
+        keys.addAll(rooms);
+        return merged(beforeId, limit, keys.toArray(new String[0]));
+    }
+
+    /** Newest-first merge of index files (which never share a message), returned oldest first. */
+    private Page merged(long beforeId, int limit, String... keys) throws IOException {
+        if (closed) throw new IOException("History closed");
+        limit = Math.max(1, Math.min(limit, MAX_PAGE));
+        long before = (beforeId <= 0) ? Long.MAX_VALUE : beforeId;
+
+        // the newest `limit` index entries below `before` of each file, in one read per file
+        int k = keys.length;
+        ByteBuffer[] block = new ByteBuffer[k];
+        int[] next = new int[k];       // entry in block of the next older candidate, -1 when used up
+        long[] skipped = new long[k];  // older entries not in block
+        ByteBuffer e = ByteBuffer.allocate(ENTRY_BYTES);
+        for (int i = 0; i < k; i++) {
+            next[i] = -1;
+            Integer n = numbers.get(keys[i]);
+            if (n == null) continue;
+            FileChannel ch = index(n);
+            long end = lowerBound(ch, before, e);
+            long start = Math.max(0, end - limit);
+            block[i] = ByteBuffer.allocate((int) (end - start) * ENTRY_BYTES);
+            readFully(ch, block[i], start * ENTRY_BYTES);
+            next[i] = (int) (end - start) - 1;
+            skipped[i] = start;
+        }
+
+        List<HistoryEntry> out = new ArrayList<>();
+        while (out.size() < limit) {
+            int best = -1;
+            for (int i = 0; i < k; i++) {
+                if (next[i] >= 0 && (best < 0 || id(block[i], next[i]) > id(block[best], next[best]))) best = i;
+            }
+            if (best < 0) break;
+            HistoryEntry m = read(block[best].getLong(next[best] * ENTRY_BYTES + 8));
+            if (m != null) out.add(m);
+            next[best]--;
+        }
+
+        boolean more = false;
+        for (int i = 0; i < k; i++) more |= next[i] >= 0 || skipped[i] > 0;
+        Collections.reverse(out);
+        return new Page(out, more);
+    }
+
+    private static long id(ByteBuffer block, int entry) {
+        return block.getLong(entry * ENTRY_BYTES);
+    }
+
+    /** First entry number whose id is >= id. */
+    private static long lowerBound(FileChannel ch, long id, ByteBuffer e) throws IOException {
+        long lo = 0;
+        long hi = ch.size() / ENTRY_BYTES;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            readEntry(ch, mid, e);
+            if (e.getLong(0) < id) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static void readEntry(FileChannel ch, long n, ByteBuffer e) throws IOException {
+        e.clear();
+        readFully(ch, e, n * ENTRY_BYTES);
+    }
+
+    /** The message at offset, or null if the record is damaged. */
+    private HistoryEntry read(long offset) throws IOException {
+        if (offset + 4 > dataEnd) return null;
+        // one read for the usual short message, a second one for long ones
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(READ_AHEAD, dataEnd - offset));
+        readFully(data, b, offset);
+        int len = b.getInt(0);
+        if (len < 28 || offset + 4 + len > dataEnd) return null;
+        if (4 + len > b.capacity()) {
+            ByteBuffer whole = ByteBuffer.allocate(4 + len);
+            whole.put(b.flip());
+            readFully(data, whole, offset + b.limit());
+            b = whole;
+        }
+        b.position(4).limit(4 + len);
+        return decode(b);
+    }
+
+    /** [id][time][from][to][text] from the buffer's position, or null if damaged. */
+    private static HistoryEntry decode(ByteBuffer b) {
+        try {
+            long id = b.getLong();
+            long time = b.getLong();
+            return new HistoryEntry(id, time, string(b), string(b), string(b));
+        } catch (RuntimeException bad) {
+            return null;
+        }
+    }
+
+    private void scan(long start, long end, Visitor visitor) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir.resolve(DATA), StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(start)), 1 << 16))) {
+            long pos = start;
+            while (pos + 4 <= end) {
+                int len = in.readInt();
+                if (len < 28 || pos + 4 + len > end) return; // torn record at the end
+                byte[] rec = new byte[len];
+                in.readFully(rec);
+                HistoryEntry m = decode(ByteBuffer.wrap(rec));
+                if (m != null && !visitor.visit(pos, m)) return;
+                pos += 4 + len;
+            }
+        } catch (EOFException ignored) {
+        }
+    }
+
+    private long offsetOf(long id) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        readFully(ids, b, (id - 1) * 8);
+        return b.getLong(0);
+    }
+
+    private void writeOffset(long id, long offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8).putLong(offset);
+        b.flip();
+        writeFully(ids, b, (id - 1) * 8);
+    }
+
+    private static String string(ByteBuffer b) {
+        int n = b.getInt();
+        String s = new String(b.array(), b.position(), n, StandardCharsets.UTF_8);
+        b.position(b.position() + n);
+        return s;
+    }
+
+    private void index(String key, long id, long offset) throws IOException {
+        Integer n = numbers.get(key);
+        if (n == null) {
+            n = numbers.size();
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer c = ByteBuffer.allocate(8 + k.length).putInt(n).putInt(k.length).put(k);
+            c.flip();
+            writeFully(catalog, c, catalog.size());
+            numbers.put(key, n);
+        }
+        FileChannel ch = index(n);
+        ByteBuffer e = ByteBuffer.allocate(ENTRY_BYTES).putLong(id).putLong(offset);
+        e.flip();
+        writeFully(ch, e, ch.size());
+    }
+
+    private FileChannel index(int n) throws IOException {
+        FileChannel ch = indexes.get(n);
+        if (ch != null) return ch;
+        ch = FileChannel.open(dir.resolve("idx-" + n + ".idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = ch.size();
+        if (size % ENTRY_BYTES != 0) ch.truncate(size - size % ENTRY_BYTES); // torn last entry
+        indexes.put(n, ch);
+        return ch;
+    }
+
+    private void load() throws IOException {
+        long size = catalog.size();
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        readFully(catalog, b, 0);
+        b.flip();
+        long valid = 0;
+        while (b.remaining() >= 8) {
+            int n = b.getInt();
+            int len = b.getInt();
+            if (len < 0 || len > b.remaining()) break;
+            String key = new String(b.array(), b.position(), len, StandardCharsets.UTF_8);
+            b.position(b.position() + len);
+            numbers.put(key, n);
+            valid = b.position();
+        }
+        if (valid < size) catalog.truncate(valid);
+
+        dataEnd = data.size();
+        ByteBuffer e = ByteBuffer.allocate(ENTRY_BYTES);
+        for (int n : numbers.values()) {
+            FileChannel ch = index(n);
+            long count = ch.size() / ENTRY_BYTES;
+            if (count == 0) continue;
+            readEntry(ch, count - 1, e);
+            lastId = Math.max(lastId, e.getLong(0));
+        }
+
+        // ids.idx is written right after the record, so it may be one ahead of the conversation indexes
+        long known = ids.size() / 8;
+        if (known < lastId) {
+            // older store (or a damaged offsets file): rebuild it from the records
+            ids.truncate(0);
+            long[] count = {0};
+            scan(0, dataEnd, (offset, m) -> {
+                if (m.id != count[0] + 1) return false;
+                writeOffset(m.id, offset);
+                count[0]++;
+                return true;
+            });
+            known = count[0];
+        }
+        if (ids.size() > known * 8) ids.truncate(known * 8);
+        lastId = known;
+        if (lastId > 0) {
+            HistoryEntry last = read(offsetOf(lastId));
+            if (last != null) lastTime = last.time;
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int n = ch.read(b, pos);
+            if (n < 0) throw new IOException("Unexpected end of history file");
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) pos += ch.write(b, pos);
+    }
+
+    @Override public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (FileChannel ch : indexes.values()) {
+                try { ch.force(false); } catch (IOException ignored) {}
+                IOUtil.closeQuietly(ch);
+            }
+            indexes.clear();
+            try { data.force(false); } catch (IOException ignored) {}
+            IOUtil.closeQuietly(data);
+            IOUtil.closeQuietly(catalog);
+            IOUtil.closeQuietly(ids);
+        }
+        if (temporary) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) Files.deleteIfExists(p);
+                Files.deleteIfExists(dir);
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package core.store;
+
+import core.util.IOUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of messages for users who are offline, replayed when they come back.
+ *
+ * Layout:
+ * - segment files seg-N.log, each memory-mapped at segmentBytes; a record is
+ *   [len][crc32][seq][time][recipient][header][body][history id], a zero length ends the segment
+ *   (records written before the history id was kept end after the body; they read as 0)
+ * - "cursors": last delivered seq per known user (rewritten atomically when it changes)
+ *
+ * Policy:
+ * - only users that have connected before (have a cursor) get messages stored
+ * - pending records are indexed in memory per recipient (rebuilt by scanning on open)
+ * - durability follows {@link Fsync}; a torn record at the end of a segment is ignored on open
+ * - a background thread syncs, saves cursors and compacts: segments without undelivered
+ *   records are deleted, mostly-delivered ones have their live records copied forward
+ * - records older than RETENTION_MS, or beyond MAX_PENDING per user, are dropped; past MAX_BYTES
+ *   of undelivered records in all, the oldest ones (of any user) go first
+ * - seqs keep growing across restarts (also past the cursors when every segment was compacted away)
+ * - a returning user's messages are read a page at a time (see pending)
+ */
+public final class MessageJournal implements AutoCloseable {
+    public enum Fsync { ALWAYS, INTERVAL, NEVER }
+
+    public static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+    public static final int MAX_BODY = 256 * 1024;
+    public static final int MAX_PENDING = 1000;
+    public static final long MAX_BYTES = 1024L * 1024 * 1024;
+    public static final int PAGE_BYTES = 1024 * 1024;
+    public static final long RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+    static final long MAINTENANCE_MS = 1000;
+    static final long COMPACT_MS = 30_000;
+
+    /** One stored message: a frame header and an optional body. */
+    public static final class Entry {
+        public final long seq;
+        public final long time;
+        public final String header;
+        public final byte[] body;
+        public final long historyId; // the same message in the history, 0 if it is not kept there
+
+        Entry(long seq, long time, String header, byte[] body, long historyId) {
+            this.seq = seq;
+            this.time = time;
+            this.header = header;
+            this.body = body;
+            this.historyId = historyId;
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path file;
+        final FileChannel ch;
+        final MappedByteBuffer map;
+        int records;
+        int live;
+
+        Segment(long id, Path file, FileChannel ch, MappedByteBuffer map) {
+            this.id = id;
+            this.file = file;
+            this.ch = ch;
+            this.map = map;
+        }
+    }
+
+    /** Where a pending record lives (moves when its segment is compacted). */
+    private static final class Loc {
+        final long seq;
+        final long time;
+        final String recipient;
+        final int bytes;
+        Segment seg;
+        int pos;
+
+        Loc(long seq, long time, String recipient, Segment seg, int pos) {
+            this.seq = seq;
+            this.time = time;
+            this.recipient = recipient;
+            this.seg = seg;
+            this.pos = pos;
+            this.bytes = 8 + seg.map.getInt(pos);
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final Fsync fsync;
+    private final boolean temporary;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, Long> cursors = new HashMap<>();
+    private final Map<String, ArrayDeque<Loc>> pending = new HashMap<>();
+    private Segment head;
+    private long nextSeq = 1;
+    private long liveBytes; // undelivered records, as written
+    private boolean unsynced;
+    private boolean cursorsDirty;
+    private long lastCompact = System.currentTimeMillis();
+    private boolean closed;
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "JournalMaintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public MessageJournal(Path dir, long segmentBytes, Fsync fsync) throws IOException {
+        this(dir, segmentBytes, fsync, false);
+    }
+
+    private MessageJournal(Path dir, long segmentBytes, Fsync fsync, boolean temporary) throws IOException {
+        if (segmentBytes <= 1024 || segmentBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("segmentBytes");
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        this.temporary = temporary;
+        Files.createDirectories(dir);
+        load();
+        maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_MS, MAINTENANCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Journal in -Dchat.journal.dir if set (kept across restarts), else a temp directory removed on close. */
+    public static MessageJournal open(String tempPrefix) throws IOException {
+        String d = System.getProperty("chat.journal.dir");
+        if (d != null && !d.isBlank()) return new MessageJournal(Path.of(d), SEGMENT_BYTES, Fsync.INTERVAL);
+        return new MessageJournal(Files.createTempDirectory(tempPrefix), SEGMENT_BYTES, Fsync.INTERVAL, true);
+    }
+
+    /**
+     * Register a user (messages for them are stored from now on) and return the oldest of what they
+     * missed after seq after: about maxBytes worth, at least one. Empty when there is nothing more.
+     */
+    public synchronized List<Entry> pending(String user, long after, int maxBytes) throws IOException {
+        if (cursors.putIfAbsent(user, nextSeq - 1) == null) cursorsDirty = true;
+        ArrayDeque<Loc> q = pending.get(user);
+        if (q == null) return List.of();
+        List<Entry> out = new ArrayList<>();
+        long bytes = 0;
+        for (Loc l : q) {
+            if (l.seq <= after) continue;
+            if (!out.isEmpty() && bytes + l.bytes > maxBytes) break;
+            out.add(read(l));
+            bytes += l.bytes;
+        }
+        return out;
+    }
+
+    /** Everything up to seq was handed to the user's connection. */
+    public synchronized void delivered(String user, long seq) {
+        Long cur = cursors.get(user);
+        if (cur == null || seq <= cur) return;
+        cursors.put(user, seq);
+        cursorsDirty = true;
+        ArrayDeque<Loc> q = pending.get(user);
+        while (q != null && !q.isEmpty() && q.peekFirst().seq <= seq) release(q.pollFirst());
+        if (q != null && q.isEmpty()) pending.remove(user);
+    }
+
+    /** True if messages for this user are kept while they are offline. */
+    public synchronized boolean isKnown(String user) {
+        return cursors.containsKey(user);
+    }
+
+    /** Store a message for an offline user; false if the user is unknown or the body too large. */
+    public boolean append(String recipient, String header, byte[] body) throws IOException {
+        return append(recipient, header, body, 0);
+    }
+
+    /** Same, for a message also kept in the history under historyId (replays can then skip it there). */
+    public synchronized boolean append(String recipient, String header, byte[] body, long historyId) throws IOException {
+        if (closed || !cursors.containsKey(recipient)) return false;
+        if (body != null && body.length > MAX_BODY) return false;
+        long seq = nextSeq++;
+        long now = System.currentTimeMillis();
+        int pos = write(seq, now, recipient, header, body, historyId);
+        ArrayDeque<Loc> q = pending.computeIfAbsent(recipient, k -> new ArrayDeque<>());
+        Loc l = new Loc(seq, now, recipient, head, pos);
+        q.addLast(l);
+        head.live++;
+        liveBytes += l.bytes;
+        while (q.size() > MAX_PENDING) release(q.pollFirst());
+        trim();
+        if (fsync == Fsync.ALWAYS) head.map.force();
+        else unsynced = true;
+        return true;
+    }
+
+    /** Undelivered messages across all users. */
+    public synchronized int pendingCount() {
+        int n = 0;
+        for (ArrayDeque<Loc> q : pending.values()) n += q.size();
+        return n;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /** Run a compaction pass now (normally done in the background). */
+    public synchronized void compact() throws IOException {
+        expire(System.currentTimeMillis() - RETENTION_MS);
+        for (Segment s : new ArrayList<>(segments.values())) {
+            if (s == head) continue;
+            if (s.live == 0) {
+                drop(s);
+            } else if (s.live * 2 < s.records) {
+                // copy live records forward, then the whole segment can go
+                for (ArrayDeque<Loc> q : pending.values()) {
+                    for (Loc l : q) {
+                        if (l.seg != s) continue;
+                        Entry e = read(l);
+                        l.pos = write(e.seq, e.time, l.recipient, e.header, e.body, e.historyId);
+                        l.seg = head;
+                        head.live++;
+                    }
+                }
+                if (fsync != Fsync.NEVER) head.map.force();
+                drop(s);
+            }
+        }
+        lastCompact = System.currentTimeMillis();
+    }
+
+    @Override public void close() {
+        maintenance.shutdownNow();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            try {
+                if (head != null && fsync != Fsync.NEVER) head.map.force();
+                if (cursorsDirty) saveCursors();
+            } catch (IOException ignored) {}
+            for (Segment s : segments.values()) IOUtil.closeQuietly(s.ch);
+            segments.clear();
+            pending.clear();
+        }
+        if (temporary) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) Files.deleteIfExists(p);
+                Files.deleteIfExists(dir);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void maintain() {
+        synchronized (this) {
+            if (closed) return;
+            try {
+                if (unsynced && fsync == Fsync.INTERVAL) {
+                    head.map.force();
+                    unsynced = false;
+                }
+                if (cursorsDirty) saveCursors();
+                if (System.currentTimeMillis() - lastCompact >= COMPACT_MS) compact();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // ---- records ----
+
+    private int write(long seq, long time, String recipient, String header, byte[] body, long historyId) throws IOException {
+        byte[] r = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] h = header.getBytes(StandardCharsets.UTF_8);
+        int bodyLen = body == null ? -1 : body.length;
+        int len = 8 + 8 + 4 + r.length + 4 + h.length + 4 + Math.max(0, bodyLen) + 8;
+        if (8 + len + 4 > segmentBytes) throw new IOException("Record too large for a segment: " + len);
+        if (head == null || head.map.remaining() < 8 + len + 4) roll(); // keep room for the zero terminator
+
+        ByteBuffer rec = ByteBuffer.allocate(len);
+        rec.putLong(seq).putLong(time);
+        rec.putInt(r.length).put(r);
+        rec.putInt(h.length).put(h);
+        rec.putInt(bodyLen);
+        if (body != null) rec.put(body);
+        rec.putLong(historyId);
+        rec.flip();
+        CRC32 crc = new CRC32();
+        crc.update(rec.duplicate());
+
+        MappedByteBuffer m = head.map;
+        int pos = m.position();
+        m.putInt(len).putInt((int) crc.getValue()).put(rec);
+        head.records++;
+        return pos;
+    }
+
+    private Entry read(Loc l) throws IOException {
+        ByteBuffer b = l.seg.map.duplicate();
+        int end = l.pos + l.bytes;
+        b.position(l.pos + 8);
+        long seq = b.getLong();
+        long time = b.getLong();
+        int recipientLen = b.getInt();
+        b.position(b.position() + recipientLen);
+        byte[] h = new byte[b.getInt()];
+        b.get(h);
+        int bodyLen = b.getInt();
+        byte[] body = null;
+        if (bodyLen >= 0) {
+            body = new byte[bodyLen];
+            b.get(body);
+        }
+        long historyId = (end - b.position() >= 8) ? b.getLong() : 0;
+        if (seq != l.seq) throw new IOException("Journal index out of sync at seq " + l.seq);
+        return new Entry(seq, time, new String(h, StandardCharsets.UTF_8), body, historyId);
+    }
+
+    // ---- segments ----
+
+    private void roll() throws IOException {
+        if (head != null && fsync != Fsync.NEVER) head.map.force();
+        long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        head = map(id, true);
+        segments.put(id, head);
+    }
+
+    private Segment map(long id, boolean create) throws IOException {
+        Path file = dir.resolve("seg-" + id + ".log");
+        FileChannel ch = create
+                ? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = create ? segmentBytes : ch.size();
+            return new Segment(id, file, ch, ch.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            IOUtil.closeQuietly(ch);
+            throw e;
+        }
+    }
+
+    private void drop(Segment s) {
+        segments.remove(s.id);
+        IOUtil.closeQuietly(s.ch);
+        try { Files.deleteIfExists(s.file); } catch (IOException ignored) {} // refused while mapped on some platforms
+    }
+
+    private void expire(long before) {
+        for (Iterator<ArrayDeque<Loc>> it = pending.values().iterator(); it.hasNext(); ) {
+            ArrayDeque<Loc> q = it.next();
+            while (!q.isEmpty() && q.peekFirst().time < before) release(q.pollFirst());
+            if (q.isEmpty()) it.remove();
+        }
+    }
+
+    /** Drop the oldest undelivered records, whoever they are for, until they fit in MAX_BYTES. */
+    private void trim() {
+        while (liveBytes > MAX_BYTES) {
+            Map.Entry<String, ArrayDeque<Loc>> oldest = null;
+            for (Map.Entry<String, ArrayDeque<Loc>> e : pending.entrySet()) {
+                if (oldest == null || e.getValue().peekFirst().seq < oldest.getValue().peekFirst().seq) oldest = e;
+            }
+            if (oldest == null) return;
+            release(oldest.getValue().pollFirst());
+            if (oldest.getValue().isEmpty()) pending.remove(oldest.getKey());
+        }
+    }
+
+    private void release(Loc l) {
+        l.seg.live--;
+        liveBytes -= l.bytes;
+    }
+
+    /** Scan segments in order, rebuilding the pending index from the cursors. */
+    private void load() throws IOException {
+        Path cf = dir.resolve("cursors");
+        if (Files.exists(cf)) {
+            for (String line : Files.readAllLines(cf, StandardCharsets.UTF_8)) {
+                int tab = line.lastIndexOf('\t');
+                if (tab <= 0) continue;
+                try { cursors.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1))); }
+                catch (NumberFormatException ignored) {}
+            }
+        }
+        // a cursor can be ahead of every record left (all delivered and compacted away)
+        for (long cur : cursors.values()) nextSeq = Math.max(nextSeq, cur + 1);
+
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "seg-*.log")) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                try { ids.add(Long.parseLong(n.substring(4, n.length() - 4))); } catch (NumberFormatException ignored) {}
+            }
+        }
+        Collections.sort(ids);
+        long oldest = System.currentTimeMillis() - RETENTION_MS;
+        Map<Long, Loc> live = new HashMap<>();
+        for (long id : ids) {
+            Segment s = map(id, false);
+            segments.put(id, s);
+            MappedByteBuffer m = s.map;
+            CRC32 crc = new CRC32();
+            while (m.remaining() >= 8) {
+                int pos = m.position();
+                int len = m.getInt();
+                int sum = m.getInt();
+                if (len <= 0 || len > m.remaining()) {
+                    m.position(pos);
+                    break;
+                }
+                ByteBuffer rec = m.slice(pos + 8, len);
+                crc.reset();
+                crc.update(rec.duplicate());
+                if ((int) crc.getValue() != sum) { // torn write: the rest of this segment is unusable
+                    m.position(pos);
+                    break;
+                }
+                long seq = rec.getLong();
+                long time = rec.getLong();
+                byte[] r = new byte[rec.getInt()];
+                rec.get(r);
+                String recipient = new String(r, StandardCharsets.UTF_8);
+                m.position(pos + 8 + len);
+                s.records++;
+                nextSeq = Math.max(nextSeq, seq + 1);
+
+                Long cur = cursors.get(recipient);
+                if (cur == null || seq <= cur || time < oldest) continue;
+                // copies made by compaction can repeat a seq; keep the later one
+                Loc old = live.put(seq, new Loc(seq, time, recipient, s, pos));
+                if (old != null) old.seg.live--;
+                s.live++;
+            }
+        }
+        List<Loc> sorted = new ArrayList<>(live.values());
+        sorted.sort(Comparator.comparingLong(l -> l.seq));
+        for (Loc l : sorted) {
+            ArrayDeque<Loc> q = pending.computeIfAbsent(l.recipient, k -> new ArrayDeque<>());
+            q.addLast(l);
+            liveBytes += l.bytes;
+            if (q.size() > MAX_PENDING) release(q.pollFirst());
+        }
+        trim();
+        // appends go to a fresh segment; the scanned ones are only read
+        roll();
+    }
+
+    private void saveCursors() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : cursors.entrySet()) sb.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+        Path tmp = dir.resolve("cursors.tmp");
+        Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+        Files.move(tmp, dir.resolve("cursors"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cursorsDirty = false;
+    }
+}
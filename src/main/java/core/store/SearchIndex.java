@@ -0,0 +1,363 @@
+package core.store;
+
+import core.model.HistoryEntry;
+import core.model.SearchQuery;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the text messages of a {@link HistoryStore}, for SEARCH.
+ *
+ * - Terms are lower-cased words (letters and digits, at least 2 and at most MAX_TERM chars kept);
+ *   sender, conversation and participants are indexed as reserved terms, so every filter is a
+ *   posting list. Room messages have the room as conversation and no participants.
+ * - A posting list is its ids in increasing order, delta + varint encoded in a byte array, with the
+ *   first id and byte offset of every BLOCK postings kept aside, so "largest id <= x" is a binary
+ *   search over blocks plus one block decode.
+ * - A query intersects its lists newest first by leapfrogging: it starts from the rarest list and
+ *   whenever a list lacks the candidate, jumps to that list's next older id. The cost follows the
+ *   candidates looked at, not the length of common lists.
+ * - A time range becomes an id range (history times never go back), found by binary search on the store.
+ * - New messages come from {@link HistoryStore#onAppend} through a queue; one indexer thread
+ *   applies them, so routing never waits for the index. The index lives in memory and is rebuilt
+ *   from the store in the background on start; until then a search sees what is indexed so far.
+ */
+public final class SearchIndex implements AutoCloseable {
+    public static final int MAX_RESULTS = 100;
+    static final int BLOCK = 128;
+    static final int MAX_TERM = 40;
+    private static final int BATCH = 4096;
+
+    // reserved term prefixes (words never contain control characters)
+    private static final String FROM = "\u0001f:";
+    private static final String CONV = "\u0001c:";
+    private static final String USER = "\u0001u:";
+
+    /** Matches, newest first; nextBefore asks for the following page (0: there is none). */
+    public static final class Result {
+        public final List<HistoryEntry> messages;
+        public final long nextBefore;
+
+        Result(List<HistoryEntry> messages, long nextBefore) {
+            this.messages = messages;
+            this.nextBefore = nextBefore;
+        }
+    }
+
+    private final HistoryStore history;
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LinkedBlockingQueue<HistoryEntry> queue = new LinkedBlockingQueue<>();
+    private final Thread indexer;
+    private volatile long indexed; // every id up to this one is searchable
+    private volatile boolean closed;
+
+    public SearchIndex(HistoryStore history) {
+        this.history = history;
+        history.onAppend(queue::offer);
+        indexer = new Thread(this::run, "SearchIndexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /** Highest id that is searchable. */
+    public long indexed() {
+        return indexed;
+    }
+
+    /**
+     * Messages matching the query among those the user can see (broadcasts and their private
+     * conversations). Needs words, a sender or a conversation; otherwise nothing matches.
+     */
+    public Result search(String user, SearchQuery q) throws IOException {
+        return search(user, List.of(), q);
+    }
+
+    /** Same, also seeing the messages of these rooms (the caller checks q.with is one of them if it is a room). */
+    public Result search(String user, Collection<String> rooms, SearchQuery q) throws IOException {
+        int limit = Math.max(1, Math.min(q.limit, MAX_RESULTS));
+        long hi = indexed;
+        if (q.beforeId > 0) hi = Math.min(hi, q.beforeId - 1);
+        if (q.until > 0) hi = Math.min(hi, firstIdFrom(q.until + 1, hi) - 1);
+        long lo = (q.since > 0) ? firstIdFrom(q.since, hi) : 1;
+        if (lo > hi) return new Result(List.of(), 0);
+
+        long[] found;
+        int n;
+        lock.readLock().lock();
+        try {
+            List<Probe[]> groups = new ArrayList<>(); // all groups must match, any probe within one
+            for (String w : terms(q.text)) {
+                if (!require(groups, w)) return new Result(List.of(), 0);
+            }
+            if (!q.from.isEmpty() && !require(groups, FROM + q.from)) return new Result(List.of(), 0);
+            if (!q.with.isEmpty()) {
+                String conv = HistoryStore.conversation(user, q.with);
+                if (!require(groups, CONV + conv)) return new Result(List.of(), 0);
+            } else {
+                List<Probe> visible = new ArrayList<>(2 + rooms.size());
+                Postings pub = terms.get(CONV + "*");
+                Postings own = terms.get(USER + user);
+                if (pub != null) visible.add(new Probe(pub));
+                if (own != null) visible.add(new Probe(own));
+                for (String room : rooms) {
+                    Postings r = terms.get(CONV + room);
+                    if (r != null) visible.add(new Probe(r));
+                }
+                if (visible.isEmpty()) return new Result(List.of(), 0);
+                groups.add(visible.toArray(new Probe[0]));
+            }
+
+            // the rarest single-list group drives
+            int driver = -1;
+            for (int i = 0; i < groups.size(); i++) {
+                Probe[] g = groups.get(i);
+                if (g.length == 1 && (driver < 0 || g[0].p.count < groups.get(driver)[0].p.count)) driver = i;
+            }
+            if (driver < 0) return new Result(List.of(), 0);
+            Probe d = groups.remove(driver)[0];
+
+            // leapfrog: a candidate missing from a group moves on to that group's next older id
+            found = new long[limit];
+            n = 0;
+            long id = hi;
+            while (n < limit) {
+                long candidate = d.floor(id);
+                if (candidate < lo) break;
+                long next = candidate;
+                for (Probe[] g : groups) {
+                    next = floor(g, candidate);
+                    if (next != candidate) break;
+                }
+                if (next == candidate) {
+                    found[n++] = candidate;
+                    id = candidate - 1;
+                } else {
+                    id = next; // < candidate (or -1)
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<HistoryEntry> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            HistoryEntry m = history.get(found[i]);
+            if (m != null) out.add(m);
+        }
+        return new Result(out, n == limit ? found[n - 1] : 0);
+    }
+
+    private boolean require(List<Probe[]> groups, String term) {
+        Postings p = terms.get(term);
+        if (p == null) return false;
+        groups.add(new Probe[]{new Probe(p)});
+        return true;
+    }
+
+    /** Largest id <= id in any list of the group, or -1. */
+    private static long floor(Probe[] group, long id) {
+        long best = -1;
+        for (Probe p : group) best = Math.max(best, p.floor(id));
+        return best;
+    }
+
+    /** Smallest id in [1, hi] with time >= t, or hi + 1. */
+    private long firstIdFrom(long t, long hi) throws IOException {
+        long lo = 1;
+        long end = hi + 1;
+        while (lo < end) {
+            long mid = (lo + end) >>> 1;
+            HistoryEntry m = history.get(mid);
+            if (m == null || m.time < t) lo = mid + 1;
+            else end = mid;
+        }
+        return lo;
+    }
+
+    /** Lower-cased words of a text, each once, in order. */
+    static List<String> terms(String text) {
+        Set<String> out = new LinkedHashSet<>();
+        StringBuilder w = new StringBuilder();
+        for (int i = 0, len = text.length(); i <= len; ) {
+            int cp = (i < len) ? text.codePointAt(i) : ' ';
+            i += (i < len) ? Character.charCount(cp) : 1;
+            if (Character.isLetterOrDigit(cp)) {
+                if (w.length() < MAX_TERM) w.appendCodePoint(Character.toLowerCase(cp));
+                continue;
+            }
+            if (w.length() >= 2) out.add(w.toString());
+            w.setLength(0);
+        }
+        return new ArrayList<>(out);
+    }
+
+    private void run() {
+        try {
+            long upTo = history.lastId();
+            List<HistoryEntry> batch = new ArrayList<>();
+            history.scan(0, upTo, m -> {
+                batch.add(m);
+                if (batch.size() == BATCH) {
+                    apply(batch);
+                    batch.clear();
+                }
+            });
+            apply(batch);
+            batch.clear();
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+                apply(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException ignored) {
+            // store closed
+        }
+    }
+
+    /** Words are split outside the lock; the lock is held only while postings grow. */
+    private void apply(List<HistoryEntry> batch) {
+        List<List<String>> words = new ArrayList<>(batch.size());
+        for (HistoryEntry m : batch) words.add(terms(m.text));
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                HistoryEntry m = batch.get(i);
+                if (m.id <= indexed) continue; // already read by the startup scan
+                for (String w : words.get(i)) post(w, m.id);
+                post(FROM + m.from, m.id);
+                if ("*".equals(m.to) || m.to.startsWith("#")) {
+                    post(CONV + m.to, m.id);
+                } else {
+                    post(CONV + HistoryStore.pair(m.from, m.to), m.id);
+                    post(USER + m.from, m.id);
+                    post(USER + m.to, m.id);
+                }
+                indexed = m.id;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void post(String term, long id) {
+        terms.computeIfAbsent(term, k -> new Postings()).add(id);
+    }
+
+    @Override public void close() {
+        closed = true;
+        history.onAppend(null);
+        indexer.interrupt();
+        lock.writeLock().lock();
+        try {
+            terms.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Increasing ids: block heads kept aside, the rest as varint deltas. */
+    static final class Postings {
+        private byte[] data = new byte[4];
+        private int size;
+        private int count;
+        private long last;
+        private long[] blockFirst = new long[1];
+        private int[] blockPos = new int[1];
+
+        void add(long id) {
+            if (count > 0 && id <= last) return;
+            if (count % BLOCK == 0) {
+                int b = count / BLOCK;
+                if (b == blockFirst.length) {
+                    blockFirst = Arrays.copyOf(blockFirst, b * 2);
+                    blockPos = Arrays.copyOf(blockPos, b * 2);
+                }
+                blockFirst[b] = id;
+                blockPos[b] = size;
+            } else {
+                long delta = id - last;
+                if (size + 10 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + 10));
+                while ((delta & ~0x7FL) != 0) {
+                    data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                data[size++] = (byte) delta;
+            }
+            last = id;
+            count++;
+        }
+
+        int blocks() {
+            return (count + BLOCK - 1) / BLOCK;
+        }
+
+        /** Last block whose first id is <= id, or -1. */
+        int floorBlock(long id) {
+            int lo = 0;
+            int hi = blocks() - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (blockFirst[mid] <= id) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        /** Ids of block b into out; returns how many. */
+        int decode(int b, long[] out) {
+            int n = Math.min(BLOCK, count - b * BLOCK);
+            long id = blockFirst[b];
+            out[0] = id;
+            int pos = blockPos[b];
+            for (int j = 1; j < n; j++) {
+                long delta = 0;
+                int shift = 0;
+                byte v;
+                do {
+                    v = data[pos++];
+                    delta |= (long) (v & 0x7F) << shift;
+                    shift += 7;
+                } while (v < 0);
+                id += delta;
+                out[j] = id;
+            }
+            return n;
+        }
+    }
+
+    /** Floor lookups on one list; keeps the last decoded block, since lookups mostly move backwards within it. */
+    private static final class Probe {
+        final Postings p;
+        private final long[] ids = new long[BLOCK];
+        private int block = -1;
+        private int n;
+
+        Probe(Postings p) {
+            this.p = p;
+        }
+
+        /** Largest id <= id in the list, or -1. */
+        long floor(long id) {
+            if (id < 1) return -1;
+            int b = p.floorBlock(id);
+            if (b < 0) return -1;
+            if (b != block) {
+                n = p.decode(b, ids);
+                block = b;
+            }
+            int i = Arrays.binarySearch(ids, 0, n, id);
+            return ids[(i >= 0) ? i : -i - 2];
+        }
+    }
+}
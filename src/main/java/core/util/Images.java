@@ -0,0 +1,114 @@
+package core.util;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Image decoding at display size (headless-safe, no AWT toolkit needed).
+ *
+ * - decode*(..., maxSide) reads with ImageIO source subsampling, so a 24 MP photo is never
+ *   fully expanded in memory, then scales the result down to fit maxSide.
+ * - Images above MAX_PIXELS are refused (decompression bombs).
+ */
+public final class Images {
+    private Images() {}
+
+    public static final long MAX_PIXELS = 200_000_000L;
+
+    public static BufferedImage decode(Path file, int maxSide) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            return decode(in, maxSide);
+        }
+    }
+
+    public static BufferedImage decode(byte[] bytes, int maxSide) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            return decode(in, maxSide);
+        }
+    }
+
+    /** Decode the first image so that its longest side is at most maxSide. */
+    public static BufferedImage decode(ImageInputStream in, int maxSide) throws IOException {
+        if (in == null) throw new IOException("Unreadable image");
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) throw new IOException("Unsupported image format");
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            int w = reader.getWidth(0);
+            int h = reader.getHeight(0);
+            if ((long) w * h > MAX_PIXELS) throw new IOException("Image too large: " + w + "x" + h);
+
+            // subsample down to between maxSide and 2*maxSide, then let fit() smooth the rest
+            ImageReadParam param = reader.getDefaultReadParam();
+            int step = Math.max(1, Math.max(w, h) / Math.max(1, maxSide));
+            if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+            return fit(reader.read(0, param), maxSide);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /** Bilinear downscale so the longest side is at most maxSide (returns img if it already fits). */
+    public static BufferedImage fit(BufferedImage img, int maxSide) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        if (Math.max(w, h) <= maxSide) return img;
+        double f = maxSide / (double) Math.max(w, h);
+        int nw = Math.max(1, (int) Math.round(w * f));
+        int nh = Math.max(1, (int) Math.round(h * f));
+        BufferedImage out = new BufferedImage(nw, nh, img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(img, 0, 0, nw, nh, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    /** JPEG encoding (transparent areas become white). quality is 0..1. */
+    public static byte[] jpeg(BufferedImage img, float quality) throws IOException {
+        BufferedImage rgb = img;
+        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
+            rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            try {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+                g.drawImage(img, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * 1024);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,208 @@
+package core.util;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Small LZ77 block compressor (LZ4-style sequences), meant for binary payload slices.
+ *
+ * - Greedy matching over a 64 KB window with a hash of 4-byte sequences.
+ * - Skips ahead faster the longer it finds nothing, so incompressible data costs little.
+ * - Blocks are independent: the receiver must know the raw length.
+ *
+ * Sequence layout: token (literal len << 4 | match len - 4), [extra literal len], literals,
+ * offset (2 bytes LE), [extra match len]. The last sequence carries literals only.
+ */
+public final class Lz {
+    private Lz() {}
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65_535;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final ThreadLocal<int[]> TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    /** Worst-case output size for len input bytes. */
+    public static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    /** Compress src[off, off+len) into dst at dstOff (dst needs maxCompressedLength(len) room); returns the compressed length. */
+    public static int compress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        // small blocks use a smaller table: clearing it would otherwise cost as much as the block
+        int hashLog = (len <= 64 * 1024) ? HASH_LOG - 2 : HASH_LOG;
+        int[] table = TABLE.get();
+        Arrays.fill(table, 0, 1 << hashLog, -1);
+
+        int end = off + len;
+        int mfLimit = end - MF_LIMIT;
+        int matchLimit = end - LAST_LITERALS;
+        int ip = off;
+        int anchor = off;
+        int op = dstOff;
+
+        while (ip < mfLimit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq, hashLog);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+
+            while (ip > anchor && ref > off && src[ip - 1] == src[ref - 1]) { ip--; ref--; }
+            int matchLen = MIN_MATCH + commonLength(src, ip + MIN_MATCH, ref + MIN_MATCH, matchLimit);
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, op);
+            ip += matchLen;
+            anchor = ip;
+        }
+
+        // trailing literals
+        int litLen = end - anchor;
+        int tokenPos = op++;
+        dst[tokenPos] = (byte) (Math.min(litLen, 15) << 4);
+        if (litLen >= 15) op = writeLength(litLen - 15, dst, op);
+        System.arraycopy(src, anchor, dst, op, litLen);
+        op += litLen;
+        return op - dstOff;
+    }
+
+    /** Decompress a block into dst at dstOff; exactly rawLen bytes must come out. */
+    public static void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int rawLen) throws IOException {
+        int ip = off;
+        int end = off + len;
+        int op = dstOff;
+        int dstEnd = dstOff + rawLen;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int b;
+                    do { b = src[ip++] & 0xFF; litLen += b; } while (b == 255);
+                }
+                if (op + litLen > dstEnd || ip + litLen > end) throw new IOException("Corrupt LZ block");
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if (ip == end) break;
+
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int matchLen = (token & 0x0F);
+                if (matchLen == 15) {
+                    int b;
+                    do { b = src[ip++] & 0xFF; matchLen += b; } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff || op + matchLen > dstEnd) throw new IOException("Corrupt LZ block");
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                    op += matchLen;
+                } else {
+                    // overlapping run: dst[ref, op) repeats with period offset, so copy it in doubling steps
+                    int left = matchLen;
+                    while (left > 0) {
+                        int n = Math.min(left, op - ref);
+                        System.arraycopy(dst, ref, dst, op, n);
+                        op += n;
+                        left -= n;
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ block");
+        }
+        if (op != dstEnd) throw new IOException("LZ block length mismatch: " + (op - dstOff) + "/" + rawLen);
+    }
+
+    /**
+     * True if the data starts like a format that is already compressed
+     * (JPEG, PNG, GIF, WebP, ZIP/JAR/DOCX, gzip, 7z, RAR, bzip2, xz, zstd, MP3, MP4/MOV, Ogg, FLAC).
+     */
+    public static boolean looksCompressed(ByteBuffer head) {
+        ByteBuffer b = head.duplicate();
+        int n = b.remaining();
+        int p = b.position();
+        if (n < 4) return false;
+        int b0 = b.get(p) & 0xFF, b1 = b.get(p + 1) & 0xFF, b2 = b.get(p + 2) & 0xFF, b3 = b.get(p + 3) & 0xFF;
+
+        if (b0 == 0xFF && b1 == 0xD8 && b2 == 0xFF) return true;                          // JPEG
+        if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') return true;               // PNG
+        if (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8') return true;                // GIF
+        if (b0 == 'P' && b1 == 'K' && (b2 == 3 || b2 == 5 || b2 == 7)) return true;       // ZIP family
+        if (b0 == 0x1F && b1 == 0x8B) return true;                                        // gzip
+        if (b0 == '7' && b1 == 'z' && b2 == 0xBC && b3 == 0xAF) return true;              // 7z
+        if (b0 == 'R' && b1 == 'a' && b2 == 'r' && b3 == '!') return true;                // RAR
+        if (b0 == 'B' && b1 == 'Z' && b2 == 'h') return true;                             // bzip2
+        if (b0 == 0xFD && b1 == '7' && b2 == 'z' && b3 == 'X') return true;               // xz
+        if (b0 == 0x28 && b1 == 0xB5 && b2 == 0x2F && b3 == 0xFD) return true;            // zstd
+        if (b0 == 'I' && b1 == 'D' && b2 == '3') return true;                             // MP3 (ID3)
+        if (b0 == 0xFF && (b1 & 0xE0) == 0xE0) return true;                               // MP3 frame
+        if (b0 == 'O' && b1 == 'g' && b2 == 'g' && b3 == 'S') return true;                // Ogg
+        if (b0 == 'f' && b1 == 'L' && b2 == 'a' && b3 == 'C') return true;                // FLAC
+        if (n >= 12) {
+            boolean riff = b0 == 'R' && b1 == 'I' && b2 == 'F' && b3 == 'F';
+            if (riff && b.get(p + 8) == 'W' && b.get(p + 9) == 'E' && b.get(p + 10) == 'B' && b.get(p + 11) == 'P') return true;
+            if (b.get(p + 4) == 'f' && b.get(p + 5) == 't' && b.get(p + 6) == 'y' && b.get(p + 7) == 'p') return true; // MP4/MOV/HEIC
+        }
+        return false;
+    }
+
+    private static int writeSequence(byte[] src, int litStart, int litLen, int offset, int matchLen, byte[] dst, int op) {
+        int ml = matchLen - MIN_MATCH;
+        int tokenPos = op++;
+        dst[tokenPos] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(ml, 15));
+        if (litLen >= 15) op = writeLength(litLen - 15, dst, op);
+        System.arraycopy(src, litStart, dst, op, litLen);
+        op += litLen;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        if (ml >= 15) op = writeLength(ml - 15, dst, op);
+        return op;
+    }
+
+    private static int writeLength(int n, byte[] dst, int op) {
+        while (n >= 255) {
+            dst[op++] = (byte) 255;
+            n -= 255;
+        }
+        dst[op++] = (byte) n;
+        return op;
+    }
+
+    /** Number of equal bytes at a and b (a ahead of b), stopping at limit; compares 8 bytes at a time. */
+    private static int commonLength(byte[] src, int a, int b, int limit) {
+        int start = a;
+        while (a + 8 <= limit) {
+            long diff = (long) LONG.get(src, a) ^ (long) LONG.get(src, b);
+            if (diff != 0) return a - start + (Long.numberOfTrailingZeros(diff) >>> 3);
+            a += 8;
+            b += 8;
+        }
+        while (a < limit && src[a] == src[b]) { a++; b++; }
+        return a - start;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (int) INT.get(b, i);
+    }
+
+    private static int hash(int seq, int hashLog) {
+        return (seq * -1640531535) >>> (32 - hashLog);
+    }
+}
@@ -63,7 +63,7 @@ public final class MulticastEmitter {
             port
         );
         socket.send(packet);
-        log.log("[MULTICAST] Sent text: " + message);
+        log.debug(() -> "[MULTICAST] Sent text: " + message);
     }
 
     /**
@@ -100,7 +100,7 @@ public final class MulticastEmitter {
                 port
             );
             socket.send(packet);
-            log.log("[MULTICAST] Sent image: " + filename + " (" + imageBytes.length + " bytes)");
+            log.debug(() -> "[MULTICAST] Sent image: " + filename + " (" + imageBytes.length + " bytes)");
         }
     }
 
@@ -127,7 +127,7 @@ public final class MulticastEmitter {
         // Send end marker
         String endPayload = "IMAGE_END:" + id;
         sendRaw(endPayload);
-        log.log("[MULTICAST] Sent chunked image: " + filename + " (" + imageBytes.length + " bytes, " + totalChunks + " chunks)");
+        log.debug(() -> "[MULTICAST] Sent chunked image: " + filename + " (" + imageBytes.length + " bytes, " + totalChunks + " chunks)");
     }
 
     private void sendRaw(String payload) throws Exception {
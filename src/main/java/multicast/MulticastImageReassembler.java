@@ -1,68 +1,84 @@
 package multicast;
 
+import core.net.BinarySink;
+
+import java.nio.ByteBuffer;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Reassembles chunked image messages for multicast receivers.
+ * Chunks are Base64-decoded and streamed to a {@link BinarySink} in order; only chunks that
+ * arrive ahead of a gap are held back.
  */
 final class MulticastImageReassembler {
-    private static class ImageChunk {
-        String filename;
-        int totalChunks;
-        Map<Integer, String> chunks = new ConcurrentHashMap<>();
-    }
-
-    private final Map<String, ImageChunk> pending = new ConcurrentHashMap<>();
-
-    void onImageStart(String filename, String id, int totalChunks) {
-        ImageChunk chunk = new ImageChunk();
-        chunk.filename = filename;
-        chunk.totalChunks = totalChunks;
-        pending.put(id, chunk);
-    }
+    private static final class ImageStream {
+        final String filename;
+        final int totalChunks;
+        final BinarySink sink;
+        final Map<Integer, String> waiting = new HashMap<>();
+        int next;
+        long offset;
+        String carry = ""; // Base64 tail that did not make a full 4-char group yet
+        boolean failed;
 
-    void onImageChunk(String id, int chunkIndex, String base64Chunk) {
-        ImageChunk chunk = pending.get(id);
-        if (chunk != null) {
-            chunk.chunks.put(chunkIndex, base64Chunk);
+        ImageStream(String filename, int totalChunks, BinarySink sink) {
+            this.filename = filename;
+            this.totalChunks = totalChunks;
+            this.sink = sink;
         }
     }
 
-    ImageResult onImageEnd(String id) {
-        ImageChunk chunk = pending.remove(id);
-        if (chunk == null) return null;
+    private final Map<String, ImageStream> pending = new ConcurrentHashMap<>();
 
-        // Check if all chunks are present
-        if (chunk.chunks.size() != chunk.totalChunks) {
-            return null; // Missing chunks
-        }
-
-        // Reassemble Base64 string
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < chunk.totalChunks; i++) {
-            String part = chunk.chunks.get(i);
-            if (part == null) return null;
-            sb.append(part);
-        }
+    void onImageStart(String filename, String id, int totalChunks, BinarySink sink) {
+        pending.put(id, new ImageStream(filename, totalChunks, sink));
+    }
 
-        // Decode Base64 to bytes
-        try {
-            byte[] imageBytes = Base64.getDecoder().decode(sb.toString());
-            return new ImageResult(chunk.filename, imageBytes);
-        } catch (Exception e) {
-            return null;
+    void onImageChunk(String id, int chunkIndex, String base64Chunk) {
+        ImageStream s = pending.get(id);
+        if (s == null) return;
+        synchronized (s) {
+            if (s.failed || chunkIndex < s.next || chunkIndex >= s.totalChunks) return;
+            s.waiting.put(chunkIndex, base64Chunk);
+            String part;
+            while ((part = s.waiting.remove(s.next)) != null) {
+                s.next++;
+                String b64 = s.carry + part;
+                int usable = (s.next == s.totalChunks) ? b64.length() : b64.length() / 4 * 4;
+                s.carry = b64.substring(usable);
+                try {
+                    byte[] bytes = Base64.getDecoder().decode(b64.substring(0, usable));
+                    s.sink.chunk(s.offset, ByteBuffer.wrap(bytes));
+                    s.offset += bytes.length;
+                } catch (Exception e) {
+                    s.failed = true;
+                    s.sink.abort("Image decode failed: " + e.getMessage());
+                    return;
+                }
+            }
         }
     }
 
-    static class ImageResult {
-        final String filename;
-        final byte[] imageData;
-
-        ImageResult(String filename, byte[] imageData) {
-            this.filename = filename;
-            this.imageData = imageData;
+    /** Returns the filename if the image was delivered completely, null otherwise. */
+    String onImageEnd(String id) {
+        ImageStream s = pending.remove(id);
+        if (s == null) return null;
+        synchronized (s) {
+            if (s.failed) return null;
+            if (s.next != s.totalChunks) {
+                s.sink.abort("Missing chunks (" + s.next + "/" + s.totalChunks + ")");
+                return null;
+            }
+            try {
+                s.sink.end();
+                return s.filename;
+            } catch (Exception e) {
+                s.sink.abort("Receiver failed: " + e.getMessage());
+                return null;
+            }
         }
     }
 }
@@ -1,5 +1,7 @@
 package multicast;
 
+import core.net.BinarySink;
+
 /**
  * Listener for multicast messages.
  */
@@ -18,4 +20,13 @@ public interface MulticastMessageListener {
     default void onImage(String filename, byte[] imageData) {
         // Default implementation does nothing
     }
+
+    /**
+     * Streaming variant: called when an image starts; chunks go to the returned sink.
+     * size is -1 for chunked images (unknown up front).
+     * Default collects the bytes and calls {@link #onImage}.
+     */
+    default BinarySink onImageBegin(String filename, long size) {
+        return BinarySink.collect(size, bytes -> onImage(filename, bytes));
+    }
 }
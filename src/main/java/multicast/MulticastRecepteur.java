@@ -1,8 +1,10 @@
 package multicast;
 
+import core.net.BinarySink;
 import core.net.LogSink;
 
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -71,12 +73,12 @@ public final class MulticastRecepteur {
                 // Handle different message types
                 if (message.startsWith("TEXT:")) {
                     String text = message.substring(5);
-                    log.log("[MULTICAST] Receiver (" + name + ") received text: " + text);
+                    log.debug(() -> "[MULTICAST] Receiver (" + name + ") received text: " + text);
                     if (listener != null) {
                         try {
                             listener.onMessage(text);
                         } catch (Exception e) {
-                            log.log("[MULTICAST] Listener error: " + e.getMessage());
+                            log.warn("[MULTICAST] Listener error: " + e.getMessage());
                         }
                     }
                 } else if (message.startsWith("IMAGE:")) {
@@ -87,16 +89,18 @@ public final class MulticastRecepteur {
                         String base64Image = parts[1];
                         try {
                             byte[] imageBytes = Base64.getDecoder().decode(base64Image);
-                            log.log("[MULTICAST] Receiver (" + name + ") received image: " + filename);
+                            log.debug(() -> "[MULTICAST] Receiver (" + name + ") received image: " + filename);
                             if (listener != null) {
                                 try {
-                                    listener.onImage(filename, imageBytes);
+                                    BinarySink sink = listener.onImageBegin(filename, imageBytes.length);
+                                    sink.chunk(0, ByteBuffer.wrap(imageBytes));
+                                    sink.end();
                                 } catch (Exception e) {
-                                    log.log("[MULTICAST] Image listener error: " + e.getMessage());
+                                    log.warn("[MULTICAST] Image listener error: " + e.getMessage());
                                 }
                             }
                         } catch (Exception e) {
-                            log.log("[MULTICAST] Image decode error: " + e.getMessage());
+                            log.warn("[MULTICAST] Image decode error: " + e.getMessage());
                         }
                     }
                 } else if (message.startsWith("IMAGE_START:")) {
@@ -106,8 +110,9 @@ public final class MulticastRecepteur {
                         String filename = parts[0];
                         String id = parts[1];
                         int totalChunks = Integer.parseInt(parts[2]);
-                        imageReassembler.onImageStart(filename, id, totalChunks);
-                        log.log("[MULTICAST] Receiver (" + name + ") receiving chunked image: " + filename);
+                        BinarySink sink = (listener != null) ? listener.onImageBegin(filename, -1) : BinarySink.discard();
+                        imageReassembler.onImageStart(filename, id, totalChunks, sink);
+                        log.debug(() -> "[MULTICAST] Receiver (" + name + ") receiving chunked image: " + filename);
                     }
                 } else if (message.startsWith("IMAGE_CHUNK:")) {
                     // Chunked image chunk
@@ -121,33 +126,26 @@ public final class MulticastRecepteur {
                 } else if (message.startsWith("IMAGE_END:")) {
                     // Chunked image end
                     String id = message.substring(10);
-                    MulticastImageReassembler.ImageResult result = imageReassembler.onImageEnd(id);
-                    if (result != null) {
-                        log.log("[MULTICAST] Receiver (" + name + ") received chunked image: " + result.filename);
-                        if (listener != null) {
-                            try {
-                                listener.onImage(result.filename, result.imageData);
-                            } catch (Exception e) {
-                                log.log("[MULTICAST] Image listener error: " + e.getMessage());
-                            }
-                        }
+                    String filename = imageReassembler.onImageEnd(id);
+                    if (filename != null) {
+                        log.debug(() -> "[MULTICAST] Receiver (" + name + ") received chunked image: " + filename);
                     } else {
-                        log.log("[MULTICAST] Receiver (" + name + ") failed to reassemble image");
+                        log.warn("[MULTICAST] Receiver (" + name + ") failed to reassemble image");
                     }
                 } else {
                     // Legacy: plain text (for backward compatibility)
-                    log.log("[MULTICAST] Receiver (" + name + ") received: " + message);
+                    log.debug(() -> "[MULTICAST] Receiver (" + name + ") received: " + message);
                     if (listener != null) {
                         try {
                             listener.onMessage(message);
                         } catch (Exception e) {
-                            log.log("[MULTICAST] Listener error: " + e.getMessage());
+                            log.warn("[MULTICAST] Listener error: " + e.getMessage());
                         }
                     }
                 }
             } catch (Exception e) {
                 if (running.get()) {
-                    log.log("[MULTICAST] Receiver (" + name + ") error: " + e.getMessage());
+                    log.warn("[MULTICAST] Receiver (" + name + ") error: " + e.getMessage());
                 }
             }
         }
@@ -1,17 +1,38 @@
 package tcp;
 
+import core.audio.PcmBuffer;
 import core.model.BinaryKind;
+import core.model.HistoryEntry;
+import core.model.SearchQuery;
+import core.net.BinarySink;
 import core.net.ChatClientApi;
 import core.net.ChatClientListener;
+import core.net.CompressionStats;
+import core.net.Keepalive;
 import core.net.LogSink;
+import core.store.BlobStore;
 import core.util.IOUtil;
+import core.util.Lz;
 
 import javax.sound.sampled.AudioFormat;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 /**
  * UI-free TCP client core.
@@ -19,21 +40,85 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * - HELLO handshake
  * - user list updates
  * - text
- * - binary (file/image)
+ * - binary (file/image) as sliced BIN_OPEN/BIN_SLICE/BIN_CLOSE streams (transferTo per slice)
+ * - all writes go through a {@link TcpMux}: voice before text before bulk data, so a file in
+ *   flight delays a voice chunk or a message by at most one slice
+ * - large binaries go through resumable XFER_* uploads (chunked, CRC32 per chunk, SHA-256 per file);
+ *   if the connection drops, sendBinary reconnects and continues from the server's offset
+ * - very large uploads are striped over auxiliary data connections (DATA_HELLO + session token),
+ *   so text and voice on the primary socket are not stuck behind the file
  * - voice message (PCM) sent as: VOICE_START + many VOICE_CHUNK + VOICE_END
+ * - optional compression offered with CAPS after HELLO ({@link TcpCodec}): deflate for headers,
+ *   LZ blocks for file slices and upload chunks; already-compressed files are sent as-is
+ * - content-addressed dedup (CAPS "blob"): an upload the server already stores is skipped after a
+ *   possession proof, and received blobs are kept in a local cache so a file offered again
+ *   (BLOB_OFFER) is answered with BLOB_HAVE instead of being downloaded twice
+ * - image previews (CAPS "thumb"): the server may send a THUMB instead of an image; the original
+ *   is requested with FETCH when the listener asks for it
+ * - rooms: JOIN / PART, member lists in ROOM frames
+ * - history and search: HISTORY / SEARCH requests, answered with HIST / FOUND frames collected
+ *   until HISTORY_END / SEARCH_END
+ * - keepalive ({@link Keepalive}): PING:<interval> every interval; a server silent for MISSES
+ *   intervals (a half-open connection) is dropped like a lost connection
+ * - session resumption (CAPS "resume"): a lost connection is reopened with RESUME, backing off
+ *   from RESUME_FIRST_BACKOFF_MS to RESUME_MAX_BACKOFF_MS for up to RESUME_WINDOW_MS, and the chat
+ *   frames missed meanwhile arrive as if nothing happened; the user list does not change. close()
+ *   says BYE so the server ends the session at once
+ * - front doors ({@link TcpFrontDoor}): REDIRECT:<host>:<port> right after HELLO moves the session
+ *   (and its data connections) to that server; a later connect() starts at the front door again
  */
 public final class TcpClientCore implements ChatClientApi {
+    static final int XFER_CHUNK_SIZE = 256 * 1024;
+    // chunks on the primary connection are smaller so they interleave with voice and text
+    static final int XFER_PRIMARY_CHUNK_SIZE = 64 * 1024;
+    static final int VOICE_BATCH = 64; // voice chunks (1 KB each) queued ahead of the writer
+    static final long STRIPE_THRESHOLD = 16L * 1024 * 1024;
+    private static final int XFER_MAX_ATTEMPTS = 5;
+    private static final long XFER_REPLY_TIMEOUT_MS = 30_000;
+    static final long BLOB_CACHE_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_THUMB_BYTES = 1024 * 1024;
+    static final long RESUME_WINDOW_MS = 60_000;
+    static final long RESUME_FIRST_BACKOFF_MS = 250;
+    static final long RESUME_MAX_BACKOFF_MS = 5000;
+    private static final int RESUME_TIMEOUT_MS = 5000;
+
     private final String host;
     private final int port;
+    private volatile InetSocketAddress server; // where the session lives (differs after a REDIRECT)
     private final String name;
     private final ChatClientListener listener;
     private final LogSink log;
 
+    private SocketChannel channel;
     private Socket socket;
+    private TcpWire.Input rawIn;
     private DataInputStream in;
     private DataOutputStream out;
     private Thread rxThread;
+    private volatile TcpMux mux;
     private final AtomicBoolean connected = new AtomicBoolean(false);
+    // one voice message at a time: chunks of two messages to the same target would mix
+    private final Object voiceLock = new Object();
+
+    // transfer id -> replies (XFER_RESUME / XFER_DONE / XFER_FAIL) for an upload in progress
+    private final Map<String, BlockingQueue<String>> xferReplies = new ConcurrentHashMap<>();
+    // HISTORY / SEARCH request id -> what was asked and the messages received so far
+    private final Map<Long, HistoryRequest> historyRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextHistoryRequest = new AtomicLong();
+    private volatile boolean kicked;
+    private volatile String sessionToken; // from SESSION:<token>, authenticates data connections
+    private volatile int uploadStreams = 4;
+    private volatile TcpCodec codec;
+    private final CompressionStats compression = new CompressionStats();
+    private volatile boolean compressionEnabled = true;
+    private volatile long keepaliveMs = Keepalive.intervalFromProperties(); // 0: off
+    private volatile boolean resumable; // the server accepted "resume" for this session
+    private volatile long received;     // chat frames received (see TcpReplayBuffer), for RESUME
+    private volatile boolean resuming;  // the connection is lost and being resumed
+    private volatile boolean leaving;   // BYE sent
+    private final Object stateLock = new Object();
+    // survives reconnects; files go away with the JVM
+    private final BlobStore blobCache = new BlobStore("chatwithfriend-cache-", BLOB_CACHE_BYTES);
 
     public TcpClientCore(String host, int port, String name, ChatClientListener listener, LogSink log) {
         this.host = host;
@@ -44,114 +129,441 @@ public final class TcpClientCore implements ChatClientApi {
     }
 
     @Override public void connect() throws IOException {
+        connect(new InetSocketAddress(host, port));
+    }
+
+    private void connect(InetSocketAddress address) throws IOException {
         if (connected.get()) return;
 
-        socket = new Socket(host, port);
-        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        kicked = false;
+        sessionToken = null;
+        resumable = false;
+        leaving = false;
+        received = 0;
+        server = address;
+        SocketChannel ch = SocketChannel.open(address);
+        try {
+            open(ch);
+            TcpWire.sendHeader(out, "HELLO:" + name);
+            start();
+        } catch (IOException e) {
+            IOUtil.closeQuietly(ch);
+            throw e;
+        }
+        log.log("[TCP] Connected as " + name + " to " + address.getHostString() + ":" + address.getPort());
+    }
+
+    private void open(SocketChannel ch) throws IOException {
+        channel = ch;
+        socket = ch.socket();
+        socket.setTcpNoDelay(true);
+        rawIn = new TcpWire.Input(socket.getInputStream());
+        in = new DataInputStream(rawIn);
         out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
 
-        TcpWire.sendHeader(out, "HELLO:" + name);
+    /** After HELLO or RESUME: offer CAPS, start the keepalive, the mux and the reader. */
+    private void start() throws IOException {
+        TcpWire.sendHeader(out, "CAPS:" + (compressionEnabled ? TcpCodec.SUPPORTED + "," : "")
+                + TcpServerCore.CAP_BLOB + "," + TcpServerCore.CAP_THUMB + "," + TcpServerCore.CAP_RESUME);
+        long interval = keepaliveMs;
+        if (interval > 0) TcpWire.sendHeader(out, "PING:" + interval);
+        socket.setSoTimeout(interval > 0 ? (int) Keepalive.timeout(interval) : 0); // the server PONGs every interval
 
+        SocketChannel ch = channel;
+        TcpCodec c = new TcpCodec(compression);
+        codec = c;
+        // a failed write closes the socket; the reader then notices and cleans up
+        TcpMux m = new TcpMux(out, ch, c, name, () -> IOUtil.closeQuietly(ch));
+        mux = m;
         connected.set(true);
-        rxThread = new Thread(this::rxLoop, "TcpClientRx-" + name);
+        TcpWire.Input raw = rawIn;
+        DataInputStream din = in;
+        rxThread = new Thread(() -> rxLoop(ch, raw, din, c, m), "TcpClientRx-" + name);
         rxThread.setDaemon(true);
         rxThread.start();
-        log.log("[TCP] Connected as " + name + " to " + host + ":" + port);
+        if (interval > 0) {
+            Thread k = new Thread(() -> keepaliveLoop(m, interval), "TcpKeepalive-" + name);
+            k.setDaemon(true);
+            k.start();
+        }
+    }
+
+    /** The connection is lost but the session may go on: keep trying to RESUME it in the background. */
+    private void startResume() {
+        resuming = true;
+        closeConnection();
+        log.warn("[TCP] Connection lost, resuming");
+        Thread t = new Thread(this::resumeLoop, "TcpResume-" + name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void resumeLoop() {
+        long until = System.currentTimeMillis() + RESUME_WINDOW_MS;
+        long backoff = RESUME_FIRST_BACKOFF_MS;
+        while (resuming) {
+            try {
+                if (resumeOnce()) return;
+            } catch (IOException e) {
+                log.debug(() -> "[TCP] Resume failed: " + e.getMessage());
+                closeConnection();
+            }
+            if (System.currentTimeMillis() + backoff > until) break;
+            sleepQuietly(backoff);
+            backoff = Math.min(backoff * 2, RESUME_MAX_BACKOFF_MS);
+        }
+        if (!resuming) return;
+        log.warn("[TCP] Could not resume the session");
+        drop();
+        listener.onText("SERVER", name, "Connection lost");
+    }
+
+    /** One RESUME; true when the session goes on (resumed, or started over because the server no longer had it). */
+    private boolean resumeOnce() throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        try {
+            ch.socket().connect(server, RESUME_TIMEOUT_MS);
+            open(ch);
+            TcpWire.sendHeader(out, "RESUME:" + name + ":" + sessionToken + ":" + received);
+            socket.setSoTimeout(RESUME_TIMEOUT_MS);
+            String reply = in.readUTF();
+            synchronized (stateLock) {
+                if (!resuming) {
+                    IOUtil.closeQuietly(ch); // closed meanwhile
+                    return true;
+                }
+                if (reply.startsWith("RESUMED:")) {
+                    long from = Long.parseLong(reply.substring("RESUMED:".length()));
+                    received = from;
+                    start();
+                    resuming = false;
+                    log.log("[TCP] Session resumed as " + name);
+                    return true;
+                }
+                // RESUME_FAIL:<reason> - the session has ended, start a new one
+                log.warn("[TCP] Session not resumed (" + reply + "), connecting again");
+                closeConnection();
+                connected.set(false);
+                resuming = false;
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtil.closeQuietly(ch);
+            throw (e instanceof IOException io) ? io : new IOException(e.getMessage(), e);
+        }
+        try {
+            connect();
+        } catch (IOException e) {
+            resuming = true; // keep trying, with fresh HELLOs from now on (the token is gone)
+            throw e;
+        }
+        listener.onText("SERVER", name, "Reconnected (the previous session had ended)");
+        return true;
+    }
+
+    /** Wait for a resume in progress (the reader notices a lost connection a moment after a writer does). */
+    private void awaitResume() {
+        long until = System.currentTimeMillis() + RESUME_WINDOW_MS;
+        sleepQuietly(100);
+        while (resuming && System.currentTimeMillis() < until) sleepQuietly(50);
     }
 
     @Override public boolean isConnected() { return connected.get(); }
 
+    /** Keepalive interval for the next connect, in ms (0 turns keepalive off). */
+    public void setKeepalive(long intervalMs) {
+        this.keepaliveMs = (intervalMs <= 0) ? 0 : Keepalive.clamp(intervalMs);
+    }
+
+    /** PINGs on the TEXT lane while m is the current connection. */
+    private void keepaliveLoop(TcpMux m, long interval) {
+        while (connected.get() && mux == m) {
+            try {
+                Thread.sleep(interval);
+                if (!connected.get() || mux != m) return;
+                m.send(TcpMux.Priority.TEXT, "PING:" + interval);
+            } catch (InterruptedException | IOException e) {
+                return;
+            }
+        }
+    }
+
+    /** Number of parallel data connections for uploads above STRIPE_THRESHOLD (1 disables striping). */
+    public void setUploadStreams(int streams) {
+        this.uploadStreams = Math.max(1, streams);
+    }
+
+    /** Offer compression on the next connect (on by default). */
+    public void setCompression(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /** Compression ratio and CPU time for this client (both directions, across reconnects). */
+    public CompressionStats compressionStats() {
+        return compression;
+    }
+
+    /** Disk budget for received files kept to skip repeated downloads (0 keeps nothing). */
+    public void setBlobCacheBytes(long bytes) {
+        blobCache.setCapacity(bytes);
+    }
+
     @Override public String name() { return name; }
 
-    private void rxLoop() {
+    /** Works on the streams it was started with, so a reconnect never races an exiting loop. */
+    private void rxLoop(SocketChannel channel, TcpWire.Input rawIn, DataInputStream in, TcpCodec codec, TcpMux mux) {
+        byte[] rxBuf = new byte[32 * 1024];
+        TcpDemux demux = new TcpDemux(codec, TcpMux.SLICE_SIZE);
+        TcpHeader h = new TcpHeader();
         try {
             while (connected.get()) {
-                String header = in.readUTF();
-
-                if (header.startsWith("KICK:")) {
-                    // KICK:SERVER:<to>:<reason>
-                    String[] p = header.split(":", 4);
-                    String reason = (p.length == 4) ? p[3] : "Kicked by server";
-                    listener.onText("SERVER", name, "Kicked: " + reason);
-                    close();
-                    return;
-                }
+                codec.readHeader(in, h);
+                TcpHeader.Type type = h.type();
 
-                if (header.startsWith("USER_LIST:")) {
-                    String list = header.substring("USER_LIST:".length());
-                    List<String> users = list.isEmpty() ? List.of() : Arrays.asList(list.split(","));
-                    listener.onUserList(users);
-                    continue;
-                }
+                if (type == TcpHeader.Type.PONG) continue;
+                if (resumable && TcpReplayBuffer.counts(type)) received++;
 
-                if (header.startsWith("TEXT:")) {
-                    // TEXT:<from>:<to>:<message>
-                    String[] p = header.split(":", 4);
-                    if (p.length == 4) listener.onText(p[1], p[2], p[3]);
-                    continue;
-                }
+                switch (type) {
+                    case KICK -> {
+                        // KICK:SERVER:<to>:<reason>
+                        String reason = (h.fields() == 4) ? h.field(3) : "Kicked by server";
+                        kicked = true;
+                        listener.onText("SERVER", name, "Kicked: " + reason);
+                        drop();
+                        return;
+                    }
 
-                if (header.startsWith("BIN:")) {
-                    // BIN:<kind>:<from>:<to>:<filename>:<size>
-                    String[] p = header.split(":", 6);
-                    if (p.length != 6) continue;
+                    case REDIRECT -> {
+                        // REDIRECT:<host>:<port> from a front door: say HELLO there instead
+                        String header = h.string();
+                        int i = header.lastIndexOf(':');
+                        InetSocketAddress to = new InetSocketAddress(header.substring("REDIRECT:".length(), i),
+                                Integer.parseInt(header.substring(i + 1)));
+                        drop();
+                        connect(to);
+                        return;
+                    }
 
-                    BinaryKind kind = BinaryKind.valueOf(p[1]);
-                    String from = p[2];
-                    String to = p[3];
-                    String fileName = p[4];
-                    long size = Long.parseLong(p[5]);
+                    case USER_LIST -> {
+                        String list = h.string().substring("USER_LIST:".length());
+                        List<String> users = list.isEmpty() ? List.of() : Arrays.asList(list.split(","));
+                        listener.onUserList(users);
+                    }
 
-                    byte[] bytes = TcpWire.readBytes(in, size);
-                    listener.onBinary(kind, from, to, fileName, bytes);
-                    continue;
-                }
+                    case ROOM -> {
+                        // ROOM:<#room>:<members>
+                        if (h.fields() != 3) continue;
+                        String members = h.field(2);
+                        listener.onRoom(h.field(1), members.isEmpty() ? List.of() : Arrays.asList(members.split(",")));
+                    }
 
-                if (header.startsWith("VOICE_START:")) {
-                    // VOICE_START:<from>:<to>:<sr>:<ch>:<bits>:<bigEndian>:<signed>
-                    String[] p = header.split(":", 8);
-                    if (p.length != 8) continue;
-                    String from = p[1];
-                    String to = p[2];
-                    float sr = Float.parseFloat(p[3]);
-                    int ch = Integer.parseInt(p[4]);
-                    int bits = Integer.parseInt(p[5]);
-                    boolean bigEndian = Boolean.parseBoolean(p[6]);
-                    boolean signed = Boolean.parseBoolean(p[7]);
-                    AudioFormat fmt = new AudioFormat(sr, bits, ch, signed, bigEndian);
-                    listener.onVoiceStart(from, to, fmt);
-                    continue;
-                }
+                    case TEXT -> {
+                        // TEXT:<from>:<to>:<message>
+                        if (h.fields() == 4) listener.onText(h.field(1), h.field(2), h.field(3));
+                    }
 
-                if (header.startsWith("VOICE_CHUNK:")) {
-                    // VOICE_CHUNK:<from>:<to>:<size>
-                    String[] p = header.split(":", 4);
-                    if (p.length != 4) continue;
-                    String from = p[1];
-                    String to = p[2];
-                    int size = Integer.parseInt(p[3]);
-                    byte[] bytes = TcpWire.readBytes(in, size);
-                    listener.onVoiceChunk(from, to, bytes);
-                    continue;
-                }
+                    case HIST, FOUND -> {
+                        // HIST|FOUND:<reqId>:<id>:<time>:<from>:<to>:<message>
+                        HistoryRequest r = (h.fields() == 7) ? historyRequests.get(h.longField(1)) : null;
+                        if (r != null) r.page.add(new HistoryEntry(h.longField(2), h.longField(3), h.field(4), h.field(5), h.field(6)));
+                    }
+
+                    case HISTORY_END -> {
+                        // HISTORY_END:<reqId>:<nextBefore>
+                        HistoryRequest r = (h.fields() == 3) ? historyRequests.remove(h.longField(1)) : null;
+                        if (r != null) listener.onHistory(r.with, r.page, h.longField(2));
+                    }
+
+                    case SEARCH_END -> {
+                        // SEARCH_END:<reqId>:<nextBefore>
+                        HistoryRequest r = (h.fields() == 3) ? historyRequests.remove(h.longField(1)) : null;
+                        if (r != null) listener.onSearchResults(r.query, r.page, h.longField(2));
+                    }
+
+                    case CAPS -> {
+                        // what the server accepted out of our offer
+                        String accepted = h.string().substring("CAPS:".length());
+                        codec.accept(accepted);
+                        if (!resumable && Arrays.asList(accepted.split(",")).contains(TcpServerCore.CAP_RESUME)) {
+                            received = 0; // the server counts chat frames from this reply on
+                            resumable = true;
+                        }
+                    }
+
+                    case SESSION -> sessionToken = h.string().substring("SESSION:".length());
+
+                    case XFER -> {
+                        // XFER_RESUME:<id>:<offset> | XFER_DONE:<id> | XFER_FAIL:<id>:<reason>
+                        BlockingQueue<String> q = (h.fields() >= 2) ? xferReplies.get(h.field(1)) : null;
+                        if (q != null) q.offer(h.string());
+                    }
+
+                    case BIN_SLICE -> {
+                        // BIN_SLICE:<sid>:<len>[:<zlen>]
+                        if (h.fields() < 3) throw new IOException("Bad BIN_SLICE header");
+                        demux.onSlice(h.intField(1), h.intField(2), (h.fields() == 4) ? h.intField(3) : -1, rawIn, in, channel);
+                    }
+
+                    case BIN_OPEN, BLOB_OPEN -> demux.onOpen(h.string(), (sha, kind, from, to, fileName, size) -> (sha == null)
+                            ? listener.onBinaryBegin(kind, from, to, fileName, size)
+                            : cacheSink(sha, kind, from, to, fileName, size));
+
+                    case THUMB -> {
+                        // THUMB:<sha256>:<kind>:<from>:<to>:<filename>:<size>:<len> + JPEG
+                        String header = h.string();
+                        int len = Integer.parseInt(header.substring(header.lastIndexOf(':') + 1));
+                        if (len < 0 || len > MAX_THUMB_BYTES) throw new IOException("Bad THUMB length: " + len);
+                        byte[] jpeg = TcpWire.readBytes(in, len);
+                        String[] p = header.split(":", 8);
+                        if (p.length != 8) continue;
+                        String sha = p[1];
+                        listener.onThumbnail(p[3], p[4], p[5], Long.parseLong(p[6]), jpeg, () -> fetch(mux, sha, p[5]));
+                    }
+
+                    case FETCH_FAIL -> {
+                        // FETCH_FAIL:<sha256>:<reason>
+                        listener.onText("SERVER", name, "Image not available: " + (h.fields() == 3 ? h.field(2) : "unknown"));
+                    }
+
+                    case BLOB_OFFER -> {
+                        // BLOB_OFFER:<oid>:<sha256>:<kind>:<from>:<to>:<filename>:<size>
+                        if (h.fields() != 8) continue;
+                        String oid = h.field(1);
+                        String fileName = h.field(6);
+                        long size = h.longField(7);
+                        BlobStore.Blob cached = blobCache.acquire(h.field(2));
+                        if (cached == null || cached.size() != size) {
+                            blobCache.release(cached);
+                            mux.send(TcpMux.Priority.TEXT, "BLOB_WANT:" + oid);
+                            continue;
+                        }
+                        try {
+                            mux.send(TcpMux.Priority.TEXT, "BLOB_HAVE:" + oid);
+                            TcpWire.feedFile(cached.path(), size, listener.onBinaryBegin(BinaryKind.valueOf(h.field(3)), h.field(4), h.field(5), fileName, size));
+                        } catch (IOException e) {
+                            log.warn("[TCP] Cached " + fileName + " could not be delivered: " + e.getMessage());
+                        } finally {
+                            blobCache.release(cached);
+                        }
+                    }
+
+                    case BIN_CLOSE -> {
+                        // BIN_CLOSE:<sid>
+                        int sid;
+                        try { sid = h.intField(1); } catch (Exception e) { continue; }
+                        demux.onClose(sid);
+                    }
+
+                    case BIN -> {
+                        // BIN:<kind>:<from>:<to>:<filename>:<size> (unsliced, from older servers)
+                        if (h.fields() != 6) continue;
+
+                        BinaryKind kind = BinaryKind.valueOf(h.field(1));
+                        String from = h.field(2);
+                        String to = h.field(3);
+                        String fileName = h.field(4);
+                        long size = h.longField(5);
+
+                        BinarySink sink = listener.onBinaryBegin(kind, from, to, fileName, size);
+                        FileChannel target = sink.target();
+                        if (target != null) receiveToFile(rawIn, in, channel, sink, target, size);
+                        else TcpWire.streamBytes(in, size, sink, rxBuf);
+                    }
 
-                if (header.startsWith("VOICE_END:")) {
-                    // VOICE_END:<from>:<to>
-                    String[] p = header.split(":", 3);
-                    if (p.length == 3) listener.onVoiceEnd(p[1], p[2]);
+                    case VOICE_START -> {
+                        // VOICE_START:<from>:<to>:<sr>:<ch>:<bits>:<bigEndian>:<signed>
+                        if (h.fields() != 8) continue;
+                        float sr = Float.parseFloat(h.field(3));
+                        int ch = h.intField(4);
+                        int bits = h.intField(5);
+                        boolean bigEndian = Boolean.parseBoolean(h.field(6));
+                        boolean signed = Boolean.parseBoolean(h.field(7));
+                        AudioFormat fmt = new AudioFormat(sr, bits, ch, signed, bigEndian);
+                        listener.onVoiceStart(h.field(1), h.field(2), fmt);
+                    }
+
+                    case VOICE_CHUNK -> {
+                        // VOICE_CHUNK:<from>:<to>:<size>
+                        if (h.fields() != 4) continue;
+                        String from = h.field(1);
+                        String to = h.field(2);
+                        int size = h.intField(3);
+                        byte[] bytes = TcpWire.readBytes(in, size);
+                        listener.onVoiceChunk(from, to, bytes);
+                    }
+
+                    case VOICE_END -> {
+                        // VOICE_END:<from>:<to>
+                        if (h.fields() == 3) listener.onVoiceEnd(h.field(1), h.field(2));
+                    }
+
+                    default -> {} // ignore unknown frames
                 }
             }
+        } catch (SocketTimeoutException e) {
+            if (connected.get() && this.channel == channel) {
+                log.warn("[TCP] Server not answering, connection dropped");
+                if (!resumable) listener.onText("SERVER", name, "Connection lost (server not answering)");
+            }
         } catch (Exception e) {
-            if (connected.get()) log.log("[TCP] RX error: " + e.getMessage());
+            if (connected.get() && !leaving) log.warn("[TCP] RX error: " + e.getMessage());
         } finally {
-            close();
+            demux.abortAll("Connection lost");
+            synchronized (stateLock) {
+                if (this.channel == channel) {
+                    if (resumable && connected.get() && !kicked && sessionToken != null) startResume();
+                    else drop();
+                }
+            }
+        }
+    }
+
+    /** Ask for the original of a THUMB; it arrives as a normal binary on the same connection. */
+    private void fetch(TcpMux m, String sha, String fileName) {
+        try {
+            m.send(TcpMux.Priority.TEXT, "FETCH:" + sha);
+        } catch (IOException e) {
+            listener.onText("SERVER", name, "Could not fetch " + fileName + ": " + e.getMessage());
         }
     }
 
     @Override public void sendText(String to, String message) throws IOException {
-        ensureConnected();
         String safe = message.replace("\n", " ").trim();
-        TcpWire.sendHeader(out, "TEXT:" + name + ":" + to + ":" + safe);
+        mux().send(TcpMux.Priority.TEXT, "TEXT:" + name + ":" + to + ":" + safe);
+    }
+
+    @Override public void joinRoom(String room) throws IOException {
+        mux().send(TcpMux.Priority.TEXT, "JOIN:" + name + ":" + room.trim());
+    }
+
+    @Override public void partRoom(String room) throws IOException {
+        mux().send(TcpMux.Priority.TEXT, "PART:" + name + ":" + room.trim());
+    }
+
+    @Override public void requestHistory(String with, long beforeId, int limit) throws IOException {
+        TcpMux m = mux();
+        long id = nextHistoryRequest.incrementAndGet();
+        String w = (with == null) ? "" : with.trim();
+        historyRequests.put(id, new HistoryRequest(w, null));
+        try {
+            m.send(TcpMux.Priority.TEXT, "HISTORY:" + id + ":" + w + ":" + beforeId + ":" + limit);
+        } catch (IOException e) {
+            historyRequests.remove(id);
+            throw e;
+        }
+    }
+
+    @Override public void search(SearchQuery q) throws IOException {
+        TcpMux m = mux();
+        long id = nextHistoryRequest.incrementAndGet();
+        historyRequests.put(id, new HistoryRequest(q.with, q));
+        try {
+            m.send(TcpMux.Priority.TEXT, "SEARCH:" + id + ":" + q.with + ":" + q.from + ":" + q.since + ":" + q.until
+                    + ":" + q.beforeId + ":" + q.limit + ":" + q.text.replace("\n", " "));
+        } catch (IOException e) {
+            historyRequests.remove(id);
+            throw e;
+        }
     }
 
     @Override public void sendBinary(BinaryKind kind, String to, File file) throws IOException {
@@ -159,46 +571,360 @@ public final class TcpClientCore implements ChatClientApi {
         if (file == null || !file.exists()) throw new FileNotFoundException("File not found");
         long size = file.length();
         String fileName = file.getName();
-        try (InputStream is = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
-            TcpWire.sendBytes(out, "BIN:" + kind + ":" + name + ":" + to + ":" + fileName + ":" + size, is, size);
+        if (size > TcpServerCore.SPOOL_THRESHOLD) {
+            uploadResumable(kind, to, file.toPath(), fileName, size);
+            return;
         }
+        // the mux owns the channel from here and closes it when the stream is done
+        FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        mux().stream(kind + ":" + name + ":" + to + ":" + fileName + ":" + size, fc, size);
     }
 
-    @Override public void sendVoice(String to, AudioFormat format, byte[] pcmBytes) throws IOException {
-        ensureConnected();
-        if (pcmBytes == null || pcmBytes.length == 0) return;
+    @Override public void sendVoice(String to, AudioFormat format, PcmBuffer pcm) throws IOException {
+        TcpMux m = mux();
+        if (pcm == null || pcm.isEmpty()) return;
 
         String target = (to == null || to.isBlank()) ? "*" : to.trim();
 
+        synchronized (voiceLock) {
+            sendVoiceFrames(m, target, format, pcm);
+        }
+    }
+
+    /** Chunks reference the PCM segments, so this returns only once the last frame is written. */
+    private void sendVoiceFrames(TcpMux m, String target, AudioFormat format, PcmBuffer pcm) throws IOException {
         // announce
-        TcpWire.sendHeader(out, "VOICE_START:" + name + ":" + target + ":" +
+        m.send(TcpMux.Priority.VOICE, "VOICE_START:" + name + ":" + target + ":" +
                 format.getSampleRate() + ":" + format.getChannels() + ":" + format.getSampleSizeInBits() + ":" +
                 format.isBigEndian() + ":" + format.getEncoding().toString().toLowerCase().contains("signed"));
 
-        // chunks
+        // chunks; every VOICE_BATCH of them, wait for the previous batch to go out, so a long
+        // recording stays far below the mux's cap on queued voice (past it, chunks are dropped)
         int chunkSize = 1024;
-        int off = 0;
-        while (off < pcmBytes.length) {
-            int len = Math.min(chunkSize, pcmBytes.length - off);
-            out.writeUTF("VOICE_CHUNK:" + name + ":" + target + ":" + len);
-            out.write(pcmBytes, off, len);
-            out.flush();
-            off += len;
+        AtomicReference<CompletableFuture<Void>> batch = new AtomicReference<>();
+        AtomicLong sent = new AtomicLong();
+        pcm.forEachSlice(chunkSize, (b, off, len) -> {
+            CompletableFuture<Void> f = m.send(TcpMux.Priority.VOICE, "VOICE_CHUNK:" + name + ":" + target + ":" + len, ByteBuffer.wrap(b, off, len));
+            if (sent.incrementAndGet() % VOICE_BATCH == 0) {
+                CompletableFuture<Void> previous = batch.getAndSet(f);
+                if (previous != null) TcpMux.await(previous);
+            }
+        });
+
+        // end (same queue, so it completes after every chunk)
+        TcpMux.await(m.send(TcpMux.Priority.VOICE, "VOICE_END:" + name + ":" + target));
+    }
+
+    /**
+     * Resumable upload: OFFER -> server answers with the offset it already has -> chunks from there -> END.
+     * Connection errors reconnect (with backoff) and resume; a rejected transfer (XFER_FAIL) is not retried.
+     */
+    private void uploadResumable(BinaryKind kind, String to, Path path, String fileName, long size) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            String sha = sha256Hex(fc, size);
+            String id = transferId(to, fileName, size, sha);
+            BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+            xferReplies.put(id, replies);
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        if (resuming) awaitResume();
+                        if (!connected.get()) {
+                            if (kicked) throw new IOException("Not connected");
+                            connect();
+                        }
+                        String reply = request(replies, id, "XFER_OFFER:" + id + ":" + kind + ":" + name + ":" + to + ":" +
+                                size + ":" + sha + ":" + fileName);
+                        while (true) {
+                            String[] p = reply.split(":", 3);
+                            if (reply.startsWith("XFER_DONE:")) return;
+                            if (reply.startsWith("XFER_PROVE:")) {
+                                // the server has this content already: prove we have it too instead of uploading
+                                reply = request(replies, id, "XFER_PROOF:" + id + ":" + TcpUploads.proof(fc, p[2]));
+                                continue;
+                            }
+                            if (reply.startsWith("XFER_FAIL:")) throw new TransferRejected(p.length == 3 ? p[2] : "rejected");
+                            long offset = Long.parseLong(p[2]);
+                            if (offset > 0 && attempt > 1) log.debug(() -> "[TCP] Resuming " + fileName + " at " + offset + "/" + size);
+                            if (size - offset >= STRIPE_THRESHOLD && uploadStreams > 1 && sessionToken != null) {
+                                sendChunksStriped(fc, id, offset, size);
+                            } else {
+                                sendChunks(fc, id, offset, size);
+                            }
+                            reply = request(replies, id, "XFER_END:" + id);
+                        }
+                    } catch (TransferRejected e) {
+                        throw new IOException("Upload rejected: " + e.getMessage());
+                    } catch (IOException e) {
+                        if (kicked || attempt >= XFER_MAX_ATTEMPTS) throw e;
+                        log.warn("[TCP] Upload of " + fileName + " interrupted (" + e.getMessage() + "), retrying");
+                        if (resumable) awaitResume(); // a lost connection resumes; otherwise retry on this one
+                        else drop();
+                        replies.clear();
+                        sleepQuietly(250L << Math.min(attempt, 5));
+                    }
+                }
+            } finally {
+                xferReplies.remove(id);
+            }
         }
+    }
 
-        // end
-        TcpWire.sendHeader(out, "VOICE_END:" + name + ":" + target);
+    private void sendChunks(FileChannel fc, String id, long offset, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        ChunkPacker packer = new ChunkPacker(codec, compressible(fc, size));
+        while (offset < size) {
+            int len = (int) Math.min(XFER_PRIMARY_CHUNK_SIZE, size - offset);
+            MappedByteBuffer body = fc.map(FileChannel.MapMode.READ_ONLY, offset, len);
+            crc.reset();
+            crc.update(body.duplicate());
+            packer.pack(id, offset, body, crc.getValue());
+            // queued as BULK; the mux bounds how far this runs ahead of the socket
+            mux().send(TcpMux.Priority.BULK, packer.header, packer.body);
+            offset += len;
+        }
+    }
+
+    /**
+     * Stripe chunks over uploadStreams auxiliary connections. Each stream pulls the next offset from a
+     * shared counter, and finishes with XFER_FLUSH so the server has applied everything before XFER_END.
+     */
+    private void sendChunksStriped(FileChannel fc, String id, long offset, long size) throws IOException {
+        int streams = uploadStreams;
+        String token = sessionToken;
+        boolean compressible = compressible(fc, size);
+        AtomicLong next = new AtomicLong(offset);
+        ExecutorService pool = Executors.newFixedThreadPool(streams, r -> {
+            Thread t = new Thread(r, "TcpUpload-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> stripes = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                stripes.add(pool.submit(() -> { sendStripe(fc, id, next, size, token, compressible); return null; }));
+            }
+            for (Future<?> f : stripes) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) throw io;
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void sendStripe(FileChannel fc, String id, AtomicLong next, long size, String token, boolean compressible) throws IOException {
+        try (SocketChannel ch = SocketChannel.open(server)) {
+            Socket s = ch.socket();
+            DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream i = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            TcpWire.sendHeader(o, "DATA_HELLO:" + name + ":" + token);
+
+            CRC32 crc = new CRC32();
+            ChunkPacker packer = new ChunkPacker(codec, compressible);
+            long off;
+            while ((off = next.getAndAdd(XFER_CHUNK_SIZE)) < size) {
+                int len = (int) Math.min(XFER_CHUNK_SIZE, size - off);
+                MappedByteBuffer body = fc.map(FileChannel.MapMode.READ_ONLY, off, len);
+                crc.reset();
+                crc.update(body.duplicate());
+                packer.pack(id, off, body, crc.getValue());
+                TcpWire.sendBuffer(o, ch, packer.header, packer.body);
+            }
+
+            TcpWire.sendHeader(o, "XFER_FLUSH:" + id);
+            if (!("XFER_FLUSHED:" + id).equals(i.readUTF())) throw new IOException("Data connection out of sync");
+        }
+    }
+
+    private String request(BlockingQueue<String> replies, String id, String header) throws IOException {
+        // BULK like the chunks, so XFER_END never overtakes them
+        mux().send(TcpMux.Priority.BULK, header);
+        try {
+            String reply = replies.poll(XFER_REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (reply == null) throw new IOException("No reply for transfer " + id);
+            return reply;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+
+    private String transferId(String to, String fileName, long size, String sha) {
+        MessageDigest md = TcpUploads.sha256();
+        md.update((name + "|" + to + "|" + fileName + "|" + size + "|" + sha).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(md.digest(), 0, 16);
+    }
+
+    private static String sha256Hex(FileChannel fc, long size) throws IOException {
+        MessageDigest md = TcpUploads.sha256();
+        long window = 8L * 1024 * 1024;
+        for (long pos = 0; pos < size; pos += window) {
+            md.update(fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(window, size - pos)));
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static void sleepQuietly(long ms) {
+        try { Thread.sleep(ms); } catch (InterruptedException ignored) { Thread.currentThread().interrupt(); }
+    }
+
+    /** False for files that start like JPEG/PNG/ZIP/...: compressing them again only costs CPU. */
+    private static boolean compressible(FileChannel fc, long size) throws IOException {
+        if (size == 0) return false;
+        return !Lz.looksCompressed(fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 64)));
+    }
+
+    /**
+     * Builds XFER_CHUNK frames, LZ-compressed when negotiated and worth it.
+     * Gives up on a file after a run of chunks that did not shrink. One per sending thread.
+     */
+    private static final class ChunkPacker {
+        private final TcpCodec codec;
+        private final byte[] plain;
+        private boolean tryLz;
+        private int misses;
+
+        String header;
+        ByteBuffer body;
+
+        ChunkPacker(TcpCodec codec, boolean compressible) {
+            this.codec = codec;
+            this.tryLz = compressible && codec != null && codec.lz();
+            this.plain = tryLz ? new byte[XFER_CHUNK_SIZE] : null;
+        }
+
+        void pack(String id, long offset, MappedByteBuffer region, long crc) {
+            int len = region.remaining();
+            String h = "XFER_CHUNK:" + id + ":" + offset + ":" + len + ":" + crc;
+            if (tryLz) {
+                region.duplicate().get(plain, 0, len);
+                byte[] packed = new byte[Lz.maxCompressedLength(len)]; // queued by the mux, so not reused
+                int zlen = codec.compress(plain, 0, len, packed);
+                if (zlen >= 0) {
+                    misses = 0;
+                    header = h + ":" + zlen;
+                    body = ByteBuffer.wrap(packed, 0, zlen);
+                    return;
+                }
+                if (++misses >= 8) tryLz = false;
+            } else if (codec != null && codec.lz()) {
+                codec.stats().skipped(len, 0);
+            }
+            header = h;
+            body = region;
+        }
+    }
+
+    private static final class HistoryRequest {
+        final String with;
+        final SearchQuery query; // null for HISTORY
+        final List<HistoryEntry> page = new ArrayList<>();
+
+        HistoryRequest(String with, SearchQuery query) {
+            this.with = with;
+            this.query = query;
+        }
+    }
+
+    /** XFER_FAIL from the server: retrying would not help. */
+    private static final class TransferRejected extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TransferRejected(String reason) { super(reason); }
+    }
+
+    /**
+     * Receiver for a BLOB_OPEN stream: the payload lands in the blob cache (transferFrom), then goes
+     * to the listener from there. The server verified the SHA-256 when the file was uploaded.
+     */
+    private BinarySink cacheSink(String sha, BinaryKind kind, String from, String to, String fileName, long size) throws IOException {
+        BlobStore.Writer w = blobCache.begin(sha);
+        return new BinarySink() {
+            @Override public void chunk(long offset, ByteBuffer data) throws IOException {
+                w.write(offset, data);
+            }
+
+            @Override public void end() throws IOException {
+                BlobStore.Blob b = w.finish();
+                try {
+                    TcpWire.feedFile(b.path(), size, listener.onBinaryBegin(kind, from, to, fileName, size));
+                } finally {
+                    blobCache.release(b);
+                }
+            }
+
+            @Override public void abort(String reason) {
+                w.abort(); // the listener has not seen this file yet
+            }
+
+            @Override public FileChannel target() {
+                return w.channel();
+            }
+        };
+    }
+
+    /** Payload goes from the socket straight into the consumer's file; the sink only sees end/abort. */
+    private static void receiveToFile(TcpWire.Input rawIn, DataInputStream in, SocketChannel channel,
+                                      BinarySink sink, FileChannel target, long size) throws IOException {
+        try {
+            TcpWire.receiveToFile(rawIn, in, channel, size, target);
+        } catch (IOException e) {
+            sink.abort("Connection lost: " + e.getMessage());
+            throw e;
+        }
+        try { sink.end(); } catch (Exception e) { sink.abort("Receiver failed: " + e.getMessage()); }
     }
 
     private void ensureConnected() throws IOException {
         if (!connected.get()) throw new IOException("Not connected");
     }
 
+    private TcpMux mux() throws IOException {
+        TcpMux m = mux;
+        if (resuming) throw new IOException("Reconnecting");
+        if (!connected.get() || m == null) throw new IOException("Not connected");
+        return m;
+    }
+
+    /** Leave: BYE ends a resumable session on the server at once. */
     @Override public void close() {
-        connected.set(false);
+        TcpMux m = mux;
+        if (m != null && connected.get() && resumable && !resuming) {
+            resumable = false; // the server closes the connection after BYE: do not resume that
+            leaving = true;
+            try {
+                m.send(TcpMux.Priority.TEXT, "BYE");
+                m.drain(500);
+            } catch (Exception ignored) {}
+        }
+        drop();
+    }
+
+    /** Close without BYE (the session is over, or moves elsewhere). */
+    private void drop() {
+        synchronized (stateLock) {
+            connected.set(false);
+            resuming = false;
+            historyRequests.clear();
+            closeConnection();
+        }
+    }
+
+    private void closeConnection() {
+        TcpMux m = mux;
+        if (m != null) m.close();
         IOUtil.closeQuietly(in);
         IOUtil.closeQuietly(out);
         IOUtil.closeQuietly(socket);
-        in = null; out = null; socket = null;
+        IOUtil.closeQuietly(channel);
+        in = null; rawIn = null; out = null; socket = null; channel = null; mux = null;
     }
 }
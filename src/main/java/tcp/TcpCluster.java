@@ -0,0 +1,437 @@
+package tcp;
+
+import core.net.CompressionStats;
+import core.net.LogSink;
+import core.util.IOUtil;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Peer links and presence directory of a {@link TcpServerCore} running as one node of a cluster.
+ *
+ * - Every node dials every configured peer on its ordinary port and keeps that link for sending
+ *   only; it hears from the peer on the link the peer dialed back. Each link is a {@link TcpMux},
+ *   so voice and text to a node never wait behind a file going to it.
+ * - The directory maps users connected elsewhere to their node. A link starts with a snapshot of
+ *   the local users (PEER_USERS) and their rooms, then PEER_JOIN / PEER_LEAVE as they come and go;
+ *   when the inbound link from a node drops, its users are dropped.
+ * - Room membership travels the same way (PEER_ROOM_JOIN / PEER_ROOM_PART); the server keeps
+ *   it, so a room message goes once to each node with members in the room.
+ * - Frames from a peer are only delivered to local clients, never forwarded again, so the peers
+ *   list must be the full mesh (every node lists all the others).
+ * - Links are authenticated both ways with HMAC-SHA256 over fresh nonces, keyed with the cluster
+ *   secret every node shares (-Dchat.cluster.secret); without a secret no link is made. A link is
+ *   also only accepted from the address of a configured peer, and a node id stays tied to the
+ *   peer it first linked from, so a client cannot pose as a node on the ordinary port.
+ *
+ * Link frames (peer -> node, on the node's ordinary port):
+ *  - PEER_HELLO:<node>:<listening port>:<nonce>  -> PEER_CHALLENGE:<nonce>
+ *  - PEER_AUTH:<mac>  -> PEER_WELCOME:<node>:<mac>, then only the dialing side writes
+ *  - PEER_USERS:<name1,name2,...>, PEER_JOIN:<name>, PEER_LEAVE:<name>
+ *  - PEER_ROOM_JOIN:<name>:<#room>, PEER_ROOM_PART:<name>:<#room>
+ *  - TEXT, VOICE_START / VOICE_CHUNK / VOICE_END and BIN_OPEN streams, as from a client
+ */
+final class TcpCluster implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final long RETRY_MIN_MS = 250;
+    private static final long RETRY_MAX_MS = 5000;
+    static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String node;
+    private final int port; // ours, announced in PEER_HELLO
+    private final byte[] secret;
+    private final List<InetSocketAddress> peers;
+    private final LogSink log;
+    private final Supplier<List<String>> snapshot;
+    private final Runnable onDirectoryChanged;
+    private final List<Link> dialers = new ArrayList<>();
+
+    private final Map<String, Link> links = new ConcurrentHashMap<>();     // node -> live outbound link
+    private final Map<String, String> directory = new ConcurrentHashMap<>(); // remote user -> node
+    private final Map<String, Object> inbound = new ConcurrentHashMap<>();   // node -> current inbound link
+    private final Map<String, InetSocketAddress> pinned = new ConcurrentHashMap<>(); // node -> its peer address
+    private volatile boolean closed;
+
+    /**
+     * port: this node's ordinary port; secret: shared by all the nodes (links are refused without one).
+     * snapshot: frames that bring a new link up to date (PEER_USERS, then room memberships).
+     */
+    TcpCluster(String node, int port, List<InetSocketAddress> peers, String secret, LogSink log,
+               Supplier<List<String>> snapshot, Runnable onDirectoryChanged) {
+        this.node = node;
+        this.port = port;
+        this.secret = (secret == null || secret.isEmpty()) ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.peers = List.copyOf(peers);
+        this.log = log;
+        this.snapshot = snapshot;
+        this.onDirectoryChanged = onDirectoryChanged;
+        for (InetSocketAddress a : peers) dialers.add(new Link(a));
+    }
+
+    /** "host:port,host:port" (blank entries skipped). */
+    static List<InetSocketAddress> parsePeers(String csv) {
+        List<InetSocketAddress> out = new ArrayList<>();
+        if (csv == null) return out;
+        for (String s : csv.split(",")) {
+            String p = s.trim();
+            if (p.isEmpty()) continue;
+            int i = p.lastIndexOf(':');
+            if (i <= 0) throw new IllegalArgumentException("Peer must be host:port: " + p);
+            out.add(new InetSocketAddress(p.substring(0, i), Integer.parseInt(p.substring(i + 1))));
+        }
+        return out;
+    }
+
+    String node() {
+        return node;
+    }
+
+    void start() {
+        if (secret == null) {
+            log.warn("[TCP] No cluster secret (-Dchat.cluster.secret): peer links are disabled");
+            return;
+        }
+        for (Link l : dialers) {
+            Thread t = new Thread(l, "TcpPeer-" + l.address);
+            t.setDaemon(true);
+            l.thread = t;
+            t.start();
+        }
+    }
+
+    /** Node the user is connected to, or null (local or unknown). */
+    String owner(String user) {
+        return directory.get(user);
+    }
+
+    Collection<String> remoteUsers() {
+        return directory.keySet();
+    }
+
+    /** Nodes a frame for `to` goes to: every linked node for "*", else the user's node if linked. */
+    List<String> targets(String to) {
+        if ("*".equals(to)) return new ArrayList<>(links.keySet());
+        String n = directory.get(to);
+        return (n != null && links.containsKey(n)) ? List.of(n) : List.of();
+    }
+
+    /** Linked nodes these users are connected to, each once. */
+    List<String> nodesOf(Collection<String> users) {
+        List<String> out = new ArrayList<>(2);
+        for (String u : users) {
+            String n = directory.get(u);
+            if (n != null && !out.contains(n) && links.containsKey(n)) out.add(n);
+        }
+        return out;
+    }
+
+    /** Header (+ body) frame to a node; false if there is no live link to it. */
+    boolean send(String to, TcpMux.Priority p, String header, ByteBuffer body) {
+        TcpMux m = mux(to);
+        if (m == null) return false;
+        try {
+            if (body == null) m.send(p, header);
+            else m.send(p, header, body.duplicate());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** In-memory binary as a BIN_OPEN stream to a node; null if there is no live link to it. */
+    CompletableFuture<Void> stream(String to, String meta, byte[] bytes) {
+        TcpMux m = mux(to);
+        if (m == null) return null;
+        try {
+            return m.stream(meta, ByteBuffer.wrap(bytes));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** File as a BIN_OPEN stream to a node (the channel is opened now); null if it could not be queued. */
+    CompletableFuture<Void> stream(String to, String meta, Path file, long size) {
+        TcpMux m = mux(to);
+        if (m == null) return null;
+        try {
+            return m.stream(meta, FileChannel.open(file, StandardOpenOption.READ), size);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private TcpMux mux(String to) {
+        Link l = links.get(to);
+        return (l == null) ? null : l.mux;
+    }
+
+    /** A local user connected / disconnected: tell every linked node. */
+    synchronized void joined(String user) {
+        for (Link l : links.values()) l.sendQuietly("PEER_JOIN:" + user);
+    }
+
+    synchronized void left(String user) {
+        for (Link l : links.values()) l.sendQuietly("PEER_LEAVE:" + user);
+    }
+
+    /** Presence or membership change (PEER_ROOM_JOIN / PEER_ROOM_PART) for every linked node. */
+    synchronized void announce(String header) {
+        for (Link l : links.values()) l.sendQuietly(header);
+    }
+
+    /**
+     * The acceptor's side of the handshake, after PEER_HELLO. Returns the node once it proved it
+     * knows the secret (and PEER_WELCOME went out), or null (the connection should be closed).
+     */
+    String handshake(String hello, InetAddress from, DataInputStream in, DataOutputStream out) throws IOException {
+        // PEER_HELLO:<node>:<port>:<nonce> (the node id may contain ':')
+        String rest = hello.substring("PEER_HELLO:".length());
+        int i = rest.lastIndexOf(':');
+        int j = (i < 0) ? -1 : rest.lastIndexOf(':', i - 1);
+        if (secret == null || j <= 0) return null;
+        String peer = rest.substring(0, j);
+        String theirNonce = rest.substring(i + 1);
+        InetSocketAddress address;
+        try {
+            address = configured(from, Integer.parseInt(rest.substring(j + 1, i)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (address == null || peer.equals(node) || theirNonce.isEmpty()) {
+            log.warn("[TCP] Peer link refused from " + from.getHostAddress() + " (not a configured peer)");
+            return null;
+        }
+
+        String ourNonce = nonce();
+        out.writeUTF("PEER_CHALLENGE:" + ourNonce);
+        out.flush();
+        String auth = in.readUTF();
+        if (!auth.startsWith("PEER_AUTH:")
+                || !sameMac(auth.substring("PEER_AUTH:".length()), mac("PEER_AUTH", peer, ourNonce, theirNonce))) {
+            log.warn("[TCP] Peer link refused from " + from.getHostAddress() + " (bad cluster secret)");
+            return null;
+        }
+        if (!pin(peer, address)) return null;
+        out.writeUTF("PEER_WELCOME:" + node + ":" + mac("PEER_WELCOME", node, theirNonce, ourNonce));
+        out.flush();
+        return peer;
+    }
+
+    /** The configured peer at this address and listening port, or null. */
+    private InetSocketAddress configured(InetAddress ip, int listening) {
+        for (InetSocketAddress a : peers) {
+            if (a.getPort() == listening && ip.equals(a.getAddress())) return a;
+        }
+        return null;
+    }
+
+    /** Tie a node id to the peer it linked from; false if either is already tied to another. */
+    private synchronized boolean pin(String peer, InetSocketAddress address) {
+        InetSocketAddress was = pinned.putIfAbsent(peer, address);
+        if (was != null && !was.equals(address)) {
+            log.warn("[TCP] Peer link refused: node " + peer + " belongs to " + was + ", not " + address);
+            return false;
+        }
+        for (Map.Entry<String, InetSocketAddress> e : pinned.entrySet()) {
+            if (e.getValue().equals(address) && !e.getKey().equals(peer)) {
+                log.warn("[TCP] Peer link refused: " + address + " is node " + e.getKey() + ", not " + peer);
+                if (was == null) pinned.remove(peer);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String nonce() {
+        byte[] b = new byte[16];
+        RANDOM.nextBytes(b);
+        return HexFormat.of().formatHex(b);
+    }
+
+    private String mac(String... parts) {
+        try {
+            Mac m = Mac.getInstance("HmacSHA256");
+            m.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return HexFormat.of().formatHex(m.doFinal(String.join(":", parts).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean sameMac(String a, String b) {
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Inbound link from a node is up; the token identifies it for detach(). */
+    Object attach(String from) {
+        Object token = new Object();
+        inbound.put(from, token);
+        return token;
+    }
+
+    /**
+     * Inbound link ended: its node's users are gone, unless a newer link from that node took over.
+     * Returns the users dropped.
+     */
+    List<String> detach(String from, Object token) {
+        if (!inbound.remove(from, token)) return List.of();
+        List<String> gone = usersOf(from);
+        directory.keySet().removeAll(gone);
+        if (!gone.isEmpty()) onDirectoryChanged.run();
+        return gone;
+    }
+
+    /** PEER_USERS / PEER_JOIN / PEER_LEAVE from a node; returns the users that are gone. */
+    List<String> onPresence(String from, String header) {
+        List<String> gone = List.of();
+        if (header.startsWith("PEER_USERS:")) {
+            Set<String> now = new HashSet<>(Arrays.asList(header.substring("PEER_USERS:".length()).split(",")));
+            now.remove("");
+            gone = usersOf(from);
+            gone.removeAll(now);
+            directory.keySet().removeAll(gone);
+            for (String u : now) directory.put(u, from);
+        } else if (header.startsWith("PEER_JOIN:")) {
+            directory.put(header.substring("PEER_JOIN:".length()), from);
+        } else if (header.startsWith("PEER_LEAVE:")) {
+            String user = header.substring("PEER_LEAVE:".length());
+            if (!directory.remove(user, from)) return gone;
+            gone = List.of(user);
+        } else {
+            return gone;
+        }
+        onDirectoryChanged.run();
+        return gone;
+    }
+
+    private List<String> usersOf(String from) {
+        List<String> out = new ArrayList<>();
+        directory.forEach((u, n) -> {
+            if (n.equals(from)) out.add(u);
+        });
+        return out;
+    }
+
+    @Override public void close() {
+        closed = true;
+        for (Link l : dialers) l.close();
+        links.clear();
+        directory.clear();
+        inbound.clear();
+    }
+
+    /** Outbound link to one configured peer, redialed with backoff while the cluster runs. */
+    private final class Link implements Runnable {
+        final InetSocketAddress address;
+        volatile Thread thread;
+        volatile SocketChannel channel;
+        volatile TcpMux mux;
+
+        Link(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override public void run() {
+            long backoff = RETRY_MIN_MS;
+            while (!closed) {
+                try {
+                    if (connect()) backoff = RETRY_MIN_MS;
+                } catch (IOException e) {
+                    log.debug(() -> "[TCP] Peer " + address + " unreachable: " + e.getMessage());
+                }
+                if (closed) return;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, RETRY_MAX_MS);
+            }
+        }
+
+        /** One link lifetime; true if it got as far as the handshake. */
+        private boolean connect() throws IOException {
+            SocketChannel ch = SocketChannel.open();
+            channel = ch;
+            String peer = null;
+            TcpMux m = null;
+            try {
+                ch.socket().connect(address, CONNECT_TIMEOUT_MS);
+                ch.socket().setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(ch.socket().getOutputStream()));
+                ch.socket().setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                String ourNonce = nonce();
+                out.writeUTF("PEER_HELLO:" + node + ":" + port + ":" + ourNonce);
+                out.flush();
+                String challenge = in.readUTF();
+                if (!challenge.startsWith("PEER_CHALLENGE:")) throw new IOException("Not a cluster node (or it refused the link)");
+                String theirNonce = challenge.substring("PEER_CHALLENGE:".length());
+                out.writeUTF("PEER_AUTH:" + mac("PEER_AUTH", node, theirNonce, ourNonce));
+                out.flush();
+                String welcome = in.readUTF();
+                int i = welcome.lastIndexOf(':');
+                if (!welcome.startsWith("PEER_WELCOME:") || i < "PEER_WELCOME:".length()) throw new IOException("Link refused");
+                String claimed = welcome.substring("PEER_WELCOME:".length(), i);
+                if (!sameMac(welcome.substring(i + 1), mac("PEER_WELCOME", claimed, ourNonce, theirNonce))) {
+                    throw new IOException("Peer does not know the cluster secret");
+                }
+                if (!pin(claimed, address)) throw new IOException("Node id " + claimed + " is taken");
+                peer = claimed;
+                ch.socket().setSoTimeout(0);
+
+                m = new TcpMux(out, ch, new TcpCodec(new CompressionStats()), "peer-" + peer, () -> IOUtil.closeQuietly(ch));
+                synchronized (TcpCluster.this) {
+                    if (closed) return true;
+                    mux = m;
+                    links.put(peer, this);
+                    // joined()/left() queue behind this under the same lock, so the peer sees them in order
+                    for (String f : snapshot.get()) m.send(TcpMux.Priority.TEXT, f);
+                }
+                log.log("[TCP] Linked to peer " + peer + " (" + address + ")");
+
+                // the peer never writes after its welcome: this returns when the link drops
+                while (in.read() >= 0) {}
+                return true;
+            } finally {
+                if (peer != null) {
+                    links.remove(peer, this);
+                    if (!closed) log.log("[TCP] Link to peer " + peer + " lost");
+                }
+                mux = null;
+                if (m != null) m.close();
+                IOUtil.closeQuietly(ch);
+            }
+        }
+
+        void sendQuietly(String header) {
+            TcpMux m = mux;
+            if (m == null) return;
+            try { m.send(TcpMux.Priority.TEXT, header); } catch (IOException ignored) {}
+        }
+
+        void close() {
+            IOUtil.closeQuietly(channel);
+            Thread t = thread;
+            if (t != null) t.interrupt();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package tcp;
+
+import core.net.CompressionStats;
+import core.util.IOUtil;
+import core.util.Lz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection wire compression, negotiated with CAPS:<list> right after HELLO.
+ *
+ * - deflate: headers (text/control frames) go through one streaming Deflater per direction,
+ *   sync-flushed per frame, as Z:<len> + deflated bytes. Short headers are sent as-is.
+ * - lz: binary slices/chunks are LZ blocks; the frame header gets an extra :<zlen> field
+ *   (BIN_SLICE:<sid>:<len>:<zlen>, XFER_CHUNK:<id>:<offset>:<len>:<crc32>:<zlen>).
+ *   Blocks that do not shrink enough are sent raw.
+ *
+ * A peer only compresses after the other side listed the capability, and Z: frames from a peer
+ * that did not negotiate deflate are rejected, as is one that inflates past MAX_INFLATED; so are
+ * LZ blocks from a peer that did not negotiate lz.
+ * Writes happen on the connection's writer thread, reads on its reader thread; close() (from
+ * either, or from teardown) frees the native zlib state.
+ */
+final class TcpCodec {
+    static final String DEFLATE = "deflate";
+    static final String LZ = "lz";
+    static final String SUPPORTED = DEFLATE + "," + LZ;
+
+    private static final int MIN_DEFLATE = 48;
+    static final int MAX_INFLATED = 2 + 65535; // one writeUTF frame
+
+    private final CompressionStats stats;
+    private volatile boolean deflateOut;
+    private volatile boolean lzOut;
+
+    private final Object writeLock = new Object(); // guards deflater (and close)
+    private final Object readLock = new Object();  // guards inflater (and close)
+    private boolean closed;
+
+    // writer side
+    private Deflater deflater;
+    private final ByteArrayOutputStream utf = new ByteArrayOutputStream(256);
+    private final DataOutputStream utfOut = new DataOutputStream(utf);
+    private byte[] zbuf = new byte[1024];
+
+    // reader side
+    private Inflater inflater;
+    private byte[] inBuf = new byte[1024];
+    private byte[] outBuf = new byte[4096];
+
+    TcpCodec(CompressionStats stats) {
+        this.stats = stats;
+    }
+
+    /** Enable what the peer listed (and we support); returns the accepted list. */
+    String accept(String caps) {
+        StringBuilder sb = new StringBuilder();
+        for (String c : caps.split(",")) {
+            String cap = c.trim();
+            if (DEFLATE.equals(cap) && !deflateOut) {
+                deflateOut = true;
+                sb.append(sb.length() == 0 ? "" : ",").append(DEFLATE);
+            } else if (LZ.equals(cap) && !lzOut) {
+                lzOut = true;
+                sb.append(sb.length() == 0 ? "" : ",").append(LZ);
+            }
+        }
+        return sb.toString();
+    }
+
+    boolean lz() { return lzOut; }
+
+    CompressionStats stats() { return stats; }
+
+    /** writeUTF(header), deflated when negotiated and worth it. Writer thread only. */
+    void writeHeader(DataOutputStream out, String header) throws IOException {
+        if (!deflateOut || header.length() < MIN_DEFLATE) {
+            out.writeUTF(header);
+            return;
+        }
+        long t0 = System.nanoTime();
+        utf.reset();
+        utfOut.writeUTF(header);
+        int n = 0;
+        synchronized (writeLock) {
+            if (closed) throw new IOException("Connection closed");
+            if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            deflater.setInput(utf.toByteArray());
+            while (true) {
+                n += deflater.deflate(zbuf, n, zbuf.length - n, Deflater.SYNC_FLUSH);
+                if (n < zbuf.length) break;
+                zbuf = Arrays.copyOf(zbuf, zbuf.length * 2);
+            }
+        }
+        stats.text(utf.size(), n, System.nanoTime() - t0);
+        out.writeUTF("Z:" + n);
+        out.write(zbuf, 0, n);
+    }
+
+    /** readUTF(), inflating Z: frames. Reader thread only. */
+    String readHeader(DataInputStream in) throws IOException {
+        String header = in.readUTF();
+        if (!header.startsWith("Z:")) return header;
+        int total = inflate(in, Integer.parseInt(header.substring(2)));
+        return new DataInputStream(new ByteArrayInputStream(outBuf, 0, total)).readUTF();
+    }
+
+    /** readHeader(in) into h, without making a String of it. Reader thread only. */
+    void readHeader(DataInputStream in, TcpHeader h) throws IOException {
+        h.read(in);
+        if (h.type() != TcpHeader.Type.Z) return;
+        int total = inflate(in, h.intField(1));
+        int n = ((outBuf[0] & 0xFF) << 8) | (outBuf[1] & 0xFF);
+        if (total < 2 || n > total - 2) throw new IOException("Bad Z frame");
+        h.set(outBuf, 2, n);
+    }
+
+    /** Read and inflate the n bytes of a Z frame into outBuf; returns the inflated length. */
+    private int inflate(DataInputStream in, int n) throws IOException {
+        if (!deflateOut) throw new IOException("Z frame without deflate");
+        if (n <= 0 || n > 1 << 20) throw new IOException("Bad Z frame length: " + n);
+        if (inBuf.length < n) inBuf = new byte[Math.max(n, inBuf.length * 2)];
+        IOUtil.readFully(in, inBuf, 0, n);
+
+        long t0 = System.nanoTime();
+        int total = 0;
+        synchronized (readLock) {
+            if (closed) throw new IOException("Connection closed");
+            if (inflater == null) inflater = new Inflater();
+            inflater.setInput(inBuf, 0, n);
+            try {
+                while (true) {
+                    if (total == outBuf.length) {
+                        // one byte of room past the largest frame, so a full buffer means too large
+                        if (total > MAX_INFLATED) throw new IOException("Z frame too large");
+                        outBuf = Arrays.copyOf(outBuf, Math.min(outBuf.length * 2, MAX_INFLATED + 1));
+                    }
+                    int r = inflater.inflate(outBuf, total, outBuf.length - total);
+                    total += r;
+                    if (inflater.needsInput() && total < outBuf.length) break;
+                    if (r == 0 && !inflater.needsInput() && total < outBuf.length) throw new IOException("Bad Z frame");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bad Z frame: " + e.getMessage());
+            }
+        }
+        stats.decompressed(System.nanoTime() - t0);
+        return total;
+    }
+
+    /** Free the zlib state (idempotent); the codec cannot be used afterwards. */
+    void close() {
+        synchronized (writeLock) {
+            synchronized (readLock) {
+                if (closed) return;
+                closed = true;
+            }
+            if (deflater != null) deflater.end();
+            deflater = null;
+        }
+        synchronized (readLock) {
+            if (inflater != null) inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * LZ-compress src[off, off+len) into dst (at least Lz.maxCompressedLength(len) long).
+     * Returns the compressed length, or -1 if lz is off or the block would not shrink by 1/16.
+     */
+    int compress(byte[] src, int off, int len, byte[] dst) {
+        if (!lzOut || len < 64) return -1;
+        long t0 = System.nanoTime();
+        int z = Lz.compress(src, off, len, dst, 0);
+        long dt = System.nanoTime() - t0;
+        if (z >= len - len / 16) {
+            stats.skipped(len, dt);
+            return -1;
+        }
+        stats.binary(len, z, dt);
+        return z;
+    }
+
+    /** Read a zlen-byte LZ block from in and expand it into dst[0, len). */
+    void readBlock(DataInputStream in, int zlen, byte[] zbuf, byte[] dst, int len) throws IOException {
+        if (!lzOut) throw new IOException("LZ block without lz");
+        if (zlen <= 0 || zlen > zbuf.length || len > dst.length) throw new IOException("Bad compressed block: " + zlen + "/" + len);
+        IOUtil.readFully(in, zbuf, 0, zlen);
+        long t0 = System.nanoTime();
+        Lz.decompress(zbuf, 0, zlen, dst, 0, len);
+        stats.decompressed(System.nanoTime() - t0);
+    }
+}
@@ -0,0 +1,176 @@
+package tcp;
+
+import core.model.BinaryKind;
+import core.net.BinarySink;
+import core.util.IOUtil;
+import core.util.Lz;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inbound side of {@link TcpMux}: routes BIN_OPEN (or BLOB_OPEN) / BIN_SLICE / BIN_CLOSE frames to one
+ * {@link BinarySink} per stream id. Only the connection's reader thread uses it.
+ *
+ * - Slices go to sink.target() with transferFrom when the sink offers a file, else through chunk().
+ *   LZ-compressed slices (BIN_SLICE:<sid>:<len>:<zlen>) are expanded on the heap first; they are
+ *   only taken once lz was negotiated.
+ * - A slice longer than bufSize, or a block larger than an LZ block of bufSize can be, ends the
+ *   connection before anything is allocated or read for it.
+ * - A failing sink is aborted and the rest of its slices are skipped, so framing is kept.
+ * - abortAll() is called when the connection ends with streams still open.
+ */
+final class TcpDemux {
+
+    interface Opener {
+        /** sha256 is set for BLOB_OPEN streams (content-addressed), null for BIN_OPEN. */
+        BinarySink open(String sha256, BinaryKind kind, String from, String to, String fileName, long size) throws IOException;
+    }
+
+    private static final class Open {
+        final BinarySink sink;
+        final FileChannel target;
+        final long size;
+        long offset;
+        boolean ok = true;
+
+        Open(BinarySink sink, long size) {
+            this.sink = sink;
+            this.target = sink.target();
+            this.size = size;
+        }
+    }
+
+    private final Map<Integer, Open> open = new HashMap<>();
+    private final TcpCodec codec;
+    private final int bufSize;
+    private byte[] buf;  // slices through the heap, allocated by the first one
+    private byte[] zbuf; // LZ blocks, Lz.maxCompressedLength(bufSize), allocated by the first one
+
+    /** bufSize: largest compressed slice taken (uncompressed ones go through in pieces of that size). */
+    TcpDemux(TcpCodec codec, int bufSize) {
+        this.codec = codec;
+        this.bufSize = bufSize;
+    }
+
+    /** BIN_OPEN:<sid>:<kind>:<from>:<to>:<filename>:<size> or BLOB_OPEN:<sid>:<sha256>:<kind>:<from>:<to>:<filename>:<size> */
+    void onOpen(String header, Opener opener) throws IOException {
+        boolean blob = header.startsWith("BLOB_OPEN:");
+        int k = blob ? 1 : 0;
+        String[] p = header.split(":", 7 + k);
+        if (p.length != 7 + k) throw new IOException("Bad " + (blob ? "BLOB_OPEN" : "BIN_OPEN") + " header");
+        int sid = Integer.parseInt(p[1]);
+        long size = Long.parseLong(p[6 + k]);
+
+        BinarySink sink;
+        try {
+            sink = opener.open(blob ? p[2] : null, BinaryKind.valueOf(p[2 + k]), p[3 + k], p[4 + k], p[5 + k], size);
+        } catch (Exception e) {
+            sink = BinarySink.discard();
+        }
+        Open prev = open.put(sid, new Open(sink, size));
+        if (prev != null && prev.ok) prev.sink.abort("Stream id reused");
+    }
+
+    /** BIN_SLICE:<sid>:<len> + bytes, or BIN_SLICE:<sid>:<len>:<zlen> + LZ block */
+    void onSlice(String header, TcpWire.Input rawIn, DataInputStream in, ReadableByteChannel channel) throws IOException {
+        String[] p = header.split(":", 4);
+        if (p.length < 3) throw new IOException("Bad BIN_SLICE header");
+        int zlen = (p.length == 4) ? Integer.parseInt(p[3]) : -1;
+        onSlice(Integer.parseInt(p[1]), Integer.parseInt(p[2]), zlen, rawIn, in, channel);
+    }
+
+    /** A BIN_SLICE already parsed (zlen -1 if the slice is not compressed). */
+    void onSlice(int sid, int len, int zlen, TcpWire.Input rawIn, DataInputStream in, ReadableByteChannel channel) throws IOException {
+        if (len < 0 || len > bufSize) throw new IOException("Bad BIN_SLICE length: " + len);
+        if (zlen >= 0) {
+            if (!codec.lz()) throw new IOException("Compressed BIN_SLICE without lz");
+            if (zlen == 0 || zlen > Lz.maxCompressedLength(bufSize)) throw new IOException("Bad BIN_SLICE block: " + zlen);
+        }
+
+        Open o = open.get(sid);
+        if (o == null || !o.ok || o.offset + len > o.size) {
+            if (o != null && o.ok) fail(o, "Slice past declared size");
+            in.skipNBytes(zlen >= 0 ? zlen : len);
+            return;
+        }
+
+        if (buf == null) buf = new byte[bufSize];
+        if (zlen >= 0) {
+            if (zbuf == null) zbuf = new byte[Lz.maxCompressedLength(bufSize)];
+            codec.readBlock(in, zlen, zbuf, buf, len);
+            try {
+                ByteBuffer data = ByteBuffer.wrap(buf, 0, len);
+                if (o.target != null) {
+                    long pos = o.offset;
+                    while (data.hasRemaining()) pos += o.target.write(data, pos);
+                } else {
+                    o.sink.chunk(o.offset, data);
+                }
+            } catch (Exception e) {
+                fail(o, "Receiver failed: " + e.getMessage());
+            }
+            o.offset += len;
+            return;
+        }
+
+        if (o.target != null) {
+            // socket errors propagate; the reader ends and abortAll() reports them
+            TcpWire.receiveToFile(rawIn, in, channel, o.offset, len, o.target);
+            o.offset += len;
+            return;
+        }
+
+        int done = 0;
+        while (done < len) {
+            int n = Math.min(buf.length, len - done);
+            IOUtil.readFully(in, buf, 0, n);
+            if (o.ok) {
+                try {
+                    o.sink.chunk(o.offset, ByteBuffer.wrap(buf, 0, n));
+                } catch (Exception e) {
+                    fail(o, "Receiver failed: " + e.getMessage());
+                }
+            }
+            o.offset += n;
+            done += n;
+        }
+    }
+
+    /** BIN_CLOSE:<sid> */
+    void onClose(String header) {
+        int sid;
+        try { sid = Integer.parseInt(header.substring("BIN_CLOSE:".length()).trim()); } catch (Exception e) { return; }
+        onClose(sid);
+    }
+
+    void onClose(int sid) {
+        Open o = open.remove(sid);
+        if (o == null || !o.ok) return;
+        if (o.offset != o.size) {
+            fail(o, "Short binary: " + o.offset + "/" + o.size);
+            return;
+        }
+        try { o.sink.end(); } catch (Exception e) { fail(o, "Receiver failed: " + e.getMessage()); }
+    }
+
+    void abortAll(String reason) {
+        List<Open> left = new ArrayList<>(open.values());
+        open.clear();
+        for (Open o : left) {
+            if (o.ok) fail(o, reason);
+        }
+    }
+
+    private static void fail(Open o, String reason) {
+        o.ok = false;
+        try { o.sink.abort(reason); } catch (Exception ignored) {}
+    }
+}
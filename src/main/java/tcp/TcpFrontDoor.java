@@ -0,0 +1,385 @@
+package tcp;
+
+import core.net.BackendPool;
+import core.net.LogSink;
+import core.util.IOUtil;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Front door for several {@link TcpServerCore} backends: reads the first frame, hashes the user
+ * name onto a backend ({@link BackendPool}, consistent hashing) and hands the connection over.
+ *
+ * - Splice (default): connect to the backend, pass on what was read so far, then copy bytes both
+ *   ways through direct buffers without looking at them. Half-closes are passed on.
+ * - Redirect: answer REDIRECT:<host>:<port> and close; the client says HELLO there itself and the
+ *   front door is out of the path.
+ * - HELLO:<name>, DATA_HELLO:<name>:<token> and RESUME:<name>:<token>:<n> hash the same way, so a
+ *   session's data connections and resumed connections reach its backend. Anything else
+ *   (PEER_HELLO included) is closed.
+ * - One selector thread for every connection, as in UdpFrontDoor. A spliced connection has a
+ *   buffer per direction; while one side is not taking bytes, the other is not read.
+ * - A client that has not sent its first frame within FIRST_FRAME_MS is closed; a backend that
+ *   has not accepted the connection within CONNECT_TIMEOUT_MS counts as failed.
+ * - Backends are probed with a plain connect; a failed connect also takes a backend off the ring
+ *   and the next one on the ring is tried.
+ * - Sessions already spliced stay on their backend when the ring changes.
+ */
+public final class TcpFrontDoor implements AutoCloseable {
+    static final int MAX_HELLO = 1024;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final long FIRST_FRAME_MS = 10_000;
+    private static final long CONNECT_TIMEOUT_MS = 3000;
+    private static final long SWEEP_MS = 500;
+    private static final int PROBE_TIMEOUT_MS = 1000;
+
+    /** One direction of a splice: what was read from one side waits in buf until the other takes it. */
+    private static final class Flow {
+        final SelectionKey from;
+        final SelectionKey to;
+        final ByteBuffer buf;
+        boolean eof;
+        boolean shut;
+
+        Flow(SelectionKey from, SelectionKey to, ByteBuffer buf) {
+            this.from = from;
+            this.to = to;
+            this.buf = buf;
+        }
+
+        void read() throws IOException {
+            if (((SocketChannel) from.channel()).read(buf) < 0) eof = true;
+            write();
+        }
+
+        /** Pass on what buf holds; stop reading while the other side is behind, half-close it after EOF. */
+        void write() throws IOException {
+            buf.flip();
+            ((SocketChannel) to.channel()).write(buf);
+            buf.compact();
+            if (buf.position() > 0) {
+                interest(to, SelectionKey.OP_WRITE, true);
+                interest(from, SelectionKey.OP_READ, false);
+                return;
+            }
+            interest(to, SelectionKey.OP_WRITE, false);
+            interest(from, SelectionKey.OP_READ, !eof);
+            if (eof && !shut) {
+                shut = true;
+                ((SocketChannel) to.channel()).shutdownOutput();
+            }
+        }
+
+        private static void interest(SelectionKey k, int op, boolean on) {
+            int ops = k.interestOps();
+            k.interestOps(on ? ops | op : ops & ~op);
+        }
+    }
+
+    /** A client connection: first frame, then connecting to its backend, then spliced. Loop thread only. */
+    private final class Conn {
+        final SocketChannel client;
+        final SelectionKey clientKey;
+        final boolean redirect;
+        final ByteBuffer up = ByteBuffer.allocateDirect(BUFFER_SIZE); // client -> backend, from the first frame on
+        String user;
+        InetSocketAddress target;
+        int tries;
+        SocketChannel backend;
+        SelectionKey backendKey;
+        Flow toBackend;
+        Flow toClient;
+        boolean answered; // replied without a backend: wait for the client to close
+        long deadline; // of the first frame, the connect or the client's close; 0 once spliced
+
+        Conn(SocketChannel client, boolean redirect, long now) throws IOException {
+            this.client = client;
+            this.redirect = redirect;
+            this.deadline = now + FIRST_FRAME_MS;
+            clientKey = client.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void ready(SelectionKey k, long now) throws IOException {
+            if (toBackend != null) {
+                Flow in = (k == clientKey) ? toBackend : toClient;
+                Flow out = (k == clientKey) ? toClient : toBackend;
+                if (k.isReadable()) in.read();
+                if (k.isValid() && k.isWritable()) out.write();
+                if (toBackend.shut && toClient.shut) close();
+            } else if (answered) {
+                up.clear();
+                if (client.read(up) < 0) close();
+            } else if (k == clientKey) {
+                readFirstFrame(now);
+            } else if (k.isConnectable()) {
+                try {
+                    backend.finishConnect();
+                } catch (IOException e) {
+                    failed(now);
+                    return;
+                }
+                splice();
+            }
+        }
+
+        private void readFirstFrame(long now) throws IOException {
+            if (client.read(up) < 0) {
+                close();
+                return;
+            }
+            String hello = firstFrame(up);
+            if (hello == null) return;
+            user = userOf(hello);
+            if (user == null) {
+                close();
+                return;
+            }
+            clientKey.interestOps(0); // the rest waits for the backend
+            if (redirect) {
+                InetSocketAddress to = pool.pick(user);
+                reply(to == null ? "TEXT:SERVER:" + user + ":No server available"
+                                 : "REDIRECT:" + to.getHostString() + ":" + to.getPort(), now);
+                if (to != null) log.debug(() -> "[TCP] Front door: " + user + " redirected to " + to);
+                return;
+            }
+            connect(now);
+        }
+
+        /** Connect to the user's backend, the next one on the ring after a failure. */
+        private void connect(long now) throws IOException {
+            while (tries++ < backends.size()) {
+                target = pool.pick(user);
+                if (target == null) break;
+                SocketChannel b = SocketChannel.open();
+                try {
+                    b.configureBlocking(false);
+                    b.socket().setTcpNoDelay(true);
+                    boolean connected = b.connect(target);
+                    backend = b;
+                    backendKey = b.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+                    if (connected) {
+                        splice();
+                    } else {
+                        deadline = now + CONNECT_TIMEOUT_MS;
+                    }
+                    return;
+                } catch (IOException e) {
+                    IOUtil.closeQuietly(b);
+                    backend = null;
+                    pool.failed(target);
+                }
+            }
+            reply("TEXT:SERVER:" + user + ":No server available", now);
+        }
+
+        /** The backend did not take the connection: take it off the ring and try the next. */
+        void failed(long now) throws IOException {
+            IOUtil.closeQuietly(backend);
+            backend = null;
+            backendKey = null;
+            pool.failed(target);
+            connect(now);
+        }
+
+        private void splice() throws IOException {
+            deadline = 0;
+            toBackend = new Flow(clientKey, backendKey, up);
+            toClient = new Flow(backendKey, clientKey, ByteBuffer.allocateDirect(BUFFER_SIZE));
+            backendKey.interestOps(SelectionKey.OP_READ);
+            InetSocketAddress to = target;
+            log.debug(() -> "[TCP] Front door: " + user + " -> " + to);
+            toBackend.write(); // what came with the first frame; then the client is read again
+        }
+
+        /**
+         * Answer the client and half-close (a new connection's send buffer takes a short frame whole).
+         * What it sent meanwhile (CAPS) is read and dropped until it closes: closing with unread
+         * bytes would reset the connection, and the answer could be lost.
+         */
+        private void reply(String header, long now) throws IOException {
+            client.write(ByteBuffer.wrap(frame(header)));
+            client.shutdownOutput();
+            answered = true;
+            deadline = now + FIRST_FRAME_MS;
+            clientKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        boolean expired(long now) {
+            return deadline != 0 && now > deadline;
+        }
+
+        void close() {
+            conns.remove(this);
+            IOUtil.closeQuietly(client);
+            IOUtil.closeQuietly(backend);
+        }
+    }
+
+    private final int port;
+    private final List<InetSocketAddress> backends;
+    private final LogSink log;
+    private volatile boolean redirect;
+
+    private BackendPool pool;
+    private ServerSocketChannel serverSocket;
+    private Selector selector;
+    private Thread loopThread;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final Set<Conn> conns = new HashSet<>(); // loop thread only
+
+    public TcpFrontDoor(int port, List<InetSocketAddress> backends, LogSink log) {
+        this.port = port;
+        this.backends = List.copyOf(backends);
+        this.log = (log == null) ? LogSink.stdout() : log;
+    }
+
+    /** Answer with REDIRECT instead of splicing (affects connections accepted afterwards). */
+    public void setRedirect(boolean redirect) {
+        this.redirect = redirect;
+    }
+
+    public void start() throws IOException {
+        if (running.get()) return;
+        selector = Selector.open();
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(port));
+        serverSocket.configureBlocking(false);
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+        running.set(true);
+        pool = new BackendPool(backends, TcpFrontDoor::probe, log, "[TCP]");
+
+        loopThread = new Thread(this::loop, "TcpFrontDoor");
+        loopThread.setDaemon(true);
+        loopThread.start();
+        log.log("[TCP] Front door on " + port + " for " + backends + (redirect ? " (redirect)" : ""));
+    }
+
+    public boolean isRunning() { return running.get(); }
+
+    private static boolean probe(InetSocketAddress backend) {
+        try (Socket s = new Socket()) {
+            s.connect(backend, PROBE_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void loop() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_MS;
+        try {
+            while (running.get()) {
+                selector.select(SWEEP_MS);
+                long now = System.currentTimeMillis();
+                for (SelectionKey k : selector.selectedKeys()) {
+                    if (k.channel() == serverSocket) {
+                        accept(now);
+                        continue;
+                    }
+                    Conn c = (Conn) k.attachment();
+                    try {
+                        if (k.isValid()) c.ready(k, now);
+                    } catch (IOException | CancelledKeyException e) {
+                        c.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_MS;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running.get()) log.warn("[TCP] Front door error: " + e.getMessage());
+        } finally {
+            close();
+            for (Conn c : new ArrayList<>(conns)) c.close();
+        }
+    }
+
+    private void accept(long now) throws IOException {
+        SocketChannel ch;
+        while ((ch = serverSocket.accept()) != null) {
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                conns.add(new Conn(ch, redirect, now));
+            } catch (IOException e) {
+                IOUtil.closeQuietly(ch);
+            }
+        }
+    }
+
+    /** Clients still silent (or not gone after an answer) after FIRST_FRAME_MS, and backends slow to accept. */
+    private void sweep(long now) {
+        for (Conn c : new ArrayList<>(conns)) {
+            if (!c.expired(now)) continue;
+            try {
+                if (c.backend != null) {
+                    c.failed(now);
+                } else {
+                    c.close();
+                }
+            } catch (IOException e) {
+                c.close();
+            }
+        }
+    }
+
+    /** The first writeUTF frame if buf holds all of it (buf keeps every byte read), else null. */
+    static String firstFrame(ByteBuffer buf) throws IOException {
+        if (buf.position() < 2) return null;
+        int len = frameLength(buf);
+        if (len > MAX_HELLO) throw new IOException("First frame too long");
+        if (buf.position() < 2 + len) return null;
+        byte[] frame = new byte[2 + len];
+        buf.duplicate().flip().get(frame);
+        return new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+    }
+
+    private static int frameLength(ByteBuffer buf) {
+        return ((buf.get(0) & 0xff) << 8) | (buf.get(1) & 0xff);
+    }
+
+    /** HELLO:<name>, DATA_HELLO:<name>:<token> or RESUME:<name>:<token>:<n> -> name; null for anything else. */
+    static String userOf(String hello) {
+        if (hello.startsWith("HELLO:")) {
+            String name = hello.substring("HELLO:".length()).trim();
+            return name.isEmpty() ? null : name;
+        }
+        if (hello.startsWith("DATA_HELLO:")) {
+            String[] p = hello.split(":", 3);
+            return (p.length == 3 && !p[1].isEmpty()) ? p[1] : null;
+        }
+        if (hello.startsWith("RESUME:")) {
+            int i = hello.lastIndexOf(':');
+            int j = hello.lastIndexOf(':', i - 1);
+            return (j > "RESUME:".length()) ? hello.substring("RESUME:".length(), j) : null;
+        }
+        return null;
+    }
+
+    private static byte[] frame(String header) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(header);
+        return bytes.toByteArray();
+    }
+
+    @Override public void close() {
+        if (!running.getAndSet(false)) return;
+        BackendPool p = pool;
+        if (p != null) p.close();
+        IOUtil.closeQuietly(selector);
+        IOUtil.closeQuietly(serverSocket);
+        log.log("[TCP] Front door stopped");
+    }
+}
@@ -0,0 +1,207 @@
+package tcp;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A frame header read in place: the writeUTF bytes stay in a buffer reused for every frame of the
+ * connection, and the reader dispatches on type() instead of a chain of startsWith.
+ *
+ * - One pass over the bytes finds the type (the part before the first ':', looked up in a small
+ *   hash table) and the offsets of its fields, split like header.split(":", type.fields).
+ *   ':' never occurs inside a multi-byte character, so the bytes can be split as they are.
+ * - Numbers are parsed straight from the bytes. A field is only decoded to a String when asked,
+ *   and a field with the same bytes as in the previous frame (the from and to of a voice stream)
+ *   returns the same String, so a steady stream of chunk headers allocates nothing.
+ * - string() is the whole header, for handlers that still take it (decoded once per frame).
+ * - Reader thread only.
+ */
+final class TcpHeader {
+    enum Type {
+        PING(2), PONG(0), BYE(0), CAPS(0), SESSION(0), KICK(4), REDIRECT(0), Z(2),
+        TEXT(4), USER_LIST(0), ROOM(3), JOIN(3), PART(3),
+        HISTORY(0), HIST(7), HISTORY_END(3), SEARCH(0), FOUND(7), SEARCH_END(3),
+        FETCH(0), FETCH_FAIL(3), THUMB(0),
+        BIN(6), BIN_OPEN(0), BIN_SLICE(4), BIN_CLOSE(2),
+        BLOB_WANT(0), BLOB_HAVE(0), BLOB_OPEN(0), BLOB_OFFER(8),
+        VOICE_START(8), VOICE_CHUNK(4), VOICE_END(3),
+        XFER(3), // any XFER_<...>:
+        OTHER(0);
+
+        final int fields; // at most this many fields, the last one takes the rest (0: not split)
+        private final byte[] token = name().getBytes(StandardCharsets.US_ASCII);
+
+        Type(int fields) { this.fields = fields; }
+    }
+
+    private static final int MAX_FIELDS = 8;
+    private static final Type[] TABLE = new Type[128]; // by hash of the type, open addressing
+    private static final byte[] XFER_ = "XFER_".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (Type t : Type.values()) {
+            if (t == Type.BYE || t == Type.XFER || t == Type.OTHER) continue; // BYE is a whole header, XFER a prefix
+            int i = hash(t.token, 0, t.token.length) & (TABLE.length - 1);
+            while (TABLE[i] != null) i = (i + 1) & (TABLE.length - 1);
+            TABLE[i] = t;
+        }
+    }
+
+    private byte[] buf = new byte[256];
+    private int len;
+    private Type type = Type.OTHER;
+    private int fields;
+    private final int[] starts = new int[MAX_FIELDS];
+    private final int[] ends = new int[MAX_FIELDS];
+    private final String[] seen = new String[MAX_FIELDS]; // last String decoded per field
+    private String string;
+    private char[] chars = new char[256];
+
+    /** readUTF() into the buffer, then parse it. */
+    void read(DataInputStream in) throws IOException {
+        int n = in.readUnsignedShort();
+        ensure(n);
+        in.readFully(buf, 0, n);
+        parse(n);
+    }
+
+    /** Take the modified UTF-8 bytes of a header (without the writeUTF length) and parse them. */
+    void set(byte[] src, int off, int n) {
+        ensure(n);
+        System.arraycopy(src, off, buf, 0, n);
+        parse(n);
+    }
+
+    Type type() { return type; }
+
+    /** Number of fields found, like split(":", type.fields).length (0 for types that are not split). */
+    int fields() { return fields; }
+
+    /** Length of the header in bytes (its length as a String for ASCII). */
+    int length() { return len; }
+
+    /** Field i as a String (the previous frame's String if the bytes are the same). */
+    String field(int i) {
+        int off = starts[i];
+        int n = ends[i] - off;
+        String s = seen[i];
+        if (s != null && sameAscii(s, off, n)) return s;
+        s = decode(off, n);
+        seen[i] = s;
+        return s;
+    }
+
+    int intField(int i) {
+        long v = longField(i);
+        if (v != (int) v) throw new NumberFormatException("Out of range: " + field(i));
+        return (int) v;
+    }
+
+    long longField(int i) {
+        int off = starts[i];
+        int end = ends[i];
+        boolean negative = off < end && buf[off] == '-';
+        if (negative) off++;
+        if (off == end) throw new NumberFormatException("Not a number: \"" + field(i) + "\"");
+        long v = 0;
+        for (; off < end; off++) {
+            int d = buf[off] - '0';
+            if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10) {
+                throw new NumberFormatException("Not a number: \"" + field(i) + "\"");
+            }
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    /** The whole header. */
+    String string() {
+        if (string == null) string = decode(0, len);
+        return string;
+    }
+
+    @Override public String toString() { return string(); }
+
+    private void parse(int n) {
+        len = n;
+        string = null;
+        fields = 0;
+
+        int h = 0;
+        int colon = 0;
+        while (colon < n && buf[colon] != ':') h = 31 * h + buf[colon++];
+        type = (colon < n) ? lookup(h, colon) : (matches(Type.BYE.token, 0, n) ? Type.BYE : Type.OTHER);
+
+        int limit = type.fields;
+        if (limit == 0) return;
+        starts[0] = 0;
+        ends[0] = colon;
+        fields = 1;
+        int from = colon + 1;
+        while (fields < limit - 1) {
+            int next = from;
+            while (next < n && buf[next] != ':') next++;
+            if (next == n) break;
+            starts[fields] = from;
+            ends[fields++] = next;
+            from = next + 1;
+        }
+        starts[fields] = from;
+        ends[fields++] = n;
+    }
+
+    private Type lookup(int h, int n) {
+        for (int i = h & (TABLE.length - 1); TABLE[i] != null; i = (i + 1) & (TABLE.length - 1)) {
+            if (matches(TABLE[i].token, 0, n)) return TABLE[i];
+        }
+        return (n > XFER_.length && matches(XFER_, 0, XFER_.length)) ? Type.XFER : Type.OTHER;
+    }
+
+    private boolean matches(byte[] token, int off, int n) {
+        return token.length == n && Arrays.equals(buf, off, off + n, token, 0, n);
+    }
+
+    private static int hash(byte[] b, int off, int n) {
+        int h = 0;
+        for (int i = off; i < off + n; i++) h = 31 * h + b[i];
+        return h;
+    }
+
+    private boolean sameAscii(String s, int off, int n) {
+        if (s.length() != n) return false;
+        for (int k = 0; k < n; k++) {
+            if (buf[off + k] != s.charAt(k)) return false; // non-ASCII bytes are negative: never equal
+        }
+        return true;
+    }
+
+    /** Modified UTF-8 (as written by writeUTF) to a String. */
+    private String decode(int off, int n) {
+        int end = off + n;
+        int k = off;
+        while (k < end && buf[k] >= 0) k++;
+        if (k == end) return new String(buf, off, n, StandardCharsets.ISO_8859_1); // ASCII
+        if (chars.length < n) chars = new char[Math.max(n, chars.length * 2)];
+        int c = 0;
+        for (k = off; k < end; k++) {
+            int b = buf[k] & 0xFF;
+            if (b < 0x80) {
+                chars[c++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && k + 1 < end) {
+                chars[c++] = (char) (((b & 0x1F) << 6) | (buf[++k] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && k + 2 < end) {
+                chars[c++] = (char) (((b & 0x0F) << 12) | ((buf[k + 1] & 0x3F) << 6) | (buf[k + 2] & 0x3F));
+                k += 2;
+            } else {
+                chars[c++] = '\uFFFD';
+            }
+        }
+        return new String(chars, 0, c);
+    }
+
+    private void ensure(int n) {
+        if (buf.length < n) buf = new byte[Math.max(n, buf.length * 2)];
+    }
+}
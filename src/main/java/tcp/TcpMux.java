@@ -0,0 +1,393 @@
+package tcp;
+
+import core.util.IOUtil;
+import core.util.Lz;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Outbound scheduler for one TCP connection.
+ *
+ * - A single writer thread owns the socket; callers only enqueue.
+ * - Queues by priority: VOICE, then TEXT, then BULK (FIFO within a priority).
+ * - Binaries are BULK streams written as BIN_OPEN / BIN_SLICE... / BIN_CLOSE with a stream id.
+ *   The writer emits one slice per turn and puts the stream back at the tail, so a voice or text
+ *   frame never waits for more than one slice, and parallel transfers share the link.
+ * - Queued heap/mapped bytes are bounded; bulk producers block when the peer cannot keep up.
+ * - Voice and text never block, but what they have queued is capped too (MAX_URGENT_BYTES): past
+ *   it, VOICE_CHUNK frames are dropped (voice is lossy anyway) and any other frame fails the mux,
+ *   which drops the connection of a peer that stopped reading.
+ * - Headers and slices go through the connection's {@link TcpCodec}, so compression follows the
+ *   order frames actually hit the wire. Closing the mux closes the codec.
+ *
+ * Stream frames:
+ *  - BIN_OPEN:<sid>:<kind>:<from>:<to>:<filename>:<size> (or another opening verb, e.g. BLOB_OPEN:<sid>:<sha256>:...)
+ *  - BIN_SLICE:<sid>:<len> + bytes, or BIN_SLICE:<sid>:<len>:<zlen> + LZ block
+ *  - BIN_CLOSE:<sid>
+ */
+final class TcpMux implements AutoCloseable {
+
+    enum Priority { VOICE, TEXT, BULK }
+
+    static final int SLICE_SIZE = 32 * 1024;
+    static final long MAX_QUEUED_BYTES = 8L * 1024 * 1024;
+    static final long MAX_URGENT_BYTES = 4L * 1024 * 1024;
+    private static final long QUEUE_WAIT_MS = 30_000;
+
+    private abstract class Item {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final long bytes; // counted against MAX_QUEUED_BYTES
+        Priority priority; // set when queued
+
+        Item(long bytes) { this.bytes = bytes; }
+
+        /** Write the next piece; true when the item is finished. */
+        abstract boolean writeNext() throws IOException;
+
+        void discard() {}
+    }
+
+    private final class Frame extends Item {
+        final String header;
+        final ByteBuffer body;
+
+        Frame(String header, ByteBuffer body) {
+            super(header.length() + (body == null ? 0 : body.remaining()));
+            this.header = header;
+            this.body = body;
+        }
+
+        @Override boolean writeNext() throws IOException {
+            codec.writeHeader(out, header);
+            writeBody(body);
+            return true;
+        }
+    }
+
+    private final class Stream extends Item {
+        final int sid;
+        final String verb;
+        final String meta;
+        final ByteBuffer memory; // either memory or file
+        final FileChannel file;
+        final long size;
+        long pos;
+        boolean opened;
+        boolean raw;   // stop trying to compress (already compressed, or it did not pay off)
+        int misses;
+
+        Stream(int sid, String verb, String meta, ByteBuffer memory, FileChannel file, long size) {
+            super(memory == null ? 0 : memory.remaining());
+            this.sid = sid; this.verb = verb; this.meta = meta; this.memory = memory; this.file = file; this.size = size;
+        }
+
+        @Override boolean writeNext() throws IOException {
+            if (!opened) {
+                codec.writeHeader(out, verb + ":" + sid + ":" + meta);
+                opened = true;
+            }
+            if (pos < size) {
+                int len = (int) Math.min(SLICE_SIZE, size - pos);
+                if (!raw && codec.lz()) {
+                    writeCompressible(len);
+                } else if (memory != null) {
+                    if (raw) codec.stats().skipped(len, 0);
+                    codec.writeHeader(out, "BIN_SLICE:" + sid + ":" + len);
+                    ByteBuffer slice = memory.duplicate();
+                    slice.position(slice.position() + (int) pos).limit(slice.position() + len);
+                    writeBody(slice);
+                } else {
+                    if (raw) codec.stats().skipped(len, 0);
+                    codec.writeHeader(out, "BIN_SLICE:" + sid + ":" + len);
+                    out.flush();
+                    long done = 0;
+                    while (done < len) {
+                        long n = file.transferTo(pos + done, len - done, channel);
+                        if (n <= 0 && file.size() <= pos + done) throw new IOException("File shrank during send");
+                        done += n;
+                    }
+                }
+                pos += len;
+            }
+            if (pos < size) return false;
+            codec.writeHeader(out, "BIN_CLOSE:" + sid);
+            discard();
+            return true;
+        }
+
+        /** Slice through the heap: LZ block if it shrinks, raw bytes otherwise. */
+        private void writeCompressible(int len) throws IOException {
+            if (memory != null) {
+                ByteBuffer slice = memory.duplicate();
+                slice.position(slice.position() + (int) pos);
+                slice.get(plain, 0, len);
+            } else {
+                ByteBuffer bb = ByteBuffer.wrap(plain, 0, len);
+                while (bb.hasRemaining()) {
+                    if (file.read(bb, pos + bb.position()) < 0) throw new IOException("File shrank during send");
+                }
+            }
+            if (pos == 0 && Lz.looksCompressed(ByteBuffer.wrap(plain, 0, len))) raw = true;
+
+            int z = raw ? -1 : codec.compress(plain, 0, len, packed);
+            if (z >= 0) {
+                codec.writeHeader(out, "BIN_SLICE:" + sid + ":" + len + ":" + z);
+                out.write(packed, 0, z);
+                return;
+            }
+            if (raw) codec.stats().skipped(len, 0);
+            else if (++misses >= 8) raw = true;
+            codec.writeHeader(out, "BIN_SLICE:" + sid + ":" + len);
+            out.write(plain, 0, len);
+        }
+
+        @Override void discard() {
+            IOUtil.closeQuietly(file);
+        }
+    }
+
+    private final DataOutputStream out;
+    private final WritableByteChannel channel;
+    private final TcpCodec codec;
+    private final byte[] plain = new byte[SLICE_SIZE];
+    private final byte[] packed = new byte[Lz.maxCompressedLength(SLICE_SIZE)];
+    private final Runnable onFailure;
+    private final Thread writer;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Item>[] queues = new ArrayDeque[]{new ArrayDeque<>(), new ArrayDeque<>(), new ArrayDeque<>()};
+    private long queuedBytes;
+    private long queuedUrgent; // bytes of the VOICE and TEXT items in queuedBytes
+    private int nextStreamId;
+    private boolean closed;
+    private IOException failure;
+
+    TcpMux(DataOutputStream out, WritableByteChannel channel, TcpCodec codec, String name, Runnable onFailure) {
+        this.out = out;
+        this.channel = channel;
+        this.codec = codec;
+        this.onFailure = onFailure;
+        this.writer = new Thread(this::writeLoop, "TcpMux-" + name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    TcpCodec codec() { return codec; }
+
+    /** Header-only frame. */
+    CompletableFuture<Void> send(Priority p, String header) throws IOException {
+        return enqueue(p, new Frame(header, null));
+    }
+
+    /** Header + body frame; the body must not change until the returned future completes. */
+    CompletableFuture<Void> send(Priority p, String header, ByteBuffer body) throws IOException {
+        return enqueue(p, new Frame(header, body));
+    }
+
+    /** In-memory binary as a sliced BULK stream. meta = <kind>:<from>:<to>:<filename>:<size>. */
+    CompletableFuture<Void> stream(String meta, ByteBuffer bytes) throws IOException {
+        return enqueue(Priority.BULK, newStream("BIN_OPEN", meta, bytes, null, bytes.remaining()));
+    }
+
+    /** File-backed binary as a sliced BULK stream (slices go out with transferTo). The mux closes the channel. */
+    CompletableFuture<Void> stream(String meta, FileChannel file, long size) throws IOException {
+        return stream("BIN_OPEN", meta, file, size);
+    }
+
+    /** Same, opened with verb:<sid>:<meta> instead of BIN_OPEN. */
+    CompletableFuture<Void> stream(String verb, String meta, FileChannel file, long size) throws IOException {
+        try {
+            return enqueue(Priority.BULK, newStream(verb, meta, null, file, size));
+        } catch (IOException e) {
+            IOUtil.closeQuietly(file);
+            throw e;
+        }
+    }
+
+    private synchronized Stream newStream(String verb, String meta, ByteBuffer memory, FileChannel file, long size) {
+        return new Stream(++nextStreamId, verb, meta, memory, file, size);
+    }
+
+    private CompletableFuture<Void> enqueue(Priority p, Item item) throws IOException {
+        long deadline = System.currentTimeMillis() + QUEUE_WAIT_MS;
+        IOException overflow = null;
+        synchronized (this) {
+            // only bulk producers wait, so voice/text never queue up behind a file;
+            // one item is always admitted, otherwise a single large frame could never be queued;
+            // empty items (drain markers) carry nothing and never wait
+            while (p == Priority.BULK && item.bytes > 0 && !closed && queuedBytes > 0
+                    && queuedBytes + item.bytes > MAX_QUEUED_BYTES) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) throw new IOException("Peer too slow (send queue full)");
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+            }
+            if (closed) throw (failure != null) ? new IOException("Connection failed: " + failure.getMessage()) : new IOException("Not connected");
+            if (p != Priority.BULK && queuedUrgent > 0 && queuedUrgent + item.bytes > MAX_URGENT_BYTES) {
+                if (item instanceof Frame f && f.header.startsWith("VOICE_CHUNK:")) {
+                    return CompletableFuture.completedFuture(null); // dropped
+                }
+                overflow = new IOException("Peer too slow (" + queuedUrgent + " bytes of voice/text queued)");
+            } else {
+                item.priority = p;
+                queues[p.ordinal()].addLast(item);
+                queuedBytes += item.bytes;
+                if (p != Priority.BULK) queuedUrgent += item.bytes;
+                notifyAll();
+            }
+        }
+        if (overflow != null) {
+            fail(overflow); // outside the lock: onFailure closes the socket
+            throw overflow;
+        }
+        return item.done;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Item item;
+            synchronized (this) {
+                while (!closed && isEmpty()) {
+                    try { wait(); } catch (InterruptedException e) { return; }
+                }
+                if (closed) return;
+                item = poll();
+            }
+
+            boolean finished;
+            try {
+                finished = item.writeNext();
+                boolean idle;
+                synchronized (this) { idle = isEmpty(); }
+                // coalesce bursts of small frames; flush once the queues run dry or a slice went out
+                if (idle || !finished) out.flush();
+            } catch (IOException e) {
+                item.discard();
+                item.done.completeExceptionally(e);
+                fail(e);
+                return;
+            }
+
+            boolean dropped = false;
+            synchronized (this) {
+                if (finished) {
+                    queuedBytes -= item.bytes;
+                    if (item.priority != Priority.BULK) queuedUrgent -= item.bytes;
+                    notifyAll();
+                } else if (closed) {
+                    dropped = true; // closed while this stream was being written
+                } else {
+                    queues[Priority.BULK.ordinal()].addLast(item);
+                }
+            }
+            if (finished) item.done.complete(null);
+            if (dropped) {
+                item.discard();
+                item.done.completeExceptionally(new IOException("Connection closed"));
+            }
+        }
+    }
+
+    private void writeBody(ByteBuffer body) throws IOException {
+        if (body == null || !body.hasRemaining()) return;
+        if (body.hasArray()) {
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            out.flush();
+            ByteBuffer b = body.duplicate();
+            while (b.hasRemaining()) channel.write(b);
+        }
+    }
+
+    private boolean isEmpty() {
+        for (ArrayDeque<Item> q : queues) if (!q.isEmpty()) return false;
+        return true;
+    }
+
+    private Item poll() {
+        for (ArrayDeque<Item> q : queues) {
+            Item it = q.pollFirst();
+            if (it != null) return it;
+        }
+        return null;
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (closed) return;
+            failure = e;
+        }
+        shutdown(e);
+        if (onFailure != null) onFailure.run();
+    }
+
+    /**
+     * Wait until the frames queued so far are on the wire (streams may still be mid-way), or the
+     * timeout passes. Never waits for queue space, so it is safe on a peer that stopped reading.
+     */
+    void drain(long timeoutMs) {
+        CompletableFuture<Void> last;
+        try {
+            // writes nothing; completes once everything queued before it has gone out
+            last = enqueue(Priority.BULK, new Item(0) {
+                @Override boolean writeNext() { return true; }
+            });
+        } catch (IOException e) {
+            return;
+        }
+        try { last.get(timeoutMs, TimeUnit.MILLISECONDS); } catch (Exception ignored) {}
+    }
+
+    /** Stop the writer and free the codec; anything still queued fails. */
+    @Override public void close() {
+        shutdown(new IOException("Connection closed"));
+    }
+
+    private void shutdown(IOException cause) {
+        ArrayDeque<Item> dropped = new ArrayDeque<>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<Item> q : queues) {
+                dropped.addAll(q);
+                q.clear();
+            }
+            queuedBytes = 0;
+            queuedUrgent = 0;
+            notifyAll();
+        }
+        for (Item it : dropped) {
+            it.discard();
+            it.done.completeExceptionally(cause);
+        }
+        codec.close();
+    }
+
+    /** Block on a send result, turning failures into IOException. */
+    static void await(CompletableFuture<Void> f) throws IOException {
+        try {
+            f.get(QUEUE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Send timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package tcp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last frames sent to a resumable session, so a client that reconnects with RESUME gets what
+ * it missed (see {@link TcpServerCore}). Guarded by the session.
+ *
+ * - Only frames that counts() accepts are numbered and kept: chat and presence frames, all header
+ *   only. Both ends count the same frames from the CAPS reply that accepted "resume" on, so frames
+ *   carry no sequence number and RESUME says how many the client got.
+ * - Bounded by MAX_FRAMES and MAX_CHARS; the oldest go first.
+ */
+final class TcpReplayBuffer {
+    static final int MAX_FRAMES = 1024;
+    static final long MAX_CHARS = 256 * 1024;
+
+    private final ArrayDeque<String> frames = new ArrayDeque<>();
+    private long chars;
+    private long sent; // frames counted so far
+
+    /** Frames that are numbered (and replayed): the same test on both ends. */
+    static boolean counts(String header) {
+        return header.startsWith("TEXT:") || header.startsWith("USER_LIST:") || header.startsWith("ROOM:")
+                || header.startsWith("HIST:") || header.startsWith("HISTORY_END:")
+                || header.startsWith("FOUND:") || header.startsWith("SEARCH_END:")
+                || header.startsWith("FETCH_FAIL:");
+    }
+
+    /** counts() for a header the reader has only parsed (see {@link TcpHeader}). */
+    static boolean counts(TcpHeader.Type type) {
+        return switch (type) {
+            case TEXT, USER_LIST, ROOM, HIST, HISTORY_END, FOUND, SEARCH_END, FETCH_FAIL -> true;
+            default -> false;
+        };
+    }
+
+    void add(String header) {
+        sent++;
+        frames.addLast(header);
+        chars += header.length();
+        while (frames.size() > MAX_FRAMES || chars > MAX_CHARS) chars -= frames.removeFirst().length();
+    }
+
+    long sent() { return sent; }
+
+    /** Number of the oldest frame still kept (sent + 1 when there is none). */
+    long first() { return sent - frames.size() + 1; }
+
+    /** The frames after the first received ones that are still kept, oldest first. */
+    List<String> after(long received) {
+        long skip = Math.max(0, received - (first() - 1));
+        List<String> out = new ArrayList<>(frames.size());
+        long i = 0;
+        for (String f : frames) {
+            if (i++ >= skip) out.add(f);
+        }
+        return out;
+    }
+}
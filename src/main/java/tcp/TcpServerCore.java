@@ -1,46 +1,177 @@
 package tcp;
 
 import core.model.BinaryKind;
+import core.model.HistoryEntry;
+import core.model.SearchQuery;
+import core.net.BinarySink;
 import core.net.ChatClientListener;
+import core.net.ClientRegistry;
+import core.net.CompressionStats;
+import core.net.Keepalive;
 import core.net.LogSink;
+import core.net.RateLimiter;
+import core.net.RoomIndex;
 import core.net.ServerControlApi;
 import core.net.ServerControlListener;
+import core.net.TimingWheel;
+import core.store.Attachment;
+import core.store.AttachmentStore;
+import core.store.BlobStore;
+import core.store.HistoryStore;
+import core.store.MessageJournal;
+import core.store.SearchIndex;
 import core.util.IOUtil;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import javax.sound.sampled.AudioFormat;
 import java.util.*;
+import java.util.HexFormat;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * UI-free TCP server core.
  *
  * Frames:
  *  - TEXT:<from>:<to>:<message>
- *  - BIN:<kind>:<from>:<to>:<filename>:<size> + bytes
+ *  - BIN_OPEN:<sid>:<kind>:<from>:<to>:<filename>:<size>, BIN_SLICE:<sid>:<len> + bytes..., BIN_CLOSE:<sid>
+ *  - BIN:<kind>:<from>:<to>:<filename>:<size> + bytes (unsliced; still accepted from older clients)
  *  - USER_LIST:<name1,name2,...>
  *  - VOICE_START:<from>:<to>:<sr>:<ch>:<bits>:<bigEndian>:<signed>
  *  - VOICE_CHUNK:<from>:<to>:<size> + bytes
  *  - VOICE_END:<from>:<to>
  *  - KICK:SERVER:<to>:<reason>
  *
+ * Resumable uploads (client -> server):
+ *  - XFER_OFFER:<id>:<kind>:<from>:<to>:<size>:<sha256>:<filename>  -> XFER_RESUME:<id>:<offset>
+ *  - XFER_CHUNK:<id>:<offset>:<len>:<crc32> + bytes
+ *  - XFER_END:<id>  -> XFER_DONE:<id> | XFER_FAIL:<id>:<reason> | XFER_RESUME:<id>:<offset> (gap)
+ *
+ * Content-addressed dedup (clients that listed "blob" in CAPS; see {@link BlobStore}):
+ *  - OFFER of a stored SHA-256  -> XFER_PROVE:<id>:<nonce>:<len>:<offsets>
+ *    -> XFER_PROOF:<id>:<sha256 of nonce + ranges>  -> XFER_DONE:<id> (no upload) | XFER_RESUME:<id>:0
+ *  - recipients get BLOB_OFFER:<oid>:<sha256>:<kind>:<from>:<to>:<filename>:<size>
+ *    -> BLOB_HAVE:<oid> (served from their cache) | BLOB_WANT:<oid> -> BLOB_OPEN:<sid>:<sha256>:<meta> stream
+ *  - clients without "blob" get an ordinary BIN_OPEN stream
+ *
+ * Image previews (clients that listed "thumb" in CAPS; see {@link TcpThumbnails}):
+ *  - THUMB:<sha256>:<kind>:<from>:<to>:<filename>:<size>:<len> + JPEG, instead of the image itself
+ *  - FETCH:<sha256>  -> the original (as above), or FETCH_FAIL:<sha256>:<reason>
+ *
+ * Compression (see {@link TcpCodec}):
+ *  - CAPS:<deflate,lz,blob,thumb>  (client, right after HELLO)  -> CAPS:<accepted>
+ *  - Z:<len> + deflated header; BIN_SLICE / XFER_CHUNK may carry a trailing :<zlen> for an LZ body
+ *
+ * Auxiliary data connections (parallel upload stripes, chunks only):
+ *  - SESSION:<token>  (server -> client right after HELLO)
+ *  - DATA_HELLO:<name>:<token>, then XFER_CHUNK frames, then XFER_FLUSH:<id> -> XFER_FLUSHED:<id>
+ *
+ * Offline delivery (see {@link MessageJournal}):
+ *  - TEXT and BIN up to MessageJournal.MAX_BODY for a known user who is offline are journaled
+ *    (the sender is told) and replayed in order right after that user's next HELLO
+ *
+ * History (see {@link HistoryStore}; TEXT only):
+ *  - HISTORY:<reqId>:<with>:<beforeId>:<limit>   with = "*", a user, or "" for everything the user sees;
+ *    beforeId 0 = before this connection
+ *  - HIST:<reqId>:<id>:<time>:<from>:<to>:<message> per message, oldest first,
+ *    then HISTORY_END:<reqId>:<nextBefore> (0 when there is nothing older)
+ *
+ * Search (see {@link SearchIndex}; over what the user can see):
+ *  - SEARCH:<reqId>:<with>:<from>:<since>:<until>:<beforeId>:<limit>:<words>  ("" / 0 = any)
+ *  - FOUND:<reqId>:<id>:<time>:<from>:<to>:<message> per match, newest first,
+ *    then SEARCH_END:<reqId>:<nextBefore> (0 when there are no more)
+ *
+ * Rooms (see {@link RoomIndex}):
+ *  - JOIN:<from>:<#room>, PART:<from>:<#room>  -> ROOM:<#room>:<members> to every member (and to
+ *    the user who left); a room exists while it has members
+ *  - TEXT, binaries and voice to a #room go to its members only, and only members may send there
+ *  - room TEXT is kept in history under the room; members see it in HISTORY and SEARCH
+ *
+ * Flood protection (see {@link RateLimiter}; -Dchat.limit.* or setRateLimits()):
+ *  - TEXT, BIN, BIN_OPEN, XFER_OFFER, VOICE_START, JOIN / PART, HISTORY, SEARCH and FETCH count
+ *    as messages per user and per address; over the limit they wait, are dropped or get the user
+ *    kicked, as the policy says
+ *  - slices, upload chunks and voice chunks only count bytes and always wait, so a fast sender is
+ *    slowed down by TCP backpressure; BIN_OPEN streams and uploads also hold a transfer slot
+ *
+ * Session resumption (clients that listed "resume" in CAPS; see {@link TcpReplayBuffer}):
+ *  - a lost connection keeps the session (and the user in USER_LIST and their rooms) for the
+ *    resume grace period (-Dchat.resume.grace=<seconds>, default 30, or setResumeGrace()); chat
+ *    frames sent meanwhile are kept, up to TcpReplayBuffer's bounds
+ *  - RESUME:<name>:<token>:<received> on a new connection (token from SESSION, received = chat
+ *    frames the client got)  -> RESUMED:<n>, then the frames after the n-th, then the session goes
+ *    on as before; RESUME_FAIL:<reason> if the session is gone (say HELLO again)
+ *  - BYE ends the session at once; a HELLO with the name of a waiting session ends that session
+ *
+ * Keepalive (see {@link Keepalive}):
+ *  - PING:<intervalMs>  -> PONG:<intervalMs>; from then on a session that sends nothing for MISSES
+ *    intervals while the server waits for its next frame is closed (a half-open connection)
+ *
+ * Cluster (see {@link TcpCluster}; off unless setCluster() or -Dchat.cluster.peers=host:port,...):
+ *  - nodes link up on their ordinary ports with PEER_HELLO, authenticated with the shared
+ *    -Dchat.cluster.secret, and share who is connected where
+ *  - TEXT, binaries and voice for a user on another node go over that node's link; a broadcast
+ *    goes once to each node, which delivers it to its own clients
+ *  - USER_LIST lists the users of every node; history, search and offline delivery stay per node
+ *
  * Notes:
  * - One handler thread per client (pooled).
- * - Outgoing writes are synchronized per client session to avoid interleaving.
+ * - Sessions are kept in a {@link ClientRegistry}: the user list is a ready sorted snapshot, and
+ *   a session checks it is still registered by its id.
+ * - Outgoing frames go through a per-session {@link TcpMux}: voice, then text, then bulk slices,
+ *   so relaying a file to a client does not hold up its voice and messages (or other clients).
+ * - BIN payloads above SPOOL_THRESHOLD are spooled to a temp file with transferFrom and
+ *   relayed to each recipient with transferTo, so they never sit on the heap.
  */
 public final class TcpServerCore implements ServerControlApi {
 
+    static final long SPOOL_THRESHOLD = 1024 * 1024;
+    static final long BLOB_CAPACITY = 1024L * 1024 * 1024;
+    static final long SPOOL_CAPACITY = 4L * 1024 * 1024 * 1024; // binaries and uploads in flight
+    static final String CAP_BLOB = "blob";
+    static final String CAP_THUMB = "thumb";
+    static final String CAP_RESUME = "resume";
+    // smaller images are sent as they are
+    static final long THUMB_MIN_BYTES = 64 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final int port;
     private final LogSink log;
+    private final AttachmentStore spool = new AttachmentStore(0, 0, SPOOL_CAPACITY);
+    private final BlobStore blobs = new BlobStore("chatwithfriend-blobs-", BLOB_CAPACITY);
+    private final TcpUploads uploads = new TcpUploads(spool, blobs);
+    private final TcpThumbnails thumbnails = new TcpThumbnails();
+    private final CompressionStats compression = new CompressionStats();
+    private volatile boolean compressionEnabled = true;
+    private volatile long resumeGraceMs = Long.parseLong(System.getProperty("chat.resume.grace", "30").trim()) * 1000;
+    private volatile RateLimiter limiter = new RateLimiter(RateLimiter.Limits.fromProperties()); // null: no limits
+    private volatile MessageJournal journal; // null if it could not be opened
+    private volatile HistoryStore history;   // null if it could not be opened
+    private volatile SearchIndex search;     // over history
+    private volatile TcpCluster cluster;     // null when running alone
+    private String clusterNode;
+    private List<InetSocketAddress> clusterPeers;
+    private String clusterSecret;
 
     private volatile ServerControlListener listener;
     private volatile ChatClientListener chatListener;
 
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
     private Thread acceptThread;
+    private Thread keepaliveThread;
+    private final TimingWheel<ClientSession> liveness = Keepalive.newWheel(); // sessions that sent PING
     private final AtomicBoolean running = new AtomicBoolean(false);
 
     private final ExecutorService clientPool = Executors.newCachedThreadPool(r -> {
@@ -49,8 +180,8 @@ public final class TcpServerCore implements ServerControlApi {
         return t;
     });
 
-    // name -> session
-    private final ConcurrentHashMap<String, ClientSession> clients = new ConcurrentHashMap<>();
+    private final ClientRegistry<ClientSession> clients = new ClientRegistry<>(); // name -> session
+    private final RoomIndex rooms = new RoomIndex(); // local and (in a cluster) remote members
 
     public TcpServerCore(int port, LogSink log) {
         this.port = port;
@@ -65,23 +196,123 @@ public final class TcpServerCore implements ServerControlApi {
         this.chatListener = chatListener;
     }
 
+    /** Accept compression offered by clients (on by default); affects sessions that connect afterwards. */
+    public void setCompression(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /** Compression ratio and CPU time across all sessions. */
+    public CompressionStats compressionStats() {
+        return compression;
+    }
+
+    /** How long a session waits for its client to come back after the connection is lost (0: not at all). */
+    public void setResumeGrace(long ms) {
+        this.resumeGraceMs = Math.max(0, ms);
+    }
+
+    /** Largest file a client may upload (XFER_OFFER above it gets XFER_FAIL). */
+    public void setMaxUploadBytes(long bytes) {
+        uploads.setMaxSize(bytes);
+    }
+
+    /** Disk budget for verified uploads kept for dedup (least recently used ones go first). */
+    public void setBlobCapacity(long bytes) {
+        blobs.setCapacity(bytes);
+    }
+
+    /** Flood protection for new frames; null turns it off. */
+    public void setRateLimits(RateLimiter.Limits limits) {
+        limiter = (limits == null) ? null : new RateLimiter(limits);
+    }
+
+    /** Frames over the limits so far (null when there are no limits). */
+    public RateLimiter.Stats rateLimitStats() {
+        RateLimiter rl = limiter;
+        return (rl == null) ? null : rl.stats();
+    }
+
+    /**
+     * Run as one node of a cluster (call before start). nodeId must be unique in the cluster;
+     * peers are the ordinary TCP ports of all the other nodes.
+     */
+    public void setCluster(String nodeId, List<InetSocketAddress> peers) {
+        setCluster(nodeId, peers, System.getProperty("chat.cluster.secret"));
+    }
+
+    /** setCluster() with the secret that every node of the cluster shares (peer links need one). */
+    public void setCluster(String nodeId, List<InetSocketAddress> peers, String secret) {
+        this.clusterNode = nodeId;
+        this.clusterPeers = List.copyOf(peers);
+        this.clusterSecret = secret;
+    }
+
     @Override public void start() throws Exception {
         if (running.get()) return;
-        serverSocket = new ServerSocket(port);
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(port));
         running.set(true);
+        try {
+            journal = MessageJournal.open("chatwithfriend-journal-");
+        } catch (IOException e) {
+            log.warn("[TCP] Offline delivery disabled: " + e.getMessage());
+        }
+        try {
+            history = HistoryStore.open("chatwithfriend-history-");
+            search = new SearchIndex(history);
+        } catch (IOException e) {
+            log.warn("[TCP] History disabled: " + e.getMessage());
+        }
+        startCluster();
 
         acceptThread = new Thread(this::acceptLoop, "TcpAccept");
         acceptThread.setDaemon(true);
         acceptThread.start();
+        keepaliveThread = new Thread(this::keepaliveLoop, "TcpKeepalive");
+        keepaliveThread.setDaemon(true);
+        keepaliveThread.start();
         log.log("[TCP] Server listening on " + port);
+        RateLimiter rl = limiter;
+        if (rl != null) log.log("[TCP] Rate limits per user: " + rl.limits());
+    }
+
+    private void startCluster() {
+        List<InetSocketAddress> peers = clusterPeers;
+        String node = clusterNode;
+        String secret = clusterSecret;
+        if (peers == null) {
+            peers = TcpCluster.parsePeers(System.getProperty("chat.cluster.peers"));
+            node = System.getProperty("chat.cluster.node");
+            secret = System.getProperty("chat.cluster.secret");
+        }
+        if (peers.isEmpty()) return;
+        if (node == null || node.isBlank()) {
+            try {
+                node = java.net.InetAddress.getLocalHost().getHostName() + ":" + port;
+            } catch (IOException e) {
+                node = "localhost:" + port;
+            }
+        }
+        TcpCluster c = new TcpCluster(node, port, peers, secret, log, this::clusterSnapshot, this::broadcastUserList);
+        cluster = c;
+        c.start();
+        log.log("[TCP] Cluster node " + node + ", peers " + peers);
+    }
+
+    /** What a new peer link starts with: the local users, then the rooms they are in. */
+    private List<String> clusterSnapshot() {
+        List<String> frames = new ArrayList<>();
+        frames.add("PEER_USERS:" + String.join(",", clients.names()));
+        for (String user : clients.names()) {
+            for (String room : rooms.roomsOf(user)) frames.add("PEER_ROOM_JOIN:" + user + ":" + room);
+        }
+        return frames;
     }
 
     @Override public boolean isRunning() { return running.get(); }
 
     @Override public List<String> getClients() {
-        List<String> names = new ArrayList<>(clients.keySet());
-        Collections.sort(names);
-        return names;
+        return clients.names();
     }
 
     @Override public void kick(String name, String reason) {
@@ -93,168 +324,1067 @@ public final class TcpServerCore implements ServerControlApi {
         String r = (reason == null || reason.isBlank()) ? "Removed by server" : reason.trim();
         try {
             s.sendHeader("KICK:SERVER:" + name + ":" + r);
+            s.mux.drain(1000); // let the KICK frame out before the socket closes
         } catch (Exception ignored) {}
         try { s.close(); } catch (Exception ignored) {}
 
         log.log("[TCP] Kicked " + name + " (" + r + ")");
+        if (s.endParked()) endSession(s); // no reader left to do it
         broadcastUserList(); // will notify UI too
     }
 
     private void acceptLoop() {
         try {
             while (running.get()) {
-                Socket s = serverSocket.accept();
-                s.setTcpNoDelay(true);
-                clientPool.submit(() -> handleClient(s));
+                SocketChannel ch = serverSocket.accept();
+                ch.socket().setTcpNoDelay(true);
+                clientPool.submit(() -> handleClient(ch));
             }
         } catch (Exception e) {
-            if (running.get()) log.log("[TCP] Accept error: " + e.getMessage());
+            if (running.get()) log.warn("[TCP] Accept error: " + e.getMessage());
         } finally {
             close();
         }
     }
 
-    private void handleClient(Socket socket) {
+    private void keepaliveLoop() {
+        while (running.get()) {
+            try {
+                Thread.sleep(Keepalive.TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            expire(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Sessions whose deadline passed. Frames only stamp ClientSession.heard, so most get a new
+     * deadline here; a session is closed only if its reader has been waiting for a frame the whole
+     * time (a reader busy with a long body or a throttle wait is not a dead peer). Sessions waiting
+     * for a RESUME are on the same wheel and end when their grace period is over.
+     */
+    private void expire(long now) {
+        for (ClientSession s : liveness.advance(now)) {
+            if (s.endParked()) {
+                log.log("[TCP] " + s.name + " did not come back");
+                endSession(s);
+                continue;
+            }
+            long timeout = s.keepalive;
+            if (timeout == 0) continue;
+            if (s.heard + timeout > now) {
+                liveness.schedule(s, s.heard + timeout);
+                continue;
+            }
+            if (!s.awaiting) {
+                liveness.schedule(s, now + timeout);
+                continue;
+            }
+            log.warn("[TCP] " + s.name + " timed out (silent for " + (now - s.heard) / 1000 + " s), closing");
+            try { s.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void handleClient(SocketChannel channel) {
         String clientName = null;
+        ClientSession session = null;
+        TcpMux mux = null;
+        TcpCodec codec = new TcpCodec(compression);
+        TcpDemux demux = new TcpDemux(codec, TcpClientCore.XFER_CHUNK_SIZE);
 
-        try (Socket s = socket;
-             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        try (SocketChannel sc = channel;
+             Socket s = sc.socket();
+             TcpWire.Input rawIn = new TcpWire.Input(s.getInputStream());
+             DataInputStream in = new DataInputStream(rawIn);
              DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
 
             // handshake
             String hello = in.readUTF();
-            if (!hello.startsWith("HELLO:")) return;
-            clientName = hello.substring("HELLO:".length()).trim();
-            if (clientName.isEmpty()) return;
-
-            // prevent name clash
-            if (clients.containsKey(clientName)) {
-                out.writeUTF("TEXT:SERVER:" + clientName + ":Name already in use");
-                out.flush();
+            if (hello.startsWith("DATA_HELLO:")) {
+                handleDataConnection(hello, in, out, codec, s.getInetAddress().getHostAddress());
+                return;
+            }
+            if (hello.startsWith("PEER_HELLO:")) {
+                handlePeer(hello, rawIn, in, out, sc, codec);
                 return;
             }
+            if (hello.startsWith("RESUME:")) {
+                session = resume(hello, s, sc, out, codec);
+                if (session == null) return;
+                clientName = session.name;
+                mux = session.mux;
+            } else {
+                if (!hello.startsWith("HELLO:")) return;
+                clientName = hello.substring("HELLO:".length()).trim();
+                if (clientName.isEmpty()) return;
 
-            ClientSession session = new ClientSession(clientName, s, out);
-            clients.put(clientName, session);
+                // a session waiting for its client gives way to a new one with the same name
+                ClientSession waiting = clients.get(clientName);
+                if (waiting != null && waiting.endParked()) endSession(waiting);
 
-            log.log("[TCP] " + clientName + " connected (" + s.getRemoteSocketAddress() + ")");
-            broadcastUserList();
+                // prevent name clash (across the cluster, as far as this node knows)
+                TcpCluster c = cluster;
+                if (clients.contains(clientName) || (c != null && c.owner(clientName) != null)) {
+                    out.writeUTF("TEXT:SERVER:" + clientName + ":Name already in use");
+                    out.flush();
+                    return;
+                }
+
+                mux = new TcpMux(out, sc, codec, clientName, () -> IOUtil.closeQuietly(sc));
+                ClientSession fresh = new ClientSession(clientName, s, mux, newToken(), blobs);
+                HistoryStore h = history;
+                if (h != null) fresh.historyStart = h.lastId() + 1;
+                fresh.id = clients.add(clientName, fresh);
+                if (fresh.id < 0) { // another connection took the name meanwhile
+                    mux.send(TcpMux.Priority.TEXT, "TEXT:SERVER:" + clientName + ":Name already in use");
+                    mux.drain(1000);
+                    mux.close();
+                    return;
+                }
+                session = fresh;
+                if (c != null) c.joined(clientName);
+                session.sendHeader("SESSION:" + session.token);
+
+                log.log("[TCP] " + clientName + " connected (" + s.getRemoteSocketAddress() + ")");
+                broadcastUserList();
+                replayJournal(session);
+            }
 
             // read frames
+            ChunkBuffers bufs = new ChunkBuffers();
+            TcpHeader h = new TcpHeader();
             while (running.get() && !s.isClosed()) {
-                String header = in.readUTF();
+                session.awaiting = true;
+                codec.readHeader(in, h);
+                session.awaiting = false;
+                session.heard = System.currentTimeMillis();
 
-                if (header.startsWith("TEXT:")) {
-                    // TEXT:<from>:<to>:<message>
-                    String[] p = header.split(":", 4);
-                    if (p.length != 4) continue;
-                    routeText(p[1], p[2], p[3]);
-                    notifyText(p[1], p[2], p[3]);
-                    continue;
-                }
+                switch (h.type()) {
+                    case PING -> {
+                        String payload = h.field(1);
+                        long interval = Keepalive.parseInterval(payload);
+                        if (interval > 0 && session.keepalive != Keepalive.timeout(interval)) {
+                            session.keepalive = Keepalive.timeout(interval);
+                            liveness.schedule(session, session.heard + session.keepalive);
+                        }
+                        session.sendHeader("PONG:" + payload);
+                    }
 
-                if (header.startsWith("BIN:")) {
-                    // BIN:<kind>:<from>:<to>:<filename>:<size>
-                    String[] p = header.split(":", 6);
-                    if (p.length != 6) continue;
-
-                    BinaryKind kind = BinaryKind.valueOf(p[1]);
-                    String from = p[2];
-                    String to = p[3];
-                    String fileName = p[4];
-                    long size = Long.parseLong(p[5]);
-
-                    byte[] bytes = TcpWire.readBytes(in, size);
-                    routeBinary(kind, from, to, fileName, bytes);
-                    notifyBinary(kind, from, to, fileName, bytes);
-                    continue;
-                }
+                    case BYE -> {
+                        session.bye();
+                        return;
+                    }
 
-                if (header.startsWith("VOICE_START:")) {
-                    // VOICE_START:<from>:<to>:<sr>:<ch>:<bits>:<bigEndian>:<signed>
-                    String[] p = header.split(":", 8);
-                    if (p.length != 8) continue;
-                    String from = p[1];
-                    String to = p[2];
-                    try {
-                        float sr = Float.parseFloat(p[3]);
-                        int ch = Integer.parseInt(p[4]);
-                        int bits = Integer.parseInt(p[5]);
-                        boolean bigEndian = Boolean.parseBoolean(p[6]);
-                        boolean signed = Boolean.parseBoolean(p[7]);
-                        notifyVoiceStart(from, to, new AudioFormat(sr, bits, ch, signed, bigEndian));
-                    } catch (Exception ignored) {}
-                    routeHeader(header, to);
-                    continue;
-                }
+                    case CAPS -> {
+                        String caps = h.string().substring("CAPS:".length());
+                        String accepted = compressionEnabled ? codec.accept(caps) : "";
+                        List<String> offered = Arrays.asList(caps.split(","));
+                        if (offered.contains(CAP_BLOB)) {
+                            session.dedup = true;
+                            accepted = accepted.isEmpty() ? CAP_BLOB : accepted + "," + CAP_BLOB;
+                        }
+                        if (offered.contains(CAP_THUMB)) {
+                            session.thumbs = true;
+                            accepted = accepted.isEmpty() ? CAP_THUMB : accepted + "," + CAP_THUMB;
+                        }
+                        if (offered.contains(CAP_RESUME) && resumeGraceMs > 0) {
+                            accepted = accepted.isEmpty() ? CAP_RESUME : accepted + "," + CAP_RESUME;
+                            session.enableResume("CAPS:" + accepted); // chat frames are counted from this reply on
+                        } else {
+                            session.sendHeader("CAPS:" + accepted);
+                        }
+                    }
 
-                if (header.startsWith("VOICE_CHUNK:")) {
-                    // VOICE_CHUNK:<from>:<to>:<size>
-                    String[] p = header.split(":", 4);
-                    if (p.length != 4) continue;
-                    String from = p[1];
-                    String to = p[2];
-                    int size = Integer.parseInt(p[3]);
-
-                    byte[] bytes = TcpWire.readBytes(in, size);
-                    routeVoiceChunk(from, to, bytes);
-                    notifyVoiceChunk(from, to, bytes);
-                    continue;
-                }
+                    case BLOB_WANT, BLOB_HAVE -> session.onBlobReply(h.string());
 
-                if (header.startsWith("VOICE_END:")) {
-                    // VOICE_END:<from>:<to>
-                    String[] p = header.split(":", 3);
-                    if (p.length != 3) continue;
-                    routeHeader(header, p[2]);
-                    notifyVoiceEnd(p[1], p[2]);
-                    continue;
-                }
+                    case JOIN, PART -> {
+                        // JOIN:<from>:<#room> | PART:<from>:<#room>
+                        if (h.fields() != 3 || !admit(session, h.length())) continue;
+                        if (h.type() == TcpHeader.Type.JOIN) joinRoom(session, h.field(2));
+                        else partRoom(session.name, h.field(2));
+                    }
+
+                    case HISTORY -> {
+                        if (admit(session, h.length())) sendHistory(session, h.string());
+                    }
+
+                    case SEARCH -> {
+                        if (admit(session, h.length())) sendSearch(session, h.string());
+                    }
+
+                    case FETCH -> {
+                        if (admit(session, h.length())) session.onFetch(h.string());
+                    }
+
+                    case BIN_SLICE -> {
+                        // BIN_SLICE:<sid>:<len>[:<zlen>]
+                        if (h.fields() < 3) throw new IOException("Bad BIN_SLICE header");
+                        int len = h.intField(2);
+                        demux.onSlice(h.intField(1), len, (h.fields() == 4) ? h.intField(3) : -1, rawIn, in, sc);
+                        pace(session.name, session.address, len);
+                    }
+
+                    case BIN_OPEN -> {
+                        ClientSession sender = session;
+                        demux.onOpen(h.string(), (sha, kind, from, to, fileName, size) -> {
+                            if (!mayPost(sender, to) || !admit(sender, 0)) return BinarySink.discard();
+                            BinarySink sink = relaySink(kind, from, to, fileName, size, true);
+                            if (beginTransfer(sender)) return releasing(sender, sink);
+                            sink.abort("Too many transfers");
+                            return BinarySink.discard();
+                        });
+                    }
+
+                    case BIN_CLOSE -> {
+                        // BIN_CLOSE:<sid>
+                        int sid;
+                        try { sid = h.intField(1); } catch (Exception e) { continue; }
+                        demux.onClose(sid);
+                    }
+
+                    case TEXT -> {
+                        // TEXT:<from>:<to>:<message>
+                        if (h.fields() != 4 || !mayPost(session, h.field(2)) || !admit(session, h.length())) continue;
+                        String from = h.field(1);
+                        String to = h.field(2);
+                        String message = h.field(3);
+                        routeText(from, to, message);
+                        notifyText(from, to, message);
+                    }
+
+                    case BIN -> {
+                        // BIN:<kind>:<from>:<to>:<filename>:<size>
+                        if (h.fields() != 6) continue;
+
+                        BinaryKind kind = BinaryKind.valueOf(h.field(1));
+                        String from = h.field(2);
+                        String to = h.field(3);
+                        String fileName = h.field(4);
+                        long size = h.longField(5);
+
+                        if (!mayPost(session, to) || !admit(session, size)) {
+                            in.skipNBytes(size);
+                            continue;
+                        }
+                        if (size > SPOOL_THRESHOLD) {
+                            relaySpooled(rawIn, in, sc, kind, from, to, fileName, size);
+                            continue;
+                        }
+
+                        byte[] bytes = TcpWire.readBytes(in, size);
+                        routeBinary(kind, from, to, fileName, bytes, true);
+                        notifyBinary(kind, from, to, fileName, bytes);
+                    }
+
+                    case XFER -> handleTransfer(session, session.address, h.string(), in, codec, bufs);
+
+                    case VOICE_START -> {
+                        // VOICE_START:<from>:<to>:<sr>:<ch>:<bits>:<bigEndian>:<signed>
+                        if (h.fields() != 8 || !mayPost(session, h.field(2))) continue;
+                        String header = h.string();
+                        String[] p = header.split(":", 8);
+                        if (!admit(session, 0)) {
+                            session.voiceDropped.add(p[2]); // and its chunks
+                            continue;
+                        }
+                        notifyVoiceStart(p);
+                        routeHeader(header, p[2]);
+                    }
+
+                    case VOICE_CHUNK -> {
+                        // VOICE_CHUNK:<from>:<to>:<size>
+                        if (h.fields() != 4) continue;
+                        String from = h.field(1);
+                        String to = h.field(2);
+                        int size = h.intField(3);
 
-                // ignore unknown frames
+                        byte[] bytes = TcpWire.readBytes(in, size);
+                        if (RoomIndex.isRoom(to) && !rooms.isMember(to, session.name)) continue; // told at VOICE_START
+                        if (session.voiceDropped.contains(to)) continue;
+                        pace(session.name, session.address, size);
+                        routeVoiceChunk(from, to, bytes, true);
+                        notifyVoiceChunk(from, to, bytes);
+                    }
+
+                    case VOICE_END -> {
+                        // VOICE_END:<from>:<to>
+                        if (h.fields() != 3) continue;
+                        String to = h.field(2);
+                        if (RoomIndex.isRoom(to) && !rooms.isMember(to, session.name)) continue;
+                        if (session.voiceDropped.remove(to)) continue;
+                        routeHeader(h.string(), to);
+                        notifyVoiceEnd(h.field(1), to);
+                    }
+
+                    default -> {} // ignore unknown frames
+                }
             }
 
         } catch (Exception e) {
-            if (clientName != null) log.log("[TCP] Client " + clientName + " error: " + e.getMessage());
+            if (clientName != null) log.warn("[TCP] Client " + clientName + " error: " + e.getMessage());
         } finally {
-            if (clientName != null) {
-                clients.remove(clientName);
-                broadcastUserList();
-                log.log("[TCP] " + clientName + " disconnected");
+            demux.abortAll("Connection lost");
+            codec.close(); // this connection's (a session that resumed elsewhere has another)
+            if (session != null) {
+                boolean keep = running.get() && clients.get(session.id) == session;
+                switch (session.detach(mux, keep)) {
+                    case PARKED -> park(session, mux);
+                    case ENDED -> endSession(session);
+                    case SUPERSEDED -> mux.close(); // the session resumed on a newer connection
+                }
             }
         }
     }
 
+    /**
+     * RESUME:<name>:<token>:<received> - attach the session to this connection and send what the
+     * client missed; null (after RESUME_FAIL) if there is no such session to resume.
+     */
+    private ClientSession resume(String hello, Socket s, SocketChannel sc, DataOutputStream out, TcpCodec codec) throws IOException {
+        String rest = hello.substring("RESUME:".length());
+        int i = rest.lastIndexOf(':');
+        int j = (i < 0) ? -1 : rest.lastIndexOf(':', i - 1);
+        ClientSession session = (j < 0) ? null : clients.get(rest.substring(0, j));
+        long received = -1;
+        try {
+            if (j >= 0) received = Long.parseLong(rest.substring(i + 1));
+        } catch (NumberFormatException ignored) {}
+        if (session == null || received < 0 || !session.token.equals(rest.substring(j + 1, i))) {
+            out.writeUTF("RESUME_FAIL:Unknown session");
+            out.flush();
+            return null;
+        }
+        TcpMux mux = new TcpMux(out, sc, codec, session.name, () -> IOUtil.closeQuietly(sc));
+        long missed = session.attach(s, mux, received);
+        if (missed < 0) {
+            mux.send(TcpMux.Priority.TEXT, "RESUME_FAIL:Session ended");
+            mux.drain(1000);
+            mux.close();
+            return null;
+        }
+        session.heard = System.currentTimeMillis();
+        if (session.keepalive > 0) liveness.schedule(session, session.heard + session.keepalive);
+        else liveness.cancel(session);
+        if (missed > 0) {
+            session.sendHeader("TEXT:SERVER:" + session.name + ":" + missed + " messages were missed while reconnecting");
+        }
+        log.log("[TCP] " + session.name + " resumed (" + s.getRemoteSocketAddress() + ")");
+        return session;
+    }
+
+    /** The connection is gone but the client may RESUME: keep the session for the grace period. */
+    private void park(ClientSession session, TcpMux mux) {
+        mux.close();
+        session.dropOffers();
+        long grace = resumeGraceMs;
+        liveness.schedule(session, System.currentTimeMillis() + grace);
+        log.log("[TCP] " + session.name + " lost the connection, waiting " + grace / 1000 + " s for it to resume");
+    }
+
+    /** The session is over: its user leaves (here and in the cluster) and its rooms. */
+    private void endSession(ClientSession session) {
+        liveness.cancel(session);
+        session.mux.close();
+        session.dropOffers();
+        for (String id : session.uploads) uploadEnded(session, id);
+        clients.remove(session.name, session);
+        TcpCluster c = cluster;
+        if (c != null) c.left(session.name);
+        roomsLeft(rooms.leaveAll(session.name));
+        broadcastUserList();
+        log.log("[TCP] " + session.name + " disconnected");
+    }
+
+    private void joinRoom(ClientSession session, String room) {
+        if (!RoomIndex.isValidName(room)) {
+            sendTo(session.name, "TEXT:SERVER:" + session.name + ":Bad room name " + room
+                    + " (# and up to " + RoomIndex.MAX_NAME + " letters, digits, - or _)");
+            return;
+        }
+        if (!rooms.join(room, session.name)) return;
+        TcpCluster c = cluster;
+        if (c != null) c.announce("PEER_ROOM_JOIN:" + session.name + ":" + room);
+        log.debug(() -> "[TCP] " + session.name + " joined " + room);
+        roomChanged(room, null);
+    }
+
+    private void partRoom(String user, String room) {
+        if (!rooms.part(room, user)) return;
+        TcpCluster c = cluster;
+        if (c != null) c.announce("PEER_ROOM_PART:" + user + ":" + room);
+        log.debug(() -> "[TCP] " + user + " left " + room);
+        roomChanged(room, user);
+    }
+
+    /** A user is gone (disconnected, or their node said so): tell the members left in the rooms they were in. */
+    private void roomsLeft(Collection<String> left) {
+        for (String room : left) roomChanged(room, null);
+    }
+
+    /** PEER_ROOM_JOIN:<name>:<#room> / PEER_ROOM_PART:<name>:<#room> from another node. */
+    private void onPeerRoom(String header) {
+        String[] p = header.split(":", 3);
+        if (p.length != 3 || !RoomIndex.isValidName(p[2])) return;
+        boolean changed = header.startsWith("PEER_ROOM_JOIN:") ? rooms.join(p[2], p[1]) : rooms.part(p[2], p[1]);
+        if (changed) roomChanged(p[2], null);
+    }
+
+    /** ROOM:<#room>:<members> to the members connected here, and to the user who just left (if any). */
+    private void roomChanged(String room, String left) {
+        String frame = "ROOM:" + room + ":" + String.join(",", new TreeSet<>(rooms.members(room)));
+        broadcast(room, frame);
+        if (left != null) sendTo(left, frame);
+    }
+
+    /** Frames to a room only from its members; the sender is told otherwise. */
+    private boolean mayPost(ClientSession session, String to) {
+        if (!RoomIndex.isRoom(to) || rooms.isMember(to, session.name)) return true;
+        sendTo(session.name, "TEXT:SERVER:" + session.name + ":You are not in " + to);
+        return false;
+    }
+
+    /**
+     * Rate limits for a message frame of bytes bytes from this session: true to go on with it.
+     * Over the limits the reader waits (THROTTLE, up to MAX_THROTTLE_NANOS), the frame is dropped
+     * and the sender told (DROP), or the user is kicked (KICK).
+     */
+    private boolean admit(ClientSession session, long bytes) {
+        RateLimiter rl = limiter;
+        if (rl == null) return true;
+        long wait = rl.take(session.name, session.address, 1, bytes);
+        if (wait == 0) return true;
+        if (rl.policy() == RateLimiter.Policy.KICK) {
+            rl.stats().kicked();
+            log.warn("[TCP] " + session.name + " (" + session.address + ") over the rate limits");
+            kick(session.name, "Flooding");
+            return false;
+        }
+        if (rl.policy() == RateLimiter.Policy.THROTTLE
+                && waitFor(rl, session.name, session.address, 1, bytes, wait, RateLimiter.MAX_THROTTLE_NANOS)) {
+            return true;
+        }
+        rl.stats().dropped();
+        long now = System.currentTimeMillis();
+        if (now - session.warnedAt >= 1000) { // one notice a second at most
+            session.warnedAt = now;
+            sendTo(session.name, "TEXT:SERVER:" + session.name + ":Slow down, messages are being dropped");
+        }
+        return false;
+    }
+
+    /** Bytes that continue an admitted frame (slices, chunks, voice): waits until they fit, whatever the policy. */
+    private void pace(String user, String address, long bytes) {
+        RateLimiter rl = limiter;
+        if (rl == null) return;
+        long wait = rl.take(user, address, 0, bytes);
+        if (wait > 0) waitFor(rl, user, address, 0, bytes, wait, Long.MAX_VALUE);
+    }
+
+    /** Park the reader until the tokens are taken; false if that would take longer than max (or on shutdown). */
+    private boolean waitFor(RateLimiter rl, String user, String address, int msgs, long bytes, long wait, long max) {
+        long start = System.nanoTime();
+        while (wait > 0) {
+            if (System.nanoTime() - start + wait > max || Thread.currentThread().isInterrupted()) return false;
+            LockSupport.parkNanos(wait);
+            wait = rl.take(user, address, msgs, bytes);
+        }
+        rl.stats().throttled(System.nanoTime() - start);
+        return true;
+    }
+
+    private boolean beginTransfer(ClientSession session) {
+        RateLimiter rl = limiter;
+        if (rl == null || rl.beginTransfer(session.name, session.address)) return true;
+        sendTo(session.name, "TEXT:SERVER:" + session.name + ":Too many transfers at once, try again when one is done");
+        return false;
+    }
+
+    private void endTransfer(ClientSession session) {
+        RateLimiter rl = limiter;
+        if (rl != null) rl.endTransfer(session.name, session.address);
+    }
+
+    /** The upload is done or failed (or its session ended): its transfer slot is free. */
+    private void uploadEnded(ClientSession session, String id) {
+        if (session.uploads.remove(id)) endTransfer(session);
+    }
+
+    /** Sink that frees the session's transfer slot when the stream ends either way. */
+    private BinarySink releasing(ClientSession session, BinarySink sink) {
+        return new BinarySink() {
+            private boolean released;
+
+            @Override public void chunk(long offset, ByteBuffer data) throws IOException {
+                sink.chunk(offset, data);
+            }
+
+            @Override public void end() throws IOException {
+                try { sink.end(); } finally { release(); }
+            }
+
+            @Override public void abort(String reason) {
+                try { sink.abort(reason); } finally { release(); }
+            }
+
+            @Override public FileChannel target() {
+                return sink.target();
+            }
+
+            private void release() {
+                if (released) return;
+                released = true;
+                endTransfer(session);
+            }
+        };
+    }
+
     private void routeText(String from, String to, String message) {
         String frame = "TEXT:" + from + ":" + to + ":" + message;
+        long historyId = keepHistory(from, to, message);
 
-        if ("*".equals(to)) {
-            broadcast(frame);
+        if (isGroup(to)) {
+            broadcast(to, frame);
+            forward(to, TcpMux.Priority.TEXT, frame, null);
         } else {
-            sendTo(to, frame);
+            if (!sendTo(to, frame) && !forward(to, TcpMux.Priority.TEXT, frame, null)) storeOffline(from, to, frame, null, historyId);
             // echo to sender if private
             sendTo(from, frame);
         }
     }
 
-    private void routeBinary(BinaryKind kind, String from, String to, String fileName, byte[] bytes) {
-        if ("*".equals(to)) {
-            for (ClientSession c : clients.values()) {
+    /** TEXT from a peer node: kept here too, for this node's users, and delivered to them only. */
+    private void deliverText(String from, String to, String message) {
+        String frame = "TEXT:" + from + ":" + to + ":" + message;
+        keepHistory(from, to, message);
+        if (isGroup(to)) broadcast(to, frame);
+        else sendTo(to, frame);
+    }
+
+    /** Returns the message's history id, 0 if it was not kept. */
+    private long keepHistory(String from, String to, String message) {
+        HistoryStore h = history;
+        if (h == null) return 0;
+        try {
+            return h.append(from, to, message);
+        } catch (IOException e) {
+            log.warn("[TCP] Message not kept in history: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** forward: also send it on to other nodes (false for what came from a peer). */
+    private void routeBinary(BinaryKind kind, String from, String to, String fileName, byte[] bytes, boolean forward) {
+        boolean remote = forward && forwardBytes(to, kind + ":" + from + ":" + to + ":" + fileName + ":" + bytes.length, bytes);
+        if (kind == BinaryKind.IMAGE && bytes.length > THUMB_MIN_BYTES) {
+            // through the blob store, so recipients can get a thumbnail and fetch this later
+            BlobStore.Blob blob = storeBytes(bytes);
+            if (blob != null) {
+                try {
+                    relayBlob(kind, from, to, fileName, blob, false, remote);
+                } finally {
+                    blobs.release(blob);
+                }
+                return;
+            }
+        }
+        if (isGroup(to)) {
+            for (ClientSession c : audience(to)) {
                 try { c.sendBinary(kind, from, to, fileName, bytes); } catch (Exception ignored) {}
             }
         } else {
             ClientSession target = clients.get(to);
             ClientSession sender = clients.get(from);
+            if (target == null && !remote && bytes.length <= MessageJournal.MAX_BODY) {
+                storeOffline(from, to, "BIN:" + kind + ":" + from + ":" + to + ":" + fileName + ":" + bytes.length, bytes, 0);
+            }
             try { if (target != null) target.sendBinary(kind, from, to, fileName, bytes); } catch (Exception ignored) {}
             try { if (sender != null) sender.sendBinary(kind, from, to, fileName, bytes); } catch (Exception ignored) {}
         }
     }
 
+    /**
+     * Receiver for a BIN_OPEN stream: small payloads are collected and routed as byte[],
+     * larger ones are spooled (slices land in the file with transferFrom) and relayed on close.
+     */
+    private BinarySink relaySink(BinaryKind kind, String from, String to, String fileName, long size, boolean forward) throws IOException {
+        if (size < 0) throw new IOException("Bad size: " + size);
+        if (size <= SPOOL_THRESHOLD) {
+            return BinarySink.collect(size, bytes -> {
+                routeBinary(kind, from, to, fileName, bytes, forward);
+                notifyBinary(kind, from, to, fileName, bytes);
+            });
+        }
+        AttachmentStore.Pending pending = spool.begin(fileName, size);
+        return new BinarySink() {
+            @Override public void chunk(long offset, ByteBuffer data) throws IOException {
+                pending.write(offset, data);
+            }
+
+            @Override public void end() throws IOException {
+                relayFile(kind, from, to, fileName, pending.finish(), size, forward);
+            }
+
+            @Override public void abort(String reason) {
+                pending.abort();
+            }
+
+            @Override public FileChannel target() {
+                return pending.channel();
+            }
+        };
+    }
+
+    /** Large BIN: socket -> temp file (transferFrom), then relayed like a finished upload. */
+    private void relaySpooled(TcpWire.Input rawIn, DataInputStream in, SocketChannel ch,
+                              BinaryKind kind, String from, String to, String fileName, long size) throws IOException {
+        AttachmentStore.Pending pending = spool.begin(fileName, size);
+        Attachment spooled;
+        try {
+            TcpWire.receiveToFile(rawIn, in, ch, size, pending.channel());
+            spooled = pending.finish();
+        } catch (IOException e) {
+            pending.abort();
+            throw e;
+        }
+        relayFile(kind, from, to, fileName, spooled, size, true);
+    }
+
+    /**
+     * Auxiliary connection carrying upload stripes for an existing session.
+     * Chunks are applied straight to the spool file, in parallel with the other stripes.
+     */
+    private void handleDataConnection(String hello, DataInputStream in, DataOutputStream out, TcpCodec codec,
+                                      String address) throws IOException {
+        // DATA_HELLO:<name>:<token>
+        String[] h = hello.split(":", 3);
+        if (h.length != 3) return;
+        ClientSession owner = clients.get(h[1]);
+        if (owner == null || !owner.token.equals(h[2])) return;
+        // the client packs stripes with its session's codec, so LZ chunks are fine if lz was negotiated there
+        TcpMux m = owner.mux;
+        if (m != null && m.codec().lz()) codec.accept(TcpCodec.LZ);
+
+        ChunkBuffers bufs = new ChunkBuffers();
+        while (running.get() && clients.get(owner.id) == owner) {
+            String header = codec.readHeader(in);
+            if (header.startsWith("XFER_CHUNK:")) {
+                handleTransfer(owner, address, header, in, codec, bufs);
+            } else if (header.startsWith("XFER_FLUSH:")) {
+                // everything before this frame has been applied
+                TcpWire.sendHeader(out, "XFER_FLUSHED:" + header.substring("XFER_FLUSH:".length()));
+            }
+        }
+    }
+
+    /**
+     * Link from another cluster node: presence updates, and frames for the clients of this node.
+     * Nothing that arrives here is forwarded again.
+     */
+    private void handlePeer(String hello, TcpWire.Input rawIn, DataInputStream in, DataOutputStream out,
+                            SocketChannel sc, TcpCodec codec) throws IOException {
+        TcpCluster c = cluster;
+        if (c == null) return;
+        sc.socket().setSoTimeout(TcpCluster.HANDSHAKE_TIMEOUT_MS);
+        String node = c.handshake(hello, sc.socket().getInetAddress(), in, out);
+        if (node == null) return;
+        sc.socket().setSoTimeout(0);
+
+        Object link = c.attach(node);
+        TcpDemux demux = new TcpDemux(codec, TcpClientCore.XFER_CHUNK_SIZE);
+        log.log("[TCP] Peer " + node + " linked");
+        try {
+            while (running.get()) {
+                String header = codec.readHeader(in);
+
+                if (header.startsWith("PEER_ROOM_")) {
+                    onPeerRoom(header);
+                } else if (header.startsWith("PEER_")) {
+                    for (String user : c.onPresence(node, header)) roomsLeft(rooms.leaveAll(user));
+                } else if (header.startsWith("BIN_SLICE:")) {
+                    demux.onSlice(header, rawIn, in, sc);
+                } else if (header.startsWith("BIN_OPEN:")) {
+                    demux.onOpen(header, (sha, kind, from, to, fileName, size) -> relaySink(kind, from, to, fileName, size, false));
+                } else if (header.startsWith("BIN_CLOSE:")) {
+                    demux.onClose(header);
+                } else if (header.startsWith("TEXT:")) {
+                    String[] p = header.split(":", 4);
+                    if (p.length != 4) continue;
+                    deliverText(p[1], p[2], p[3]);
+                    notifyText(p[1], p[2], p[3]);
+                } else if (header.startsWith("VOICE_CHUNK:")) {
+                    String[] p = header.split(":", 4);
+                    if (p.length != 4) continue;
+                    byte[] bytes = TcpWire.readBytes(in, Integer.parseInt(p[3]));
+                    routeVoiceChunk(p[1], p[2], bytes, false);
+                    notifyVoiceChunk(p[1], p[2], bytes);
+                } else if (header.startsWith("VOICE_START:") || header.startsWith("VOICE_END:")) {
+                    // VOICE_START:<from>:<to>:<format...> | VOICE_END:<from>:<to>
+                    String[] p = header.split(":", 8);
+                    if (p.length < 3) continue;
+                    if (isGroup(p[2])) broadcast(p[2], header);
+                    else sendTo(p[2], header);
+                    if (p.length == 8) notifyVoiceStart(p);
+                    else notifyVoiceEnd(p[1], p[2]);
+                }
+            }
+        } catch (EOFException ignored) {
+            // the peer closed its link
+        } catch (IOException e) {
+            if (running.get()) log.warn("[TCP] Peer " + node + " link error: " + e.getMessage());
+        } finally {
+            demux.abortAll("Peer link lost");
+            for (String user : c.detach(node, link)) roomsLeft(rooms.leaveAll(user));
+            log.log("[TCP] Peer " + node + " unlinked");
+        }
+    }
+
+    private static String newToken() {
+        byte[] b = new byte[16];
+        RANDOM.nextBytes(b);
+        return HexFormat.of().formatHex(b);
+    }
+
+    /** address: where this connection comes from (a data connection's may differ from the session's). */
+    private void handleTransfer(ClientSession session, String address, String header, DataInputStream in, TcpCodec codec,
+                                ChunkBuffers bufs) throws IOException {
+        if (header.startsWith("XFER_CHUNK:")) {
+            // XFER_CHUNK:<id>:<offset>:<len>:<crc32>[:<zlen>]
+            String[] p = header.split(":", 6);
+            if (p.length < 5) throw new IOException("Bad XFER_CHUNK header");
+            int len = Integer.parseInt(p[3]);
+            if (len < 0 || len > TcpClientCore.XFER_CHUNK_SIZE) throw new IOException("Chunk too large: " + len);
+            byte[] chunkBuf = bufs.chunk();
+            if (p.length == 6) codec.readBlock(in, Integer.parseInt(p[5]), bufs.zbuf(), chunkBuf, len);
+            else IOUtil.readFully(in, chunkBuf, 0, len);
+            uploads.chunk(p[1], Long.parseLong(p[2]), len, Long.parseLong(p[4]), chunkBuf);
+            pace(session.name, address, len);
+            return;
+        }
+
+        if (header.startsWith("XFER_OFFER:")) {
+            // XFER_OFFER:<id>:<kind>:<from>:<to>:<size>:<sha256>:<filename>
+            String[] p = header.split(":", 8);
+            if (p.length != 8) return;
+            String id = p[1];
+            try {
+                BinaryKind kind = BinaryKind.valueOf(p[2]);
+                long size = Long.parseLong(p[5]);
+                if (RoomIndex.isRoom(p[4]) && !rooms.isMember(p[4], session.name)) {
+                    session.sendHeader("XFER_FAIL:" + id + ":You are not in " + p[4]);
+                    return;
+                }
+                if (!session.uploads.contains(id)) {
+                    // a re-offer after a reconnect takes a new slot; one per upload id
+                    if (!admit(session, 0)) {
+                        session.sendHeader("XFER_FAIL:" + id + ":Slow down");
+                        return;
+                    }
+                    if (!beginTransfer(session)) {
+                        session.sendHeader("XFER_FAIL:" + id + ":Too many transfers");
+                        return;
+                    }
+                    session.uploads.add(id);
+                }
+                TcpUploads.Claim claim = session.dedup ? uploads.claim(id, kind, p[3], p[4], p[7], size, p[6]) : null;
+                if (claim != null) {
+                    session.sendHeader("XFER_PROVE:" + id + ":" + claim.challenge());
+                    return;
+                }
+                long offset = uploads.offer(id, kind, p[3], p[4], p[7], size, p[6]);
+                session.sendHeader("XFER_RESUME:" + id + ":" + offset);
+            } catch (Exception e) {
+                uploadEnded(session, id);
+                session.sendHeader("XFER_FAIL:" + id + ":" + e.getMessage());
+            }
+            return;
+        }
+
+        if (header.startsWith("XFER_PROOF:")) {
+            // XFER_PROOF:<id>:<proof>
+            String[] p = header.split(":", 3);
+            if (p.length != 3) return;
+            String id = p[1];
+            TcpUploads.Claim c = uploads.takeClaim(id);
+            if (c == null) {
+                uploadEnded(session, id);
+                session.sendHeader("XFER_FAIL:" + id + ":Unknown transfer");
+                return;
+            }
+            BlobStore.Blob blob = uploads.redeem(c, p[2]);
+            if (blob == null) {
+                // wrong proof, or the blob was evicted meanwhile: fall back to a real upload
+                try {
+                    session.sendHeader("XFER_RESUME:" + id + ":" + uploads.offer(id, c.kind, c.from, c.to, c.fileName, c.size, c.sha256));
+                } catch (Exception e) {
+                    uploadEnded(session, id);
+                    session.sendHeader("XFER_FAIL:" + id + ":" + e.getMessage());
+                }
+                return;
+            }
+            try {
+                uploadEnded(session, id);
+                session.sendHeader("XFER_DONE:" + id);
+                log.log("[TCP] Upload " + c.fileName + " from " + c.from + " deduplicated (" + c.size + " bytes already stored)");
+                relayBlob(c.kind, c.from, c.to, c.fileName, blob, true, false);
+                notifyBinary(c.kind, c.from, c.to, c.fileName, blob.path(), blob.size());
+            } finally {
+                blobs.release(blob);
+            }
+            return;
+        }
+
+        if (header.startsWith("XFER_END:")) {
+            String id = header.substring("XFER_END:".length());
+            TcpUploads.Upload u = uploads.get(id);
+            if (u == null) {
+                uploadEnded(session, id);
+                session.sendHeader("XFER_FAIL:" + id + ":Unknown transfer");
+                return;
+            }
+            long have = u.contiguous();
+            if (have < u.size) {
+                session.sendHeader("XFER_RESUME:" + id + ":" + have);
+                return;
+            }
+            BlobStore.Blob blob;
+            try {
+                blob = uploads.complete(u);
+            } catch (IOException e) {
+                uploadEnded(session, id);
+                session.sendHeader("XFER_FAIL:" + id + ":" + e.getMessage());
+                return;
+            }
+            try {
+                uploadEnded(session, id);
+                session.sendHeader("XFER_DONE:" + id);
+                log.log("[TCP] Upload " + u.fileName + " from " + u.from + " verified (" + u.size + " bytes)");
+                relayBlob(u.kind, u.from, u.to, u.fileName, blob, true, false);
+                notifyBinary(u.kind, u.from, u.to, u.fileName, blob.path(), blob.size());
+            } finally {
+                blobs.release(blob);
+            }
+        }
+    }
+
+    /**
+     * Relay a stored blob: recipients with a blob cache get a BLOB_OFFER and only download it
+     * if they do not have it yet, the others get it as a stream. Each recipient holds its own reference.
+     * Images go to "thumb" clients as a thumbnail first.
+     * forward: also stream it to other nodes; remote: the recipient is known to be on another node.
+     */
+    private void relayBlob(BinaryKind kind, String from, String to, String fileName, BlobStore.Blob blob,
+                           boolean forward, boolean remote) {
+        String meta = kind + ":" + from + ":" + to + ":" + fileName + ":" + blob.size();
+        if (forward) remote |= forwardFile(to, meta, blob.path(), blob.size());
+        List<ClientSession> recipients = new ArrayList<>();
+        if (isGroup(to)) {
+            recipients.addAll(audience(to));
+        } else {
+            ClientSession target = clients.get(to);
+            ClientSession sender = clients.get(from);
+            if (target != null) recipients.add(target);
+            else if (!remote && blob.size() <= MessageJournal.MAX_BODY) storeOfflineFile(from, to, "BIN:" + meta, blob.path());
+            if (sender != null) recipients.add(sender);
+        }
+
+        boolean preview = kind == BinaryKind.IMAGE && blob.size() > THUMB_MIN_BYTES;
+        List<ClientSession> previews = new ArrayList<>();
+        for (ClientSession c : recipients) {
+            if (preview && c.thumbs) {
+                previews.add(c);
+                continue;
+            }
+            try { c.sendBlob(blob, meta); } catch (Exception ignored) {}
+        }
+        if (!previews.isEmpty()) sendThumbnails(blob, fileName, meta, previews);
+    }
+
+    /**
+     * THUMB frames once the thumbnail is ready (made on the thumbnail pool, not here); if there is
+     * none (not decodable, pool busy, not smaller), the recipients get the original instead.
+     */
+    private void sendThumbnails(BlobStore.Blob blob, String fileName, String meta, List<ClientSession> recipients) {
+        BlobStore.Blob ref = blobs.acquire(blob.sha());
+        if (ref == null) return;
+        thumbnails.of(ref).whenComplete((jpeg, e) -> {
+            try {
+                boolean ok = jpeg != null && jpeg.length < ref.size();
+                if (!ok) log.warn("[TCP] No thumbnail for " + fileName + (e != null ? " (" + e.getMessage() + ")" : ""));
+                for (ClientSession c : recipients) {
+                    try {
+                        if (ok) c.sendThumbnail(ref.sha(), meta, jpeg);
+                        else c.sendBlob(ref, meta);
+                    } catch (Exception ignored) {}
+                }
+            } finally {
+                blobs.release(ref);
+            }
+        });
+    }
+
+    /** Small payload into the blob store (acquired), or null if it cannot be stored. */
+    private BlobStore.Blob storeBytes(byte[] bytes) {
+        BlobStore.Writer w = null;
+        try {
+            w = blobs.begin(HexFormat.of().formatHex(TcpUploads.sha256().digest(bytes)));
+            w.write(0, ByteBuffer.wrap(bytes));
+            return w.finish();
+        } catch (IOException e) {
+            if (w != null) w.abort();
+            return null;
+        }
+    }
+
+    /**
+     * Queue a spooled file to its recipients (sliced, transferTo), then drop the spool file.
+     * Each recipient's stream holds its own open channel, so the data outlives the release.
+     */
+    private void relayFile(BinaryKind kind, String from, String to, String fileName, Attachment spooled, long size,
+                           boolean forward) throws IOException {
+        try {
+            String header = kind + ":" + from + ":" + to + ":" + fileName + ":" + size;
+            Path file = spooled.path();
+            if (forward) forwardFile(to, header, file, size);
+            if (isGroup(to)) {
+                for (ClientSession c : audience(to)) {
+                    try { c.sendFile(header, file, size); } catch (Exception ignored) {}
+                }
+            } else {
+                ClientSession target = clients.get(to);
+                ClientSession sender = clients.get(from);
+                try { if (target != null) target.sendFile(header, file, size); } catch (Exception ignored) {}
+                try { if (sender != null) sender.sendFile(header, file, size); } catch (Exception ignored) {}
+            }
+            notifyBinary(kind, from, to, fileName, file, size);
+        } finally {
+            spooled.release();
+        }
+    }
+
+    /** Keep a message for a known user who is offline (the sender is told); unknown users are ignored. */
+    private void storeOffline(String from, String to, String header, byte[] body, long historyId) {
+        MessageJournal j = journal;
+        if (j == null) return;
+        try {
+            if (j.append(to, header, body, historyId)) {
+                sendTo(from, "TEXT:SERVER:" + from + ":" + to + " is offline; it will be delivered when they reconnect");
+            }
+        } catch (IOException e) {
+            log.warn("[TCP] Could not store message for " + to + ": " + e.getMessage());
+        }
+    }
+
+    private void storeOfflineFile(String from, String to, String header, Path file) {
+        MessageJournal j = journal;
+        if (j == null || !j.isKnown(to)) return;
+        try {
+            storeOffline(from, to, header, Files.readAllBytes(file), 0);
+        } catch (IOException e) {
+            log.warn("[TCP] Could not store message for " + to + ": " + e.getMessage());
+        }
+    }
+
+    /** What the user missed while offline, in order; the cursor moves once it is queued on the session. */
+    private void replayJournal(ClientSession session) {
+        MessageJournal j = journal;
+        if (j == null) return;
+        try {
+            // a page at a time: sendBinary blocks while the connection is behind
+            int n = 0;
+            long last = 0;
+            List<Long> ids = new ArrayList<>();
+            List<MessageJournal.Entry> page;
+            while (!(page = j.pending(session.name, last, MessageJournal.PAGE_BYTES)).isEmpty()) {
+                for (MessageJournal.Entry e : page) {
+                    if (e.header.startsWith("BIN:")) {
+                        // BIN:<kind>:<from>:<to>:<filename>:<size>
+                        String[] p = e.header.split(":", 6);
+                        session.sendBinary(BinaryKind.valueOf(p[1]), p[2], p[3], p[4], e.body);
+                    } else {
+                        session.sendHeader(e.header);
+                    }
+                    if (e.historyId > 0) ids.add(e.historyId);
+                }
+                last = page.get(page.size() - 1).seq;
+                j.delivered(session.name, last);
+                n += page.size();
+            }
+            session.replayed = ids.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (n > 0) log.log("[TCP] Delivered " + n + " stored messages to " + session.name);
+        } catch (Exception e) {
+            log.warn("[TCP] Stored messages for " + session.name + " not delivered: " + e.getMessage());
+        }
+    }
+
+    /** HISTORY:<reqId>:<with>:<beforeId>:<limit>, answered on this session's text queue. */
+    private void sendHistory(ClientSession session, String header) throws IOException {
+        String[] p = header.split(":", 5);
+        if (p.length != 5) return;
+        String reqId = p[1];
+        String with = p[2];
+        HistoryStore h = history;
+        HistoryStore.Page page = null;
+        long before = 0;
+        try {
+            before = Long.parseLong(p[3]);
+            if (before <= 0) before = session.historyStart;
+            int limit = Integer.parseInt(p[4]);
+            if (h != null && (!RoomIndex.isRoom(with) || rooms.isMember(with, session.name))) {
+                page = with.isEmpty() ? h.timeline(session.name, rooms.roomsOf(session.name), before, limit)
+                        : h.page(HistoryStore.conversation(session.name, with), before, limit);
+            }
+        } catch (NumberFormatException ignored) {
+        } catch (IOException e) {
+            log.warn("[TCP] History for " + session.name + " not read: " + e.getMessage());
+        }
+        if (page == null) {
+            session.sendHeader("HISTORY_END:" + reqId + ":0");
+            return;
+        }
+        for (HistoryEntry m : page.messages) {
+            // already delivered on this connection from the offline journal
+            if (m.id < session.historyStart && Arrays.binarySearch(session.replayed, m.id) >= 0) continue;
+            session.sendHeader("HIST:" + reqId + ":" + m.id + ":" + m.time + ":" + m.from + ":" + m.to + ":" + m.text);
+        }
+        long next = !page.more ? 0 : page.messages.isEmpty() ? before : page.messages.get(0).id;
+        session.sendHeader("HISTORY_END:" + reqId + ":" + next);
+    }
+
+    /** SEARCH:<reqId>:<with>:<from>:<since>:<until>:<beforeId>:<limit>:<words> */
+    private void sendSearch(ClientSession session, String header) throws IOException {
+        String[] p = header.split(":", 9);
+        if (p.length != 9) return;
+        String reqId = p[1];
+        SearchIndex index = search;
+        SearchIndex.Result result = null;
+        try {
+            SearchQuery q = new SearchQuery(p[8], p[2], p[3], Long.parseLong(p[4]), Long.parseLong(p[5]),
+                    Long.parseLong(p[6]), Integer.parseInt(p[7]));
+            if (index != null && (!RoomIndex.isRoom(q.with) || rooms.isMember(q.with, session.name))) {
+                result = index.search(session.name, rooms.roomsOf(session.name), q);
+            }
+        } catch (NumberFormatException ignored) {
+        } catch (IOException e) {
+            log.warn("[TCP] Search for " + session.name + " failed: " + e.getMessage());
+        }
+        if (result == null) {
+            session.sendHeader("SEARCH_END:" + reqId + ":0");
+            return;
+        }
+        for (HistoryEntry m : result.messages) {
+            session.sendHeader("FOUND:" + reqId + ":" + m.id + ":" + m.time + ":" + m.from + ":" + m.to + ":" + m.text);
+        }
+        session.sendHeader("SEARCH_END:" + reqId + ":" + result.nextBefore);
+    }
+
     private void routeHeader(String header, String to) {
-        if ("*".equals(to)) {
-            broadcast(header);
+        TcpMux.Priority prio = header.startsWith("VOICE_") ? TcpMux.Priority.VOICE : TcpMux.Priority.TEXT;
+        if (isGroup(to)) {
+            broadcast(to, header);
+            forward(to, prio, header, null);
         } else {
-            sendTo(to, header);
+            if (!sendTo(to, header)) forward(to, prio, header, null);
 
             // echo to sender
             String[] p = header.split(":", 3);
@@ -262,34 +1392,104 @@ public final class TcpServerCore implements ServerControlApi {
         }
     }
 
-    private void routeVoiceChunk(String from, String to, byte[] bytes) {
-        if ("*".equals(to)) {
-            for (ClientSession c : clients.values()) {
+    private void routeVoiceChunk(String from, String to, byte[] bytes, boolean forward) {
+        if (isGroup(to)) {
+            for (ClientSession c : audience(to)) {
                 try { c.sendVoiceChunk(from, to, bytes); } catch (Exception ignored) {}
             }
+            if (forward) forward(to, TcpMux.Priority.VOICE, "VOICE_CHUNK:" + from + ":" + to + ":" + bytes.length, ByteBuffer.wrap(bytes));
         } else {
             ClientSession target = clients.get(to);
-            ClientSession sender = clients.get(from);
+            ClientSession sender = forward ? clients.get(from) : null; // the sender's own node echoes
             try { if (target != null) target.sendVoiceChunk(from, to, bytes); } catch (Exception ignored) {}
             try { if (sender != null) sender.sendVoiceChunk(from, to, bytes); } catch (Exception ignored) {}
+            if (target == null && forward) {
+                forward(to, TcpMux.Priority.VOICE, "VOICE_CHUNK:" + from + ":" + to + ":" + bytes.length, ByteBuffer.wrap(bytes));
+            }
         }
     }
 
+    /** Nodes a frame for `to` goes to: those with members of a room, else as the cluster says. */
+    private List<String> nodesFor(TcpCluster c, String to) {
+        return RoomIndex.isRoom(to) ? c.nodesOf(rooms.members(to)) : c.targets(to);
+    }
+
+    /** Header (+ body) to the nodes that should see `to`; true if any took it. */
+    private boolean forward(String to, TcpMux.Priority p, String header, ByteBuffer body) {
+        TcpCluster c = cluster;
+        if (c == null) return false;
+        boolean any = false;
+        for (String node : nodesFor(c, to)) any |= c.send(node, p, header, body);
+        return any;
+    }
+
+    /** meta = <kind>:<from>:<to>:<filename>:<size>; true if any node took it. */
+    private boolean forwardBytes(String to, String meta, byte[] bytes) {
+        TcpCluster c = cluster;
+        if (c == null) return false;
+        boolean any = false;
+        for (String node : nodesFor(c, to)) any |= c.stream(node, meta, bytes) != null;
+        return any;
+    }
+
+    /** Same, from a file (each link reads its own open channel, so the file may be released afterwards). */
+    private boolean forwardFile(String to, String meta, Path file, long size) {
+        TcpCluster c = cluster;
+        if (c == null) return false;
+        boolean any = false;
+        for (String node : nodesFor(c, to)) any |= c.stream(node, meta, file, size) != null;
+        return any;
+    }
+
     private void broadcast(String header) {
         for (ClientSession c : clients.values()) {
             try { c.sendHeader(header); } catch (Exception ignored) {}
         }
     }
 
-    private void sendTo(String name, String header) {
+    /** To everyone here for "*", to the room's members here for a room. */
+    private void broadcast(String to, String header) {
+        for (ClientSession c : audience(to)) {
+            try { c.sendHeader(header); } catch (Exception ignored) {}
+        }
+    }
+
+    /** "*" or a room, as opposed to a single user. */
+    private static boolean isGroup(String to) {
+        return "*".equals(to) || RoomIndex.isRoom(to);
+    }
+
+    /** Local sessions of a group: every client for "*", the members connected here for a room. */
+    private Collection<ClientSession> audience(String to) {
+        if ("*".equals(to)) return clients.values();
+        Set<String> members = rooms.members(to);
+        List<ClientSession> out = new ArrayList<>(members.size());
+        for (String m : members) {
+            ClientSession c = clients.get(m);
+            if (c != null) out.add(c);
+        }
+        return out;
+    }
+
+    /** False if the user is not connected. */
+    private boolean sendTo(String name, String header) {
         ClientSession c = clients.get(name);
-        if (c == null) return;
+        if (c == null) return false;
         try { c.sendHeader(header); } catch (Exception ignored) {}
+        return true;
     }
 
     private void broadcastUserList() {
         List<String> names = getClients();
-        String frame = "USER_LIST:" + String.join(",", names);
+        List<String> all = names;
+        TcpCluster c = cluster;
+        if (c != null) {
+            // everyone in the cluster; the dashboard (below) only sees and kicks local clients
+            TreeSet<String> merged = new TreeSet<>(names);
+            merged.addAll(c.remoteUsers());
+            all = new ArrayList<>(merged);
+        }
+        String frame = "USER_LIST:" + String.join(",", all);
 
         broadcast(frame);
 
@@ -313,11 +1513,26 @@ public final class TcpServerCore implements ServerControlApi {
         }
     }
 
-    private void notifyVoiceStart(String from, String to, AudioFormat format) {
+    private void notifyBinary(BinaryKind kind, String from, String to, String fileName, Path file, long size) {
         ChatClientListener l = chatListener;
-        if (l != null) {
-            try { l.onVoiceStart(from, to, format); } catch (Exception ignored) {}
-        }
+        if (l == null) return;
+        try {
+            TcpWire.feedFile(file, size, l.onBinaryBegin(kind, from, to, fileName, size));
+        } catch (Exception ignored) {}
+    }
+
+    /** p = VOICE_START header split in 8: from, to, sr, ch, bits, bigEndian, signed. */
+    private void notifyVoiceStart(String[] p) {
+        ChatClientListener l = chatListener;
+        if (l == null) return;
+        try {
+            float sr = Float.parseFloat(p[3]);
+            int ch = Integer.parseInt(p[4]);
+            int bits = Integer.parseInt(p[5]);
+            boolean bigEndian = Boolean.parseBoolean(p[6]);
+            boolean signed = Boolean.parseBoolean(p[7]);
+            l.onVoiceStart(p[1], p[2], new AudioFormat(sr, bits, ch, signed, bigEndian));
+        } catch (Exception ignored) {}
     }
 
     private void notifyVoiceChunk(String from, String to, byte[] bytes) {
@@ -338,49 +1553,254 @@ public final class TcpServerCore implements ServerControlApi {
         running.set(false);
         IOUtil.closeQuietly(serverSocket);
         serverSocket = null;
+        TcpCluster tc = cluster;
+        cluster = null;
+        if (tc != null) tc.close();
 
         // Best-effort close all sessions
         for (ClientSession s : clients.values()) {
             try { s.close(); } catch (Exception ignored) {}
         }
         clients.clear();
+        liveness.clear();
+        rooms.clear();
 
         clientPool.shutdownNow();
+        uploads.close();
+        thumbnails.close();
+        spool.close();
+        blobs.close();
+        MessageJournal j = journal;
+        journal = null;
+        if (j != null) j.close();
+        SearchIndex si = search;
+        search = null;
+        if (si != null) si.close();
+        HistoryStore h = history;
+        history = null;
+        if (h != null) h.close();
         ServerControlListener l = listener;
         if (l != null) {
             try { l.onClientsChanged(List.of()); } catch (Exception ignored) {}
         }
     }
 
+    /** A connection's upload buffers, allocated by its first XFER_CHUNK (most connections never upload). */
+    private static final class ChunkBuffers {
+        private byte[] chunk;
+        private byte[] zbuf;
+
+        byte[] chunk() {
+            if (chunk == null) chunk = new byte[TcpClientCore.XFER_CHUNK_SIZE];
+            return chunk;
+        }
+
+        byte[] zbuf() {
+            if (zbuf == null) zbuf = new byte[TcpClientCore.XFER_CHUNK_SIZE];
+            return zbuf;
+        }
+    }
+
     private static final class ClientSession implements Closeable {
+        enum Detached { PARKED, ENDED, SUPERSEDED }
+
         final String name;
-        final Socket socket;
-        final DataOutputStream out;
+        volatile int id = -1; // in the client registry
+        volatile Socket socket;
+        final String address; // remote host, for the per-address rate limits
+        volatile TcpMux mux;  // replaced when the session resumes on a new connection
+        final String token; // authenticates auxiliary data connections
+        final BlobStore blobs;
+        volatile boolean dedup; // client keeps a blob cache (CAPS:blob)
+        volatile boolean thumbs; // client takes image thumbnails and fetches originals (CAPS:thumb)
+        volatile long historyStart = Long.MAX_VALUE; // first history id after this connection began
+        volatile long[] replayed = new long[0]; // history ids of what the journal replayed, sorted
+        final Set<String> uploads = ConcurrentHashMap.newKeySet();  // XFER ids holding a transfer slot
+        final Set<String> voiceDropped = new HashSet<>();          // voice targets whose VOICE_START was dropped (reader only)
+        long warnedAt;                                              // last rate limit notice (reader only)
+        volatile long keepalive;        // silence allowed after PING (ms; 0: no keepalive)
+        volatile long heard;            // last frame (ms)
+        volatile boolean awaiting;      // the reader is blocked waiting for the next frame
+
+        // resumption (guarded by this)
+        private TcpReplayBuffer replay; // null unless the client listed "resume" in CAPS
+        private boolean parked;         // connection lost, waiting for RESUME
+        private boolean ended;
+        private boolean bye;
 
-        ClientSession(String name, Socket socket, DataOutputStream out) {
+        // BLOB_OFFER id -> offered blob (referenced until BLOB_WANT/BLOB_HAVE or disconnect)
+        private final Map<Long, Offered> offered = new ConcurrentHashMap<>();
+        private final AtomicLong nextOffer = new AtomicLong();
+
+        // images announced with THUMB (sha -> meta); FETCH only serves what this client was shown
+        private final Map<String, String> announced = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > 256;
+            }
+        });
+
+        private static final class Offered {
+            final BlobStore.Blob blob;
+            final String meta;
+
+            Offered(BlobStore.Blob blob, String meta) { this.blob = blob; this.meta = meta; }
+        }
+
+        ClientSession(String name, Socket socket, TcpMux mux, String token, BlobStore blobs) {
             this.name = name;
             this.socket = socket;
-            this.out = out;
+            this.address = socket.getInetAddress().getHostAddress();
+            this.mux = mux;
+            this.token = token;
+            this.blobs = blobs;
         }
 
+        /** Chat frames are also kept for a RESUME; while parked they are only kept. */
         synchronized void sendHeader(String header) throws IOException {
-            out.writeUTF(header);
-            out.flush();
+            if (replay != null && TcpReplayBuffer.counts(header)) replay.add(header);
+            if (parked) return;
+            mux.send(header.startsWith("VOICE_") ? TcpMux.Priority.VOICE : TcpMux.Priority.TEXT, header);
         }
 
-        synchronized void sendBinary(BinaryKind kind, String from, String to, String fileName, byte[] bytes) throws IOException {
-            out.writeUTF("BIN:" + kind + ":" + from + ":" + to + ":" + fileName + ":" + bytes.length);
-            out.write(bytes);
-            out.flush();
+        /** Start counting chat frames with the CAPS reply that accepted "resume". */
+        synchronized void enableResume(String capsReply) throws IOException {
+            if (replay == null) replay = new TcpReplayBuffer();
+            mux.send(TcpMux.Priority.TEXT, capsReply);
         }
 
-        synchronized void sendVoiceChunk(String from, String to, byte[] bytes) throws IOException {
-            out.writeUTF("VOICE_CHUNK:" + from + ":" + to + ":" + bytes.length);
-            out.write(bytes);
-            out.flush();
+        synchronized void bye() { bye = true; }
+
+        /**
+         * The reader of connection m is done: SUPERSEDED if the session moved to a newer connection,
+         * PARKED if it waits for a RESUME (resumable, keep, no BYE), else ENDED.
+         */
+        synchronized Detached detach(TcpMux m, boolean keep) {
+            if (mux != m) return Detached.SUPERSEDED;
+            if (ended) return Detached.SUPERSEDED; // ended by someone else (kick of a parked session)
+            if (replay == null || bye || !keep) {
+                ended = true;
+                return Detached.ENDED;
+            }
+            parked = true;
+            return Detached.PARKED;
+        }
+
+        /** End a parked session (grace over, kicked, name taken); false if it is not parked. */
+        synchronized boolean endParked() {
+            if (!parked || ended) return false;
+            ended = true;
+            return true;
+        }
+
+        /**
+         * Move the session to a new connection and queue RESUMED plus the chat frames after the
+         * first received ones. Returns how many of those are no longer kept, or -1 if the session
+         * cannot resume (ended, not resumable, or received is more than was sent).
+         */
+        synchronized long attach(Socket s, TcpMux m, long received) throws IOException {
+            if (ended || replay == null || received > replay.sent()) return -1;
+            TcpMux old = mux;
+            Socket oldSocket = socket;
+            mux = m;
+            socket = s;
+            parked = false;
+            old.close(); // a connection the server had not noticed was dead yet
+            try { oldSocket.close(); } catch (Exception ignored) {}
+            long from = Math.max(received, replay.first() - 1);
+            m.send(TcpMux.Priority.TEXT, "RESUMED:" + from);
+            for (String f : replay.after(received)) m.send(TcpMux.Priority.TEXT, f);
+            return from - received;
+        }
+
+        void sendBinary(BinaryKind kind, String from, String to, String fileName, byte[] bytes) throws IOException {
+            mux.stream(kind + ":" + from + ":" + to + ":" + fileName + ":" + bytes.length, ByteBuffer.wrap(bytes));
+        }
+
+        /** meta = <kind>:<from>:<to>:<filename>:<size> */
+        void sendFile(String meta, Path file, long size) throws IOException {
+            mux.stream(meta, FileChannel.open(file, StandardOpenOption.READ), size);
+        }
+
+        /** meta = <kind>:<from>:<to>:<filename>:<size> */
+        void sendBlob(BlobStore.Blob blob, String meta) throws IOException {
+            BlobStore.Blob ref = blobs.acquire(blob.sha());
+            if (ref == null) return;
+            if (!dedup) {
+                streamBlob(ref, "BIN_OPEN", meta);
+                return;
+            }
+            long id = nextOffer.incrementAndGet();
+            offered.put(id, new Offered(ref, meta));
+            try {
+                sendHeader("BLOB_OFFER:" + id + ":" + ref.sha() + ":" + meta);
+            } catch (IOException e) {
+                if (offered.remove(id) != null) blobs.release(ref);
+                throw e;
+            }
+        }
+
+        void sendThumbnail(String sha, String meta, byte[] jpeg) throws IOException {
+            announced.put(sha, meta);
+            mux.send(TcpMux.Priority.TEXT, "THUMB:" + sha + ":" + meta + ":" + jpeg.length, ByteBuffer.wrap(jpeg));
+        }
+
+        /** FETCH:<sha256> */
+        void onFetch(String header) throws IOException {
+            String sha = header.substring("FETCH:".length()).trim();
+            String meta = announced.get(sha);
+            BlobStore.Blob blob = (meta == null) ? null : blobs.acquire(sha);
+            if (blob == null) {
+                sendHeader("FETCH_FAIL:" + sha + ":" + (meta == null ? "Unknown image" : "Original no longer available"));
+                return;
+            }
+            try {
+                sendBlob(blob, meta);
+            } finally {
+                blobs.release(blob);
+            }
+        }
+
+        /** BLOB_WANT:<oid> | BLOB_HAVE:<oid> */
+        void onBlobReply(String header) throws IOException {
+            Offered o;
+            try {
+                o = offered.remove(Long.parseLong(header.substring(header.indexOf(':') + 1).trim()));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (o == null) return;
+            if (header.startsWith("BLOB_HAVE:")) {
+                blobs.release(o.blob);
+                return;
+            }
+            streamBlob(o.blob, "BLOB_OPEN", o.blob.sha() + ":" + o.meta);
+        }
+
+        /** Stream a referenced blob; the reference is released once the stream is done (or dropped). */
+        private void streamBlob(BlobStore.Blob blob, String verb, String meta) throws IOException {
+            try {
+                mux.stream(verb, meta, FileChannel.open(blob.path(), StandardOpenOption.READ), blob.size())
+                        .whenComplete((v, e) -> blobs.release(blob));
+            } catch (IOException e) {
+                blobs.release(blob);
+                throw e;
+            }
+        }
+
+        void dropOffers() {
+            for (Long id : new ArrayList<>(offered.keySet())) {
+                Offered o = offered.remove(id);
+                if (o != null) blobs.release(o.blob);
+            }
+        }
+
+        void sendVoiceChunk(String from, String to, byte[] bytes) throws IOException {
+            mux.send(TcpMux.Priority.VOICE, "VOICE_CHUNK:" + from + ":" + to + ":" + bytes.length, ByteBuffer.wrap(bytes));
         }
 
         @Override public void close() throws IOException {
+            mux.close();
+            dropOffers();
             try { socket.close(); } catch (Exception ignored) {}
         }
     }
@@ -0,0 +1,89 @@
+package tcp;
+
+import core.store.BlobStore;
+import core.util.Images;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thumbnails for relayed images (server side).
+ *
+ * - Made on a small bounded pool, never on a connection's reader thread. When the queue is full
+ *   the future fails right away and the caller sends the original instead.
+ * - JPEG, longest side SIZE, decoded with ImageIO subsampling (see {@link Images}).
+ * - LRU cache keyed by content SHA-256, bounded in bytes, so re-sent images cost nothing.
+ */
+final class TcpThumbnails implements AutoCloseable {
+    static final int SIZE = 360;
+    static final float QUALITY = 0.8f;
+    static final long CACHE_BYTES = 8L * 1024 * 1024;
+    private static final int THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int QUEUE = 32;
+
+    private final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE), r -> {
+                Thread t = new Thread(r, "TcpThumbnail");
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            });
+
+    // access-ordered: eldest entry is the least recently used one
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    TcpThumbnails() {
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Thumbnail of a stored image. The blob must stay referenced until the future completes.
+     * Fails if the image cannot be decoded or the pool is saturated.
+     */
+    CompletableFuture<byte[]> of(BlobStore.Blob blob) {
+        byte[] hit;
+        synchronized (this) { hit = cache.get(blob.sha()); }
+        if (hit != null) return CompletableFuture.completedFuture(hit);
+
+        CompletableFuture<byte[]> f = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                try {
+                    byte[] jpeg = Images.jpeg(Images.decode(blob.path(), SIZE), QUALITY);
+                    put(blob.sha(), jpeg);
+                    f.complete(jpeg);
+                } catch (Throwable e) {
+                    f.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    private synchronized void put(String sha, byte[] jpeg) {
+        byte[] old = cache.put(sha, jpeg);
+        cachedBytes += jpeg.length - (old == null ? 0 : old.length);
+        Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator();
+        while (cachedBytes > CACHE_BYTES && it.hasNext()) {
+            cachedBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    @Override public void close() {
+        pool.shutdownNow();
+        synchronized (this) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+}
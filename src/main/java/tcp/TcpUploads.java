@@ -0,0 +1,314 @@
+package tcp;
+
+import core.model.BinaryKind;
+import core.store.Attachment;
+import core.store.AttachmentStore;
+import core.store.BlobStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Server side of resumable uploads (XFER_* frames).
+ *
+ * - Each transfer has an id chosen by the sender (stable across reconnects).
+ * - Chunks are addressed by offset and carry a CRC32. They may arrive out of order (parallel
+ *   stripes): each one is written at its offset, and the contiguous prefix advances over them.
+ *   Chunks need not line up: what arrived beyond the prefix is kept as merged ranges, so a chunk
+ *   that overlaps others (a resend cut differently) only adds the bytes that were missing.
+ * - A running SHA-256 follows the contiguous prefix; chunks that landed ahead of a gap are read
+ *   back from the (page-cached) spool file when the gap closes.
+ * - Partial transfers outlive the session that started them until they expire.
+ * - Verified files go into the {@link BlobStore}. If an offered SHA-256 is already stored, the
+ *   sender gets a claim instead: it proves it has the content (hash of a nonce and a few random
+ *   ranges) and skips the upload. Without the proof, knowing a hash would be enough to fetch a file.
+ */
+final class TcpUploads implements AutoCloseable {
+    static final long EXPIRE_MS = 10 * 60 * 1000;
+    static final long DEFAULT_MAX_SIZE = TcpServerCore.SPOOL_CAPACITY;
+    private static final long MAX_MAP = 64L * 1024 * 1024; // received ranges are hashed in pieces of this
+
+    static final class Upload {
+        final String id;
+        final BinaryKind kind;
+        final String from;
+        final String to;
+        final String fileName;
+        final long size;
+        final String sha256;
+
+        private final AttachmentStore.Pending file;
+        private final MessageDigest digest;
+        private long contiguous;
+        private final TreeMap<Long, Long> ahead = new TreeMap<>(); // start -> end of ranges received beyond contiguous
+        private volatile long touched = System.currentTimeMillis();
+
+        Upload(String id, BinaryKind kind, String from, String to, String fileName, long size, String sha256,
+               AttachmentStore.Pending file) {
+            this.id = id; this.kind = kind; this.from = from; this.to = to; this.fileName = fileName;
+            this.size = size; this.sha256 = sha256; this.file = file;
+            this.digest = sha256();
+        }
+
+        synchronized long contiguous() { return contiguous; }
+    }
+
+    /** Offer of content the server already has; redeemed with XFER_PROOF. */
+    static final class Claim {
+        final String id;
+        final BinaryKind kind;
+        final String from;
+        final String to;
+        final String fileName;
+        final long size;
+        final String sha256;
+
+        private final byte[] nonce = new byte[16];
+        private final long[] offsets = new long[PROOF_RANGES];
+        private final int len;
+        private final long created = System.currentTimeMillis();
+
+        Claim(String id, BinaryKind kind, String from, String to, String fileName, long size, String sha256) {
+            this.id = id; this.kind = kind; this.from = from; this.to = to; this.fileName = fileName;
+            this.size = size; this.sha256 = sha256;
+            this.len = (int) Math.min(PROOF_RANGE_SIZE, size);
+            RANDOM.nextBytes(nonce);
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = (size == len) ? 0 : (RANDOM.nextLong() & Long.MAX_VALUE) % (size - len + 1);
+            }
+        }
+
+        /** <nonce>:<len>:<offset,offset,...> (the tail of XFER_PROVE) */
+        String challenge() {
+            StringBuilder sb = new StringBuilder(HexFormat.of().formatHex(nonce)).append(':').append(len).append(':');
+            for (int i = 0; i < offsets.length; i++) sb.append(i == 0 ? "" : ",").append(offsets[i]);
+            return sb.toString();
+        }
+    }
+
+    static final int PROOF_RANGES = 4;
+    static final int PROOF_RANGE_SIZE = 4096;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final AttachmentStore spool;
+    private final BlobStore blobs;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Claim> claims = new ConcurrentHashMap<>();
+    private volatile long maxSize = Long.parseLong(System.getProperty("chat.upload.max", String.valueOf(DEFAULT_MAX_SIZE)).trim());
+
+    TcpUploads(AttachmentStore spool, BlobStore blobs) {
+        this.spool = spool;
+        this.blobs = blobs;
+    }
+
+    /** A claim the sender can redeem instead of uploading, or null if the content is not stored. */
+    Claim claim(String id, BinaryKind kind, String from, String to, String fileName, long size, String sha256) throws IOException {
+        expire();
+        String sha = BlobStore.checkSha(sha256);
+        if (size <= 0 || !blobs.contains(sha, size)) return null;
+        Claim c = new Claim(id, kind, from, to, fileName, size, sha);
+        claims.put(id, c);
+        return c;
+    }
+
+    Claim takeClaim(String id) {
+        return claims.remove(id);
+    }
+
+    /** The stored blob (acquired) if proof matches the claim's challenge, else null. */
+    BlobStore.Blob redeem(Claim c, String proof) throws IOException {
+        BlobStore.Blob b = blobs.acquire(c.sha256);
+        if (b == null) return null;
+        boolean ok;
+        try (FileChannel fc = FileChannel.open(b.path())) {
+            ok = b.size() == c.size && proof(fc, c.nonce, c.len, c.offsets).equalsIgnoreCase(proof);
+        } catch (IOException e) {
+            ok = false;
+        }
+        if (ok) return b;
+        blobs.release(b);
+        return null;
+    }
+
+    /** Answer to XFER_PROVE: SHA-256 over the nonce followed by len bytes at each offset. */
+    static String proof(FileChannel fc, byte[] nonce, int len, long[] offsets) throws IOException {
+        MessageDigest md = sha256();
+        md.update(nonce);
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        for (long off : offsets) {
+            buf.clear();
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, off + buf.position()) < 0) throw new IOException("File shorter than offered");
+            }
+            buf.flip();
+            md.update(buf);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /** Client side of {@link #proof}: challenge is the tail of XFER_PROVE:<id>:<nonce>:<len>:<offsets>. */
+    static String proof(FileChannel fc, String challenge) throws IOException {
+        String[] p = challenge.split(":", 3);
+        try {
+            int len = Integer.parseInt(p[1]);
+            String[] o = p[2].split(",");
+            if (len < 0 || len > PROOF_RANGE_SIZE || o.length > PROOF_RANGES) throw new IOException("Bad XFER_PROVE");
+            long[] offsets = new long[o.length];
+            for (int i = 0; i < o.length; i++) offsets[i] = Long.parseLong(o[i]);
+            return proof(fc, HexFormat.of().parseHex(p[0]), len, offsets);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Bad XFER_PROVE");
+        }
+    }
+
+    /** Largest upload offered (bytes); larger or empty ones are refused by offer(). */
+    void setMaxSize(long bytes) {
+        this.maxSize = bytes;
+    }
+
+    /**
+     * Register (or find) a transfer and return the offset the sender should continue from.
+     * Throws (the sender gets XFER_FAIL) for a size that is not positive or over the maximum, or a bad hash.
+     */
+    long offer(String id, BinaryKind kind, String from, String to, String fileName, long size, String sha256) throws IOException {
+        if (size <= 0) throw new IOException("Bad size: " + size);
+        if (size > maxSize) throw new IOException("File too large (over " + maxSize + " bytes)");
+        sha256 = BlobStore.checkSha(sha256);
+        expire();
+        Upload u = uploads.get(id);
+        if (u != null && (u.size != size || !u.sha256.equals(sha256) || !u.from.equals(from))) {
+            drop(id); // same id, different content: start over
+            u = null;
+        }
+        if (u == null) {
+            u = new Upload(id, kind, from, to, fileName, size, sha256, spool.begin(fileName, size));
+            uploads.put(id, u);
+        }
+        u.touched = System.currentTimeMillis();
+        return u.contiguous();
+    }
+
+    /**
+     * Apply one XFER_CHUNK body (buf[0, len), already read off the connection and expanded if it was compressed).
+     * Returns false if the chunk was not applied (unknown id, already received, out of range or CRC mismatch).
+     * Safe to call from several connections at once: the positional write happens outside the lock.
+     */
+    boolean chunk(String id, long offset, int len, long crc, byte[] buf) throws IOException {
+        Upload u = uploads.get(id);
+        if (u == null || len <= 0 || offset < 0 || offset + len > u.size) return false;
+        long end = offset + len;
+        u.touched = System.currentTimeMillis();
+        synchronized (u) {
+            if (received(u, offset, end)) return false;
+        }
+
+        CRC32 c = new CRC32();
+        c.update(buf, 0, len);
+        if (c.getValue() != crc) return false;
+
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        long pos = offset;
+        while (bb.hasRemaining()) pos += u.file.channel().write(bb, pos);
+
+        synchronized (u) {
+            if (received(u, offset, end)) return false;
+            add(u.ahead, Math.max(offset, u.contiguous), end);
+            Long stop = u.ahead.remove(u.contiguous);
+            if (stop == null) return true; // still a gap before it
+            long from = u.contiguous;
+            if (offset <= from) { // this chunk starts the range: hash it from buf
+                u.digest.update(buf, (int) (from - offset), (int) (end - from));
+                from = end;
+            }
+            for (long n; from < stop; from += n) { // chunks that were waiting, read back from the file
+                n = Math.min(stop - from, MAX_MAP);
+                u.digest.update(u.file.channel().map(FileChannel.MapMode.READ_ONLY, from, n));
+            }
+            u.contiguous = stop;
+            return true;
+        }
+    }
+
+    /** True if [from, to) is all in the contiguous prefix or in one range already received (callers hold u). */
+    private static boolean received(Upload u, long from, long to) {
+        if (to <= u.contiguous) return true;
+        Map.Entry<Long, Long> r = u.ahead.floorEntry(Math.max(from, u.contiguous));
+        return r != null && r.getValue() >= to;
+    }
+
+    /** Add [from, to) to the ranges, merged with the ones it overlaps or touches. */
+    private static void add(TreeMap<Long, Long> ranges, long from, long to) {
+        Map.Entry<Long, Long> r = ranges.floorEntry(from);
+        if (r != null && r.getValue() >= from) {
+            from = r.getKey();
+            to = Math.max(to, r.getValue());
+            ranges.remove(r.getKey());
+        }
+        while ((r = ranges.ceilingEntry(from)) != null && r.getKey() <= to) {
+            to = Math.max(to, r.getValue());
+            ranges.remove(r.getKey());
+        }
+        ranges.put(from, to);
+    }
+
+    Upload get(String id) {
+        return uploads.get(id);
+    }
+
+    /**
+     * Finish a fully received transfer: checks the digest and moves the spooled file into the
+     * blob store (returned acquired). Throws if the digest does not match (the partial data is dropped).
+     */
+    BlobStore.Blob complete(Upload u) throws IOException {
+        uploads.remove(u.id);
+        Attachment spooled;
+        synchronized (u) {
+            String actual = HexFormat.of().formatHex(u.digest.digest());
+            if (!actual.equalsIgnoreCase(u.sha256)) {
+                u.file.abort();
+                throw new IOException("SHA-256 mismatch");
+            }
+            spooled = u.file.finish();
+        }
+        try {
+            return blobs.put(u.sha256, spooled.path());
+        } finally {
+            spooled.release();
+        }
+    }
+
+    void drop(String id) {
+        Upload u = uploads.remove(id);
+        if (u != null) u.file.abort();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Upload u : uploads.values()) {
+            if (now - u.touched > EXPIRE_MS) drop(u.id);
+        }
+        claims.values().removeIf(c -> now - c.created > EXPIRE_MS);
+    }
+
+    @Override public void close() {
+        for (String id : uploads.keySet()) drop(id);
+        claims.clear();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
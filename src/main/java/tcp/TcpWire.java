@@ -1,17 +1,34 @@
 package tcp;
 
+import core.net.BinarySink;
 import core.util.IOUtil;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * TCP framing:
  * - Header: DataOutputStream.writeUTF(String)
  * - Optional bytes: for frames that include a ':<size>' suffix
+ *
+ * File payloads can bypass the streams: sendFile() uses FileChannel.transferTo (sendfile)
+ * and receiveToFile() uses FileChannel.transferFrom after draining what the reader already buffered.
  */
 public final class TcpWire {
     private TcpWire() {}
 
+    /** Buffered socket input that can tell how many bytes it has already pulled off the socket. */
+    public static final class Input extends BufferedInputStream {
+        public Input(InputStream in) { super(in, 32 * 1024); }
+
+        synchronized int buffered() { return count - pos; }
+    }
+
     public static void sendHeader(DataOutputStream out, String header) throws IOException {
         out.writeUTF(header);
         out.flush();
@@ -30,4 +47,117 @@ public final class TcpWire {
         IOUtil.readFully(in, data, 0, data.length);
         return data;
     }
+
+    /**
+     * Read size payload bytes through buf into the sink, chunk by chunk.
+     * If the sink fails, it is aborted and the rest of the payload is skipped so the stream stays framed.
+     * If the stream fails, the sink is aborted and the error is rethrown.
+     */
+    public static void streamBytes(DataInputStream in, long size, BinarySink sink, byte[] buf) throws IOException {
+        long offset = 0;
+        boolean sinkOk = true;
+        try {
+            while (offset < size) {
+                int want = (int) Math.min(buf.length, size - offset);
+                int r = in.read(buf, 0, want);
+                if (r < 0) throw new EOFException("Stream ended early");
+                if (sinkOk) {
+                    try {
+                        sink.chunk(offset, ByteBuffer.wrap(buf, 0, r));
+                    } catch (Exception e) {
+                        sinkOk = false;
+                        sink.abort("Receiver failed: " + e.getMessage());
+                    }
+                }
+                offset += r;
+            }
+        } catch (IOException e) {
+            if (sinkOk) sink.abort("Connection lost: " + e.getMessage());
+            throw e;
+        }
+        if (sinkOk) {
+            try { sink.end(); } catch (Exception e) { sink.abort("Receiver failed: " + e.getMessage()); }
+        }
+    }
+
+    /** Header through the stream, then the file body straight from the page cache to the socket. */
+    public static void sendFile(DataOutputStream out, WritableByteChannel socket, String headerWithSizeSuffix,
+                                FileChannel file, long size) throws IOException {
+        out.writeUTF(headerWithSizeSuffix);
+        out.flush();
+        long pos = 0;
+        while (pos < size) {
+            long n = file.transferTo(pos, size - pos, socket);
+            if (n <= 0 && file.size() <= pos) throw new EOFException("File shrank during send");
+            pos += n;
+        }
+    }
+
+    /**
+     * Write size payload bytes into target (from position 0): bytes the reader already buffered go first,
+     * the rest is moved by transferFrom without passing through the Java heap.
+     */
+    public static void receiveToFile(Input buffered, DataInputStream in, ReadableByteChannel socket,
+                                     long size, FileChannel target) throws IOException {
+        receiveToFile(buffered, in, socket, 0, size, target);
+    }
+
+    /** Same as above for len bytes written at offset (one slice of a multiplexed stream). */
+    public static void receiveToFile(Input buffered, DataInputStream in, ReadableByteChannel socket,
+                                     long offset, long len, FileChannel target) throws IOException {
+        long pos = offset;
+        long size = offset + len;
+        int pre = (int) Math.min(len, buffered.buffered());
+        if (pre > 0) {
+            byte[] head = new byte[pre];
+            IOUtil.readFully(in, head, 0, pre);
+            ByteBuffer bb = ByteBuffer.wrap(head);
+            while (bb.hasRemaining()) pos += target.write(bb, pos);
+        }
+        while (pos < size) {
+            long n = target.transferFrom(socket, pos, size - pos);
+            if (n <= 0) throw new EOFException("Stream ended early");
+            pos += n;
+        }
+    }
+
+    /**
+     * Hand a stored file to a sink as if it had just arrived: transferTo into sink.target() when
+     * it offers one, else 64 KB chunks. The sink is ended, or aborted if anything fails.
+     */
+    public static void feedFile(Path file, long size, BinarySink sink) throws IOException {
+        try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileChannel target = sink.target();
+            if (target != null) {
+                long pos = 0;
+                while (pos < size) {
+                    long n = src.transferTo(pos, size - pos, target);
+                    if (n <= 0) throw new EOFException("File truncated");
+                    pos += n;
+                }
+            } else {
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                long pos = 0;
+                while (pos < size) {
+                    buf.clear();
+                    int n = src.read(buf, pos);
+                    if (n < 0) throw new EOFException("File truncated");
+                    buf.flip();
+                    sink.chunk(pos, buf);
+                    pos += n;
+                }
+            }
+            sink.end();
+        } catch (IOException | RuntimeException e) {
+            sink.abort("Receiver failed: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /** Header through the stream, then a body buffer (e.g. a mapped file region) straight to the socket. */
+    public static void sendBuffer(DataOutputStream out, WritableByteChannel socket, String header, ByteBuffer body) throws IOException {
+        out.writeUTF(header);
+        out.flush();
+        while (body.hasRemaining()) socket.write(body);
+    }
 }
@@ -1,18 +1,26 @@
 package udp;
 
+import core.audio.PcmBuffer;
 import core.audio.VoiceFormat;
 import core.model.BinaryKind;
+import core.model.HistoryEntry;
+import core.model.SearchQuery;
 import core.net.ChatClientApi;
 import core.net.ChatClientListener;
+import core.net.Keepalive;
 import core.net.LogSink;
 
 import javax.sound.sampled.AudioFormat;
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * UI-free UDP client core.
@@ -21,6 +29,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * - text
  * - binary (chunked base64 with BIN_* messages)
  * - voice (buffered send): VOICE_START / VOICE_CHUNK / VOICE_END
+ * - rooms: JOIN / PART, member lists in ROOM packets
+ * - history and search: HISTORY / SEARCH requests, answered with HIST / FOUND packets collected
+ *   until HISTORY_END / SEARCH_END
+ * - keepalive ({@link Keepalive}): PING with the interval every interval; the listener is told when
+ *   the server stops answering and when it is back, and an EXPIRED session says HELLO again and
+ *   rejoins its rooms
  *
  * Packet format: TYPE|FROM|TO|PAYLOAD
  */
@@ -34,11 +48,31 @@ public final class UdpClientCore implements ChatClientApi {
 
     private DatagramSocket socket;
     private Thread rxThread;
+    private Thread keepaliveThread;
     private final AtomicBoolean connected = new AtomicBoolean(false);
+    private volatile long keepaliveMs = Keepalive.intervalFromProperties(); // 0: off
+    private volatile long lastHeard; // last datagram from the server (ms)
+    private volatile boolean serverLost;
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet(); // joined, to rejoin after EXPIRED
 
     private final UdpReassembler reassembler = new UdpReassembler();
     private UdpChunkTransfer chunker;
 
+    // HISTORY / SEARCH request id -> what was asked and the messages received so far
+    private final Map<Long, HistoryRequest> historyRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextHistoryRequest = new AtomicLong();
+
+    private static final class HistoryRequest {
+        final String with;
+        final SearchQuery query; // null for HISTORY
+        final List<HistoryEntry> page = new ArrayList<>();
+
+        HistoryRequest(String with, SearchQuery query) {
+            this.with = with;
+            this.query = query;
+        }
+    }
+
     public UdpClientCore(InetAddress serverHost, int serverPort, String name, ChatClientListener listener, LogSink log) {
         this.serverHost = serverHost;
         this.serverPort = serverPort;
@@ -60,11 +94,44 @@ public final class UdpClientCore implements ChatClientApi {
         rxThread.start();
 
         sendRaw("HELLO|" + name + "|*|hi");
+        lastHeard = System.currentTimeMillis();
+        serverLost = false;
+        long interval = keepaliveMs;
+        if (interval > 0) {
+            sendRaw("PING|" + name + "|SERVER|" + interval);
+            DatagramSocket s = socket;
+            keepaliveThread = new Thread(() -> keepaliveLoop(s, interval), "UdpKeepalive-" + name);
+            keepaliveThread.setDaemon(true);
+            keepaliveThread.start();
+        }
         log.log("[UDP] Connected as " + name + " to " + serverHost.getHostAddress() + ":" + serverPort);
     }
 
     @Override public boolean isConnected() { return connected.get(); }
 
+    /** Keepalive interval for the next connect, in ms (0 turns keepalive off). */
+    public void setKeepalive(long intervalMs) {
+        this.keepaliveMs = (intervalMs <= 0) ? 0 : Keepalive.clamp(intervalMs);
+    }
+
+    private void keepaliveLoop(DatagramSocket s, long interval) {
+        while (connected.get() && socket == s) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!connected.get() || socket != s) return;
+            try { sendRaw("PING|" + name + "|SERVER|" + interval); } catch (Exception ignored) {}
+            long silent = System.currentTimeMillis() - lastHeard;
+            if (!serverLost && silent > Keepalive.timeout(interval)) {
+                serverLost = true;
+                log.warn("[UDP] Server not answering for " + silent / 1000 + " s");
+                listener.onText("SERVER", name, "Server not answering");
+            }
+        }
+    }
+
     @Override public String name() { return name; }
 
     private void rxLoop() {
@@ -74,6 +141,12 @@ public final class UdpClientCore implements ChatClientApi {
                 DatagramPacket pkt = new DatagramPacket(buf, buf.length);
                 socket.receive(pkt);
 
+                lastHeard = System.currentTimeMillis();
+                if (serverLost) {
+                    serverLost = false;
+                    listener.onText("SERVER", name, "Server is answering again");
+                }
+
                 String msg = UdpWire.str(pkt.getData(), pkt.getLength());
                 String[] parts = msg.split("\\|", 4);
                 if (parts.length < 4) continue;
@@ -84,23 +157,64 @@ public final class UdpClientCore implements ChatClientApi {
                 String payload = parts[3];
 
                 switch (type) {
+                    case "PONG" -> { /* lastHeard is enough */ }
+
+                    // EXPIRED|SERVER|to| - the server dropped this session after a silence
+                    case "EXPIRED" -> {
+                        log.warn("[UDP] Session expired on the server, saying HELLO again");
+                        sendRaw("HELLO|" + name + "|*|hi");
+                        if (keepaliveMs > 0) sendRaw("PING|" + name + "|SERVER|" + keepaliveMs);
+                        for (String room : rooms) sendRaw("JOIN|" + name + "|" + room + "|");
+                        listener.onText("SERVER", name, "Reconnected (the server had dropped this session)");
+                    }
+
                     case "CLIENTS" -> {
                         List<String> users = payload.isBlank() ? List.of() : Arrays.asList(payload.split(","));
                         listener.onUserList(users);
                     }
                     case "MSG" -> listener.onText(from, to, payload);
 
+                    // ROOM|SERVER|to|#room;members
+                    case "ROOM" -> {
+                        String[] p = payload.split(";", 2);
+                        if (p.length < 2) break;
+                        List<String> members = p[1].isEmpty() ? List.of() : Arrays.asList(p[1].split(","));
+                        if (members.contains(name)) rooms.add(p[0]); else rooms.remove(p[0]);
+                        listener.onRoom(p[0], members);
+                    }
+
+                    // HIST|SERVER|to|reqId;id;time;from;to;message (FOUND: same, for SEARCH)
+                    case "HIST", "FOUND" -> {
+                        String[] p = payload.split(";", 6);
+                        if (p.length < 6) break;
+                        HistoryRequest r = historyRequests.get(Long.parseLong(p[0]));
+                        if (r != null) r.page.add(new HistoryEntry(Long.parseLong(p[1]), Long.parseLong(p[2]), p[3], p[4], p[5]));
+                    }
+
+                    // HISTORY_END|SERVER|to|reqId;nextBefore
+                    case "HISTORY_END" -> {
+                        String[] p = payload.split(";", 2);
+                        if (p.length < 2) break;
+                        HistoryRequest r = historyRequests.remove(Long.parseLong(p[0]));
+                        if (r != null) listener.onHistory(r.with, r.page, Long.parseLong(p[1]));
+                    }
+
+                    // SEARCH_END|SERVER|to|reqId;nextBefore
+                    case "SEARCH_END" -> {
+                        String[] p = payload.split(";", 2);
+                        if (p.length < 2) break;
+                        HistoryRequest r = historyRequests.remove(Long.parseLong(p[0]));
+                        if (r != null) listener.onSearchResults(r.query, r.page, Long.parseLong(p[1]));
+                    }
+
                     // Binary: BIN_START|from|to|id;KIND;filename;totalChunks
-                    case "BIN_START" -> reassembler.onBinStart(from, to, payload);
+                    case "BIN_START" -> reassembler.onBinStart(from, to, payload, listener);
                     case "BIN_CHUNK" -> reassembler.onBinChunk(payload);
                     case "BIN_END" -> {
                         var in = reassembler.onBinEnd(payload);
-                        if (in == null) break;
-                        if (!in.complete()) {
+                        if (in != null && !in.complete()) {
                             listener.onText("SERVER", name, "Binary transfer missing chunks (UDP loss). Ask sender to resend.");
-                            break;
                         }
-                        listener.onBinary(in.kind, in.from, in.to, in.name, in.join());
                     }
 
                     // Voice:
@@ -125,7 +239,7 @@ public final class UdpClientCore implements ChatClientApi {
                 }
 
             } catch (Exception e) {
-                if (connected.get()) log.log("[UDP] RX error: " + e.getMessage());
+                if (connected.get()) log.warn("[UDP] RX error: " + e.getMessage());
             }
         }
     }
@@ -135,6 +249,32 @@ public final class UdpClientCore implements ChatClientApi {
         sendRaw("MSG|" + name + "|" + to + "|" + message.replace("\n", " ").trim());
     }
 
+    @Override public void joinRoom(String room) throws IOException {
+        ensureConnected();
+        sendRaw("JOIN|" + name + "|" + room.trim() + "|");
+    }
+
+    @Override public void partRoom(String room) throws IOException {
+        ensureConnected();
+        sendRaw("PART|" + name + "|" + room.trim() + "|");
+    }
+
+    @Override public void requestHistory(String with, long beforeId, int limit) throws IOException {
+        ensureConnected();
+        long id = nextHistoryRequest.incrementAndGet();
+        String w = (with == null) ? "" : with.trim();
+        historyRequests.put(id, new HistoryRequest(w, null));
+        sendRaw("HISTORY|" + name + "|" + w + "|" + id + ";" + beforeId + ";" + limit);
+    }
+
+    @Override public void search(SearchQuery q) throws IOException {
+        ensureConnected();
+        long id = nextHistoryRequest.incrementAndGet();
+        historyRequests.put(id, new HistoryRequest(q.with, q));
+        sendRaw("SEARCH|" + name + "|" + q.with + "|" + id + ";" + q.from + ";" + q.since + ";" + q.until
+                + ";" + q.beforeId + ";" + q.limit + ";" + q.text.replace("\n", " "));
+    }
+
     @Override public void sendBinary(BinaryKind kind, String to, File file) throws IOException {
         ensureConnected();
         if (file == null || !file.exists()) throw new IOException("File not found");
@@ -142,9 +282,9 @@ public final class UdpClientCore implements ChatClientApi {
         chunker.sendBinary(kind, name, to, file.getName(), bytes);
     }
 
-    @Override public void sendVoice(String to, AudioFormat format, byte[] pcmBytes) throws IOException {
+    @Override public void sendVoice(String to, AudioFormat format, PcmBuffer pcm) throws IOException {
         ensureConnected();
-        if (pcmBytes == null || pcmBytes.length == 0) return;
+        if (pcm == null || pcm.isEmpty()) return;
 
         String target = (to == null || to.isBlank()) ? "*" : to.trim();
 
@@ -155,15 +295,14 @@ public final class UdpClientCore implements ChatClientApi {
         sendRaw("VOICE_START|" + name + "|" + target + "|" + id);
 
         Base64.Encoder enc = Base64.getEncoder();
-        int seq = 0;
-        for (int off = 0; off < pcmBytes.length; off += rawChunkSize) {
-            int len = Math.min(rawChunkSize, pcmBytes.length - off);
-            byte[] part = Arrays.copyOfRange(pcmBytes, off, off + len);
-            String payload = id + ";" + (seq++) + ";" + enc.encodeToString(part);
+        int[] seq = {0};
+        pcm.forEachSlice(rawChunkSize, (b, off, len) -> {
+            String b64 = StandardCharsets.ISO_8859_1.decode(enc.encode(ByteBuffer.wrap(b, off, len))).toString();
+            String payload = id + ";" + (seq[0]++) + ";" + b64;
             sendRaw("VOICE_CHUNK|" + name + "|" + target + "|" + payload);
             // tiny delay reduces burst loss on localhost
             try { Thread.sleep(2); } catch (InterruptedException ignored) {}
-        }
+        });
 
         sendRaw("VOICE_END|" + name + "|" + target + "|" + id);
     }
@@ -180,6 +319,11 @@ public final class UdpClientCore implements ChatClientApi {
 
     @Override public void close() {
         connected.set(false);
+        historyRequests.clear();
+        rooms.clear();
+        Thread k = keepaliveThread;
+        keepaliveThread = null;
+        if (k != null) k.interrupt();
         try {
             if (socket != null) {
                 try { sendRaw("LEAVE|" + name + "|*|bye"); } catch (Exception ignored) {}
@@ -0,0 +1,217 @@
+package udp;
+
+import core.net.BackendPool;
+import core.net.LogSink;
+import core.util.IOUtil;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Front door for several {@link UdpServerCore} backends: a client's datagrams are relayed to the
+ * backend its user name hashes to ({@link BackendPool}, consistent hashing; the name is FROM of
+ * the client's first datagram), and the backend's datagrams go back to the client.
+ *
+ * - One relay channel per client address, connected to its backend, so the backend sees a
+ *   separate address per client. Clients need no changes.
+ * - One selector thread; datagrams are passed through a direct buffer without being decoded.
+ * - A relay is dropped after the client's LEAVE, after IDLE_MS without traffic either way, or
+ *   when its backend goes down; the client's next datagram is hashed again (a client moved that
+ *   way has to say HELLO again before its new backend knows it).
+ * - Backends are probed with PING (answered with PONG).
+ */
+public final class UdpFrontDoor implements AutoCloseable {
+    static final long IDLE_MS = 30 * 60_000;
+    private static final long SWEEP_MS = 1000;
+    private static final int PROBE_TIMEOUT_MS = 1000;
+
+    private static final class Relay {
+        final SocketAddress client;
+        final InetSocketAddress backend;
+        final DatagramChannel up;
+        long last;
+
+        Relay(SocketAddress client, InetSocketAddress backend, DatagramChannel up) {
+            this.client = client;
+            this.backend = backend;
+            this.up = up;
+        }
+    }
+
+    private final int port;
+    private final List<InetSocketAddress> backends;
+    private final LogSink log;
+
+    private BackendPool pool;
+    private DatagramChannel front;
+    private Selector selector;
+    private Thread loopThread;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final Map<SocketAddress, Relay> relays = new HashMap<>(); // loop thread only
+
+    public UdpFrontDoor(int port, List<InetSocketAddress> backends, LogSink log) {
+        this.port = port;
+        this.backends = List.copyOf(backends);
+        this.log = (log == null) ? LogSink.stdout() : log;
+    }
+
+    public void start() throws IOException {
+        if (running.get()) return;
+        selector = Selector.open();
+        front = DatagramChannel.open().bind(new InetSocketAddress(port));
+        front.configureBlocking(false);
+        front.register(selector, SelectionKey.OP_READ);
+        running.set(true);
+        pool = new BackendPool(backends, UdpFrontDoor::probe, log, "[UDP]");
+
+        loopThread = new Thread(this::loop, "UdpFrontDoor");
+        loopThread.setDaemon(true);
+        loopThread.start();
+        log.log("[UDP] Front door on " + port + " for " + backends);
+    }
+
+    public boolean isRunning() { return running.get(); }
+
+    private static boolean probe(InetSocketAddress backend) {
+        String token = Long.toHexString(System.nanoTime());
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.setSoTimeout(PROBE_TIMEOUT_MS);
+            byte[] ping = UdpWire.bytes("PING|frontdoor|SERVER|" + token);
+            s.send(new DatagramPacket(ping, ping.length, backend));
+            byte[] buf = new byte[256];
+            DatagramPacket reply = new DatagramPacket(buf, buf.length);
+            s.receive(reply);
+            return UdpWire.str(buf, reply.getLength()).endsWith("|" + token);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void loop() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(65_536);
+        long nextSweep = System.currentTimeMillis() + SWEEP_MS;
+        try {
+            while (running.get()) {
+                selector.select(SWEEP_MS);
+                long now = System.currentTimeMillis();
+                for (SelectionKey k : selector.selectedKeys()) {
+                    if (k.channel() == front) {
+                        SocketAddress from;
+                        while ((from = front.receive(buf)) != null) {
+                            buf.flip();
+                            fromClient(from, buf, now);
+                            buf.clear();
+                        }
+                    } else {
+                        fromBackend((Relay) k.attachment(), buf, now);
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_MS;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running.get()) log.warn("[UDP] Front door error: " + e.getMessage());
+        } finally {
+            close();
+            for (Relay r : relays.values()) IOUtil.closeQuietly(r.up);
+            relays.clear();
+        }
+    }
+
+    private void fromClient(SocketAddress client, ByteBuffer datagram, long now) {
+        Relay r = relays.get(client);
+        if (r == null) {
+            String user = field(datagram, 1);
+            InetSocketAddress backend = (user == null) ? null : pool.pick(user);
+            if (backend == null) return;
+            DatagramChannel up = null;
+            try {
+                up = DatagramChannel.open();
+                up.connect(backend);
+                up.configureBlocking(false);
+                r = new Relay(client, backend, up);
+                up.register(selector, SelectionKey.OP_READ, r);
+            } catch (IOException e) {
+                IOUtil.closeQuietly(up);
+                return;
+            }
+            relays.put(client, r);
+            log.debug(() -> "[UDP] Front door: " + user + " (" + client + ") -> " + backend);
+        }
+        boolean leave = "LEAVE".equals(field(datagram, 0));
+        try {
+            r.up.write(datagram);
+            r.last = now;
+        } catch (IOException e) {
+            drop(r);
+            return;
+        }
+        if (leave) drop(r);
+    }
+
+    private void fromBackend(Relay r, ByteBuffer buf, long now) {
+        try {
+            while (r.up.read(buf) > 0) {
+                buf.flip();
+                front.send(buf, r.client);
+                buf.clear();
+                r.last = now;
+            }
+        } catch (IOException e) {
+            buf.clear();
+            drop(r); // e.g. PortUnreachableException: the backend is gone
+        }
+    }
+
+    /** Relays idle for IDLE_MS, or whose backend is down. */
+    private void sweep(long now) {
+        Set<InetSocketAddress> healthy = new HashSet<>(pool.healthy());
+        for (Relay r : new ArrayList<>(relays.values())) {
+            if (now - r.last > IDLE_MS || !healthy.contains(r.backend)) drop(r);
+        }
+    }
+
+    private void drop(Relay r) {
+        relays.remove(r.client, r);
+        IOUtil.closeQuietly(r.up);
+    }
+
+    /** Field i of TYPE|FROM|TO|PAYLOAD, without consuming the buffer; null if there is no such field. */
+    static String field(ByteBuffer datagram, int i) {
+        int start = datagram.position();
+        int end = datagram.limit();
+        for (int p = start, n = 0; p < end; p++) {
+            if (datagram.get(p) != '|') continue;
+            if (n == i) return slice(datagram, start, p);
+            n++;
+            start = p + 1;
+        }
+        return null;
+    }
+
+    private static String slice(ByteBuffer b, int from, int to) {
+        byte[] out = new byte[to - from];
+        b.duplicate().position(from).get(out);
+        return new String(out, StandardCharsets.UTF_8);
+    }
+
+    @Override public void close() {
+        if (!running.getAndSet(false)) return;
+        BackendPool p = pool;
+        if (p != null) p.close();
+        IOUtil.closeQuietly(selector);
+        IOUtil.closeQuietly(front);
+        log.log("[UDP] Front door stopped");
+    }
+}
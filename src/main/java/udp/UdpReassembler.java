@@ -1,13 +1,19 @@
 package udp;
 
 import core.model.BinaryKind;
+import core.net.BinarySink;
+import core.net.ChatClientListener;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Base64;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-/** Reassembles BIN_* transfers (images/files). Voice is streamed directly via callbacks. */
+/**
+ * Reassembles BIN_* transfers (images/files) and streams them to a {@link BinarySink}.
+ * In-order chunks are handed over as soon as they arrive; only out-of-order chunks are held
+ * until the gap before them is filled. Voice is streamed directly via callbacks.
+ */
 public final class UdpReassembler {
 
     public static final class Incoming {
@@ -17,35 +23,67 @@ public final class UdpReassembler {
         public final BinaryKind kind;
         public final String name; // filename
         public final int total;
-        public final byte[][] parts;
-        public final boolean[] got;
 
-        public Incoming(String from, String to, String id, BinaryKind kind, String name, int total) {
+        private final BinarySink sink;
+        private final byte[][] pending; // out-of-order chunks waiting for the gap before them
+        private int next;               // index of the next chunk the sink expects
+        private long offset;            // bytes already handed to the sink
+        private boolean failed;
+
+        public Incoming(String from, String to, String id, BinaryKind kind, String name, int total, BinarySink sink) {
             this.from = from; this.to = to; this.id = id; this.kind = kind; this.name = name; this.total = total;
-            this.parts = new byte[total][];
-            this.got = new boolean[total];
+            this.sink = sink;
+            this.pending = new byte[total][];
+        }
+
+        public synchronized boolean complete() {
+            return !failed && next == total;
         }
 
-        public boolean complete() {
-            for (boolean b : got) if (!b) return false;
-            return true;
+        synchronized void accept(int idx, byte[] part) {
+            if (failed || idx < next || pending[idx] != null) return;
+            pending[idx] = part;
+            while (next < total && pending[next] != null) {
+                byte[] p = pending[next];
+                pending[next++] = null;
+                try {
+                    sink.chunk(offset, ByteBuffer.wrap(p));
+                } catch (Exception e) {
+                    failed = true;
+                    sink.abort("Receiver failed: " + e.getMessage());
+                    return;
+                }
+                offset += p.length;
+            }
         }
 
-        public byte[] join() throws Exception {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            for (int i = 0; i < total; i++) out.write(parts[i]);
-            return out.toByteArray();
+        synchronized void finish() {
+            if (failed) return;
+            if (next != total) {
+                failed = true;
+                sink.abort("Missing chunks (" + next + "/" + total + ")");
+                return;
+            }
+            try {
+                sink.end();
+            } catch (Exception e) {
+                failed = true;
+                sink.abort("Receiver failed: " + e.getMessage());
+            }
         }
     }
 
     private final Map<String, Incoming> bin = new ConcurrentHashMap<>();
 
-    public void onBinStart(String from, String to, String payload) {
+    public void onBinStart(String from, String to, String payload, ChatClientListener listener) {
         // id;KIND;filename;totalChunks
         String[] p = payload.split(";", 4);
         if (p.length < 4) return;
 
         String id = p[0];
+        // START is sent several times; keep the first one
+        if (bin.containsKey(id)) return;
+
         BinaryKind kind;
         try { kind = BinaryKind.valueOf(p[1]); } catch (Exception e) { return; }
 
@@ -53,7 +91,8 @@ public final class UdpReassembler {
         int total = parseInt(p[3]);
         if (total <= 0) return;
 
-        bin.put(id, new Incoming(from, to, id, kind, filename, total));
+        BinarySink sink = listener.onBinaryBegin(kind, from, to, filename, -1);
+        bin.put(id, new Incoming(from, to, id, kind, filename, total, sink));
     }
 
     public void onBinChunk(String payload) {
@@ -65,17 +104,18 @@ public final class UdpReassembler {
         int idx = parseInt(p[1]);
 
         Incoming in = bin.get(id);
-        if (in == null || idx < 0 || idx >= in.total || in.got[idx]) return;
+        if (in == null || idx < 0 || idx >= in.total) return;
 
         try {
-            byte[] part = Base64.getDecoder().decode(p[2]);
-            in.parts[idx] = part;
-            in.got[idx] = true;
+            in.accept(idx, Base64.getDecoder().decode(p[2]));
         } catch (Exception ignored) {}
     }
 
+    /** Ends (or aborts, if chunks are missing) the transfer; returns it so callers can report loss. */
     public Incoming onBinEnd(String id) {
-        return bin.remove(id.trim());
+        Incoming in = bin.remove(id.trim());
+        if (in != null) in.finish();
+        return in;
     }
 
     private static int parseInt(String s) {
@@ -1,11 +1,22 @@
 package udp;
 
 import core.audio.VoiceFormat;
+import core.model.HistoryEntry;
+import core.model.SearchQuery;
 import core.net.ChatClientListener;
+import core.net.ClientRegistry;
+import core.net.Keepalive;
 import core.net.LogSink;
+import core.net.RateLimiter;
+import core.net.RoomIndex;
 import core.net.ServerControlApi;
 import core.net.ServerControlListener;
+import core.net.TimingWheel;
+import core.store.HistoryStore;
+import core.store.MessageJournal;
+import core.store.SearchIndex;
 
+import java.io.IOException;
 import java.net.*;
 import java.util.*;
 import java.util.Base64;
@@ -24,8 +35,32 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * - BIN_START / BIN_CHUNK / BIN_END
  * - VOICE_START / VOICE_CHUNK / VOICE_END
  * - KICK (server -> client)
+ * - JOIN|from|#room| / PART|from|#room|  -> ROOM|SERVER|to|#room;members to every member (and to
+ *   the user who left); MSG, BIN and VOICE to a #room go to its members only, from members only
+ * - PING|from|SERVER|token -> PONG|SERVER|from|token (liveness probe; works without HELLO)
+ * - keepalive: a registered user's PING|from|SERVER|intervalMs (see {@link Keepalive}) is answered
+ *   the same way and arms a deadline of MISSES intervals; a user silent that long is dropped like a
+ *   LEAVE. A keepalive PING from a user who was dropped gets EXPIRED|SERVER|from| (say HELLO again)
+ * - HISTORY|from|with|reqId;beforeId;limit  (with: "*", a room, a user, or "" for everything; beforeId 0 = before HELLO)
+ *   -> HIST|SERVER|to|reqId;id;time;from;to;message per message, oldest first,
+ *   then HISTORY_END|SERVER|to|reqId;nextBefore (0 when there is nothing older)
+ * - SEARCH|from|with|reqId;sender;since;until;beforeId;limit;words  ("" / 0 = any; see {@link SearchIndex})
+ *   -> FOUND|SERVER|to|reqId;id;time;from;to;message per match, newest first,
+ *   then SEARCH_END|SERVER|to|reqId;nextBefore
+ *
+ * Flood protection (see {@link RateLimiter}; -Dchat.limit.* or setRateLimits()): MSG, BIN_START,
+ * VOICE_START, JOIN / PART, HISTORY and SEARCH count as messages per user and per address, chunks
+ * only as bytes, and each BIN_START..BIN_END holds a transfer slot (freed after TRANSFER_IDLE_MS
+ * without chunks if BIN_END is lost). Datagrams over the limits are dropped (the receive thread
+ * cannot wait, so THROTTLE drops too), or with KICK the user is kicked.
+ *
+ * A private MSG for a known user who is offline is journaled (see {@link MessageJournal})
+ * and sent to them, in order, after their next HELLO. Binary and voice are not kept.
+ * Every MSG is also kept in the {@link HistoryStore}.
  */
 public final class UdpServerCore implements ServerControlApi {
+    static final long TRANSFER_IDLE_MS = 30_000;
+
     private final int port;
     private final LogSink log;
 
@@ -36,8 +71,45 @@ public final class UdpServerCore implements ServerControlApi {
     private Thread rxThread;
     private final AtomicBoolean running = new AtomicBoolean(false);
 
-    private final Map<String, SocketAddress> clients = new ConcurrentHashMap<>();
+    private final ClientRegistry<SocketAddress> clients = new ClientRegistry<>(); // name -> address
+    private final RoomIndex rooms = new RoomIndex();
     private final UdpReassembler reassembler = new UdpReassembler();
+    private volatile MessageJournal journal; // null if it could not be opened
+    private volatile HistoryStore history;   // null if it could not be opened
+    private volatile SearchIndex search;     // over history
+    private final Map<String, HistoryView> views = new ConcurrentHashMap<>();
+
+    // keepalive: user -> silence allowed and last datagram; deadlines on the wheel
+    private final Map<String, Alive> alive = new ConcurrentHashMap<>();
+    private final TimingWheel<String> liveness = Keepalive.newWheel();
+
+    // flood protection; the maps below are used by the receive thread only
+    private volatile RateLimiter limiter = new RateLimiter(RateLimiter.Limits.fromProperties()); // null: no limits
+    private final Map<String, Transfer> transfers = new HashMap<>(); // from|id -> transfer holding a slot
+    private final Map<String, Long> warned = new HashMap<>();    // user -> last rate limit notice (ms)
+    private long transfersSwept;
+
+    private static final class Transfer {
+        final String address;
+        long last; // last chunk (ms)
+
+        Transfer(String address, long last) { this.address = address; this.last = last; }
+    }
+
+    private static final class Alive {
+        final long timeout;
+        volatile long last; // ms
+
+        Alive(long timeout, long last) { this.timeout = timeout; this.last = last; }
+    }
+
+    /** Per connected user: where their history starts and what the journal replayed to them. */
+    private static final class HistoryView {
+        final long start;
+        volatile long[] replayed = new long[0]; // history ids, sorted
+
+        HistoryView(long start) { this.start = start; }
+    }
 
     public UdpServerCore(int port, LogSink log) {
         this.port = port;
@@ -52,29 +124,52 @@ public final class UdpServerCore implements ServerControlApi {
         this.chatListener = chatListener;
     }
 
+    /** Flood protection for new datagrams; null turns it off. */
+    public void setRateLimits(RateLimiter.Limits limits) {
+        limiter = (limits == null) ? null : new RateLimiter(limits);
+    }
+
+    /** Datagrams over the limits so far (null when there are no limits). */
+    public RateLimiter.Stats rateLimitStats() {
+        RateLimiter rl = limiter;
+        return (rl == null) ? null : rl.stats();
+    }
+
     @Override public void start() throws Exception {
         if (running.get()) return;
         socket = new DatagramSocket(port);
+        socket.setSoTimeout((int) Keepalive.TICK_MS); // the receive loop also turns the keepalive wheel
         running.set(true);
+        try {
+            journal = MessageJournal.open("chatwithfriend-udp-journal-");
+        } catch (IOException e) {
+            log.warn("[UDP] Offline delivery disabled: " + e.getMessage());
+        }
+        try {
+            history = HistoryStore.open("chatwithfriend-udp-history-");
+            search = new SearchIndex(history);
+        } catch (IOException e) {
+            log.warn("[UDP] History disabled: " + e.getMessage());
+        }
 
         rxThread = new Thread(this::loop, "UdpServerRx");
         rxThread.setDaemon(true);
         rxThread.start();
         log.log("[UDP] Server listening on " + port);
+        RateLimiter rl = limiter;
+        if (rl != null) log.log("[UDP] Rate limits per user: " + rl.limits());
     }
 
     @Override public boolean isRunning() { return running.get(); }
 
     @Override public List<String> getClients() {
-        List<String> names = new ArrayList<>(clients.keySet());
-        Collections.sort(names);
-        return names;
+        return clients.names();
     }
 
     @Override public void kick(String name, String reason) {
         if (name == null || name.isBlank()) return;
 
-        SocketAddress addr = clients.remove(name);
+        SocketAddress addr = forget(name);
         if (addr == null) return;
 
         String r = (reason == null || reason.isBlank()) ? "Removed by server" : reason.trim();
@@ -86,10 +181,26 @@ public final class UdpServerCore implements ServerControlApi {
         try { broadcastClients(); } catch (Exception ignored) {}
     }
 
+    /** A user is gone (LEAVE, kick or silence): unregister them and leave their rooms. */
+    private SocketAddress forget(String name) {
+        SocketAddress addr = clients.remove(name);
+        if (addr == null) return null;
+        views.remove(name);
+        if (alive.remove(name) != null) liveness.cancel(name);
+        roomsLeft(rooms.leaveAll(name));
+        return addr;
+    }
+
     private void loop() {
         byte[] buf = new byte[65_000];
+        long nextTick = 0;
         while (running.get()) {
             try {
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) {
+                    expire(now);
+                    nextTick = now + Keepalive.TICK_MS;
+                }
                 DatagramPacket pkt = new DatagramPacket(buf, buf.length);
                 socket.receive(pkt);
 
@@ -101,38 +212,228 @@ public final class UdpServerCore implements ServerControlApi {
                 String from = parts[1];
                 String to = parts[2];
                 String payload = parts[3];
+                if (!admit(type, from, payload, pkt, msg.length())) continue;
+                Alive a = alive.get(from);
+                if (a != null) a.last = System.currentTimeMillis();
 
                 switch (type) {
                     case "HELLO" -> {
+                        HistoryStore h = history;
+                        views.put(from, new HistoryView(h == null ? Long.MAX_VALUE : h.lastId() + 1));
                         clients.put(from, pkt.getSocketAddress());
+                        if (alive.remove(from) != null) liveness.cancel(from); // until its first keepalive
                         log.log("[UDP] " + from + " joined");
                         broadcastClients();
+                        replayJournal(from, pkt.getSocketAddress());
                     }
                     case "LEAVE" -> {
-                        clients.remove(from);
+                        if (forget(from) == null) continue;
                         log.log("[UDP] " + from + " left");
                         broadcastClients();
                     }
+                    case "PING" -> ping(from, payload, pkt.getSocketAddress());
+                    case "JOIN" -> joinRoom(from, to);
+                    case "PART" -> partRoom(from, to);
+                    case "HISTORY" -> sendHistory(from, to, payload);
+                    case "SEARCH" -> sendSearch(from, to, payload);
                     case "MSG", "BIN_START", "BIN_CHUNK", "BIN_END", "VOICE_START", "VOICE_CHUNK", "VOICE_END" -> {
-                        forward(msg, from, to);
+                        if (!mayPost(type, from, to)) continue;
+                        long historyId = "MSG".equals(type) ? remember(from, to, payload) : 0;
+                        forward(type, msg, from, to, historyId);
                         notifyChat(type, from, to, payload);
                     }
                     default -> { /* ignore */ }
                 }
 
+            } catch (SocketTimeoutException e) {
+                // nothing for a tick
             } catch (Exception e) {
-                if (running.get()) log.log("[UDP] RX error: " + e.getMessage());
+                if (running.get()) log.warn("[UDP] RX error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * PONG, and for a keepalive (payload: the client's interval in ms) from the user's registered
+     * address a new deadline; a keepalive from a user who is not registered is answered EXPIRED.
+     */
+    private void ping(String from, String payload, SocketAddress addr) throws Exception {
+        long interval = Keepalive.parseInterval(payload);
+        if (interval > 0 && addr.equals(clients.get(from))) {
+            long now = System.currentTimeMillis();
+            Alive a = alive.get(from);
+            if (a == null || a.timeout != Keepalive.timeout(interval)) {
+                a = new Alive(Keepalive.timeout(interval), now);
+                alive.put(from, a);
+                liveness.schedule(from, now + a.timeout);
             }
+        } else if (interval > 0 && !clients.contains(from)) {
+            send(addr, "EXPIRED|SERVER|" + from + "|");
+            return;
+        }
+        send(addr, "PONG|SERVER|" + from + "|" + payload);
+    }
+
+    /**
+     * Users whose deadline passed: dropped if nothing came from them since it was set, else given
+     * a new one (datagrams only stamp Alive.last, the wheel is touched once per timeout).
+     */
+    private void expire(long now) {
+        boolean changed = false;
+        for (String name : liveness.advance(now)) {
+            Alive a = alive.get(name);
+            if (a == null) continue;
+            if (a.last + a.timeout > now) {
+                liveness.schedule(name, a.last + a.timeout);
+                continue;
+            }
+            if (!alive.remove(name, a) || forget(name) == null) continue;
+            log.log("[UDP] " + name + " timed out (silent for " + (now - a.last) / 1000 + " s)");
+            changed = true;
+        }
+        if (changed) {
+            try { broadcastClients(); } catch (Exception ignored) {}
+        }
+    }
+
+    /**
+     * Rate limits for a datagram: false to drop it. PING and the ends of transfers and voice are
+     * not limited (losing an END would leave the receivers waiting).
+     */
+    private boolean admit(String type, String from, String payload, DatagramPacket pkt, int bytes) {
+        RateLimiter rl = limiter;
+        if (rl == null) return true;
+        String address = pkt.getAddress().getHostAddress();
+        long now = System.currentTimeMillis();
+        switch (type) {
+            case "PING", "LEAVE", "VOICE_END" -> {
+                return true;
+            }
+            case "BIN_END" -> {
+                Transfer t = transfers.remove(from + "|" + payload.trim());
+                if (t != null) rl.endTransfer(from, t.address);
+                return true;
+            }
+            case "BIN_CHUNK", "VOICE_CHUNK" -> {
+                if ("BIN_CHUNK".equals(type)) {
+                    // id;idx;base64 - chunks of a transfer that was not let in are dropped too
+                    int semi = payload.indexOf(';');
+                    String key = from + "|" + (semi < 0 ? payload : payload.substring(0, semi));
+                    Transfer t = transfers.get(key);
+                    if (t == null) return false;
+                    t.last = now;
+                }
+                if (rl.take(from, address, 0, bytes) == 0) return true;
+                return overLimit(rl, from, pkt, now, false);
+            }
+            default -> {
+                if (rl.take(from, address, 1, bytes) != 0) return overLimit(rl, from, pkt, now, true);
+                if (!"BIN_START".equals(type)) return true;
+                // id;KIND;filename;totalChunks, sent more than once
+                sweepTransfers(rl, now);
+                int semi = payload.indexOf(';');
+                String key = from + "|" + (semi < 0 ? payload : payload.substring(0, semi));
+                if (transfers.containsKey(key)) return true;
+                if (!rl.beginTransfer(from, address)) {
+                    notice(from, now, "Too many transfers at once, try again when one is done");
+                    return false;
+                }
+                transfers.put(key, new Transfer(address, now));
+                return true;
+            }
+        }
+    }
+
+    /** A datagram over the limits: dropped, or with KICK its (genuine) sender is kicked. */
+    private boolean overLimit(RateLimiter rl, String from, DatagramPacket pkt, long now, boolean tell) {
+        if (rl.policy() == RateLimiter.Policy.KICK && pkt.getSocketAddress().equals(clients.get(from))) {
+            rl.stats().kicked();
+            log.warn("[UDP] " + from + " (" + pkt.getSocketAddress() + ") over the rate limits");
+            kick(from, "Flooding");
+            return false;
+        }
+        rl.stats().dropped();
+        if (tell) notice(from, now, "Slow down, messages are being dropped");
+        return false;
+    }
+
+    /** At most one notice a second per user. */
+    private void notice(String name, long now, String text) {
+        Long last = warned.get(name);
+        if (last != null && now - last < 1000) return;
+        warned.put(name, now);
+        try { sendTo(name, "MSG|SERVER|" + name + "|" + text); } catch (Exception ignored) {}
+    }
+
+    /** Transfers whose BIN_END was lost give their slot back after TRANSFER_IDLE_MS (checked once a second). */
+    private void sweepTransfers(RateLimiter rl, long now) {
+        if (now - transfersSwept < 1000) return;
+        transfersSwept = now;
+        transfers.entrySet().removeIf(e -> {
+            if (now - e.getValue().last < TRANSFER_IDLE_MS) return false;
+            String key = e.getKey();
+            rl.endTransfer(key.substring(0, key.lastIndexOf('|')), e.getValue().address);
+            return true;
+        });
+        warned.values().removeIf(t -> now - t > 60_000);
+    }
+
+    private void joinRoom(String name, String room) throws Exception {
+        if (!clients.contains(name)) return;
+        if (!RoomIndex.isValidName(room)) {
+            sendTo(name, "MSG|SERVER|" + name + "|Bad room name " + room
+                    + " (# and up to " + RoomIndex.MAX_NAME + " letters, digits, - or _)");
+            return;
+        }
+        if (!rooms.join(room, name)) return;
+        log.debug(() -> "[UDP] " + name + " joined " + room);
+        roomChanged(room, null);
+    }
+
+    private void partRoom(String name, String room) throws Exception {
+        if (!rooms.part(room, name)) return;
+        log.debug(() -> "[UDP] " + name + " left " + room);
+        roomChanged(room, name);
+    }
+
+    /** A user is gone: tell the members left in the rooms they were in. */
+    private void roomsLeft(Set<String> left) {
+        for (String room : left) {
+            try { roomChanged(room, null); } catch (Exception ignored) {}
         }
     }
 
-    private void forward(String raw, String from, String to) throws Exception {
+    /** ROOM|SERVER|to|#room;members to every member, and to the user who just left (if any). */
+    private void roomChanged(String room, String left) throws Exception {
+        String members = String.join(",", new TreeSet<>(rooms.members(room)));
+        for (String m : rooms.members(room)) sendTo(m, "ROOM|SERVER|" + m + "|" + room + ";" + members);
+        if (left != null) sendTo(left, "ROOM|SERVER|" + left + "|" + room + ";" + members);
+    }
+
+    /** Datagrams to a room only from its members; the sender is told once per message or stream. */
+    private boolean mayPost(String type, String from, String to) throws Exception {
+        if (!RoomIndex.isRoom(to) || rooms.isMember(to, from)) return true;
+        if ("MSG".equals(type) || "BIN_START".equals(type) || "VOICE_START".equals(type)) {
+            sendTo(from, "MSG|SERVER|" + from + "|You are not in " + to);
+        }
+        return false;
+    }
+
+    /** historyId: the MSG as kept in history (0 if it is not), journaled with it for a user who is offline. */
+    private void forward(String type, String raw, String from, String to, long historyId) throws Exception {
         if ("*".equals(to)) {
             for (SocketAddress addr : clients.values()) send(addr, raw);
+        } else if (RoomIndex.isRoom(to)) {
+            for (String m : rooms.members(to)) sendTo(m, raw);
         } else {
             SocketAddress addr = clients.get(to);
             if (addr == null) {
-                sendTo(from, "MSG|SERVER|" + from + "|User '" + to + "' not online.");
+                MessageJournal j = journal;
+                if ("MSG".equals(type) && j != null && j.append(to, raw, null, historyId)) {
+                    sendTo(from, "MSG|SERVER|" + from + "|User '" + to + "' is offline; it will be delivered when they reconnect.");
+                } else {
+                    sendTo(from, "MSG|SERVER|" + from + "|User '" + to + "' not online.");
+                }
                 return;
             }
             send(addr, raw);
@@ -143,6 +444,105 @@ public final class UdpServerCore implements ServerControlApi {
         }
     }
 
+    /** Journaled messages for a user who just said HELLO, oldest first. */
+    private void replayJournal(String name, SocketAddress addr) {
+        MessageJournal j = journal;
+        if (j == null) return;
+        try {
+            HistoryView view = views.get(name);
+            int n = 0;
+            long last = 0;
+            List<Long> ids = new ArrayList<>();
+            List<MessageJournal.Entry> page;
+            while (!(page = j.pending(name, last, MessageJournal.PAGE_BYTES)).isEmpty()) {
+                for (MessageJournal.Entry e : page) {
+                    send(addr, e.header);
+                    if (e.historyId > 0) ids.add(e.historyId);
+                }
+                last = page.get(page.size() - 1).seq;
+                j.delivered(name, last);
+                n += page.size();
+            }
+            if (view != null) view.replayed = ids.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (n > 0) log.log("[UDP] Delivered " + n + " stored messages to " + name);
+        } catch (Exception e) {
+            log.warn("[UDP] Stored messages for " + name + " not delivered: " + e.getMessage());
+        }
+    }
+
+    /** Returns the message's history id, 0 if it was not kept. */
+    private long remember(String from, String to, String message) {
+        HistoryStore h = history;
+        if (h == null) return 0;
+        try {
+            return h.append(from, to, message);
+        } catch (IOException e) {
+            log.warn("[UDP] Message not kept in history: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** HISTORY|from|with|reqId;beforeId;limit */
+    private void sendHistory(String name, String with, String payload) throws Exception {
+        String[] p = payload.split(";", 3);
+        if (p.length != 3) return;
+        String reqId = p[0];
+        HistoryStore h = history;
+        HistoryView view = views.get(name);
+        HistoryStore.Page page = null;
+        long before = 0;
+        try {
+            before = Long.parseLong(p[1]);
+            if (before <= 0 && view != null) before = view.start;
+            int limit = Integer.parseInt(p[2]);
+            if (h != null && view != null && (!RoomIndex.isRoom(with) || rooms.isMember(with, name))) {
+                page = with.isEmpty() ? h.timeline(name, rooms.roomsOf(name), before, limit)
+                        : h.page(HistoryStore.conversation(name, with), before, limit);
+            }
+        } catch (NumberFormatException ignored) {
+        } catch (IOException e) {
+            log.warn("[UDP] History for " + name + " not read: " + e.getMessage());
+        }
+        if (page == null) {
+            sendTo(name, "HISTORY_END|SERVER|" + name + "|" + reqId + ";0");
+            return;
+        }
+        for (HistoryEntry m : page.messages) {
+            // already delivered after this HELLO from the offline journal
+            if (m.id < view.start && Arrays.binarySearch(view.replayed, m.id) >= 0) continue;
+            sendTo(name, "HIST|SERVER|" + name + "|" + reqId + ";" + m.id + ";" + m.time + ";" + m.from + ";" + m.to + ";" + m.text);
+        }
+        long next = !page.more ? 0 : page.messages.isEmpty() ? before : page.messages.get(0).id;
+        sendTo(name, "HISTORY_END|SERVER|" + name + "|" + reqId + ";" + next);
+    }
+
+    /** SEARCH|from|with|reqId;sender;since;until;beforeId;limit;words */
+    private void sendSearch(String name, String with, String payload) throws Exception {
+        String[] p = payload.split(";", 7);
+        if (p.length != 7) return;
+        String reqId = p[0];
+        SearchIndex index = search;
+        SearchIndex.Result result = null;
+        try {
+            SearchQuery q = new SearchQuery(p[6], with, p[1], Long.parseLong(p[2]), Long.parseLong(p[3]),
+                    Long.parseLong(p[4]), Integer.parseInt(p[5]));
+            if (index != null && views.containsKey(name) && (!RoomIndex.isRoom(with) || rooms.isMember(with, name))) {
+                result = index.search(name, rooms.roomsOf(name), q);
+            }
+        } catch (NumberFormatException ignored) {
+        } catch (IOException e) {
+            log.warn("[UDP] Search for " + name + " failed: " + e.getMessage());
+        }
+        if (result == null) {
+            sendTo(name, "SEARCH_END|SERVER|" + name + "|" + reqId + ";0");
+            return;
+        }
+        for (HistoryEntry m : result.messages) {
+            sendTo(name, "FOUND|SERVER|" + name + "|" + reqId + ";" + m.id + ";" + m.time + ";" + m.from + ";" + m.to + ";" + m.text);
+        }
+        sendTo(name, "SEARCH_END|SERVER|" + name + "|" + reqId + ";" + result.nextBefore);
+    }
+
     private void broadcastClients() throws Exception {
         List<String> names = getClients();
         String raw = "CLIENTS|SERVER|*|" + String.join(",", names);
@@ -161,16 +561,13 @@ public final class UdpServerCore implements ServerControlApi {
         try {
             switch (type) {
                 case "MSG" -> l.onText(from, to, payload);
-                case "BIN_START" -> reassembler.onBinStart(from, to, payload);
+                case "BIN_START" -> reassembler.onBinStart(from, to, payload, l);
                 case "BIN_CHUNK" -> reassembler.onBinChunk(payload);
                 case "BIN_END" -> {
                     UdpReassembler.Incoming in = reassembler.onBinEnd(payload);
-                    if (in == null) return;
-                    if (!in.complete()) {
+                    if (in != null && !in.complete()) {
                         l.onText("SERVER", from, "Binary transfer missing chunks (UDP loss). Ask sender to resend.");
-                        return;
                     }
-                    l.onBinary(in.kind, in.from, in.to, in.name, in.join());
                 }
                 case "VOICE_START" -> l.onVoiceStart(from, to, VoiceFormat.pcm());
                 case "VOICE_CHUNK" -> {
@@ -203,6 +600,19 @@ public final class UdpServerCore implements ServerControlApi {
         if (socket != null) socket.close();
         socket = null;
         clients.clear();
+        views.clear();
+        alive.clear();
+        liveness.clear();
+        rooms.clear();
+        MessageJournal j = journal;
+        journal = null;
+        if (j != null) j.close();
+        SearchIndex si = search;
+        search = null;
+        if (si != null) si.close();
+        HistoryStore h = history;
+        history = null;
+        if (h != null) h.close();
 
         ServerControlListener l = listener;
         if (l != null) {
@@ -1,9 +1,13 @@
 package ui;
 
 import core.audio.AudioCapture;
+import core.audio.PcmBuffer;
 import core.audio.PcmPlayer;
 import core.audio.VoiceFormat;
 import core.model.BinaryKind;
+import core.model.HistoryEntry;
+import core.model.SearchQuery;
+import core.net.BinarySink;
 import core.net.ChatClientApi;
 import core.net.ChatClientListener;
 import core.util.SwingUtil;
@@ -15,13 +19,17 @@ import javax.sound.sampled.AudioFormat;
 import javax.swing.*;
 import java.awt.BorderLayout;
 import java.awt.FlowLayout;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -31,6 +39,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * - Record voice locally (mic->stop)
  * - Preview (play)
  * - Send voice (send button when no text) OR send text (when text exists)
+ * - Scrolling to the top pages in earlier messages from the server's history
+ * - Search button: finds messages in the server's history
+ * - Room button: joins a #room (it is then listed in "To"), or leaves the room picked in "To"
  */
 public final class ChatClientWindow extends JFrame implements ChatClientListener {
 
@@ -38,6 +49,9 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
     private final ChatPane chat = new ChatPane();
 
     private static final String ALL = "All";
+    private static final int HISTORY_PAGE = 50;
+    private static final int SEARCH_PAGE = 20;
+    private static final DateTimeFormatter WHEN = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
 
     private final JComboBox<String> toBox = new JComboBox<>(new String[]{ALL});
     private final JTextField input = new JTextField();
@@ -47,6 +61,12 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
     private final JButton btnMic   = Theme.squareIconButton(Icons.mic(18), "Record voice");
     private final JButton btnPlay  = Theme.squareIconButton(Icons.play(18), "Play recorded voice");
     private final JButton btnSend  = Theme.squareIconButton(Icons.send(18), "Send");
+    private final JButton btnSearch = Theme.squareIconButton(Icons.search(18), "Search messages");
+    private final JButton btnRoom = Theme.squareIconButton(Icons.room(18), "Join or leave a room");
+
+    // rooms this user is in, EDT only; listed in "To" after All
+    private final Set<String> rooms = new TreeSet<>();
+    private List<String> users = List.of();
 
     // voice receive accumulators keyed by from+to
     private final Map<String, VoiceAccumulator> voices = new ConcurrentHashMap<>();
@@ -55,11 +75,15 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
     private volatile boolean recording = false;
     private AudioCapture capture;
     private final AudioFormat voiceFmt = VoiceFormat.pcm();
-    private ByteArrayOutputStream recorded;
-    private byte[] recordedBytes;
+    private PcmBuffer recorded;
+    private Thread preview;
 
     private String myName = "me";
 
+    // server history, EDT only: the next page is before historyBefore (0: before this connection)
+    private long historyBefore;
+    private long historyOldest; // oldest id shown so far (0: none)
+
     public ChatClientWindow(String title) {
         super(title);
         setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
@@ -71,6 +95,10 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
         top.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
         top.add(new JLabel("To:"), BorderLayout.WEST);
         top.add(toBox, BorderLayout.CENTER);
+        JPanel topActions = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+        topActions.add(btnRoom);
+        topActions.add(btnSearch);
+        top.add(topActions, BorderLayout.EAST);
 
         // Bottom: input + square buttons in one row (tight)
         JPanel actions = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
@@ -100,6 +128,8 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
         btnImage.addActionListener(e -> onSendBinary(BinaryKind.IMAGE));
         btnFile.addActionListener(e -> onSendBinary(BinaryKind.FILE));
 
+        btnSearch.addActionListener(e -> onSearch());
+        btnRoom.addActionListener(e -> onRoomButton());
         btnMic.addActionListener(e -> onMicToggle());
         btnPlay.addActionListener(e -> onPlayPreview());
 
@@ -107,6 +137,7 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
             @Override public void windowClosed(java.awt.event.WindowEvent e) {
                 try { stopRecordingIfNeeded(); } catch (Exception ignored) {}
                 try { if (client != null) client.close(); } catch (Exception ignored) {}
+                chat.dispose();
             }
         });
     }
@@ -123,6 +154,7 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
             client.connect();
             setVisible(true);
             chat.addText("Connected as " + myName);
+            chat.setEarlierSource(this::requestHistory);
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Connect failed: " + e.getMessage());
             try { if (client != null) client.close(); } catch (Exception ignored) {}
@@ -130,6 +162,46 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
         }
     }
 
+    private void requestHistory() {
+        try {
+            client.requestHistory("", historyBefore, HISTORY_PAGE);
+        } catch (Exception e) {
+            chat.setEarlierSource(null);
+            chat.addText("History not available: " + e.getMessage());
+        }
+    }
+
+    /** Searches the conversation picked in "To" (All: everything this user can see). */
+    private void onSearch() {
+        try { ensure(); } catch (Exception e) { chat.addText(e.getMessage()); return; }
+        String words = JOptionPane.showInputDialog(this, "Search messages:", "Search", JOptionPane.QUESTION_MESSAGE);
+        if (words == null || words.isBlank()) return;
+        String to = selectedTo();
+        try {
+            client.search(new SearchQuery(words.trim(), "*".equals(to) ? "" : to, "", 0, 0, 0, SEARCH_PAGE));
+        } catch (Exception e) {
+            chat.addText("Search error: " + e.getMessage());
+        }
+    }
+
+    /** Leaves the room picked in "To"; otherwise asks for a room to join. */
+    private void onRoomButton() {
+        try { ensure(); } catch (Exception e) { chat.addText(e.getMessage()); return; }
+        String to = selectedTo();
+        try {
+            if (to.startsWith("#")) {
+                client.partRoom(to);
+                return;
+            }
+            String room = JOptionPane.showInputDialog(this, "Join room:", "#");
+            if (room == null || room.isBlank()) return;
+            room = room.trim();
+            client.joinRoom(room.startsWith("#") ? room : "#" + room);
+        } catch (Exception e) {
+            chat.addText("Room error: " + e.getMessage());
+        }
+    }
+
     private String selectedTo() {
         Object v = toBox.getSelectedItem();
         String s = (v == null) ? ALL : v.toString();
@@ -158,9 +230,9 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
             return;
         }
 
-        if (recordedBytes != null && recordedBytes.length > 0) {
+        if (recorded != null && !recorded.isEmpty() && !recording) {
             try {
-                client.sendVoice(to, voiceFmt, recordedBytes);
+                client.sendVoice(to, voiceFmt, recorded);
                 chat.addText("Me -> " + readableTo(to) + ": [voice]");
                 clearRecorded();
             } catch (Exception e) {
@@ -196,9 +268,8 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
     private void startRecording() {
         try {
             stopRecordingIfNeeded();
-            recorded = new ByteArrayOutputStream();
-            recordedBytes = null;
-            btnPlay.setEnabled(false);
+            clearRecorded();
+            recorded = new PcmBuffer();
 
             capture = new AudioCapture(voiceFmt);
             recording = true;
@@ -209,10 +280,7 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
 
             chat.addText("Recording voice... (press stop)");
 
-            capture.start(1024, (buf, len) -> {
-                if (!recording) return;
-                recorded.write(buf, 0, len);
-            }, e -> chat.addText("Capture error: " + e.getMessage()));
+            capture.start(recorded, 1024, e -> chat.addText("Capture error: " + e.getMessage()));
 
         } catch (Exception e) {
             recording = false;
@@ -228,14 +296,11 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
             if (capture != null) capture.stop();
             capture = null;
 
-            recordedBytes = (recorded != null) ? recorded.toByteArray() : null;
-            recorded = null;
-
             // UI: back to mic icon
             btnMic.setIcon(Icons.mic(18));
             btnMic.setToolTipText("Record voice");
 
-            if (recordedBytes != null && recordedBytes.length > 0) {
+            if (recorded != null && !recorded.isEmpty()) {
                 btnPlay.setEnabled(true);
                 chat.addText("Voice recorded. You can preview (play) and press send to deliver it.");
             } else {
@@ -253,19 +318,23 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
     }
 
     private void onPlayPreview() {
-        if (recordedBytes == null || recordedBytes.length == 0) return;
+        PcmBuffer pcm = recorded;
+        if (pcm == null || pcm.isEmpty()) return;
 
-        new Thread(() -> {
+        preview = new Thread(() -> {
             try {
-                PcmPlayer.play(voiceFmt, recordedBytes);
+                PcmPlayer.play(voiceFmt, pcm);
             } catch (Exception e) {
                 SwingUtil.ui(() -> JOptionPane.showMessageDialog(this, "Play failed: " + e.getMessage()));
             }
-        }, "VoicePreview").start();
+        }, "VoicePreview");
+        preview.start();
     }
 
     private void clearRecorded() {
-        recordedBytes = null;
+        // sendVoice is synchronous, so the segments can be recycled unless a preview still reads them
+        if (recorded != null && (preview == null || !preview.isAlive())) recorded.release();
+        recorded = null;
         btnPlay.setEnabled(false);
     }
 
@@ -278,28 +347,78 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
 
     @Override public void onUserList(List<String> users) {
         SwingUtil.ui(() -> {
-            String current = selectedTo();
-            Set<String> unique = new LinkedHashSet<>();
-            unique.add(ALL);
-            for (String u : users) {
-                if (u == null) continue;
-                u = u.trim();
-                if (!u.isEmpty() && !u.equals(myName)) unique.add(u);
-            }
-            toBox.setModel(new DefaultComboBoxModel<>(unique.toArray(new String[0])));
-            toBox.setSelectedItem(current);
+            this.users = users;
+            refreshTo();
         });
     }
 
+    /** All, then this user's rooms, then the other users; keeps the selection if it is still there. */
+    private void refreshTo() {
+        String current = (String) toBox.getSelectedItem();
+        Set<String> unique = new LinkedHashSet<>();
+        unique.add(ALL);
+        unique.addAll(rooms);
+        for (String u : users) {
+            if (u == null) continue;
+            u = u.trim();
+            if (!u.isEmpty() && !u.equals(myName)) unique.add(u);
+        }
+        toBox.setModel(new DefaultComboBoxModel<>(unique.toArray(new String[0])));
+        toBox.setSelectedItem(current);
+    }
+
+    @Override public void onRoom(String room, List<String> members) {
+        boolean in = members.contains(myName);
+        SwingUtil.ui(() -> {
+            boolean changed = in ? rooms.add(room) : rooms.remove(room);
+            if (!changed) return;
+            refreshTo();
+            if (in) toBox.setSelectedItem(room);
+        });
+        chat.addText(in ? room + ": " + String.join(", ", members) : "Left " + room);
+    }
+
     @Override public void onText(String from, String to, String message) {
         chat.addText(from + " -> " + readableTo(to) + ": " + message);
     }
 
+    @Override public void onHistory(String with, List<HistoryEntry> page, long nextBefore) {
+        List<String> lines = new ArrayList<>(page.size());
+        for (HistoryEntry m : page) lines.add(m.from + " -> " + readableTo(m.to) + ": " + m.text);
+        SwingUtil.ui(() -> {
+            // a late answer to a request that was repeated
+            if (!page.isEmpty() && historyOldest != 0 && page.get(page.size() - 1).id >= historyOldest) return;
+            if (!page.isEmpty()) historyOldest = page.get(0).id;
+            historyBefore = nextBefore;
+            chat.addEarlier(lines, nextBefore > 0);
+        });
+    }
+
+    @Override public void onSearchResults(SearchQuery query, List<HistoryEntry> results, long nextBefore) {
+        if (results.isEmpty()) {
+            chat.addText("Search \"" + query.text + "\": no messages found");
+            return;
+        }
+        chat.addText("Search \"" + query.text + "\": " + (nextBefore > 0 ? "newest " + results.size() : results.size()) + " found");
+        for (HistoryEntry m : results) {
+            chat.addText("  [" + WHEN.format(Instant.ofEpochMilli(m.time)) + "] " + m.from + " -> " + readableTo(m.to) + ": " + m.text);
+        }
+    }
+
     @Override public void onBinary(BinaryKind kind, String from, String to, String fileName, byte[] bytes) {
-        if (kind == BinaryKind.IMAGE) chat.addImage(from + " (image): " + fileName, new ImageIcon(bytes));
+        if (kind == BinaryKind.IMAGE) chat.addImage(from + " (image): " + fileName, bytes);
         else chat.addFileAttachment(from + " (file):", fileName, bytes);
     }
 
+    @Override public void onThumbnail(String from, String to, String fileName, long size, byte[] jpeg, Runnable fetch) {
+        chat.addImagePreview(from + " (image): " + fileName, jpeg, size, fetch);
+    }
+
+    @Override public BinarySink onBinaryBegin(BinaryKind kind, String from, String to, String fileName, long size) {
+        if (kind == BinaryKind.FILE) return chat.fileAttachmentSink(from + " (file):", fileName, size);
+        return chat.imageSink(from + " (image): " + fileName, fileName, size);
+    }
+
     @Override public void onVoiceStart(String from, String to, AudioFormat format) {
         String key = from + "->" + to;
         voices.put(key, new VoiceAccumulator(format));
@@ -316,7 +435,8 @@ public final class ChatClientWindow extends JFrame implements ChatClientListener
         String key = from + "->" + to;
         VoiceAccumulator acc = voices.remove(key);
         if (acc == null) return;
-        chat.addVoice(from + " (voice):", acc.format(), acc.bytes());
+        chat.addVoice(from + " (voice):", acc.format(), acc.pcm());
+        acc.pcm().release();
     }
 
     private static String readableTo(String to) {
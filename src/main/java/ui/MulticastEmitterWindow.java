@@ -52,6 +52,7 @@ public final class MulticastEmitterWindow extends JFrame {
                 try {
                     if (emitter != null) emitter.close();
                 } catch (Exception ignored) {}
+                chatPane.dispose();
             }
         });
 
@@ -81,8 +82,7 @@ public final class MulticastEmitterWindow extends JFrame {
             emitter.sendImage(imageFile);
             chatPane.addText("Me: sent image " + imageFile.getName());
             // Also show the image in the emitter window
-            ImageIcon icon = new ImageIcon(imageFile.getAbsolutePath());
-            chatPane.addImage("Me (sent): " + imageFile.getName(), icon);
+            chatPane.addImage("Me (sent): " + imageFile.getName(), imageFile.toPath());
         } catch (Exception e) {
             chatPane.addText("Image send error: " + e.getMessage());
         }
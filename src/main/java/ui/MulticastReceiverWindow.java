@@ -53,13 +53,6 @@ public final class MulticastReceiverWindow extends JFrame implements MulticastMe
 
     @Override
     public void onImage(String filename, byte[] imageData) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                ImageIcon icon = new ImageIcon(imageData);
-                chatPane.addImage("Received image: " + filename, icon);
-            } catch (Exception e) {
-                chatPane.addText("Error displaying image " + filename + ": " + e.getMessage());
-            }
-        });
+        chatPane.addImage("Received image: " + filename, imageData);
     }
 }
@@ -1,5 +1,6 @@
 package ui;
 
+import core.net.BinarySink;
 import core.net.ChatClientListener;
 import core.net.ServerControlListener;
 import core.model.BinaryKind;
@@ -157,12 +158,18 @@ public final class TcpModePanel extends ModePanel {
         @Override public void onBinary(BinaryKind kind, String from, String to, String fileName, byte[] bytes) {
             String label = "[Server] " + from + " -> " + readableTo(to);
             if (kind == BinaryKind.IMAGE) {
-                chat.addImage(label + " (image): " + fileName, new ImageIcon(bytes));
+                chat.addImage(label + " (image): " + fileName, bytes);
             } else {
                 chat.addFileAttachment(label + " (file):", fileName, bytes);
             }
         }
 
+        @Override public BinarySink onBinaryBegin(BinaryKind kind, String from, String to, String fileName, long size) {
+            String label = "[Server] " + from + " -> " + readableTo(to);
+            if (kind == BinaryKind.FILE) return chat.fileAttachmentSink(label + " (file):", fileName, size);
+            return chat.imageSink(label + " (image): " + fileName, fileName, size);
+        }
+
         @Override public void onVoiceStart(String from, String to, AudioFormat format) {
             String key = from + "->" + to;
             voices.put(key, new VoiceAccumulator(format));
@@ -179,7 +186,8 @@ public final class TcpModePanel extends ModePanel {
             String key = from + "->" + to;
             VoiceAccumulator acc = voices.remove(key);
             if (acc == null) return;
-            chat.addVoice("[Server] " + from + " (voice):", acc.format(), acc.bytes());
+            chat.addVoice("[Server] " + from + " (voice):", acc.format(), acc.pcm());
+            acc.pcm().release();
         }
 
         private static AudioFormat formatFallback() {
@@ -1,19 +1,136 @@
 package ui;
 
 import core.net.LogSink;
-import core.util.SwingUtil;
 
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Log sink for a JTextArea that core threads can hammer without stalling the UI.
+ *
+ * - log() only claims a slot in a bounded lock-free ring (multi-producer, EDT consumer);
+ *   when the ring is full the line is dropped and counted, the caller never waits.
+ * - The EDT drains the ring at most every FLUSH_MS, appending each batch with one call.
+ * - The area keeps a rolling window of about MAX_CHARS; older lines are cut at line boundaries.
+ * - Levels below the threshold (-Dchat.log.level, INFO by default, or setThreshold()) are
+ *   rejected by enabled() before any message is built; only WARN/ERROR are prefixed.
+ */
 public final class UiLogSink implements LogSink {
+    public static final int CAPACITY = 4096;       // power of two
+    public static final int FLUSH_MS = 100;
+    public static final int MAX_CHARS = 256 * 1024;
+    private static final int MASK = CAPACITY - 1;
+
     private final JTextArea area;
+    private final AtomicReferenceArray<String> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim
+    private volatile long head;                       // next slot to drain (written by the EDT only)
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedTotal = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+    private long lastFlush;
+    private volatile Level threshold;
 
-    public UiLogSink(JTextArea area) { this.area = area; }
+    public UiLogSink(JTextArea area) {
+        this(area, Level.configured());
+    }
+
+    public UiLogSink(JTextArea area, Level threshold) {
+        this.area = area;
+        this.threshold = threshold;
+        timer = new Timer(FLUSH_MS, e -> flush());
+        timer.setRepeats(false);
+    }
 
     @Override public void log(String line) {
-        SwingUtil.ui(() -> {
-            area.append(line + "\n");
-            area.setCaretPosition(area.getDocument().getLength());
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                droppedTotal.incrementAndGet();
+                schedule();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.set((int) (t & MASK), line); // volatile: pairs with the re-check at the end of flush()
+        schedule();
+    }
+
+    /** Show DEBUG lines from now on, or hide INFO ones. */
+    public void setThreshold(Level threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override public boolean enabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    @Override public void log(Level level, String line) {
+        if (!enabled(level)) return;
+        log(level.compareTo(Level.WARN) >= 0 ? level + " " + line : line);
+    }
+
+    /** Lines dropped because the ring was full, since creation. */
+    public long dropped() {
+        return droppedTotal.get();
+    }
+
+    /** At most one pending flush: only the producer that flips the flag touches the event queue. */
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) return;
+        SwingUtilities.invokeLater(() -> {
+            long wait = FLUSH_MS - (System.currentTimeMillis() - lastFlush);
+            if (wait <= 0) {
+                flush();
+            } else {
+                timer.setInitialDelay((int) wait);
+                timer.restart();
+            }
         });
     }
+
+    private void flush() {
+        lastFlush = System.currentTimeMillis();
+        StringBuilder batch = new StringBuilder();
+        long h = head;
+        for (int n = 0; n < CAPACITY; n++) {
+            int i = (int) (h & MASK);
+            String line = ring.get(i);
+            if (line == null) break; // empty, or claimed but not published yet
+            ring.lazySet(i, null);
+            batch.append(line).append('\n');
+            h++;
+        }
+        head = h;
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) batch.append("[log] ").append(lost).append(" lines dropped\n");
+
+        if (batch.length() > 0) append(batch);
+
+        scheduled.set(false);
+        if (ring.get((int) (head & MASK)) != null || dropped.get() > 0) schedule();
+    }
+
+    private void append(StringBuilder batch) {
+        // a batch larger than the window only keeps its tail
+        if (batch.length() > MAX_CHARS) {
+            int cut = batch.indexOf("\n", batch.length() - MAX_CHARS);
+            batch.delete(0, cut < 0 ? batch.length() - MAX_CHARS : cut + 1);
+            area.setText(null);
+        }
+        area.append(batch.toString());
+        int excess = area.getDocument().getLength() - MAX_CHARS;
+        if (excess > 0) {
+            try {
+                int line = area.getLineOfOffset(excess);
+                area.replaceRange(null, 0, area.getLineEndOffset(line));
+            } catch (BadLocationException ignored) {}
+        }
+        area.setCaretPosition(area.getDocument().getLength());
+    }
 }
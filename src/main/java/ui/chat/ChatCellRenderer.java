@@ -0,0 +1,95 @@
+package ui.chat;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Paints {@link ChatEntry} rows. One set of components is reused for every row, so the number
+ * of Swing components does not grow with the history; row actions are offered by ChatPane.
+ *
+ * Text wraps to the list width. An image row that is not decoded (yet, or any more) keeps the
+ * size of its last decode so scrolling does not make rows jump.
+ */
+final class ChatCellRenderer implements ListCellRenderer<ChatEntry> {
+    private final ChatHistory history;
+    private final JPanel row = new JPanel(new BorderLayout(0, 2));
+    private final JTextArea text = new JTextArea();
+    private final JLabel body = new JLabel();
+
+    ChatCellRenderer(ChatHistory history) {
+        this.history = history;
+        row.setBorder(BorderFactory.createEmptyBorder(2, 4, 4, 4));
+        text.setLineWrap(true);
+        text.setWrapStyleWord(true);
+        text.setEditable(false);
+        text.setOpaque(false);
+        body.setVerticalAlignment(SwingConstants.TOP);
+        body.setIconTextGap(8);
+        row.add(text, BorderLayout.NORTH);
+        row.add(body, BorderLayout.CENTER);
+    }
+
+    @Override public Component getListCellRendererComponent(JList<? extends ChatEntry> list, ChatEntry e, int index,
+                                                            boolean selected, boolean focused) {
+        row.setBackground(list.getBackground());
+        text.setFont(list.getFont());
+        text.setForeground(list.getForeground());
+        body.setFont(list.getFont());
+        body.setForeground(list.getForeground());
+        body.setIcon(null);
+        body.setText(null);
+        body.setPreferredSize(null);
+        body.setVisible(true);
+
+        switch (e.kind) {
+            case TEXT -> {
+                text.setText(e.title);
+                body.setVisible(false);
+            }
+            case MORE -> {
+                text.setText(null);
+                body.setForeground(Color.GRAY);
+                if (history.pagedOut() > 0) body.setText("^ " + history.pagedOut() + " earlier messages (click to load)");
+                else if (history.remoteLoading()) body.setText("^ Loading earlier messages...");
+                else body.setText("^ Earlier messages on the server (click to load)");
+            }
+            case IMAGE -> {
+                text.setText(e.title);
+                image(e, e.error != null ? "[image could not be displayed: " + e.error + "]" : "Loading image...");
+            }
+            case PREVIEW -> {
+                text.setText(e.title);
+                image(e, e.error != null ? "[no preview]" : "Loading preview...");
+                String action = e.status != null ? e.status : "Full size (" + (e.size + 1023) / 1024 + " KB), click";
+                body.setText(body.getIcon() == null ? body.getText() + "  " + action : action);
+            }
+            case FILE -> {
+                text.setText(e.title);
+                body.setText("[file] " + e.attachment.name() + " (" + e.size + " bytes)  Open / Save As... (click)");
+            }
+            case VOICE -> {
+                text.setText(e.title);
+                body.setText("[voice] Voice message (" + e.size + " bytes PCM)  Play (click)");
+            }
+        }
+
+        // wrap to the list width: the text area reports its wrapped height once it knows its width
+        Insets in = row.getInsets();
+        int width = Math.max(100, (list.getWidth() > 0 ? list.getWidth() : 400) - in.left - in.right);
+        text.setSize(width, Short.MAX_VALUE);
+        int height = in.top + in.bottom;
+        if (text.getText() != null && !text.getText().isEmpty()) height += text.getPreferredSize().height + 2;
+        if (body.isVisible()) height += body.getPreferredSize().height;
+        row.setPreferredSize(new Dimension(width + in.left + in.right, height));
+        return row;
+    }
+
+    private void image(ChatEntry e, String placeholder) {
+        if (e.image != null) {
+            body.setIcon(e.image);
+            return;
+        }
+        body.setText(placeholder);
+        if (e.imageHeight > 0) body.setPreferredSize(new Dimension(e.imageWidth, e.imageHeight));
+    }
+}
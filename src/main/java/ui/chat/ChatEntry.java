@@ -0,0 +1,75 @@
+package ui.chat;
+
+import core.store.Attachment;
+
+import javax.sound.sampled.AudioFormat;
+import javax.swing.ImageIcon;
+import java.nio.file.Path;
+
+/**
+ * One row of the chat history: data and handles only, never Swing components.
+ * Payloads stay in the {@link core.store.AttachmentStore}; a decoded image is only kept while
+ * the row is on (or near) the screen.
+ */
+final class ChatEntry {
+    enum Kind { TEXT, IMAGE, PREVIEW, FILE, VOICE, MORE }
+
+    final Kind kind;
+    final String title;          // TEXT: the line itself
+    final Attachment attachment; // IMAGE original, PREVIEW thumbnail, FILE, VOICE payload
+    final Path file;             // IMAGE from a local file instead of an attachment
+    final AudioFormat format;    // VOICE
+    final long size;             // PREVIEW: size of the original
+    final Runnable fetch;        // PREVIEW: asks for the original
+    long seq = -1;               // position in the history, set when appended
+
+    // view state, EDT only
+    ImageIcon image;
+    int imageWidth;              // last decoded size, so rows keep their height when the image is dropped
+    int imageHeight;
+    boolean loading;
+    String error;                // image could not be decoded
+    String status;               // PREVIEW: fetch in progress
+
+    private ChatEntry(Kind kind, String title, Attachment attachment, Path file, AudioFormat format, long size, Runnable fetch) {
+        this.kind = kind;
+        this.title = title;
+        this.attachment = attachment;
+        this.file = file;
+        this.format = format;
+        this.size = size;
+        this.fetch = fetch;
+    }
+
+    static ChatEntry text(String line) {
+        return new ChatEntry(Kind.TEXT, line, null, null, null, 0, null);
+    }
+
+    static ChatEntry image(String title, Attachment image) {
+        return new ChatEntry(Kind.IMAGE, title, image, null, null, image.size(), null);
+    }
+
+    static ChatEntry image(String title, Path file) {
+        return new ChatEntry(Kind.IMAGE, title, null, file, null, 0, null);
+    }
+
+    static ChatEntry preview(String title, Attachment thumbnail, long size, Runnable fetch) {
+        return new ChatEntry(Kind.PREVIEW, title, thumbnail, null, null, size, fetch);
+    }
+
+    static ChatEntry file(String title, Attachment file) {
+        return new ChatEntry(Kind.FILE, title, file, null, null, file.size(), null);
+    }
+
+    static ChatEntry voice(String title, AudioFormat format, Attachment pcm) {
+        return new ChatEntry(Kind.VOICE, title, pcm, null, format, pcm.size(), null);
+    }
+
+    static ChatEntry more() {
+        return new ChatEntry(Kind.MORE, "", null, null, null, 0, null);
+    }
+
+    boolean hasImage() {
+        return kind == Kind.IMAGE || kind == Kind.PREVIEW;
+    }
+}
@@ -0,0 +1,270 @@
+package ui.chat;
+
+import javax.swing.AbstractListModel;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List model behind {@link ChatPane}. EDT only.
+ *
+ * - Only the newest MAX_LIVE rows (plus pages the user scrolled back to) are in memory.
+ * - Older rows are paged out to an append-only temp file, deleted by close() (or by a shutdown
+ *   hook if the JVM exits first). Text rows are written there;
+ *   rows with an attachment keep their small entry object, since the payload already lives in
+ *   the AttachmentStore. Their decoded image is dropped.
+ * - While anything is paged out, row 0 is a marker that loads the previous PAGE rows back.
+ * - Rows from the server's history can be put in front of everything (negative seqs); while the
+ *   server has older ones, the marker stays and asks for them once nothing is paged out.
+ */
+@SuppressWarnings("serial") // never serialized
+final class ChatHistory extends AbstractListModel<ChatEntry> {
+    static final int MAX_LIVE = 1000;
+    static final int PAGE = 200;
+
+    private final List<ChatEntry> live = new ArrayList<>();
+    private final ChatEntry more = ChatEntry.more();
+    private long firstSeq;    // seq of the oldest row
+    private long firstLive;   // seq of live.get(0)
+    private long nextSeq;
+    private boolean remoteMore;    // the server has rows older than firstSeq
+    private boolean remoteLoading;
+
+    // paged-out rows: record offsets by seq (-1: no record yet); pinned rows are kept as objects
+    private RandomAccessFile archive;
+    private Path archiveFile;
+    private long[] offsets = new long[0];        // seq >= 0
+    private long[] earlierOffsets = new long[0]; // seq < 0, at -seq - 1
+    private final Map<Long, ChatEntry> pinned = new HashMap<>();
+    private boolean archiveFailed;
+    private Thread cleanup;
+
+    @Override public int getSize() {
+        return live.size() + (hasMarker() ? 1 : 0);
+    }
+
+    @Override public ChatEntry getElementAt(int index) {
+        if (hasMarker()) {
+            if (index == 0) return more;
+            index--;
+        }
+        return live.get(index);
+    }
+
+    /** Row 0 is the marker. */
+    boolean hasMarker() {
+        return firstLive > firstSeq || remoteMore;
+    }
+
+    /** Rows paged out above the live window. */
+    long pagedOut() {
+        return firstLive - firstSeq;
+    }
+
+    boolean remoteMore() {
+        return remoteMore;
+    }
+
+    boolean remoteLoading() {
+        return remoteLoading;
+    }
+
+    /** Whether the server has rows older than any here. */
+    void setRemoteMore(boolean more) {
+        boolean had = hasMarker();
+        remoteMore = more;
+        if (!more) remoteLoading = false;
+        markerChanged(had);
+    }
+
+    void setRemoteLoading(boolean loading) {
+        remoteLoading = loading;
+        if (hasMarker()) fireContentsChanged(this, 0, 0);
+    }
+
+    /**
+     * Rows from the server, older than every row here (oldest first); only while nothing is
+     * paged out. moreRemote: the server has older ones still. Returns how many were added.
+     */
+    int prepend(List<ChatEntry> rows, boolean moreRemote) {
+        if (pagedOut() > 0) return 0;
+        boolean had = hasMarker();
+        long seq = firstSeq;
+        for (int i = rows.size() - 1; i >= 0; i--) rows.get(i).seq = --seq;
+        firstSeq = seq;
+        firstLive = seq;
+        live.addAll(0, rows);
+        remoteMore = moreRemote;
+        remoteLoading = false;
+        int from = had ? 1 : 0;
+        if (!rows.isEmpty()) fireIntervalAdded(this, from, from + rows.size() - 1);
+        markerChanged(had);
+        return rows.size();
+    }
+
+    /** Append a row; with trim, the oldest rows beyond MAX_LIVE are paged out. */
+    void append(ChatEntry e, boolean trim) {
+        e.seq = nextSeq++;
+        live.add(e);
+        int row = getSize() - 1;
+        fireIntervalAdded(this, row, row);
+        if (trim && live.size() > MAX_LIVE) pageOut(live.size() - MAX_LIVE);
+    }
+
+    /** Row index of an entry, or -1 if it is not in memory. */
+    int indexOf(ChatEntry e) {
+        long i = e.seq - firstLive;
+        if (i < 0 || i >= live.size() || live.get((int) i) != e) return -1;
+        return (int) i + (hasMarker() ? 1 : 0);
+    }
+
+    void changed(ChatEntry e) {
+        int row = indexOf(e);
+        if (row >= 0) fireContentsChanged(this, row, row);
+    }
+
+    /** Every row changed size (e.g. the view was resized). */
+    void changedAll() {
+        if (getSize() > 0) fireContentsChanged(this, 0, getSize() - 1);
+    }
+
+    List<ChatEntry> liveEntries() {
+        return live;
+    }
+
+    /** Load the previous PAGE rows back in; returns how many were loaded. */
+    int loadEarlier() {
+        int n = (int) Math.min(PAGE, pagedOut());
+        if (n == 0) return 0;
+        List<ChatEntry> page = new ArrayList<>(n);
+        for (long seq = firstLive - n; seq < firstLive; seq++) {
+            ChatEntry e;
+            try {
+                e = read(seq);
+            } catch (IOException ex) {
+                archiveFailed = true; // keep everything in memory from now on
+                e = ChatEntry.text("[message could not be read: " + ex.getMessage() + "]");
+                e.seq = seq;
+            }
+            page.add(e);
+        }
+        live.addAll(0, page);
+        firstLive -= n;
+        if (!hasMarker()) {
+            fireIntervalRemoved(this, 0, 0);
+            fireIntervalAdded(this, 0, page.size() - 1);
+        } else {
+            fireIntervalAdded(this, 1, page.size());
+            fireContentsChanged(this, 0, 0);
+        }
+        return page.size();
+    }
+
+    /** Close and delete the archive; rows paged out are gone, newer ones stay in memory. */
+    void close() {
+        if (cleanup == null) return;
+        cleanup.run();
+        try { Runtime.getRuntime().removeShutdownHook(cleanup); } catch (IllegalStateException ignored) {}
+        cleanup = null;
+        archive = null;
+        archiveFailed = true;
+    }
+
+    /** Page out the oldest rows until at most MAX_LIVE remain. */
+    void trim() {
+        if (live.size() > MAX_LIVE) pageOut(live.size() - MAX_LIVE);
+    }
+
+    private void pageOut(int n) {
+        if (archiveFailed) return;
+        try {
+            for (int i = 0; i < n; i++) {
+                ChatEntry e = live.get(i);
+                if (offset(e.seq) < 0) write(e);
+                if (e.kind != ChatEntry.Kind.TEXT) pinned.put(e.seq, e);
+                e.image = null;
+            }
+        } catch (IOException ex) {
+            archiveFailed = true; // keep everything in memory from now on
+            return;
+        }
+        boolean hadMarker = hasMarker();
+        live.subList(0, n).clear();
+        firstLive += n;
+        int from = hadMarker ? 1 : 0;
+        fireIntervalRemoved(this, from, from + n - 1);
+        if (!hadMarker) fireIntervalAdded(this, 0, 0);
+        else fireContentsChanged(this, 0, 0);
+    }
+
+    private void markerChanged(boolean had) {
+        boolean has = hasMarker();
+        if (had && !has) fireIntervalRemoved(this, 0, 0);
+        else if (!had && has) fireIntervalAdded(this, 0, 0);
+        else if (has) fireContentsChanged(this, 0, 0);
+    }
+
+    private long offset(long seq) {
+        if (seq >= 0) return seq < offsets.length ? offsets[(int) seq] : -1;
+        long i = -seq - 1;
+        return i < earlierOffsets.length ? earlierOffsets[(int) i] : -1;
+    }
+
+    private void setOffset(long seq, long pos) {
+        if (seq >= 0) {
+            offsets = ensure(offsets, seq);
+            offsets[(int) seq] = pos;
+        } else {
+            earlierOffsets = ensure(earlierOffsets, -seq - 1);
+            earlierOffsets[(int) (-seq - 1)] = pos;
+        }
+    }
+
+    private static long[] ensure(long[] a, long i) {
+        if (i < a.length) return a;
+        int old = a.length;
+        a = Arrays.copyOf(a, (int) Math.max(Math.max(a.length * 2L, i + 1), 1024));
+        Arrays.fill(a, old, a.length, -1);
+        return a;
+    }
+
+    private void write(ChatEntry e) throws IOException {
+        if (archive == null) {
+            archiveFile = Files.createTempFile("chatwithfriend-history-", ".bin");
+            RandomAccessFile file = new RandomAccessFile(archiveFile.toFile(), "rw");
+            Path path = archiveFile;
+            archive = file;
+            cleanup = new Thread(() -> {
+                try { file.close(); } catch (IOException ignored) {}
+                try { Files.deleteIfExists(path); } catch (IOException ignored) {}
+            }, "ChatHistoryCleanup");
+            Runtime.getRuntime().addShutdownHook(cleanup);
+        }
+        long pos = archive.length();
+        byte[] text = e.title.getBytes(StandardCharsets.UTF_8);
+        archive.seek(pos);
+        archive.writeInt(text.length);
+        archive.write(text);
+        setOffset(e.seq, pos);
+    }
+
+    private ChatEntry read(long seq) throws IOException {
+        ChatEntry e = pinned.remove(seq);
+        if (e == null) {
+            if (archive == null) throw new IOException("history closed");
+            archive.seek(offset(seq));
+            byte[] text = new byte[archive.readInt()];
+            archive.readFully(text);
+            e = ChatEntry.text(new String(text, StandardCharsets.UTF_8));
+            e.seq = seq;
+        }
+        return e;
+    }
+}
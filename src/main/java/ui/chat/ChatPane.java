@@ -1,139 +1,453 @@
 package ui.chat;
 
+import core.audio.PcmBuffer;
 import core.audio.PcmPlayer;
+import core.net.BinarySink;
+import core.store.Attachment;
+import core.store.AttachmentStore;
 import core.util.SwingUtil;
 
 import javax.sound.sampled.AudioFormat;
 import javax.swing.*;
-import javax.swing.text.*;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Reusable chat view that can display:
  * - text lines
- * - inline images
+ * - inline images (decoded at display size off the EDT by {@link ImageLoader}),
+ *   and server thumbnails with a "full size" action
  * - attachments with Open/Save
- * - voice playback button
+ * - voice playback
+ *
+ * The view is a virtualized list: rows are compact {@link ChatEntry} values in a
+ * {@link ChatHistory}, painted by one shared renderer, so only visible rows cost anything.
+ * - Images are decoded only for rows near the viewport and dropped again when far away.
+ * - Rows beyond ChatHistory.MAX_LIVE are paged out; the top row loads them back.
+ * - With an earlier-messages source (the server's history), reaching the top asks it for the
+ *   page before the oldest row, which then arrives through {@link #addEarlier}.
+ * - Clicking a row offers its actions (Open, Save As..., Play, Full size).
+ *
+ * Attachments and voice notes are kept as {@link Attachment} handles in the shared
+ * {@link AttachmentStore}, which spills large payloads to disk.
  */
 public final class ChatPane extends JPanel {
-    private final JTextPane pane = new JTextPane();
-    private final StyledDocument doc = pane.getStyledDocument();
+    public static final int IMAGE_MAX_SIDE = 360;
+    private static final int IMAGE_AHEAD = 10; // rows beyond the viewport whose images are decoded
+    private static final int IMAGE_KEEP = 60;  // rows beyond the viewport whose images are kept
+    private static final long EARLIER_TIMEOUT_MS = 10_000; // a request without an answer may be repeated after this
+
+    private final ChatHistory history = new ChatHistory();
+    private final JList<ChatEntry> list = new JList<>(history) {
+        @Override public boolean getScrollableTracksViewportWidth() {
+            return true;
+        }
+    };
+    private final JScrollPane scroll = new JScrollPane(list);
+    private final AttachmentStore store = AttachmentStore.shared();
+    private boolean scrollPending;
+    private boolean imagesPending;
+    private int lastWidth;
+    private Runnable earlierSource;
+    private long earlierRequested;
 
     public ChatPane() {
         setLayout(new BorderLayout());
-        pane.setEditable(false);
-        add(new JScrollPane(pane), BorderLayout.CENTER);
+        list.setCellRenderer(new ChatCellRenderer(history));
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFocusable(false);
+        scroll.getVerticalScrollBar().setUnitIncrement(16);
+        scroll.getViewport().addChangeListener(e -> updateImagesLater());
+        list.addComponentListener(new ComponentAdapter() {
+            @Override public void componentResized(ComponentEvent e) {
+                if (list.getWidth() != lastWidth) {
+                    lastWidth = list.getWidth();
+                    history.changedAll(); // wrapped heights depend on the width
+                }
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                int row = list.locationToIndex(e.getPoint());
+                Rectangle r = row < 0 ? null : list.getCellBounds(row, row);
+                if (r == null || !r.contains(e.getPoint())) return;
+                ChatEntry entry = history.getElementAt(row);
+                if (entry.kind == ChatEntry.Kind.MORE) loadEarlier(true);
+                else showActions(entry, e);
+            }
+        });
+        add(scroll, BorderLayout.CENTER);
+    }
+
+    /** Delete the file older rows were paged out to; call when the window is closed. */
+    public void dispose() {
+        SwingUtil.ui(history::close);
     }
 
     public void addText(String line) {
+        add(ChatEntry.text(line));
+    }
+
+    /**
+     * Where messages older than every row come from, or null for none. It is run on the EDT when
+     * the user reaches the top (and nothing is paged out locally) and answers with {@link #addEarlier}.
+     */
+    public void setEarlierSource(Runnable source) {
         SwingUtil.ui(() -> {
-            try {
-                doc.insertString(doc.getLength(), line + "\n", null);
-                pane.setCaretPosition(doc.getLength());
-            } catch (BadLocationException ignored) {}
+            earlierSource = source;
+            earlierRequested = 0;
+            history.setRemoteMore(source != null);
+            updateImagesLater();
         });
     }
 
-    public void addImage(String title, ImageIcon icon) {
+    /** Text lines older than every row (oldest first); more: the source has older ones still. */
+    public void addEarlier(List<String> lines, boolean more) {
         SwingUtil.ui(() -> {
-            try {
-                doc.insertString(doc.getLength(), title + "\n", null);
-                // Scale to a reasonable width
-                Image img = icon.getImage();
-                int maxW = 360;
-                int w = icon.getIconWidth();
-                int h = icon.getIconHeight();
-                if (w > maxW) {
-                    int newH = (int) (h * (maxW / (double) w));
-                    img = img.getScaledInstance(maxW, newH, Image.SCALE_SMOOTH);
-                }
-                JLabel lbl = new JLabel(new ImageIcon(img));
-                insertComponent(lbl);
-                doc.insertString(doc.getLength(), "\n", null);
-                pane.setCaretPosition(doc.getLength());
-            } catch (Exception e) {
-                addText("Image display error: " + e.getMessage());
-            }
+            if (history.pagedOut() > 0) return; // the source is only asked when nothing is paged out
+            List<ChatEntry> rows = new ArrayList<>(lines.size());
+            for (String line : lines) rows.add(ChatEntry.text(line));
+            boolean marker = history.hasMarker();
+            earlierRequested = 0;
+            int n = history.prepend(rows, more && earlierSource != null);
+            if (n > 0) keepTopRow(marker && history.hasMarker() ? n + 1 : n);
+            updateImagesLater();
         });
     }
 
+    public void addImage(String title, byte[] bytes) {
+        Attachment a;
+        try {
+            a = store.put("image", bytes);
+        } catch (IOException e) {
+            addText("Image display error: " + e.getMessage());
+            return;
+        }
+        addImage(title, a);
+    }
+
+    public void addImage(String title, Path file) {
+        add(ChatEntry.image(title, file));
+    }
+
+    /** The row keeps the handle: the image is decoded again if it scrolls back into view. */
+    public void addImage(String title, Attachment image) {
+        add(ChatEntry.image(title, image));
+    }
+
+    /**
+     * Streaming receive for images: small ones are collected in memory, larger ones go to the
+     * store's temp directory and are decoded from there.
+     */
+    public BinarySink imageSink(String title, String fileName, long size) {
+        if (size >= 0 && size <= store.spillThreshold()) {
+            return BinarySink.collect(size, bytes -> addImage(title, bytes));
+        }
+        AttachmentStore.Pending pending;
+        try {
+            pending = store.begin(fileName);
+        } catch (IOException e) {
+            addText("Image error: " + e.getMessage());
+            return BinarySink.discard();
+        }
+        return new BinarySink() {
+            @Override public void chunk(long offset, ByteBuffer data) throws IOException {
+                pending.write(offset, data);
+            }
+
+            @Override public void end() throws IOException {
+                addImage(title, pending.finish());
+            }
+
+            @Override public void abort(String reason) {
+                pending.abort();
+                addText("Image " + fileName + " failed: " + reason);
+            }
+
+            @Override public FileChannel target() {
+                return pending.channel();
+            }
+        };
+    }
+
+    /** Server thumbnail with a "full size" action that requests the original (it then arrives via addImage). */
+    public void addImagePreview(String title, byte[] thumbnail, long size, Runnable fetch) {
+        Attachment a;
+        try {
+            a = store.put("thumbnail.jpg", thumbnail);
+        } catch (IOException e) {
+            addText("Image display error: " + e.getMessage());
+            return;
+        }
+        add(ChatEntry.preview(title, a, size, fetch));
+    }
+
     public void addFileAttachment(String title, String fileName, byte[] bytes) {
-        SwingUtil.ui(() -> {
-            try {
-                doc.insertString(doc.getLength(), title + "\n", null);
-                JPanel row = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 2));
-                row.add(new JLabel("[file] " + fileName + " (" + bytes.length + " bytes)"));
-
-                JButton open = new JButton("Open");
-                JButton save = new JButton("Save As...");
-                row.add(open);
-                row.add(save);
-
-                open.addActionListener(e -> {
-                    try {
-                        File tmp = File.createTempFile("recv_", "_" + safe(fileName));
-                        tmp.deleteOnExit();
-                        Files.write(tmp.toPath(), bytes);
-                        Desktop.getDesktop().open(tmp);
-                    } catch (Exception ex) {
-                        JOptionPane.showMessageDialog(this, "Open failed: " + ex.getMessage());
-                    }
-                });
+        Attachment a;
+        try {
+            a = store.put(fileName, bytes);
+        } catch (IOException e) {
+            addText("Attachment error: " + e.getMessage());
+            return;
+        }
+        addFileAttachment(title, a);
+    }
 
-                save.addActionListener(e -> {
-                    JFileChooser fc = new JFileChooser();
-                    fc.setSelectedFile(new File(fileName));
-                    if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-                        try { Files.write(fc.getSelectedFile().toPath(), bytes); }
-                        catch (Exception ex) { JOptionPane.showMessageDialog(this, "Save failed: " + ex.getMessage()); }
-                    }
-                });
+    /**
+     * Streaming receive for files: small known sizes are collected in memory,
+     * everything else is written straight into the store's temp directory.
+     */
+    public BinarySink fileAttachmentSink(String title, String fileName, long size) {
+        if (size >= 0 && size <= store.spillThreshold()) {
+            return BinarySink.collect(size, bytes -> addFileAttachment(title, fileName, bytes));
+        }
+        AttachmentStore.Pending pending;
+        try {
+            pending = store.begin(fileName);
+        } catch (IOException e) {
+            addText("Attachment error: " + e.getMessage());
+            return BinarySink.discard();
+        }
+        return new BinarySink() {
+            @Override public void chunk(long offset, ByteBuffer data) throws IOException {
+                pending.write(offset, data);
+            }
 
-                insertComponent(row);
-                doc.insertString(doc.getLength(), "\n", null);
-                pane.setCaretPosition(doc.getLength());
-            } catch (Exception e) {
-                addText("Attachment error: " + e.getMessage());
+            @Override public void end() throws IOException {
+                addFileAttachment(title, pending.finish());
             }
-        });
+
+            @Override public void abort(String reason) {
+                pending.abort();
+                addText("Attachment " + fileName + " failed: " + reason);
+            }
+
+            @Override public FileChannel target() {
+                return pending.channel();
+            }
+        };
+    }
+
+    /** The row only captures the handle; the bytes stay with the store. */
+    public void addFileAttachment(String title, Attachment attachment) {
+        add(ChatEntry.file(title, attachment));
     }
 
     public void addVoice(String title, AudioFormat format, byte[] pcmBytes) {
+        addVoice(title, format, PcmBuffer.wrap(pcmBytes));
+    }
+
+    /** Hands the PCM to the store; the caller may release the buffer afterwards. */
+    public void addVoice(String title, AudioFormat format, PcmBuffer pcm) {
+        Attachment a;
+        try {
+            a = store.put("voice.pcm", pcm);
+        } catch (IOException e) {
+            addText("Voice UI error: " + e.getMessage());
+            return;
+        }
+        addVoice(title, format, a);
+    }
+
+    public void addVoice(String title, AudioFormat format, Attachment voice) {
+        add(ChatEntry.voice(title, format, voice));
+    }
+
+    /** Appends a row; follows the conversation (and pages out old rows) only when the view is at the bottom. */
+    private void add(ChatEntry e) {
         SwingUtil.ui(() -> {
-            try {
-                doc.insertString(doc.getLength(), title + "\n", null);
-                JPanel row = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 2));
-                row.add(new JLabel("[voice] Voice message (" + pcmBytes.length + " bytes PCM)"));
-                JButton play = new JButton("Play");
-                row.add(play);
-
-                play.addActionListener(e -> {
-                    new Thread(() -> {
-                        try {
-                            PcmPlayer.play(format, pcmBytes);
-                        } catch (Exception ex) {
-                            SwingUtil.ui(() -> JOptionPane.showMessageDialog(this, "Play failed: " + ex.getMessage()));
-                        }
-                    }, "VoicePlay").start();
-                });
+            boolean follow = atBottom();
+            history.append(e, follow);
+            if (follow) scrollToEnd();
+            updateImagesLater();
+        });
+    }
 
-                insertComponent(row);
-                doc.insertString(doc.getLength(), "\n", null);
-                pane.setCaretPosition(doc.getLength());
-            } catch (Exception e) {
-                addText("Voice UI error: " + e.getMessage());
-            }
+    private boolean atBottom() {
+        if (!list.isShowing()) return true; // scroll bar is not synced yet
+        JScrollBar bar = scroll.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 16;
+    }
+
+    /** Coalesced: scrolls once the list has been laid out for all rows appended meanwhile. */
+    private void scrollToEnd() {
+        if (scrollPending) return;
+        scrollPending = true;
+        SwingUtilities.invokeLater(() -> {
+            scrollPending = false;
+            scroll.validate();
+            JScrollBar bar = scroll.getVerticalScrollBar();
+            bar.setValue(bar.getMaximum());
+        });
+    }
+
+    /** Local pages first; once none are left, the earlier-messages source (clicked: even if a request is pending). */
+    private void loadEarlier(boolean clicked) {
+        if (history.pagedOut() == 0) {
+            requestEarlier(clicked);
+            return;
+        }
+        int n = history.loadEarlier();
+        if (n == 0) return;
+        keepTopRow(history.hasMarker() ? n + 1 : n);
+    }
+
+    private void requestEarlier(boolean force) {
+        Runnable source = earlierSource;
+        if (source == null || !history.remoteMore()) return;
+        long now = System.currentTimeMillis();
+        if (!force && earlierRequested != 0 && now - earlierRequested < EARLIER_TIMEOUT_MS) return;
+        earlierRequested = now;
+        history.setRemoteLoading(true);
+        source.run();
+    }
+
+    /** Keep the row that was at the top of the view in place; the loaded page is above it. */
+    private void keepTopRow(int row) {
+        SwingUtilities.invokeLater(() -> {
+            scroll.validate();
+            Rectangle r = list.getCellBounds(row, row);
+            if (r == null) return;
+            r.height = scroll.getViewport().getHeight();
+            list.scrollRectToVisible(r);
+        });
+    }
+
+    /** Coalesced: the visible range needs a layout pass over all live rows, so do it once per burst. */
+    private void updateImagesLater() {
+        if (imagesPending) return;
+        imagesPending = true;
+        SwingUtilities.invokeLater(() -> {
+            imagesPending = false;
+            updateImages();
         });
     }
 
-    private void insertComponent(JComponent c) throws BadLocationException {
-        pane.setCaretPosition(doc.getLength());
-        pane.insertComponent(c);
+    /** Decode images of rows near the viewport; drop those far away (their rows keep their size). */
+    private void updateImages() {
+        int first = list.getFirstVisibleIndex();
+        int last = list.getLastVisibleIndex();
+        if (first < 0) return;
+        if (first == 0 && history.pagedOut() == 0 && history.remoteMore()) requestEarlier(false);
+        int offset = history.hasMarker() ? 1 : 0;
+        List<ChatEntry> rows = history.liveEntries();
+        for (int i = 0; i < rows.size(); i++) {
+            ChatEntry e = rows.get(i);
+            if (!e.hasImage()) continue;
+            int row = i + offset;
+            if (row >= first - IMAGE_AHEAD && row <= last + IMAGE_AHEAD) {
+                if (e.image == null && !e.loading && e.error == null) loadImage(e);
+            } else if (row < first - IMAGE_KEEP || row > last + IMAGE_KEEP) {
+                e.image = null;
+            }
+        }
+    }
+
+    private void loadImage(ChatEntry e) {
+        e.loading = true;
+        Consumer<BufferedImage> done = img -> {
+            e.loading = false;
+            e.imageWidth = img.getWidth();
+            e.imageHeight = img.getHeight();
+            if (history.indexOf(e) < 0) return; // paged out meanwhile
+            boolean follow = atBottom();
+            e.image = new ImageIcon(img);
+            history.changed(e);
+            if (follow) scrollToEnd();
+        };
+        Consumer<String> failed = err -> {
+            e.loading = false;
+            e.error = err;
+            history.changed(e);
+        };
+        if (e.attachment != null) ImageLoader.load(e.attachment, IMAGE_MAX_SIDE, done, failed);
+        else ImageLoader.load(e.file, IMAGE_MAX_SIDE, done, failed);
+    }
+
+    private void showActions(ChatEntry e, MouseEvent click) {
+        JPopupMenu menu = new JPopupMenu();
+        switch (e.kind) {
+            case FILE -> {
+                menu.add(item("Open", () -> open(e.attachment)));
+                menu.add(item("Save As...", () -> save(e.attachment)));
+            }
+            case IMAGE -> {
+                if (e.attachment != null) {
+                    menu.add(item("Open", () -> open(e.attachment)));
+                    menu.add(item("Save As...", () -> save(e.attachment)));
+                } else {
+                    menu.add(item("Open", () -> open(e.file.toFile())));
+                }
+            }
+            case VOICE -> {
+                menu.add(item("Play", () -> play(e.format, e.attachment)));
+                menu.add(item("Save As...", () -> save(e.attachment)));
+            }
+            case PREVIEW -> {
+                JMenuItem full = item("Full size (" + (e.size + 1023) / 1024 + " KB)", () -> {
+                    e.status = "Loading full size...";
+                    history.changed(e);
+                    e.fetch.run();
+                });
+                full.setEnabled(e.status == null);
+                menu.add(full);
+            }
+            default -> {
+                return;
+            }
+        }
+        menu.show(list, click.getX(), click.getY());
+    }
+
+    private static JMenuItem item(String label, Runnable action) {
+        JMenuItem item = new JMenuItem(label);
+        item.addActionListener(ev -> action.run());
+        return item;
     }
 
-    private static String safe(String s) {
-        return s.replaceAll("[^a-zA-Z0-9._-]", "_");
+    private void open(Attachment a) {
+        try {
+            open(a.path().toFile());
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Open failed: " + ex.getMessage());
+        }
+    }
+
+    private void open(File f) {
+        try {
+            Desktop.getDesktop().open(f);
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(this, "Open failed: " + ex.getMessage());
+        }
+    }
+
+    private void save(Attachment a) {
+        JFileChooser fc = new JFileChooser();
+        fc.setSelectedFile(new File(a.name()));
+        if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            try { a.saveTo(fc.getSelectedFile().toPath()); }
+            catch (Exception ex) { JOptionPane.showMessageDialog(this, "Save failed: " + ex.getMessage()); }
+        }
+    }
+
+    private void play(AudioFormat format, Attachment voice) {
+        new Thread(() -> {
+            try {
+                PcmPlayer.play(format, voice.bytes());
+            } catch (Exception ex) {
+                SwingUtil.ui(() -> JOptionPane.showMessageDialog(this, "Play failed: " + ex.getMessage()));
+            }
+        }, "VoicePlay").start();
     }
 }
@@ -0,0 +1,157 @@
+package ui.chat;
+
+import core.store.Attachment;
+import core.util.Images;
+import core.util.SwingUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decodes chat images off the Event Dispatch Thread.
+ *
+ * - Shared background pool; results are handed back on the EDT.
+ * - Decoding goes through {@link Images}, i.e. ImageIO subsampling straight to display size.
+ * - Scaled images are kept in an LRU cache keyed by content SHA-256 (+ size), bounded in pixel
+ *   bytes, so an image that is broadcast again or re-sent is not decoded twice.
+ */
+final class ImageLoader {
+    private ImageLoader() {}
+
+    static final long CACHE_BYTES = 48L * 1024 * 1024;
+
+    private static final ExecutorService POOL = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "ImageDecode");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        ((ThreadPoolExecutor) POOL).allowCoreThreadTimeOut(true);
+    }
+
+    // access-ordered: eldest entry is the least recently used one
+    private static final LinkedHashMap<String, BufferedImage> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes;
+    // content hash per attachment handle, so scrolling back to an image does not re-hash it
+    private static final Map<Attachment, String> HASHES = new WeakHashMap<>();
+
+    /** Decode bytes to fit maxSide; exactly one callback runs, on the EDT. */
+    static void load(byte[] bytes, int maxSide, Consumer<BufferedImage> done, Consumer<String> failed) {
+        POOL.execute(() -> {
+            try {
+                MessageDigest md = sha256();
+                md.update(bytes);
+                String key = HexFormat.of().formatHex(md.digest()) + "@" + maxSide;
+                BufferedImage img = cached(key);
+                if (img == null) img = put(key, Images.decode(bytes, maxSide));
+                deliver(img, done);
+            } catch (Exception | OutOfMemoryError e) {
+                SwingUtil.ui(() -> failed.accept(String.valueOf(e.getMessage())));
+            }
+        });
+    }
+
+    /** Same for an image on disk (never read into one array). */
+    static void load(Path file, int maxSide, Consumer<BufferedImage> done, Consumer<String> failed) {
+        POOL.execute(() -> {
+            try {
+                String key = hash(file) + "@" + maxSide;
+                BufferedImage img = cached(key);
+                if (img == null) img = put(key, Images.decode(file, maxSide));
+                deliver(img, done);
+            } catch (Exception | OutOfMemoryError e) {
+                SwingUtil.ui(() -> failed.accept(String.valueOf(e.getMessage())));
+            }
+        });
+    }
+
+    /** Same for a stored attachment (decoded from its file when spilled). */
+    static void load(Attachment a, int maxSide, Consumer<BufferedImage> done, Consumer<String> failed) {
+        POOL.execute(() -> {
+            try {
+                String key = hash(a) + "@" + maxSide;
+                BufferedImage img = cached(key);
+                if (img == null) img = put(key, a.isSpilled() ? Images.decode(a.path(), maxSide) : Images.decode(a.bytes(), maxSide));
+                deliver(img, done);
+            } catch (Exception | OutOfMemoryError e) {
+                SwingUtil.ui(() -> failed.accept(String.valueOf(e.getMessage())));
+            }
+        });
+    }
+
+    private static void deliver(BufferedImage img, Consumer<BufferedImage> done) {
+        SwingUtil.ui(() -> done.accept(img));
+    }
+
+    private static synchronized BufferedImage cached(String key) {
+        return CACHE.get(key);
+    }
+
+    private static synchronized BufferedImage put(String key, BufferedImage img) {
+        BufferedImage old = CACHE.put(key, img);
+        if (old != null) cachedBytes -= pixelBytes(old);
+        cachedBytes += pixelBytes(img);
+
+        Iterator<Map.Entry<String, BufferedImage>> it = CACHE.entrySet().iterator();
+        while (cachedBytes > CACHE_BYTES && it.hasNext()) {
+            Map.Entry<String, BufferedImage> e = it.next();
+            if (e.getValue() == img) continue;
+            cachedBytes -= pixelBytes(e.getValue());
+            it.remove();
+        }
+        return img;
+    }
+
+    private static long pixelBytes(BufferedImage img) {
+        return 4L * img.getWidth() * img.getHeight();
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest md = sha256();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long window = 8L * 1024 * 1024;
+            for (long pos = 0; pos < size; pos += window) {
+                md.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(window, size - pos)));
+            }
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static String hash(Attachment a) throws IOException {
+        synchronized (HASHES) {
+            String h = HASHES.get(a);
+            if (h != null) return h;
+        }
+        MessageDigest md = sha256();
+        md.update(a.map());
+        String h = HexFormat.of().formatHex(md.digest());
+        synchronized (HASHES) { HASHES.put(a, h); }
+        return h;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
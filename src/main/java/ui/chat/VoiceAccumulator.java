@@ -1,11 +1,12 @@
 package ui.chat;
 
+import core.audio.PcmBuffer;
+
 import javax.sound.sampled.AudioFormat;
-import java.io.ByteArrayOutputStream;
 
-/** Collects streamed voice chunks into a single byte[] for replay. */
+/** Collects streamed voice chunks into a segmented {@link PcmBuffer} for replay. */
 public final class VoiceAccumulator {
-    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final PcmBuffer out = new PcmBuffer();
     private final AudioFormat format;
 
     public VoiceAccumulator(AudioFormat format) {
@@ -13,10 +14,13 @@ public final class VoiceAccumulator {
     }
 
     public void add(byte[] chunk) {
-        try { out.write(chunk); } catch (Exception ignored) {}
+        out.write(chunk);
     }
 
     public AudioFormat format() { return format; }
 
+    public PcmBuffer pcm() { return out; }
+
+    /** Joined copy; prefer {@link #pcm()}. */
     public byte[] bytes() { return out.toByteArray(); }
 }
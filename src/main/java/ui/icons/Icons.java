@@ -17,6 +17,8 @@ public final class Icons {
     public static Icon mic(int size) { return new MicIcon(size); }
     public static Icon stop(int size) { return new StopIcon(size); }
     public static Icon play(int size) { return new PlayIcon(size); }
+    public static Icon search(int size) { return new SearchIcon(size); }
+    public static Icon room(int size) { return new RoomIcon(size); }
 
     private abstract static class Base implements Icon {
         final int s;
@@ -159,4 +161,41 @@ public final class Icons {
             g2.dispose();
         }
     }
+
+    /** Magnifying glass. */
+    private static final class SearchIcon extends Base {
+        SearchIcon(int s) { super(s); }
+        @Override public void paintIcon(Component c, Graphics g, int x, int y) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(fg(c));
+            g2.setStroke(new BasicStroke(2f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+
+            int ox=x, oy=y, w=s, h=s;
+            int d = (int)(w*0.55);
+            g2.drawOval(ox + 2, oy + 2, d, d);
+            g2.drawLine(ox + 2 + (int)(d*0.85), oy + 2 + (int)(d*0.85), ox + w - 3, oy + h - 3);
+
+            g2.dispose();
+        }
+    }
+
+    /** Hash sign (rooms). */
+    private static final class RoomIcon extends Base {
+        RoomIcon(int s) { super(s); }
+        @Override public void paintIcon(Component c, Graphics g, int x, int y) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(fg(c));
+            g2.setStroke(new BasicStroke(2f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+
+            int ox=x, oy=y, w=s, h=s;
+            g2.drawLine(ox + (int)(w*0.42), oy + 2, ox + (int)(w*0.30), oy + h - 2);
+            g2.drawLine(ox + (int)(w*0.72), oy + 2, ox + (int)(w*0.60), oy + h - 2);
+            g2.drawLine(ox + 2, oy + (int)(h*0.35), ox + w - 2, oy + (int)(h*0.35));
+            g2.drawLine(ox + 2, oy + (int)(h*0.65), ox + w - 2, oy + (int)(h*0.65));
+
+            g2.dispose();
+        }
+    }
 }